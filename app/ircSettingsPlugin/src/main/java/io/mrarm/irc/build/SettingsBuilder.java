@@ -65,12 +65,23 @@ public class SettingsBuilder {
         List<SettingInfo> settings = new ArrayList<>();
         for (Map m : settingsMap)
             settings.add(parseSetting(m, prefPrefix));
+        // Every setting gets a bit in a long, so that a snapshot can be updated with the values of
+        // only the changed settings
+        if (settings.size() > 64)
+            throw new IllegalArgumentException("Too many settings in " + className);
         for (SettingInfo s : settings)
             writer.emitField("String", s.staticMemberName,
                     EnumSet.of(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL),
                     "\"" + s.prefName + "\"");
         writer.emitEmptyLine();
+        writer.emitField("Object", "sValuesLock",
+                EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL), "new Object()");
+        writer.emitField("Values", "sValues",
+                EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE));
+        writer.emitEmptyLine();
+        writeValuesAccessFuncs(writer, settings);
         for (SettingInfo s : settings) {
+            writeReadFunc(writer, s);
             writeGetterFunc(writer, s);
             if (s.properties.containsKey("setter"))
                 writeSetterFunc(writer, s);
@@ -91,6 +102,8 @@ public class SettingsBuilder {
         writer.endControlFlow();
         writer.endMethod();
 
+        writeValuesType(writer, settings);
+
         if (helpers != null) {
             for (String s : helpers) {
                 int typeIof = s.indexOf(' ');
@@ -142,12 +155,87 @@ public class SettingsBuilder {
         return ret;
     }
 
+    private static void writeValuesType(JavaWriter writer, List<SettingInfo> settings)
+            throws IOException {
+        writer.beginType("Values", "class",
+                EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL));
+        for (SettingInfo s : settings)
+            writer.emitField(s.type, s.name, EnumSet.of(Modifier.FINAL));
+        writer.emitEmptyLine();
+        writer.beginConstructor(EnumSet.noneOf(Modifier.class), "Values", "old", "long",
+                "changed");
+        for (int i = 0; i < settings.size(); i++) {
+            SettingInfo s = settings.get(i);
+            writer.emitStatement("%s = (changed & (1L << %d)) != 0 ? read%s() : old.%s",
+                    s.name, i, capitalize(s.name), s.name);
+        }
+        writer.endConstructor();
+        writer.endType();
+        writer.emitEmptyLine();
+    }
+
+    private static void writeValuesAccessFuncs(JavaWriter writer, List<SettingInfo> settings)
+            throws IOException {
+        writer.beginMethod("Values", "getValues", EnumSet.of(Modifier.PRIVATE, Modifier.STATIC));
+        writer.emitStatement("Values values = sValues");
+        writer.beginControlFlow("if (values == null)");
+        writer.beginControlFlow("synchronized (sValuesLock)");
+        writer.beginControlFlow("if (sValues == null)");
+        writer.emitStatement("sValues = new Values(null, -1L)");
+        writer.endControlFlow();
+        writer.emitStatement("values = sValues");
+        writer.endControlFlow();
+        writer.endControlFlow();
+        writer.emitStatement("return values");
+        writer.endMethod();
+
+        writer.beginMethod("long", "getKeyBit", EnumSet.of(Modifier.STATIC), "String", "key");
+        writer.beginControlFlow("switch (key)");
+        for (int i = 0; i < settings.size(); i++) {
+            writer.beginControlFlow("case \"%s\":", settings.get(i).prefName);
+            writer.emitStatement("return 1L << %d", i);
+            writer.endControlFlow();
+        }
+        writer.beginControlFlow("default:");
+        writer.emitStatement("return 0L");
+        writer.endControlFlow();
+        writer.endControlFlow();
+        writer.endMethod();
+
+        writer.beginMethod("void", "onPreferenceChanged", EnumSet.of(Modifier.STATIC),
+                "String", "key");
+        writer.emitStatement("long bit = getKeyBit(key)");
+        writer.beginControlFlow("if (bit == 0L)");
+        writer.emitStatement("return");
+        writer.endControlFlow();
+        writer.beginControlFlow("synchronized (sValuesLock)");
+        writer.beginControlFlow("if (sValues != null)");
+        writer.emitStatement("sValues = new Values(sValues, bit)");
+        writer.endControlFlow();
+        writer.endControlFlow();
+        writer.endMethod();
+
+        writer.beginMethod("void", "invalidate", EnumSet.of(Modifier.STATIC));
+        writer.beginControlFlow("synchronized (sValuesLock)");
+        writer.emitStatement("sValues = null");
+        writer.endControlFlow();
+        writer.endMethod();
+        writer.emitEmptyLine();
+    }
+
     private static void writeGetterFunc(JavaWriter writer, SettingInfo setting) throws IOException {
         String getterName = (String) setting.properties.get("getter");
         if (getterName == null)
             getterName = getGetterPrefix(setting.type) + capitalize(setting.name);
 
         writer.beginMethod(setting.type, getterName, EnumSet.of(Modifier.PUBLIC, Modifier.STATIC));
+        writer.emitStatement("return getValues().%s", setting.name);
+        writer.endMethod();
+    }
+
+    private static void writeReadFunc(JavaWriter writer, SettingInfo setting) throws IOException {
+        writer.beginMethod(setting.type, "read" + capitalize(setting.name),
+                EnumSet.of(Modifier.PRIVATE, Modifier.STATIC));
 
         switch (setting.type) {
             case "boolean":
@@ -237,6 +325,8 @@ public class SettingsBuilder {
             throws IOException {
         writer.emitStatement("getPreferences().edit().%s(%s, %s).apply()",
                 type, prefName, "value");
+        // The change listener is only called synchronously when applied on the main thread
+        writer.emitStatement("onPreferenceChanged(%s)", prefName);
     }
 
     private static String capitalize(String str) {
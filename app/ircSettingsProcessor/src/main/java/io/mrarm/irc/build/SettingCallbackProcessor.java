@@ -0,0 +1,241 @@
+package io.mrarm.irc.build;
+
+import com.squareup.javawriter.JavaWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a callback table for every class with methods annotated with SettingChangeCallback
+ * or UiSettingChangeCallback, which calls the methods directly, and a registry of all the tables
+ * by class, so that SettingsHelper can register the callbacks without using reflection.
+ */
+public class SettingCallbackProcessor extends AbstractProcessor {
+
+    private static final String CONFIG_PACKAGE = "io.mrarm.irc.config";
+    private static final String ANNOTATION = CONFIG_PACKAGE + ".SettingChangeCallback";
+    private static final String UI_ANNOTATION = CONFIG_PACKAGE + ".UiSettingChangeCallback";
+    private static final String TABLE_TYPE = CONFIG_PACKAGE + ".SettingsHelper.CallbackTable";
+    private static final String REGISTRY_NAME = "SettingCallbackTables";
+    private static final String TABLE_SUFFIX = "_SettingCallbacks";
+
+    private boolean mRegistryWritten = false;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // The registry is only generated if at least one method is annotated, which is always the
+        // case in the app
+        return new HashSet<>(Arrays.asList(ANNOTATION, UI_ANNOTATION));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (mRegistryWritten || roundEnv.processingOver())
+            return false;
+        Map<TypeElement, List<MethodInfo>> classes = new LinkedHashMap<>();
+        for (TypeElement annotation : annotations) {
+            String name = annotation.getQualifiedName().toString();
+            if (!name.equals(ANNOTATION) && !name.equals(UI_ANNOTATION))
+                continue;
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                MethodInfo method = createMethodInfo((ExecutableElement) element, name);
+                if (method == null)
+                    continue;
+                TypeElement type = (TypeElement) element.getEnclosingElement();
+                List<MethodInfo> methods = classes.get(type);
+                if (methods == null) {
+                    methods = new ArrayList<>();
+                    classes.put(type, methods);
+                }
+                methods.add(method);
+            }
+        }
+        try {
+            for (Map.Entry<TypeElement, List<MethodInfo>> e : classes.entrySet())
+                writeTable(e.getKey(), e.getValue());
+            writeRegistry(classes.keySet());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to write the setting callback tables: " + e.getMessage());
+        }
+        mRegistryWritten = true;
+        return false;
+    }
+
+    private MethodInfo createMethodInfo(ExecutableElement element, String annotationName) {
+        if (element.getModifiers().contains(Modifier.PRIVATE) ||
+                element.getModifiers().contains(Modifier.STATIC)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Setting change callbacks must not be private or static", element);
+            return null;
+        }
+        if (element.getParameters().size() > 1) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Setting change callbacks can only take the changed key", element);
+            return null;
+        }
+        if (element.getEnclosingElement().getKind() != ElementKind.CLASS) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Setting change callbacks must be declared in a class", element);
+            return null;
+        }
+        List<String> keys = new ArrayList<>();
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (!type.getQualifiedName().contentEquals(annotationName))
+                continue;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e :
+                    mirror.getElementValues().entrySet()) {
+                if (!e.getKey().getSimpleName().contentEquals("keys"))
+                    continue;
+                @SuppressWarnings("unchecked")
+                List<? extends AnnotationValue> values =
+                        (List<? extends AnnotationValue>) e.getValue().getValue();
+                for (AnnotationValue v : values)
+                    keys.add((String) v.getValue());
+            }
+        }
+        return new MethodInfo(element.getSimpleName().toString(),
+                element.getParameters().size() == 1, keys, annotationName.equals(UI_ANNOTATION));
+    }
+
+    private String getPackageName(TypeElement type) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        return pkg.getQualifiedName().toString();
+    }
+
+    private String getTableName(TypeElement type) {
+        String pkg = getPackageName(type);
+        String name = type.getQualifiedName().toString();
+        if (pkg.length() > 0)
+            name = name.substring(pkg.length() + 1);
+        return name.replace('.', '_') + TABLE_SUFFIX;
+    }
+
+    private String getTableQualifiedName(TypeElement type) {
+        String pkg = getPackageName(type);
+        return (pkg.length() > 0 ? pkg + "." : "") + getTableName(type);
+    }
+
+    private void writeTable(TypeElement type, List<MethodInfo> methods) throws IOException {
+        String className = type.getQualifiedName().toString();
+        try (Writer out = processingEnv.getFiler().createSourceFile(getTableQualifiedName(type),
+                type).openWriter()) {
+            JavaWriter writer = new JavaWriter(out);
+            writer.emitPackage(getPackageName(type));
+            writer.beginType(getTableQualifiedName(type), "class",
+                    EnumSet.of(Modifier.PUBLIC, Modifier.FINAL),
+                    TABLE_TYPE + "<" + className + ">");
+
+            StringBuilder keys = new StringBuilder();
+            StringBuilder onUi = new StringBuilder();
+            for (MethodInfo method : methods) {
+                if (keys.length() > 0) {
+                    keys.append(", ");
+                    onUi.append(", ");
+                }
+                keys.append("new String[] {");
+                for (int i = 0; i < method.mKeys.size(); i++)
+                    keys.append(i > 0 ? ", " : " ").append(
+                            JavaWriter.stringLiteral(method.mKeys.get(i)));
+                keys.append(" }");
+                onUi.append(method.mOnUi);
+            }
+            writer.beginConstructor(EnumSet.of(Modifier.PUBLIC));
+            writer.emitStatement("super(new String[][] { %s }, new boolean[] { %s })", keys,
+                    onUi);
+            writer.endConstructor();
+            writer.emitEmptyLine();
+
+            writer.emitAnnotation(Override.class);
+            writer.beginMethod("void", "invoke", EnumSet.of(Modifier.PUBLIC), className,
+                    "target", "int", "method", "String", "key");
+            writer.beginControlFlow("switch (method)");
+            for (int i = 0; i < methods.size(); i++) {
+                MethodInfo method = methods.get(i);
+                writer.beginControlFlow("case %d:", i);
+                writer.emitStatement("target.%s(%s)", method.mName,
+                        method.mTakesKey ? "key" : "");
+                writer.emitStatement("break");
+                writer.endControlFlow();
+            }
+            writer.endControlFlow();
+            writer.endMethod();
+
+            writer.endType();
+        }
+    }
+
+    private void writeRegistry(Set<TypeElement> types) throws IOException {
+        String name = CONFIG_PACKAGE + "." + REGISTRY_NAME;
+        try (Writer out = processingEnv.getFiler().createSourceFile(name,
+                types.toArray(new Element[0])).openWriter()) {
+            JavaWriter writer = new JavaWriter(out);
+            writer.emitPackage(CONFIG_PACKAGE);
+            writer.emitImports("java.util.HashMap", "java.util.Map");
+            writer.emitEmptyLine();
+            writer.beginType(name, "class", EnumSet.of(Modifier.FINAL));
+
+            writer.emitField("Map<Class<?>, SettingsHelper.CallbackTable<?>>", "sTables",
+                    EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL),
+                    "new HashMap<>()");
+            writer.emitEmptyLine();
+            writer.beginInitializer(true);
+            for (TypeElement type : types)
+                writer.emitStatement("sTables.put(%s.class, new %s())",
+                        type.getQualifiedName(), getTableQualifiedName(type));
+            writer.endInitializer();
+            writer.emitEmptyLine();
+
+            writer.beginMethod("SettingsHelper.CallbackTable<?>", "get",
+                    EnumSet.of(Modifier.STATIC), "Class<?>", "c");
+            writer.emitStatement("return sTables.get(c)");
+            writer.endMethod();
+
+            writer.endType();
+        }
+    }
+
+    private static class MethodInfo {
+
+        private final String mName;
+        private final boolean mTakesKey;
+        private final List<String> mKeys;
+        private final boolean mOnUi;
+
+        MethodInfo(String name, boolean takesKey, List<String> keys, boolean onUi) {
+            mName = name;
+            mTakesKey = takesKey;
+            mKeys = keys;
+            mOnUi = onUi;
+        }
+
+    }
+
+}
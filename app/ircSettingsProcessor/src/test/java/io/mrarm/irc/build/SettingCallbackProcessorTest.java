@@ -0,0 +1,205 @@
+package io.mrarm.irc.build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SettingCallbackProcessorTest {
+
+    private static final String ANNOTATION_SOURCE =
+            "package io.mrarm.irc.config;\n" +
+            "import java.lang.annotation.*;\n" +
+            "@Retention(RetentionPolicy.CLASS)\n" +
+            "@Target(ElementType.METHOD)\n" +
+            "public @interface %s {\n" +
+            "    String[] keys();\n" +
+            "}\n";
+
+    // Only the parts of SettingsHelper the generated code uses, with the table data exposed
+    private static final String SETTINGS_HELPER_SOURCE =
+            "package io.mrarm.irc.config;\n" +
+            "public class SettingsHelper {\n" +
+            "    public abstract static class CallbackTable<T> {\n" +
+            "        public final String[][] keys;\n" +
+            "        public final boolean[] onUi;\n" +
+            "        protected CallbackTable(String[][] keys, boolean[] onUi) {\n" +
+            "            this.keys = keys;\n" +
+            "            this.onUi = onUi;\n" +
+            "        }\n" +
+            "        public abstract void invoke(T target, int method, String key);\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String TARGET_SOURCE =
+            "package test;\n" +
+            "import io.mrarm.irc.config.*;\n" +
+            "public class Target {\n" +
+            "    public final java.util.List<String> calls = new java.util.ArrayList<>();\n" +
+            "    @SettingChangeCallback(keys = {\"a\", \"b\"})\n" +
+            "    void onAOrB() { calls.add(\"onAOrB\"); }\n" +
+            "    @UiSettingChangeCallback(keys = \"c\")\n" +
+            "    protected void onC(String key) { calls.add(\"onC \" + key); }\n" +
+            "    public static class Nested {\n" +
+            "        @SettingChangeCallback(keys = \"d\")\n" +
+            "        public void onD() { }\n" +
+            "    }\n" +
+            "}\n";
+
+    private File mOutputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mOutputDir = Files.createTempDirectory("setting-callback-processor").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursive(mOutputDir);
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files)
+                deleteRecursive(f);
+        }
+        file.delete();
+    }
+
+    private static JavaFileObject createSource(String className, String source) {
+        return new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') +
+                JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+    }
+
+    /**
+     * Compiles the sources together with the annotations and SettingsHelper using the processor,
+     * returns the error diagnostics.
+     */
+    private List<String> compile(String className, String source) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> errors = new ArrayList<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics,
+                null, null)) {
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
+                    Collections.singletonList(mOutputDir));
+            fileManager.setLocation(StandardLocation.SOURCE_OUTPUT,
+                    Collections.singletonList(mOutputDir));
+            List<JavaFileObject> sources = Arrays.asList(
+                    createSource("io.mrarm.irc.config.SettingChangeCallback",
+                            String.format(ANNOTATION_SOURCE, "SettingChangeCallback")),
+                    createSource("io.mrarm.irc.config.UiSettingChangeCallback",
+                            String.format(ANNOTATION_SOURCE, "UiSettingChangeCallback")),
+                    createSource("io.mrarm.irc.config.SettingsHelper", SETTINGS_HELPER_SOURCE),
+                    createSource(className, source));
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    null, null, sources);
+            task.setProcessors(Collections.singletonList(new SettingCallbackProcessor()));
+            task.call();
+        }
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.ERROR)
+                errors.add(d.getMessage(null));
+        }
+        return errors;
+    }
+
+    private Object getTable(ClassLoader loader, String className) throws Exception {
+        Method get = loader.loadClass("io.mrarm.irc.config.SettingCallbackTables")
+                .getDeclaredMethod("get", Class.class);
+        get.setAccessible(true);
+        return get.invoke(null, loader.loadClass(className));
+    }
+
+    @Test
+    public void testGeneratedTables() throws Exception {
+        assertEquals(Collections.emptyList(), compile("test.Target", TARGET_SOURCE));
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { mOutputDir.toURI().toURL() },
+                getClass().getClassLoader())) {
+            Object table = getTable(loader, "test.Target");
+            assertNotNull(table);
+            assertEquals("test.Target_SettingCallbacks", table.getClass().getName());
+            Class<?> tableClass = loader.loadClass(
+                    "io.mrarm.irc.config.SettingsHelper$CallbackTable");
+            String[][] keys = (String[][]) tableClass.getField("keys").get(table);
+            boolean[] onUi = (boolean[]) tableClass.getField("onUi").get(table);
+            assertEquals(2, keys.length);
+            // the order of the methods in the table is not defined
+            int methodAOrB = keys[0].length == 2 ? 0 : 1;
+            int methodC = 1 - methodAOrB;
+            assertArrayEquals(new String[] { "a", "b" }, keys[methodAOrB]);
+            assertArrayEquals(new String[] { "c" }, keys[methodC]);
+            assertFalse(onUi[methodAOrB]);
+            assertTrue(onUi[methodC]);
+
+            Object target = loader.loadClass("test.Target").getDeclaredConstructor()
+                    .newInstance();
+            Method invoke = tableClass.getMethod("invoke", Object.class, int.class,
+                    String.class);
+            invoke.invoke(table, target, methodAOrB, "b");
+            invoke.invoke(table, target, methodC, "c");
+            Field calls = target.getClass().getField("calls");
+            assertEquals(Arrays.asList("onAOrB", "onC c"), calls.get(target));
+
+            Object nestedTable = getTable(loader, "test.Target$Nested");
+            assertNotNull(nestedTable);
+            assertEquals("test.Target_Nested_SettingCallbacks",
+                    nestedTable.getClass().getName());
+            assertArrayEquals(new String[] { "d" },
+                    ((String[][]) tableClass.getField("keys").get(nestedTable))[0]);
+        }
+    }
+
+    @Test
+    public void testPrivateCallbackIsRejected() throws Exception {
+        List<String> errors = compile("test.Private", "package test;\n" +
+                "public class Private {\n" +
+                "    @io.mrarm.irc.config.SettingChangeCallback(keys = \"a\")\n" +
+                "    private void onA() { }\n" +
+                "}\n");
+        assertTrue(errors.contains("Setting change callbacks must not be private or static"));
+    }
+
+    @Test
+    public void testTooManyParametersAreRejected() throws Exception {
+        List<String> errors = compile("test.Parameters", "package test;\n" +
+                "public class Parameters {\n" +
+                "    @io.mrarm.irc.config.SettingChangeCallback(keys = \"a\")\n" +
+                "    void onA(String key, int value) { }\n" +
+                "}\n");
+        assertTrue(errors.contains("Setting change callbacks can only take the changed key"));
+    }
+
+}
@@ -0,0 +1,112 @@
+package io.mrarm.irc.config;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the batched flush of the notification counters of 500 channels with writing each
+ * counter change in its own transaction, at a sustained rate of messages spread over the channels.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotificationCountStorageBenchmark {
+
+    private static final String TAG = "NotificationCountBench";
+
+    private static final int CHANNEL_COUNT = 500;
+    private static final int SERVER_COUNT = 5;
+    private static final int MESSAGES_PER_ROUND = 2000;
+    private static final int ROUNDS = 5;
+
+    private static String getChannel(int i) {
+        return "#channel" + (i / SERVER_COUNT);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        UUID[] servers = new UUID[SERVER_COUNT];
+        for (int i = 0; i < SERVER_COUNT; i++)
+            servers[i] = UUID.randomUUID();
+
+        File batchedFile = new File(context.getCacheDir(), "notification-count-bench.db");
+        SQLiteDatabase.deleteDatabase(batchedFile);
+        NotificationCountStorage storage = new NotificationCountStorage(
+                batchedFile.getAbsolutePath());
+        long batchedTime = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+                int channel = i % CHANNEL_COUNT;
+                storage.requestIncrementChannelCounter(servers[channel % SERVER_COUNT],
+                        getChannel(channel));
+            }
+            // close flushes the queued changes and waits for it, open makes it usable again
+            storage.close();
+            batchedTime += System.nanoTime() - start;
+            storage.open();
+        }
+
+        File directFile = new File(context.getCacheDir(), "notification-count-bench-direct.db");
+        SQLiteDatabase.deleteDatabase(directFile);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(directFile, null);
+        db.execSQL("CREATE TABLE 'notification_count' (server TEXT, channel TEXT, count INTEGER, firstMessageId TEXT, PRIMARY KEY (server, channel))");
+        SQLiteStatement update = db.compileStatement("UPDATE 'notification_count' SET count=count+1 WHERE server=?1 AND channel=?2");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO 'notification_count' (server, channel, count) VALUES (?1, ?2, 1)");
+        long directTime = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+                int channel = i % CHANNEL_COUNT;
+                update.bindString(1, servers[channel % SERVER_COUNT].toString());
+                update.bindString(2, getChannel(channel));
+                if (update.executeUpdateDelete() == 0) {
+                    insert.bindString(1, servers[channel % SERVER_COUNT].toString());
+                    insert.bindString(2, getChannel(channel));
+                    insert.executeInsert();
+                }
+            }
+            directTime += System.nanoTime() - start;
+        }
+        db.close();
+        SQLiteDatabase.deleteDatabase(directFile);
+
+        int expected = MESSAGES_PER_ROUND / CHANNEL_COUNT * ROUNDS;
+        CountDownLatch latch = new CountDownLatch(CHANNEL_COUNT);
+        AtomicInteger wrongCounts = new AtomicInteger();
+        NotificationCountStorage.OnChannelCounterResult cb =
+                (UUID server, String channel, int messages, String firstMessageId) -> {
+                    if (messages != expected)
+                        wrongCounts.incrementAndGet();
+                    latch.countDown();
+                };
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+            storage.requestGetChannelCounter(servers[i % SERVER_COUNT], getChannel(i),
+                    new WeakReference<>(cb));
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(0, wrongCounts.get());
+        storage.close();
+        SQLiteDatabase.deleteDatabase(batchedFile);
+
+        Log.i(TAG, CHANNEL_COUNT + " channels, " + MESSAGES_PER_ROUND + " messages per flush: " +
+                "batched " + (batchedTime / ROUNDS / 1000) + " us, " +
+                "one transaction per change " + (directTime / ROUNDS / 1000) + " us per flush");
+    }
+
+}
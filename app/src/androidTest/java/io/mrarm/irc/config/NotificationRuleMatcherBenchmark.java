@@ -0,0 +1,206 @@
+package io.mrarm.irc.config;
+
+import android.util.Log;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+import io.mrarm.irc.NotificationManager;
+import io.mrarm.irc.ServerConnectionInfo;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares NotificationRuleMatcher with the loop it replaced, which called
+ * NotificationRule.appliesTo for every rule in order, using 10, 100 and 1000 rules. Most of the
+ * rules match a word like the ones created using setMatchText, some use a regex, and they are
+ * limited to random servers, channels, nicks and message kinds. Both have to pick the same rule
+ * for every message.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotificationRuleMatcherBenchmark {
+
+    private static final String TAG = "NotificationRuleBench";
+
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int ROUNDS = 5;
+    private static final int SERVER_COUNT = 3;
+    private static final int CHANNEL_COUNT = 20;
+    private static final int NICK_COUNT = 50;
+    private static final String[] WORDS = { "hello", "there", "how", "is", "it", "going", "irc",
+            "server", "channel", "nick", "message", "today", "anyone", "around", "help" };
+
+    private static String randomWord(Random random) {
+        return WORDS[random.nextInt(WORDS.length)] + random.nextInt(100);
+    }
+
+    private static NotificationRule.AppliesToEntry createEntry(
+            Random random, List<NotificationManager.ConnectionManager> servers) {
+        NotificationRule.AppliesToEntry entry;
+        switch (random.nextInt(4)) {
+            case 0:
+                entry = NotificationRule.AppliesToEntry.channelMessages();
+                break;
+            case 1:
+                entry = NotificationRule.AppliesToEntry.directMessages();
+                break;
+            case 2:
+                entry = NotificationRule.AppliesToEntry.channelEvents();
+                break;
+            default:
+                entry = NotificationRule.AppliesToEntry.any();
+                break;
+        }
+        if (random.nextInt(4) == 0)
+            entry.server = servers.get(random.nextInt(servers.size())).getServerUUID();
+        if (random.nextInt(3) == 0)
+            entry.channels = Arrays.asList("#channel" + random.nextInt(CHANNEL_COUNT),
+                    "#channel" + random.nextInt(CHANNEL_COUNT));
+        if (random.nextInt(5) == 0)
+            entry.nicks = Arrays.asList("nick" + random.nextInt(NICK_COUNT));
+        return entry;
+    }
+
+    private static List<NotificationRule> createRules(
+            Random random, int count, List<NotificationManager.ConnectionManager> servers) {
+        List<NotificationRule> rules = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            NotificationRule rule = new NotificationRule();
+            rule.setName("rule" + i);
+            List<NotificationRule.AppliesToEntry> entries = new ArrayList<>();
+            entries.add(createEntry(random, servers));
+            if (random.nextInt(4) == 0)
+                entries.add(createEntry(random, servers));
+            rule.setAppliesTo(entries);
+            if (random.nextInt(10) == 0)
+                rule.setRegex(randomWord(random) + "\\s+" + randomWord(random), true);
+            else
+                rule.setMatchText(randomWord(random), random.nextBoolean(), random.nextBoolean());
+            if (random.nextInt(20) == 0)
+                rule.settings.enabled = false;
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    private static class Message {
+
+        final NotificationManager.ConnectionManager mServer;
+        final String mChannel;
+        final MessageInfo mInfo;
+
+        Message(NotificationManager.ConnectionManager server, String channel, MessageInfo info) {
+            mServer = server;
+            mChannel = channel;
+            mInfo = info;
+        }
+
+    }
+
+    private static List<Message> createMessages(
+            Random random, List<NotificationManager.ConnectionManager> servers) {
+        List<Message> ret = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 12; j++)
+                text.append(j > 0 ? " " : "").append(randomWord(random));
+            String nick = "nick" + random.nextInt(NICK_COUNT);
+            MessageInfo info = new MessageInfo(new MessageSenderInfo(nick, "user", "host", null,
+                    null), new Date(), text.toString(), random.nextInt(5) == 0 ?
+                    MessageInfo.MessageType.NOTICE : MessageInfo.MessageType.NORMAL);
+            String channel = random.nextInt(5) == 0 ? null :
+                    "#channel" + random.nextInt(CHANNEL_COUNT);
+            ret.add(new Message(servers.get(random.nextInt(servers.size())), channel, info));
+        }
+        return ret;
+    }
+
+    /**
+     * The lookup which was used before NotificationRuleMatcher.
+     */
+    private static NotificationRule findRuleLegacy(List<NotificationRule> rules,
+                                                   Message message) {
+        for (NotificationRule rule : rules) {
+            if (rule.appliesTo(message.mServer, message.mChannel, message.mInfo) &&
+                    rule.settings.enabled)
+                return rule;
+        }
+        return null;
+    }
+
+    private static long runLegacy(List<NotificationRule> rules, List<Message> messages,
+                                  NotificationRule[] results) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages.size(); i++)
+            results[i] = findRuleLegacy(rules, messages.get(i));
+        return System.nanoTime() - start;
+    }
+
+    private static long runMatcher(NotificationRuleMatcher matcher, List<Message> messages,
+                                   NotificationRule[] results) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            results[i] = matcher.findRule(message.mServer, message.mChannel, message.mInfo);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void benchmark(int ruleCount) {
+        Random random = new Random(ruleCount);
+        List<NotificationManager.ConnectionManager> servers = new ArrayList<>();
+        for (int i = 0; i < SERVER_COUNT; i++) {
+            ServerConfigData config = new ServerConfigData();
+            config.uuid = UUID.randomUUID();
+            servers.add(new ServerConnectionInfo(null, config, null, null, null)
+                    .getNotificationManager());
+        }
+        List<NotificationRule> rules = createRules(random, ruleCount, servers);
+        List<Message> messages = createMessages(random, servers);
+
+        long buildStart = System.nanoTime();
+        NotificationRuleMatcher matcher = new NotificationRuleMatcher(rules);
+        long buildTime = System.nanoTime() - buildStart;
+
+        NotificationRule[] legacyResults = new NotificationRule[messages.size()];
+        NotificationRule[] matcherResults = new NotificationRule[messages.size()];
+        // Warm up
+        runLegacy(rules, messages, legacyResults);
+        runMatcher(matcher, messages, matcherResults);
+        long legacyTime = 0, matcherTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            legacyTime += runLegacy(rules, messages, legacyResults);
+            matcherTime += runMatcher(matcher, messages, matcherResults);
+        }
+        int matched = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            assertSame("message " + i, legacyResults[i], matcherResults[i]);
+            if (legacyResults[i] != null)
+                matched++;
+        }
+        long divisor = (long) ROUNDS * messages.size();
+        Log.i(TAG, ruleCount + " rules (" + matched + " of " + messages.size() +
+                " messages matched): loop " + (legacyTime / divisor) + " ns, matcher " +
+                (matcherTime / divisor) + " ns per message, matcher built in " +
+                (buildTime / 1000) + " us");
+    }
+
+    @Test
+    public void benchmark() {
+        benchmark(10);
+        benchmark(100);
+        benchmark(1000);
+    }
+
+}
@@ -0,0 +1,162 @@
+package io.mrarm.irc.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.mrarm.chatlib.android.storage.SQLiteMessageStorageApi;
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+import io.mrarm.chatlib.message.MessageListener;
+import io.mrarm.chatlib.message.WritableMessageStorageApi;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the message throughput of the SQLite storage with and without the write-behind
+ * buffer. A local flood server sends PRIVMSG lines as fast as the socket allows, like a bouncer
+ * playing back its buffer, and the client stores every received line as a message. Also reports
+ * how long the listeners waited for a message after it was received.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BufferedMessageStorageBenchmark {
+
+    private static final String TAG = "BufferedStorageBench";
+
+    private static final int MESSAGE_COUNT = 20000;
+    private static final int CHANNEL_COUNT = 10;
+
+    private static void runFloodServer(ServerSocket serverSocket) {
+        try (Socket socket = serverSocket.accept();
+             Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8")) {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                writer.write(":flooder" + (i % 50) + "!user@host PRIVMSG #channel" +
+                        (i % CHANNEL_COUNT) + " :flood message number " + i + "\r\n");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "The flood server failed", e);
+        }
+    }
+
+    private static MessageInfo parseMessage(String line) {
+        int prefixEnd = line.indexOf(' ');
+        int nickEnd = line.indexOf('!');
+        int channelStart = line.indexOf('#');
+        int channelEnd = line.indexOf(' ', channelStart);
+        MessageSenderInfo sender = new MessageSenderInfo(line.substring(1, nickEnd),
+                line.substring(nickEnd + 1, line.indexOf('@')),
+                line.substring(line.indexOf('@') + 1, prefixEnd), null, null);
+        return new MessageInfo(sender, new Date(), line.substring(channelEnd + 2),
+                MessageInfo.MessageType.NORMAL);
+    }
+
+    /**
+     * Receives the flood and stores it, returns the time in nanoseconds until all of the messages
+     * were written.
+     */
+    private static long receiveFlood(WritableMessageStorageApi storage) throws Exception {
+        AtomicInteger notified = new AtomicInteger();
+        AtomicLong notifyLatency = new AtomicLong();
+        long[] receivedAt = new long[MESSAGE_COUNT];
+        MessageListener listener = (String channel, MessageInfo message, MessageId id) -> {
+            String text = message.getMessage();
+            int index = Integer.parseInt(text.substring(text.lastIndexOf(' ') + 1));
+            notifyLatency.addAndGet(System.nanoTime() - receivedAt[index]);
+            notified.incrementAndGet();
+        };
+        storage.subscribeChannelMessages(null, listener, null, null);
+
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Thread serverThread = new Thread(() -> runFloodServer(serverSocket));
+        serverThread.start();
+        long start = System.nanoTime();
+        Future<Void> last = null;
+        int received = 0;
+        try (Socket socket = new Socket(serverSocket.getInetAddress(),
+                serverSocket.getLocalPort());
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     socket.getInputStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                MessageInfo message = parseMessage(line);
+                String channel = line.substring(line.indexOf('#'),
+                        line.indexOf(' ', line.indexOf('#')));
+                receivedAt[received] = System.nanoTime();
+                last = storage.addMessage(channel, message, null, null);
+                received++;
+            }
+        }
+        if (storage instanceof BufferedMessageStorageApi)
+            ((BufferedMessageStorageApi) storage).flush();
+        else if (last != null)
+            last.get();
+        long time = System.nanoTime() - start;
+        serverThread.join();
+        serverSocket.close();
+        storage.unsubscribeChannelMessages(null, listener, null, null);
+
+        assertEquals(MESSAGE_COUNT, received);
+        // the direct storage notifies from its own thread, wait for the last notifications
+        for (int i = 0; i < 100 && notified.get() < MESSAGE_COUNT; i++)
+            Thread.sleep(50);
+        assertEquals(MESSAGE_COUNT, notified.get());
+        Log.i(TAG, storage.getClass().getSimpleName() + ": average listener delay " +
+                (notifyLatency.get() / MESSAGE_COUNT / 1000) + " us");
+        return time;
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files)
+                deleteRecursive(f);
+        }
+        file.delete();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        File directDir = new File(context.getCacheDir(), "buffered-storage-bench-direct");
+        deleteRecursive(directDir);
+        SQLiteMessageStorageApi direct = new SQLiteMessageStorageApi(directDir);
+        long directTime = receiveFlood(direct);
+        direct.close();
+        deleteRecursive(directDir);
+
+        File bufferedDir = new File(context.getCacheDir(), "buffered-storage-bench");
+        deleteRecursive(bufferedDir);
+        BufferedMessageStorageApi buffered = new BufferedMessageStorageApi(
+                new SQLiteMessageStorageApi(bufferedDir));
+        long bufferedTime = receiveFlood(buffered);
+        float batchSize = buffered.getAverageBatchSize();
+        buffered.close();
+        deleteRecursive(bufferedDir);
+
+        Log.i(TAG, MESSAGE_COUNT + " flood messages: direct " +
+                (MESSAGE_COUNT * 1000000000L / directTime) + " messages/s, buffered " +
+                (MESSAGE_COUNT * 1000000000L / bufferedTime) + " messages/s, " +
+                "average batch " + batchSize + " messages");
+    }
+
+}
@@ -0,0 +1,261 @@
+package io.mrarm.irc.util;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares IRCColorUtils.appendFormattedString with the decoder it replaced, which created a span
+ * for every control code and closed them using ColoredTextBuilder.endSpans. The corpora mimic
+ * colored logs: ordinary chat with occasional formatting, rainbow text with a color code before
+ * every character, and ASCII art drawn with background colors.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IRCFormattingDecoderBenchmark {
+
+    private static final String TAG = "IRCFormattingBench";
+
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int ROUNDS = 5;
+
+    private static String createChatMessage(Random random) {
+        StringBuilder b = new StringBuilder();
+        int words = 3 + random.nextInt(15);
+        for (int i = 0; i < words; i++) {
+            if (i > 0)
+                b.append(' ');
+            int format = random.nextInt(20);
+            if (format == 0)
+                b.append('\u0002');
+            else if (format == 1)
+                b.append('\u0003').append(random.nextInt(16));
+            int len = 2 + random.nextInt(8);
+            for (int j = 0; j < len; j++)
+                b.append((char) ('a' + random.nextInt(26)));
+            if (format == 0)
+                b.append('\u0002');
+            else if (format == 1)
+                b.append('\u0003');
+        }
+        return b.toString();
+    }
+
+    private static String createRainbowMessage(Random random) {
+        StringBuilder b = new StringBuilder();
+        int len = 40 + random.nextInt(200);
+        for (int i = 0; i < len; i++) {
+            b.append('\u0003').append(String.format("%02d", i % 13 + 2));
+            if (i % 7 == 0)
+                b.append('\u0002');
+            b.append((char) ('a' + random.nextInt(26)));
+        }
+        return b.toString();
+    }
+
+    private static String createArtMessage(Random random) {
+        StringBuilder b = new StringBuilder();
+        int blocks = 20 + random.nextInt(40);
+        for (int i = 0; i < blocks; i++) {
+            int color = random.nextInt(16);
+            b.append('\u0003').append(color).append(',').append(color);
+            int len = 1 + random.nextInt(4);
+            for (int j = 0; j < len; j++)
+                b.append('#');
+        }
+        return b.append('\u000F').toString();
+    }
+
+    private interface MessageGenerator {
+        String create(Random random);
+    }
+
+    private static List<String> createCorpus(MessageGenerator generator) {
+        Random random = new Random(12);
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            ret.add(generator.create(random));
+        return ret;
+    }
+
+    /**
+     * The decoder which was used before IRCFormattingDecoder.
+     */
+    private static void appendFormattedStringLegacy(Context context, ColoredTextBuilder builder,
+                                                    String string) {
+        int fg = 99, bg = 99;
+        boolean bold = false, italic = false, underline = false;
+        SpannableStringBuilder spannable = builder.getSpannable();
+        for (int i = 0; i < string.length(); ) {
+            switch (string.charAt(i)) {
+                case 0x02: {
+                    i++;
+                    bold = !bold;
+                    if (bold)
+                        builder.setSpan(new StyleSpan(Typeface.BOLD));
+                    else
+                        builder.endSpans(StyleSpan.class,
+                                (StyleSpan s) -> s.getStyle() == Typeface.BOLD);
+                    break;
+                }
+                case 0x1D: {
+                    i++;
+                    italic = !italic;
+                    if (italic)
+                        builder.setSpan(new StyleSpan(Typeface.ITALIC));
+                    else
+                        builder.endSpans(StyleSpan.class,
+                                (StyleSpan s) -> s.getStyle() == Typeface.ITALIC);
+                    break;
+                }
+                case 0x1F: {
+                    i++;
+                    underline = !underline;
+                    if (underline)
+                        builder.setSpan(new UnderlineSpan());
+                    else
+                        builder.endSpans(UnderlineSpan.class);
+                    break;
+                }
+                case 0x0F: {
+                    i++;
+                    builder.endSpans(Object.class);
+                    fg = bg = 99;
+                    bold = italic = underline = false;
+                    break;
+                }
+                case '\n': {
+                    i++;
+                    spannable.append('\n');
+                    builder.endSpans(Object.class);
+                    break;
+                }
+                case 0x03: {
+                    fg = -1;
+                    i++;
+                    for (int j = 0; j < 2 && i < string.length(); i++, j++) {
+                        if (string.charAt(i) < '0' || string.charAt(i) > '9')
+                            break;
+                        fg = Math.max(fg, 0) * 10 + string.charAt(i) - '0';
+                    }
+                    if (fg == -1) {
+                        fg = bg = 99;
+                        builder.endSpans(ForegroundColorSpan.class);
+                        builder.endSpans(BackgroundColorSpan.class);
+                        continue;
+                    }
+                    builder.endSpans(ForegroundColorSpan.class);
+                    if (fg != 99)
+                        builder.setSpan(new ForegroundColorSpan(
+                                IRCColorUtils.getIrcColor(context, fg)));
+                    if (i >= string.length() || string.charAt(i) != ',')
+                        break;
+                    i++;
+                    bg = 0;
+                    for (int j = 0; j < 2 && i < string.length(); i++, j++) {
+                        if (string.charAt(i) < '0' || string.charAt(i) > '9')
+                            break;
+                        bg = bg * 10 + string.charAt(i) - '0';
+                    }
+                    builder.endSpans(BackgroundColorSpan.class);
+                    if (bg != 99)
+                        builder.setSpan(new BackgroundColorSpan(
+                                IRCColorUtils.getIrcColor(context, bg)));
+                    break;
+                }
+                case 0x16: {
+                    i++;
+                    int tmp = fg;
+                    fg = bg;
+                    bg = tmp;
+                    builder.endSpans(ForegroundColorSpan.class);
+                    builder.endSpans(BackgroundColorSpan.class);
+                    if (fg != 99)
+                        builder.setSpan(new ForegroundColorSpan(
+                                IRCColorUtils.getIrcColor(context, fg)));
+                    if (bg != 99)
+                        builder.setSpan(new BackgroundColorSpan(
+                                IRCColorUtils.getIrcColor(context, bg)));
+                    break;
+                }
+                default: {
+                    spannable.append(string.charAt(i));
+                    i++;
+                }
+            }
+        }
+    }
+
+    private static long runLegacy(Context context, List<String> corpus) {
+        long start = System.nanoTime();
+        for (String message : corpus)
+            appendFormattedStringLegacy(context, new ColoredTextBuilder(), message);
+        return System.nanoTime() - start;
+    }
+
+    private static long runDecoder(Context context, List<String> corpus) {
+        long start = System.nanoTime();
+        for (String message : corpus)
+            IRCColorUtils.appendFormattedString(context, new ColoredTextBuilder(), message);
+        return System.nanoTime() - start;
+    }
+
+    private static void benchmark(Context context, String name, List<String> corpus) {
+        // Warm up
+        runLegacy(context, corpus);
+        runDecoder(context, corpus);
+        long legacyTime = 0, decoderTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            legacyTime += runLegacy(context, corpus);
+            decoderTime += runDecoder(context, corpus);
+        }
+        long divisor = (long) ROUNDS * corpus.size();
+        Log.i(TAG, name + ": legacy " + (legacyTime / divisor) + " ns, two stage " +
+                (decoderTime / divisor) + " ns per message");
+    }
+
+    @Test
+    public void benchmark() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        benchmark(context, "chat", createCorpus(IRCFormattingDecoderBenchmark::createChatMessage));
+        benchmark(context, "rainbow",
+                createCorpus(IRCFormattingDecoderBenchmark::createRainbowMessage));
+        benchmark(context, "ascii art",
+                createCorpus(IRCFormattingDecoderBenchmark::createArtMessage));
+    }
+
+    @Test
+    public void concatenatedTextsKeepTheirSpans() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        CharSequence first = IRCColorUtils.getFormattedString(context, "\u00034red\u0002bold");
+        CharSequence second = IRCColorUtils.getFormattedString(context, "\u00034red\u0002bold");
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        builder.append(first);
+        builder.append(second);
+        int count = ((Spanned) first).getSpans(0, first.length(), Object.class).length;
+        assertEquals(2, count);
+        assertEquals(count * 2, builder.getSpans(0, builder.length(), Object.class).length);
+        ForegroundColorSpan[] colors = builder.getSpans(0, builder.length(),
+                ForegroundColorSpan.class);
+        assertEquals(2, colors.length);
+        assertNotSame(colors[0], colors[1]);
+    }
+
+}
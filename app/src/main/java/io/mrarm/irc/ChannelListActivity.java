@@ -18,20 +18,23 @@ import android.widget.TextView;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
 import io.mrarm.chatlib.dto.ChannelList;
+import io.mrarm.irc.util.ChannelListIndex;
 import io.mrarm.irc.view.RecyclerViewScrollbar;
 
 public class ChannelListActivity extends ThemedActivity {
 
     public static final String ARG_SERVER_UUID = "server_uuid";
 
-    public static final int SORT_UNSORTED = 0;
-    public static final int SORT_NAME = 1;
-    public static final int SORT_MEMBER_COUNT = 2;
+    public static final int SORT_UNSORTED = ChannelListIndex.SORT_UNSORTED;
+    public static final int SORT_NAME = ChannelListIndex.SORT_NAME;
+    public static final int SORT_MEMBER_COUNT = ChannelListIndex.SORT_MEMBER_COUNT;
+
+    // Above this many separate inserted ranges the whole list is refreshed at once instead
+    private static final int MAX_RANGE_UPDATES = 50;
 
     private ServerConnectionInfo mConnection;
     private View mMainAppBar;
@@ -44,8 +47,12 @@ public class ChannelListActivity extends ThemedActivity {
 
     private UpdateListAsyncTask mUpdateListAsyncTask;
 
-    private List<ChannelList.Entry> mEntries = new ArrayList<>();
-    private List<ChannelList.Entry> mFilteredEntries = new ArrayList<>();
+    private final ChannelListIndex mIndex = new ChannelListIndex();
+    // The list currently shown, it is never modified once shown
+    private List<ChannelList.Entry> mDisplayedEntries = new ArrayList<>();
+    private String mDisplayedFilterQuery;
+    private int mDisplayedSortMode = SORT_NAME;
+    private ChannelListIndex.Sections mDisplayedSections;
 
     private final List<ChannelList.Entry> mAppendEntries = new ArrayList<>();
     private List<ChannelList.Entry> mAssignEntries = new ArrayList<>();
@@ -105,11 +112,6 @@ public class ChannelListActivity extends ThemedActivity {
         }, null);
     }
 
-    private static boolean filterEntry(ChannelList.Entry entry, String query) {
-        return query == null || query.length() == 0 ||
-                entry.getChannel().toLowerCase().contains(query);
-    }
-
     private void requestListUpdate() {
         if (mUpdateListAsyncTask == null) {
             mUpdateListAsyncTask = new UpdateListAsyncTask(this);
@@ -176,9 +178,8 @@ public class ChannelListActivity extends ThemedActivity {
         }
         if (!searchMode) {
             mFilterQuery = null;
-            mFilteredEntries = null;
             mSearchView.setQuery(null, false);
-            mListAdapter.notifyDataSetChanged();
+            requestListUpdate();
         }
     }
 
@@ -194,21 +195,19 @@ public class ChannelListActivity extends ThemedActivity {
 
         @Override
         public void onBindViewHolder(ListEntry holder, int position) {
-            holder.bind(mFilteredEntries == null ? mEntries.get(position)
-                    : mFilteredEntries.get(position));
+            holder.bind(mDisplayedEntries.get(position));
         }
 
         @Override
         public String getLetterFor(int position) {
-            if (mSortMode != SORT_NAME)
+            if (mDisplayedSections == null)
                 return null;
-            String channel = mFilteredEntries.get(position).getChannel();
-            return channel.length() >= 2 ? channel.substring(1, 2).toUpperCase() : "?";
+            return mDisplayedSections.getLetterFor(position);
         }
 
         @Override
         public int getItemCount() {
-            return mFilteredEntries == null ? mEntries.size() : mFilteredEntries.size();
+            return mDisplayedEntries.size();
         }
 
     }
@@ -246,60 +245,118 @@ public class ChannelListActivity extends ThemedActivity {
 
     }
 
-    private static class UpdateListAsyncTask extends AsyncTask<Void, Void, List<ChannelList.Entry>> {
+    private static class UpdateListResult {
+
+        List<ChannelList.Entry> mEntries;
+        ChannelListIndex.Sections mSections;
+        // The ranges of the entries inserted since the previous list, or null if the whole list
+        // has to be refreshed
+        List<int[]> mInsertedRanges;
+
+    }
+
+    private static class UpdateListAsyncTask extends AsyncTask<Void, Void, UpdateListResult> {
 
         private WeakReference<ChannelListActivity> mActivity;
+        private ChannelListIndex mIndex;
         private String mStartFilterQuery;
         private int mStartSortMode;
+        private List<ChannelList.Entry> mPrevEntries;
 
         public UpdateListAsyncTask(ChannelListActivity activity) {
             mActivity = new WeakReference<>(activity);
+            mIndex = activity.mIndex;
             mStartFilterQuery = activity.mFilterQuery;
             mStartSortMode = activity.mSortMode;
+            if (equals(mStartFilterQuery, activity.mDisplayedFilterQuery) &&
+                    mStartSortMode == activity.mDisplayedSortMode)
+                mPrevEntries = activity.mDisplayedEntries;
+        }
+
+        private static boolean equals(String a, String b) {
+            if (a == null || a.length() == 0)
+                return b == null || b.length() == 0;
+            return a.equals(b);
         }
 
         @Override
-        protected List<ChannelList.Entry> doInBackground(Void... voids) {
+        protected UpdateListResult doInBackground(Void... voids) {
             ChannelListActivity activity = mActivity.get();
             if (activity == null)
                 return null;
+            List<ChannelList.Entry> assign;
+            List<ChannelList.Entry> append;
             synchronized (activity.mAppendEntries) {
-                activity.mEntries.addAll(activity.mAppendEntries);
+                assign = activity.mAssignEntries;
+                activity.mAssignEntries = null;
+                append = new ArrayList<>(activity.mAppendEntries);
                 activity.mAppendEntries.clear();
-                if (activity.mAssignEntries != null) {
-                    activity.mEntries = activity.mAssignEntries;
-                    activity.mAssignEntries = null;
-                }
             }
-            List<ChannelList.Entry> ret = new ArrayList<>();
-            for (ChannelList.Entry entry : activity.mEntries) {
-                if (filterEntry(entry, mStartFilterQuery))
-                    ret.add(entry);
+            if (assign != null) {
+                mIndex.clear();
+                mIndex.addAll(assign);
+                mPrevEntries = null;
             }
-            if (mStartSortMode == SORT_NAME) {
-                Collections.sort(ret, (ChannelList.Entry l, ChannelList.Entry r) ->
-                        l.getChannel().compareToIgnoreCase(r.getChannel()));
-            } else if (mStartSortMode == SORT_MEMBER_COUNT) {
-                Collections.sort(ret, (ChannelList.Entry l, ChannelList.Entry r) ->
-                        Integer.compare(r.getMemberCount(), l.getMemberCount()));
+            mIndex.addAll(append);
+
+            UpdateListResult ret = new UpdateListResult();
+            ret.mEntries = mIndex.query(mStartFilterQuery, mStartSortMode);
+            if (mStartSortMode == SORT_NAME)
+                ret.mSections = ChannelListIndex.createSections(ret.mEntries);
+            if (mPrevEntries != null)
+                ret.mInsertedRanges = findInsertedRanges(mPrevEntries, ret.mEntries);
+            return ret;
+        }
+
+        /**
+         * Finds where the entries were inserted, assuming the new list only contains new entries
+         * added in between the old ones.
+         */
+        private static List<int[]> findInsertedRanges(List<ChannelList.Entry> oldList,
+                                                      List<ChannelList.Entry> newList) {
+            List<int[]> ret = new ArrayList<>();
+            int oldI = 0;
+            for (int i = 0; i < newList.size(); i++) {
+                if (oldI < oldList.size() && oldList.get(oldI) == newList.get(i)) {
+                    oldI++;
+                    continue;
+                }
+                int[] last = ret.size() > 0 ? ret.get(ret.size() - 1) : null;
+                if (last != null && last[0] + last[1] == i) {
+                    last[1]++;
+                } else {
+                    if (ret.size() >= MAX_RANGE_UPDATES)
+                        return null;
+                    ret.add(new int[] { i, 1 });
+                }
             }
+            if (oldI != oldList.size())
+                return null;
             return ret;
         }
 
         @Override
-        protected void onPostExecute(List<ChannelList.Entry> ret) {
+        protected void onPostExecute(UpdateListResult ret) {
             ChannelListActivity activity = mActivity.get();
             if (activity == null || ret == null)
                 return;
-            activity.mFilteredEntries = ret;
-            activity.mListAdapter.notifyDataSetChanged();
+            activity.mDisplayedEntries = ret.mEntries;
+            activity.mDisplayedSections = ret.mSections;
+            activity.mDisplayedFilterQuery = mStartFilterQuery;
+            activity.mDisplayedSortMode = mStartSortMode;
+            if (ret.mInsertedRanges != null) {
+                for (int[] range : ret.mInsertedRanges)
+                    activity.mListAdapter.notifyItemRangeInserted(range[0], range[1]);
+            } else {
+                activity.mListAdapter.notifyDataSetChanged();
+            }
             activity.mUpdateListAsyncTask = null;
-            if ((mStartFilterQuery != null && !mStartFilterQuery.equals(activity.mFilterQuery)) ||
+            if (!equals(mStartFilterQuery, activity.mFilterQuery) ||
                     mStartSortMode != activity.mSortMode) {
                 activity.requestListUpdate();
             }
             synchronized (activity.mAppendEntries) {
-                if (activity.mAppendEntries.size() > 0)
+                if (activity.mAppendEntries.size() > 0 || activity.mAssignEntries != null)
                     activity.requestListUpdate();
             }
         }
@@ -18,8 +18,8 @@ import android.view.View;
 import android.widget.RemoteViews;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.UUID;
 
 import io.mrarm.chatlib.dto.MessageId;
@@ -28,6 +28,7 @@ import io.mrarm.irc.chat.SendMessageHelper;
 import io.mrarm.irc.config.NotificationCountStorage;
 import io.mrarm.irc.config.NotificationRule;
 import io.mrarm.irc.config.NotificationRuleManager;
+import io.mrarm.irc.util.BufferedMessageStorageApi;
 import io.mrarm.irc.util.ColoredTextBuilder;
 import io.mrarm.irc.util.IRCColorUtils;
 
@@ -37,6 +38,11 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
     public static final int CHAT_DISMISS_INTENT_ID_START = 10000000;
     public static final int CHAT_REPLY_INTENT_ID_START = 20000000;
 
+    private static final int[] MESSAGE_VIEW_IDS = new int[] { R.id.message_0, R.id.message_1,
+            R.id.message_2, R.id.message_3, R.id.message_4, R.id.message_5 };
+    // Only the messages that fit in the expanded notification are kept, older ones are counted
+    private static final int MAX_NOTIFICATION_MESSAGES = MESSAGE_VIEW_IDS.length;
+
     private static int mNextChatNotificationId = CHAT_NOTIFICATION_ID_START;
 
     private final ServerConnectionInfo mConnection;
@@ -45,7 +51,9 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
     private final int mNotificationId = mNextChatNotificationId++;
     private boolean mShowingNotification = false;
     private static final Object mShowingNotificationLock = new Object();
-    private List<NotificationMessage> mMessages = new ArrayList<>();
+    private final ArrayDeque<NotificationMessage> mMessages =
+            new ArrayDeque<>(MAX_NOTIFICATION_MESSAGES);
+    private int mDroppedMessageCount = 0;
     private boolean mOpened = false;
     private int mUnreadMessageCount;
     private MessageId mFirstUnreadMessage;
@@ -69,13 +77,13 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
 
     public int getNotificationMessageCount() {
         synchronized (this) {
-            return mMessages.size();
+            return mMessages.size() + mDroppedMessageCount;
         }
     }
 
-    public NotificationMessage getNotificationMessage(int index) {
+    public NotificationMessage getLastNotificationMessage() {
         synchronized (this) {
-            return mMessages.get(index);
+            return mMessages.peekLast();
         }
     }
 
@@ -84,11 +92,23 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
             if (mOpened)
                 return false;
             NotificationMessage ret = new NotificationMessage(messageInfo, messageId);
-            mMessages.add(ret);
+            if (mMessages.size() >= MAX_NOTIFICATION_MESSAGES) {
+                mMessages.removeFirst();
+                mDroppedMessageCount++;
+            }
+            mMessages.addLast(ret);
+            if (mMessages.size() == 1)
+                NotificationManager.getInstance().onChannelNotificationsAdded(this);
         }
         return true;
     }
 
+    private void clearNotificationMessages() {
+        mMessages.clear();
+        mDroppedMessageCount = 0;
+        NotificationManager.getInstance().onChannelNotificationsCleared(this);
+    }
+
     public void addUnreadMessage(MessageId msgId) {
         synchronized (this) {
             if (mOpened && mUnreadMessageCount == 0)
@@ -101,8 +121,16 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
             }
             if (mFirstUnreadMessage == null) {
                 mFirstUnreadMessage = msgId;
-                mStorage.requestSetFirstMessageId(mConnection.getUUID(), getChannel(),
-                        mFirstUnreadMessage.toString());
+                // A buffered storage only assigns the id once the message is written
+                BufferedMessageStorageApi.runWhenStored(msgId, (MessageId storedId) -> {
+                    synchronized (this) {
+                        if (mFirstUnreadMessage != msgId)
+                            return;
+                        mFirstUnreadMessage = storedId;
+                        mStorage.requestSetFirstMessageId(mConnection.getUUID(), getChannel(),
+                                storedId.toString());
+                    }
+                });
             }
         }
     }
@@ -126,7 +154,7 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
         synchronized (this) {
             mOpened = opened;
             if (mOpened) {
-                mMessages.clear();
+                clearNotificationMessages();
 
                 synchronized (mShowingNotificationLock) {
                     // cancel the notification
@@ -155,12 +183,9 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
     }
 
     void showNotification(Context context, NotificationRule rule) {
-        NotificationMessage lastMessage;
-        synchronized (this) {
-            if (mMessages.size() == 0)
-                return;
-            lastMessage = mMessages.get(mMessages.size() - 1);
-        }
+        NotificationMessage lastMessage = getLastNotificationMessage();
+        if (lastMessage == null)
+            return;
 
         if (rule.settings.notificationChannelId == null)
             createChannel(context, rule);
@@ -170,9 +195,11 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
         RemoteViews notificationsViewBig = createMessagesView(context, title);
         NotificationCompat.Builder notification = new NotificationCompat.Builder(context,
                 rule.settings.notificationChannelId);
+        // A message which is not written yet has no id to jump to, it's the newest one anyway
+        String lastMessageId = BufferedMessageStorageApi.isStored(lastMessage.mMessageId) ?
+                lastMessage.mMessageId.toString() : null;
         PendingIntent intent = PendingIntent.getActivity(context, mNotificationId,
-                MainActivity.getLaunchIntent(context, mConnection, mChannel,
-                        lastMessage.mMessageId.toString()),
+                MainActivity.getLaunchIntent(context, mConnection, mChannel, lastMessageId),
                 PendingIntent.FLAG_CANCEL_CURRENT);
         PendingIntent dismissIntent = PendingIntent.getBroadcast(context,
                 CHAT_DISMISS_INTENT_ID_START + mNotificationId,
@@ -284,7 +311,7 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
     public void cancelNotification(Context context) {
         boolean updateSummary = false;
         synchronized (this) {
-            mMessages.clear();
+            clearNotificationMessages();
         }
         synchronized (mShowingNotificationLock) {
             // cancel the notification
@@ -308,17 +335,19 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
 
     private RemoteViews createMessagesView(Context context, String header) {
         RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.notification_layout);
-        int[] messageIds = new int[] { R.id.message_0, R.id.message_1, R.id.message_2, R.id.message_3, R.id.message_4, R.id.message_5 };
-        views.setTextViewText(R.id.message_channel, header);
         synchronized (this) {
-            for (int i = messageIds.length - 1; i >= 0; i--) {
-                int ii = mMessages.size() - messageIds.length + i;
-                if (ii < 0) {
-                    views.setViewVisibility(messageIds[i], View.GONE);
+            if (mDroppedMessageCount > 0)
+                header += " " + context.getResources().getQuantityString(
+                        R.plurals.notify_more_messages, mDroppedMessageCount, mDroppedMessageCount);
+            views.setTextViewText(R.id.message_channel, header);
+            Iterator<NotificationMessage> it = mMessages.descendingIterator();
+            for (int i = MESSAGE_VIEW_IDS.length - 1; i >= 0; i--) {
+                if (!it.hasNext()) {
+                    views.setViewVisibility(MESSAGE_VIEW_IDS[i], View.GONE);
                     continue;
                 }
-                views.setViewVisibility(messageIds[i], View.VISIBLE);
-                views.setTextViewText(messageIds[i], mMessages.get(ii).getNotificationText(context));
+                views.setViewVisibility(MESSAGE_VIEW_IDS[i], View.VISIBLE);
+                views.setTextViewText(MESSAGE_VIEW_IDS[i], it.next().getNotificationText(context));
             }
         }
         return views;
@@ -326,7 +355,7 @@ public class ChannelNotificationManager implements NotificationCountStorage.OnCh
 
     void onNotificationDismissed() {
         synchronized (this) {
-            mMessages.clear();
+            clearNotificationMessages();
         }
     }
 
@@ -0,0 +1,610 @@
+package io.mrarm.irc;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageList;
+import io.mrarm.chatlib.dto.MessageListAfterIdentifier;
+import io.mrarm.chatlib.message.MessageStorageApi;
+import io.mrarm.irc.config.ServerConfigManager;
+import io.mrarm.irc.util.BufferedMessageStorageApi;
+import io.mrarm.irc.util.PoolSerialExecutor;
+import io.mrarm.irc.util.SettableFuture;
+
+/**
+ * A full text index of the chat logs. Every server gets its own FTS4 database stored next to the
+ * day log files, which is filled from the live message stream and backfilled from the existing
+ * logs in the background.
+ */
+public class ChatLogSearchIndex {
+
+    private static final String TAG = "ChatLogSearchIndex";
+
+    public static final String INDEX_FILE_NAME = "search-index.db";
+
+    private static final int DB_VERSION = 1;
+
+    private static final int FLUSH_DELAY = 2000;
+    private static final int MAX_QUEUED_MESSAGES = 256;
+    private static final int BACKFILL_PAGE_SIZE = 500;
+
+    // Only the most recent matches (by message date) are ranked, this is what keeps the query
+    // time bounded. The row ids are assigned in date order, with this many ids per millisecond,
+    // so that the full text index returns the newest matches first without sorting them all.
+    private static final int IDS_PER_MS = 4096;
+    private static final int MIN_RANK_CANDIDATES = 100;
+    private static final int MAX_RANK_CANDIDATES = 500;
+    private static final double SENDER_WEIGHT = 0.5;
+    private static final double RECENCY_DAYS = 30.0;
+    private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+    private static final int SNIPPET_TOKENS = 16;
+
+    public static final char SNIPPET_MATCH_START = '\u0002';
+    public static final char SNIPPET_MATCH_END = '\u0003';
+
+    private static ChatLogSearchIndex sInstance;
+
+    public static synchronized ChatLogSearchIndex getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ChatLogSearchIndex(context);
+        return sInstance;
+    }
+
+    private final ServerConfigManager mServerConfigManager;
+    private final Map<UUID, ServerIndex> mIndexes = new HashMap<>();
+    private final Set<UUID> mClosedServers = new HashSet<>();
+    private final Handler mHandler;
+    private final Executor mSearchExecutor = new PoolSerialExecutor();
+    // Only accessed from the handler thread
+    private final Map<UUID, List<PendingMessage>> mQueue = new HashMap<>();
+    private int mQueueSize = 0;
+    private final Queue<BackfillTask> mBackfillQueue = new LinkedList<>();
+
+    public ChatLogSearchIndex(Context context) {
+        mServerConfigManager = ServerConfigManager.getInstance(context);
+        HandlerThread thread = new HandlerThread("ChatLogSearchIndex Thread");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    private synchronized ServerIndex getIndex(UUID server) {
+        ServerIndex ret = mIndexes.get(server);
+        if (ret == null) {
+            // Don't recreate the log directory of a server which is being deleted
+            if (mClosedServers.contains(server) || mServerConfigManager.findServer(server) == null)
+                return null;
+            File dir = mServerConfigManager.getServerChatLogDir(server);
+            if (!dir.exists() && !dir.mkdirs())
+                return null;
+            try {
+                ret = new ServerIndex(new File(dir, INDEX_FILE_NAME));
+            } catch (SQLiteException | IllegalStateException e) {
+                Log.e(TAG, "Failed to open the search index: " + server, e);
+                return null;
+            }
+            mIndexes.put(server, ret);
+        }
+        return ret;
+    }
+
+    public void onMessage(ServerConnectionInfo connection, String channel, MessageInfo info,
+                          MessageId messageId) {
+        if (channel == null || !isIndexable(info))
+            return;
+        UUID server = connection.getUUID();
+        // A buffered storage assigns the id once the message is written
+        BufferedMessageStorageApi.runWhenStored(messageId, (MessageId storedId) -> {
+            PendingMessage message = new PendingMessage(channel, info, storedId);
+            mHandler.post(() -> {
+                List<PendingMessage> list = mQueue.get(server);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    mQueue.put(server, list);
+                }
+                list.add(message);
+                if (++mQueueSize >= MAX_QUEUED_MESSAGES) {
+                    flushQueue();
+                } else if (mQueueSize == 1) {
+                    mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+                }
+            });
+        });
+    }
+
+    private final Runnable mFlushRunnable = this::flushQueue;
+
+    private void flushQueue() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        for (Map.Entry<UUID, List<PendingMessage>> e : mQueue.entrySet()) {
+            ServerIndex index = getIndex(e.getKey());
+            if (index != null)
+                index.insert(e.getValue());
+        }
+        mQueue.clear();
+        mQueueSize = 0;
+    }
+
+    /**
+     * Indexes the already existing logs of the joined channels of the specified connection. The
+     * channels which were fully indexed before are skipped.
+     */
+    public void requestBackfill(ServerConnectionInfo connection) {
+        mHandler.post(() -> {
+            for (BackfillTask task : mBackfillQueue) {
+                if (task.mConnection == connection)
+                    return;
+            }
+            mBackfillQueue.add(new BackfillTask(connection));
+            if (mBackfillQueue.size() == 1)
+                mHandler.post(mBackfillRunnable);
+        });
+    }
+
+    private final Runnable mBackfillRunnable = this::performBackfillStep;
+
+    private void performBackfillStep() {
+        BackfillTask task = mBackfillQueue.peek();
+        if (task == null)
+            return;
+        try {
+            if (!task.step())
+                mBackfillQueue.remove();
+        } catch (Exception e) {
+            Log.w(TAG, "Backfill failed: " + task.mConnection.getUUID(), e);
+            mBackfillQueue.remove();
+        }
+        // Posted instead of looping so that the live messages are still flushed in between
+        if (!mBackfillQueue.isEmpty())
+            mHandler.post(mBackfillRunnable);
+    }
+
+    /**
+     * Removes the messages logged in the specified time range, this should be called whenever
+     * the chat log of a day is deleted.
+     */
+    public void requestDeleteRange(UUID server, long startMs, long endMs) {
+        mHandler.post(() -> {
+            flushQueue();
+            ServerIndex index = getIndex(server);
+            if (index != null)
+                index.deleteRange(startMs, endMs);
+        });
+    }
+
+    public void requestDeleteMessages(UUID server, List<MessageId> messageIds) {
+        List<String> ids = new ArrayList<>(messageIds.size());
+        for (MessageId id : messageIds) {
+            if (BufferedMessageStorageApi.isStored(id))
+                ids.add(id.toString());
+            else
+                BufferedMessageStorageApi.runWhenStored(id, (MessageId storedId) ->
+                        requestDeleteMessages(server, Collections.singletonList(storedId)));
+        }
+        if (ids.isEmpty())
+            return;
+        mHandler.post(() -> {
+            flushQueue();
+            ServerIndex index = getIndex(server);
+            if (index != null)
+                index.deleteMessages(ids);
+        });
+    }
+
+    /**
+     * Closes the index of the specified server, waiting for any pending writes. This must be
+     * called before the log directory of the server gets deleted. The index is not used again,
+     * and the messages of the server are not indexed, until reopenServer is called.
+     */
+    public void closeServer(UUID server) {
+        synchronized (this) {
+            mClosedServers.add(server);
+        }
+        SettableFuture<Void> s = new SettableFuture<>();
+        mHandler.post(() -> {
+            flushQueue();
+            for (Iterator<BackfillTask> i = mBackfillQueue.iterator(); i.hasNext(); ) {
+                if (i.next().mConnection.getUUID().equals(server))
+                    i.remove();
+            }
+            ServerIndex index;
+            synchronized (this) {
+                index = mIndexes.remove(server);
+            }
+            if (index != null)
+                index.close();
+            s.set(null);
+        });
+        try {
+            s.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Allows the index of a server closed using closeServer to be opened (and recreated if
+     * needed) again on the next access.
+     */
+    public synchronized void reopenServer(UUID server) {
+        mClosedServers.remove(server);
+    }
+
+    public void requestSearch(UUID server, String channel, String query, int limit,
+                              SearchCallback callback) {
+        mSearchExecutor.execute(() -> {
+            List<Result> results;
+            try {
+                results = search(server, channel, query, limit);
+            } catch (SQLiteException | IllegalStateException e) {
+                Log.w(TAG, "Search failed", e);
+                results = Collections.emptyList();
+            }
+            callback.onSearchResults(query, results);
+        });
+    }
+
+    /**
+     * Finds the messages matching all of the words in the query, the last word is treated as a
+     * prefix. When channel is null, all channels of the server are searched. The results are
+     * ranked by their relevance weighted by recency.
+     */
+    public List<Result> search(UUID server, String channel, String query, int limit) {
+        String matchQuery = buildMatchQuery(query);
+        if (matchQuery == null)
+            return Collections.emptyList();
+        ServerIndex index = getIndex(server);
+        if (index == null)
+            return Collections.emptyList();
+        return index.search(server, channel, matchQuery, limit);
+    }
+
+    private static String buildMatchQuery(String query) {
+        StringBuilder b = new StringBuilder();
+        String[] words = query.trim().split("\\s+");
+        boolean prefix = query.length() > 0 &&
+                !Character.isWhitespace(query.charAt(query.length() - 1));
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i].replace("\"", "").replace("*", "");
+            if (word.length() == 0)
+                continue;
+            if (b.length() > 0)
+                b.append(' ');
+            b.append('"');
+            b.append(word);
+            // Short prefixes match too much of the index to be useful
+            if (prefix && i == words.length - 1 && word.length() >= 3)
+                b.append('*');
+            b.append('"');
+        }
+        return b.length() > 0 ? b.toString() : null;
+    }
+
+    private static boolean isIndexable(MessageInfo info) {
+        MessageInfo.MessageType type = info.getType();
+        return (type == MessageInfo.MessageType.NORMAL || type == MessageInfo.MessageType.ME ||
+                type == MessageInfo.MessageType.NOTICE) && info.getMessage() != null;
+    }
+
+    private static String stripControlChars(String text) {
+        StringBuilder b = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20) {
+                if (b != null)
+                    b.append(c);
+            } else if (b == null) {
+                b = new StringBuilder(text.length());
+                b.append(text, 0, i);
+            }
+        }
+        return b != null ? b.toString() : text;
+    }
+
+    private static class ServerIndex {
+
+        private final SQLiteDatabase mDatabase;
+        private final SQLiteStatement mInsertMessageStatement;
+        private final SQLiteStatement mInsertTextStatement;
+        private final SQLiteStatement mSetBackfilledStatement;
+        private boolean mClosed = false;
+
+        ServerIndex(File file) {
+            mDatabase = SQLiteDatabase.openOrCreateDatabase(file, null);
+            mDatabase.enableWriteAheadLogging();
+            if (mDatabase.getVersion() != DB_VERSION) {
+                mDatabase.execSQL("DROP TABLE IF EXISTS messages");
+                mDatabase.execSQL("DROP TABLE IF EXISTS messages_fts");
+                mDatabase.execSQL("DROP TABLE IF EXISTS backfill");
+            }
+            mDatabase.execSQL("CREATE TABLE IF NOT EXISTS messages (id INTEGER PRIMARY KEY, channel TEXT NOT NULL, date INTEGER NOT NULL, msgid TEXT NOT NULL UNIQUE)");
+            mDatabase.execSQL("CREATE INDEX IF NOT EXISTS messages_date ON messages (date)");
+            try {
+                mDatabase.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts4(sender, text, tokenize=unicode61)");
+            } catch (SQLiteException e) {
+                // unicode61 is not available on the older SQLite versions
+                mDatabase.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts4(sender, text)");
+            }
+            mDatabase.execSQL("CREATE TABLE IF NOT EXISTS backfill (channel TEXT PRIMARY KEY)");
+            mDatabase.setVersion(DB_VERSION);
+            mInsertMessageStatement = mDatabase.compileStatement("INSERT OR IGNORE INTO messages (id, channel, date, msgid) VALUES ((SELECT IFNULL(MAX(id) + 1, ?2 * " + IDS_PER_MS + ") FROM messages WHERE id >= ?2 * " + IDS_PER_MS + " AND id < (?2 + 1) * " + IDS_PER_MS + "), ?1, ?2, ?3)");
+            mInsertTextStatement = mDatabase.compileStatement("INSERT INTO messages_fts (docid, sender, text) VALUES (?1, ?2, ?3)");
+            mSetBackfilledStatement = mDatabase.compileStatement("INSERT OR REPLACE INTO backfill (channel) VALUES (?1)");
+        }
+
+        // Searches run on their own thread, the closed state is checked under the lock so that
+        // the database isn't closed while they use it
+        synchronized void close() {
+            mClosed = true;
+            mDatabase.close();
+        }
+
+        void insert(List<PendingMessage> messages) {
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                for (PendingMessage message : messages) {
+                    mInsertMessageStatement.bindString(1, message.mChannel);
+                    mInsertMessageStatement.bindLong(2, message.mDate);
+                    mInsertMessageStatement.bindString(3, message.mMessageId);
+                    long id = mInsertMessageStatement.executeInsert();
+                    if (id == -1L)
+                        continue; // already indexed
+                    mInsertTextStatement.bindLong(1, id);
+                    mInsertTextStatement.bindString(2, message.mSender);
+                    mInsertTextStatement.bindString(3, message.mText);
+                    mInsertTextStatement.executeInsert();
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+
+        void deleteRange(long startMs, long endMs) {
+            String[] args = new String[] { String.valueOf(startMs), String.valueOf(endMs) };
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                mDatabase.execSQL("DELETE FROM messages_fts WHERE docid IN (SELECT id FROM messages WHERE date >= ?1 AND date < ?2)", args);
+                mDatabase.execSQL("DELETE FROM messages WHERE date >= ?1 AND date < ?2", args);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+
+        void deleteMessages(List<String> messageIds) {
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                for (String id : messageIds) {
+                    String[] args = new String[] { id };
+                    mDatabase.execSQL("DELETE FROM messages_fts WHERE docid IN (SELECT id FROM messages WHERE msgid = ?1)", args);
+                    mDatabase.execSQL("DELETE FROM messages WHERE msgid = ?1", args);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+
+        boolean isBackfilled(String channel) {
+            try (Cursor cursor = mDatabase.rawQuery("SELECT 1 FROM backfill WHERE channel = ?1",
+                    new String[] { channel })) {
+                return cursor.moveToFirst();
+            }
+        }
+
+        void setBackfilled(String channel) {
+            mSetBackfilledStatement.bindString(1, channel);
+            mSetBackfilledStatement.executeInsert();
+        }
+
+        synchronized List<Result> search(UUID server, String channel, String matchQuery,
+                                         int limit) {
+            if (mClosed)
+                return Collections.emptyList();
+            int candidates = Math.min(Math.max(limit * 5, MIN_RANK_CANDIDATES),
+                    MAX_RANK_CANDIDATES);
+            String sql = "SELECT m.channel, m.date, m.msgid, messages_fts.sender, " +
+                    "snippet(messages_fts, ?1, ?2, ?3, 1, " + SNIPPET_TOKENS + "), " +
+                    "matchinfo(messages_fts, 'pcnx') " +
+                    "FROM messages_fts CROSS JOIN messages m ON m.id = messages_fts.docid " +
+                    "WHERE messages_fts MATCH ?4" + (channel != null ? " AND m.channel = ?5" : "") +
+                    " ORDER BY messages_fts.docid DESC LIMIT " + candidates;
+            String[] args = channel != null ?
+                    new String[] { String.valueOf(SNIPPET_MATCH_START),
+                            String.valueOf(SNIPPET_MATCH_END), "…", matchQuery, channel } :
+                    new String[] { String.valueOf(SNIPPET_MATCH_START),
+                            String.valueOf(SNIPPET_MATCH_END), "…", matchQuery };
+            long now = System.currentTimeMillis();
+            List<Result> ret = new ArrayList<>();
+            try (Cursor cursor = mDatabase.rawQuery(sql, args)) {
+                while (cursor.moveToNext()) {
+                    long date = cursor.getLong(1);
+                    double score = getRelevance(cursor.getBlob(5));
+                    double age = Math.max(now - date, 0L) / (double) DAY_MS;
+                    score /= 1.0 + age / RECENCY_DAYS;
+                    ret.add(new Result(server, cursor.getString(0), date, cursor.getString(2),
+                            cursor.getString(3), cursor.getString(4), score));
+                }
+            }
+            Collections.sort(ret, (Result l, Result r) -> Double.compare(r.mScore, l.mScore));
+            if (ret.size() > limit)
+                ret = new ArrayList<>(ret.subList(0, limit));
+            return ret;
+        }
+
+        /**
+         * Computes a tf-idf like score from the matchinfo 'pcnx' output, where a hit in the
+         * message text is worth more than a hit in the sender name.
+         */
+        private static double getRelevance(byte[] matchInfo) {
+            ByteBuffer buf = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+            int phraseCount = buf.getInt();
+            int columnCount = buf.getInt();
+            int rowCount = buf.getInt();
+            double score = 0.0;
+            for (int i = 0; i < phraseCount; i++) {
+                for (int j = 0; j < columnCount; j++) {
+                    int hits = buf.getInt();
+                    buf.getInt(); // hits in all rows
+                    int rowsWithHits = buf.getInt();
+                    if (hits == 0)
+                        continue;
+                    double idf = Math.log((rowCount + 1.0) / rowsWithHits);
+                    score += (j == 0 ? SENDER_WEIGHT : 1.0) * hits * idf;
+                }
+            }
+            return score;
+        }
+
+    }
+
+    private class BackfillTask {
+
+        private final ServerConnectionInfo mConnection;
+        private final Queue<String> mChannels = new LinkedList<>();
+        private String mChannel;
+        private MessageListAfterIdentifier mAfter;
+
+        BackfillTask(ServerConnectionInfo connection) {
+            mConnection = connection;
+            List<String> channels = connection.getChannels();
+            if (channels != null)
+                mChannels.addAll(channels);
+        }
+
+        /**
+         * Indexes a single page of messages. Returns false when there is nothing left to do.
+         */
+        boolean step() throws InterruptedException, ExecutionException {
+            ServerIndex index = getIndex(mConnection.getUUID());
+            if (index == null || mConnection.getApiInstance() == null)
+                return false;
+            while (mChannel == null) {
+                mChannel = mChannels.poll();
+                if (mChannel == null)
+                    return false;
+                if (index.isBackfilled(mChannel))
+                    mChannel = null;
+            }
+            MessageStorageApi storage = mConnection.getApiInstance().getMessageStorageApi();
+            MessageList list = storage.getMessages(mChannel, BACKFILL_PAGE_SIZE, null, mAfter,
+                    null, null).get();
+            List<PendingMessage> messages = new ArrayList<>();
+            for (int i = 0; i < list.getMessages().size(); i++) {
+                MessageInfo info = list.getMessages().get(i);
+                if (isIndexable(info))
+                    messages.add(new PendingMessage(mChannel, info,
+                            list.getMessageIds().get(i)));
+            }
+            index.insert(messages);
+            mAfter = list.getOlder();
+            if (mAfter == null || list.getMessages().size() == 0) {
+                index.setBackfilled(mChannel);
+                mChannel = null;
+            }
+            return true;
+        }
+
+    }
+
+    private static class PendingMessage {
+
+        private final String mChannel;
+        private final long mDate;
+        private final String mMessageId;
+        private final String mSender;
+        private final String mText;
+
+        PendingMessage(String channel, MessageInfo info, MessageId messageId) {
+            mChannel = channel;
+            mDate = info.getDate().getTime();
+            mMessageId = messageId.toString();
+            mSender = info.getSender() != null ? info.getSender().getNick() : "";
+            mText = stripControlChars(info.getMessage());
+        }
+
+    }
+
+    public static class Result {
+
+        private final UUID mServer;
+        private final String mChannel;
+        private final long mDate;
+        private final String mMessageId;
+        private final String mSender;
+        private final String mSnippet;
+        private final double mScore;
+
+        Result(UUID server, String channel, long date, String messageId, String sender,
+               String snippet, double score) {
+            mServer = server;
+            mChannel = channel;
+            mDate = date;
+            mMessageId = messageId;
+            mSender = sender;
+            mSnippet = snippet;
+            mScore = score;
+        }
+
+        public UUID getServer() {
+            return mServer;
+        }
+
+        public String getChannel() {
+            return mChannel;
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        public String getMessageId() {
+            return mMessageId;
+        }
+
+        public String getSender() {
+            return mSender;
+        }
+
+        /**
+         * Returns the matched part of the message, with the matched words enclosed in
+         * SNIPPET_MATCH_START and SNIPPET_MATCH_END.
+         */
+        public String getSnippet() {
+            return mSnippet;
+        }
+
+    }
+
+    public interface SearchCallback {
+
+        void onSearchResults(String query, List<Result> results);
+
+    }
+
+}
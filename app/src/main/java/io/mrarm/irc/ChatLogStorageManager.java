@@ -2,29 +2,60 @@ package io.mrarm.irc;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.Build;
 import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import io.mrarm.chatlib.android.storage.SQLiteMessageStorageApi;
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageList;
+import io.mrarm.chatlib.dto.MessageListAfterIdentifier;
+import io.mrarm.chatlib.message.MessageStorageApi;
 import io.mrarm.irc.config.AppSettings;
 import io.mrarm.irc.config.ServerConfigData;
 import io.mrarm.irc.config.ServerConfigManager;
 import io.mrarm.irc.config.SettingChangeCallback;
 import io.mrarm.irc.config.SettingsHelper;
+import io.mrarm.irc.util.BufferedMessageStorageApi;
 import io.mrarm.irc.util.PoolSerialExecutor;
 
 public class ChatLogStorageManager implements ServerConfigManager.ConnectionsListener {
@@ -35,11 +66,38 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
     private static final int GLOBAL_DELETION_CANDIDATES = 1024;
     private static final int CONNECTION_DELETION_CANDIDATES = 32;
 
+    private static final String TAG = "ChatLogStorageManager";
+
+    public static final String MANIFEST_FILE_NAME = "storage-manifest.dat";
+    private static final int MANIFEST_VERSION = 3;
+    // Don't bother checking each day file when the manifest is older than this, just rescan
+    private static final long MAX_MANIFEST_GAP_MS = 366L * 24L * 60L * 60L * 1000L;
+
     private static final SimpleDateFormat sFileNameFormat = new SimpleDateFormat("'messages-'yyyy-MM-dd'.db'", Locale.getDefault());
+    // The files SQLite keeps next to a database, which are counted toward the size of their day
+    private static final String[] SQLITE_SIDECAR_SUFFIXES = { "-journal", "-wal", "-shm" };
+
+    // Days older than the archive age are compressed into a read-only file with this suffix
+    // added to the day file name. A few archived days are expanded back when they are viewed.
+    private static final String ARCHIVE_SUFFIX = ".gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAX_EXPANDED_DAYS = 4;
+    private static final int EXPAND_AHEAD_DAYS = 2;
+    private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+
+    // The channel retention rules are enforced at most this often, unless they have changed
+    private static final long RETENTION_INTERVAL_MS = 15L * 60L * 1000L;
+    private static final int RETENTION_PAGE_SIZE = 500;
+    private static final int RETENTION_DELETE_BATCH_SIZE = 500;
+    // Added to the text length when estimating the space taken by a message
+    private static final int MESSAGE_SIZE_OVERHEAD = 64;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // The free pages returned per day at a time, which keeps the live storage closed only briefly
+    private static final int RETENTION_VACUUM_PAGES = 1024;
 
     private static ChatLogStorageManager sInstance;
 
-    public static ChatLogStorageManager getInstance(Context context) {
+    public static synchronized ChatLogStorageManager getInstance(Context context) {
         if (sInstance == null)
             sInstance = new ChatLogStorageManager(context);
         return sInstance;
@@ -47,18 +105,26 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
 
     private ServerConnectionManager mConnectionManager;
     private ServerConfigManager mServerConfigManager;
+    private ChatLogSearchIndex mSearchIndex;
     private long mBlockSize = 0L;
     private Map<UUID, ServerManager> mServerManagers = new HashMap<>();
+    // The totals of the channels with retention rules, by server and lower case channel name
+    private final Map<UUID, Map<String, ChannelRetentionState>> mRetentionStates =
+            new HashMap<>();
     private int mGlobalMessageCounter = 0;
     private TreeSet<DeletionCandidate> mGlobalDeletionCandidates = new TreeSet<>();
     private long mGlobalTotalSize = 0L;
     private long mGlobalLimit;
     private long mDefaultServerLimit;
+    private int mArchiveAge;
     private Executor mExecutor;
+    private int mLimitEnforcementCount = 0;
+    private long mLimitEnforcementTimeNs = 0L;
 
     public ChatLogStorageManager(Context context) {
         mConnectionManager = ServerConnectionManager.getInstance(context);
         mServerConfigManager = ServerConfigManager.getInstance(context);
+        mSearchIndex = ChatLogSearchIndex.getInstance(context);
 
         SettingsHelper.registerCallbacks(this);
         onSettingChanged();
@@ -76,11 +142,13 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
 
     @SettingChangeCallback(keys = {
             AppSettings.PREF_STORAGE_LIMIT_GLOBAL,
-            AppSettings.PREF_STORAGE_LIMIT_SERVER
+            AppSettings.PREF_STORAGE_LIMIT_SERVER,
+            AppSettings.PREF_STORAGE_ARCHIVE_AGE
     })
-    private void onSettingChanged() {
+    void onSettingChanged() {
         mGlobalLimit = AppSettings.getStorageLimitGlobal();
         mDefaultServerLimit = AppSettings.getStorageLimitServer();
+        mArchiveAge = AppSettings.getStorageArchiveAge();
     }
 
     public void requestUpdate(UUID serverUUID) {
@@ -107,40 +175,101 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
             if (manager != null)
                 manager.update(currentYear, currentMonth, currentDay);
         }
-        if (mGlobalLimit != -1L && mGlobalTotalSize > mGlobalLimit)
+        if (mGlobalLimit != -1L && mGlobalTotalSize > mGlobalLimit) {
+            long startTime = System.nanoTime();
             performGlobalDeletion(mGlobalTotalSize - mGlobalLimit);
+            recordLimitEnforcement(System.nanoTime() - startTime);
+        }
     }
 
     private void performGlobalDeletion(long size) {
+        Set<ServerManager> rescannedServers = new HashSet<>();
         while (true) {
             boolean deletedAnyFile = false;
             for (Iterator<DeletionCandidate> iterator = mGlobalDeletionCandidates.iterator(); iterator.hasNext(); ) {
                 DeletionCandidate candidate = iterator.next();
-                mGlobalTotalSize -= candidate.size;
-                File file = new File(candidate.server.mLogsDir, sFileNameFormat.format(candidate.dateMs));
-                size -= getFileSize(file);
-                SettingsHelper.deleteSQLiteDatabase(file);
-                deletedAnyFile = true;
                 iterator.remove();
+                candidate.server.mDeletionCandidates.remove(candidate);
+                long freed = candidate.server.deleteDay(candidate.dateMs);
+                if (freed == -1L) {
+                    if (!rescannedServers.add(candidate.server))
+                        continue;
+                    // The manifest doesn't match the directory contents
+                    candidate.server.reload();
+                    deletedAnyFile = true;
+                    break;
+                }
+                size -= freed;
+                deletedAnyFile = true;
                 if (size <= 0L) {
                     if (mGlobalDeletionCandidates.size() == 0) {
                         // If there are no deletion candidates left, refresh the list so they are
                         // available during the next performGlobalDeletion call.
                         for (ServerManager manager : mServerManagers.values())
-                            manager.reload();
+                            manager.reloadCandidates();
                     }
-                    return;
+                    break;
                 }
             }
-            if (!deletedAnyFile)
-                return;
+            if (!deletedAnyFile || size <= 0L)
+                break;
             // Refresh deletion candidates
             for (ServerManager manager : mServerManagers.values())
-                manager.reload();
+                manager.reloadCandidates();
+            if (mGlobalDeletionCandidates.size() == 0)
+                break;
+        }
+        for (ServerManager manager : mServerManagers.values())
+            manager.saveManifest();
+    }
+
+    private void recordLimitEnforcement(long timeNs) {
+        synchronized (this) {
+            mLimitEnforcementCount++;
+            mLimitEnforcementTimeNs += timeNs;
         }
+        Log.d(TAG, "Enforcing the storage limits took " + (timeNs / 1000000L) + "ms");
     }
 
-    public void onMessage(ServerConnectionInfo connection) {
+    public synchronized int getLimitEnforcementCount() {
+        return mLimitEnforcementCount;
+    }
+
+    public synchronized long getLimitEnforcementTimeNs() {
+        return mLimitEnforcementTimeNs;
+    }
+
+    /**
+     * Expands the archived days right before the specified time, so that the messages from them
+     * can be loaded. The callback is only called if any day was expanded.
+     */
+    public void requestExpandArchivedDays(UUID serverUUID, long beforeMs, Runnable callback) {
+        mExecutor.execute(() -> {
+            ServerManager manager = mServerManagers.get(serverUUID);
+            if (manager != null && manager.expandDaysBefore(beforeMs))
+                callback.run();
+        });
+    }
+
+    public void requestReload(UUID serverUUID) {
+        mExecutor.execute(() -> {
+            ServerManager manager = mServerManagers.get(serverUUID);
+            if (manager != null)
+                manager.reload();
+        });
+    }
+
+    public void onMessage(ServerConnectionInfo connection, String channel, MessageInfo message) {
+        if (channel != null) {
+            synchronized (mRetentionStates) {
+                Map<String, ChannelRetentionState> states =
+                        mRetentionStates.get(connection.getUUID());
+                ChannelRetentionState state = states != null
+                        ? states.get(channel.toLowerCase(Locale.ROOT)) : null;
+                if (state != null)
+                    state.onMessageAdded(message);
+            }
+        }
         if (++mGlobalMessageCounter >= MIN_GLOBAL_MESSAGES_UPDATE) {
             requestUpdate(null);
             for (ServerConnectionInfo info : mConnectionManager.getConnections())
@@ -182,6 +311,42 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
         return (file.length() + blockSize - 1) / blockSize * blockSize;
     }
 
+    private long getDayFileSize(File file) {
+        long ret = getFileSize(file);
+        for (String suffix : SQLITE_SIDECAR_SUFFIXES)
+            ret += getFileSize(new File(file.getPath() + suffix));
+        return ret;
+    }
+
+    /**
+     * Returns the date of the day file whose name followed by the suffix is exactly the specified
+     * name, or null if there is no such day file name.
+     */
+    private static Date parseDayFileName(String name, String suffix) {
+        if (!name.endsWith(suffix))
+            return null;
+        String dayName = name.substring(0, name.length() - suffix.length());
+        try {
+            Date date = sFileNameFormat.parse(dayName);
+            if (sFileNameFormat.format(date).equals(dayName))
+                return date;
+        } catch (ParseException ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the day file the specified SQLite file belongs to, or null if it isn't
+     * one of the files SQLite keeps next to a day file.
+     */
+    private static String getSidecarDayFileName(String name) {
+        for (String suffix : SQLITE_SIDECAR_SUFFIXES) {
+            if (parseDayFileName(name, suffix) != null)
+                return name.substring(0, name.length() - suffix.length());
+        }
+        return null;
+    }
+
     @Override
     public void onConnectionAdded(ServerConfigData data) {
         mExecutor.execute(() -> {
@@ -199,6 +364,11 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
 
     @Override
     public void onConnectionUpdated(ServerConfigData data) {
+        mExecutor.execute(() -> {
+            ServerManager manager = mServerManagers.get(data.uuid);
+            if (manager != null)
+                manager.setServerConfig(data);
+        });
         requestUpdate(data.uuid);
     }
 
@@ -206,116 +376,882 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
 
         private ServerConfigData mServerConfig;
         private File mLogsDir;
+        private File mManifestFile;
         private long mTotalSize = 0L;
         private Calendar mCurrentLogTime;
         private File mCurrentLogFile;
         private long mCurrentLogSize = 0L;
+        private final TreeMap<Long, DayEntry> mDays = new TreeMap<>();
+        private final Map<String, Long> mOtherFiles = new HashMap<>();
         private TreeSet<DeletionCandidate> mDeletionCandidates = new TreeSet<>();
+        // The expanded archived days, by the time their file was last modified at when they were
+        // expanded, in the order they were last used in
+        private final LinkedHashMap<Long, Long> mExpandedDays = new LinkedHashMap<>(16, 0.75f,
+                true);
+        private boolean mManifestDirty = false;
+        private long mLastRetentionTime = -1L;
+        private boolean mRetentionRulesChanged = true;
+        // Opened to enforce the retention rules while the server is not connected
+        private SQLiteMessageStorageApi mOwnStorage;
 
         public ServerManager(ServerConfigData config) {
             mServerConfig = config;
             mCurrentLogTime = Calendar.getInstance();
             mLogsDir = mServerConfigManager.getServerChatLogDir(config.uuid);
-            reload();
+            mManifestFile = new File(mLogsDir, MANIFEST_FILE_NAME);
+            if (!loadManifest())
+                rescan();
+            reloadCandidates();
         }
 
-        private void reload() {
-            remove();
+        private long getDayStart(Calendar time) {
+            Calendar calendar = (Calendar) time.clone();
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            return calendar.getTimeInMillis();
+        }
+
+        private void setServerConfig(ServerConfigData config) {
+            mServerConfig = config;
+            mRetentionRulesChanged = true;
+            // The totals don't depend on the limits, so only the channels without a rule are dropped
+            Set<String> channels = new HashSet<>();
+            if (config.channelRetentionRules != null) {
+                for (ServerConfigData.ChannelRetentionRule rule : config.channelRetentionRules)
+                    channels.add(rule.channel.toLowerCase(Locale.ROOT));
+            }
+            synchronized (mRetentionStates) {
+                Map<String, ChannelRetentionState> states =
+                        mRetentionStates.get(mServerConfig.uuid);
+                if (states != null && states.keySet().retainAll(channels))
+                    mManifestDirty = true;
+            }
+        }
+
+        private File getDayFile(long dateMs) {
+            return new File(mLogsDir, sFileNameFormat.format(dateMs));
+        }
+
+        private File getArchiveFile(long dateMs) {
+            return new File(mLogsDir, sFileNameFormat.format(dateMs) + ARCHIVE_SUFFIX);
+        }
+
+        private void setTotalSize(long totalSize) {
+            mGlobalTotalSize += totalSize - mTotalSize;
+            mTotalSize = totalSize;
+        }
+
+        private void recalculateTotalSize() {
+            long totalSize = getBlockSize() + mCurrentLogSize;
+            for (long size : mOtherFiles.values())
+                totalSize += size;
+            for (DayEntry entry : mDays.values())
+                totalSize += entry.blockSize;
+            setTotalSize(totalSize);
+        }
+
+        private void rescan() {
+            Log.d(TAG, "Rescanning chat logs: " + mServerConfig.uuid);
+            mDays.clear();
+            mOtherFiles.clear();
+            mExpandedDays.clear();
+            mCurrentLogFile = null;
+            mCurrentLogSize = 0L;
             File[] files = mLogsDir.listFiles();
-            if (files == null)
+            if (files == null) {
+                setTotalSize(0L);
                 return;
-            mTotalSize = getBlockSize();
-            int currentYear = mCurrentLogTime.get(Calendar.YEAR);
-            int currentMonth = mCurrentLogTime.get(Calendar.MONTH);
-            int currentDay = mCurrentLogTime.get(Calendar.DAY_OF_MONTH);
-            Calendar calendar = Calendar.getInstance();
+            }
+            long currentDay = getDayStart(mCurrentLogTime);
             for (File file : files) {
-                long fileSize = getFileSize(file);
-                mTotalSize += fileSize;
-                Date date;
-                try {
-                    date = sFileNameFormat.parse(file.getName());
-                } catch (ParseException ignored) {
+                String name = file.getName();
+                if (name.equals(MANIFEST_FILE_NAME))
+                    continue;
+                if (parseDayFileName(name, TMP_SUFFIX) != null ||
+                        parseDayFileName(name, ARCHIVE_SUFFIX + TMP_SUFFIX) != null) {
+                    // Left over from an interrupted archival or expansion
+                    file.delete();
+                    continue;
+                }
+                Date date = parseDayFileName(name, ARCHIVE_SUFFIX);
+                if (date != null) {
+                    mDays.put(date.getTime(), new DayEntry(file.length(), getFileSize(file),
+                            true));
                     continue;
                 }
-                calendar.setTime(date);
-                if (calendar.get(Calendar.YEAR) == currentYear &&
-                        calendar.get(Calendar.MONTH) == currentMonth &&
-                        calendar.get(Calendar.DAY_OF_MONTH) == currentDay) {
+                date = parseDayFileName(name, "");
+                if (date == null) {
+                    // The SQLite files of a day are counted together with its day file
+                    String dayFileName = getSidecarDayFileName(name);
+                    if (dayFileName == null || !new File(mLogsDir, dayFileName).exists())
+                        mOtherFiles.put(name, getFileSize(file));
+                    continue;
+                }
+                if (date.getTime() == currentDay) {
                     mCurrentLogFile = file;
-                    mCurrentLogSize = fileSize;
+                    mCurrentLogSize = getDayFileSize(file);
+                    continue;
+                }
+                DayEntry entry = mDays.get(date.getTime());
+                if (entry != null && entry.archived)
                     continue;
+                mDays.put(date.getTime(), new DayEntry(file.length(), getDayFileSize(file),
+                        false));
+            }
+            findExpandedDays();
+            if (mCurrentLogFile == null)
+                mCurrentLogFile = new File(mLogsDir, sFileNameFormat.format(mCurrentLogTime.getTime()));
+            recalculateTotalSize();
+            mManifestDirty = true;
+            saveManifest();
+        }
+
+        private boolean loadManifest() {
+            if (!mManifestFile.exists())
+                return false;
+            mDays.clear();
+            mOtherFiles.clear();
+            mExpandedDays.clear();
+            long lastDay;
+            try (DataInputStream stream = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mManifestFile)))) {
+                if (stream.readInt() != MANIFEST_VERSION || stream.readLong() != getBlockSize())
+                    return false;
+                lastDay = stream.readLong();
+                int otherCount = stream.readInt();
+                for (int i = 0; i < otherCount; i++)
+                    mOtherFiles.put(stream.readUTF(), stream.readLong());
+                int dayCount = stream.readInt();
+                for (int i = 0; i < dayCount; i++) {
+                    long date = stream.readLong();
+                    long size = stream.readLong();
+                    long blockSize = stream.readLong();
+                    boolean archived = stream.readBoolean();
+                    mDays.put(date, new DayEntry(size, blockSize, archived));
+                }
+                int retentionStateCount = stream.readInt();
+                Map<String, ChannelRetentionState> states = new HashMap<>();
+                for (int i = 0; i < retentionStateCount; i++)
+                    states.put(stream.readUTF(), ChannelRetentionState.read(stream));
+                synchronized (mRetentionStates) {
+                    mRetentionStates.put(mServerConfig.uuid, states);
                 }
-                DeletionCandidate candidate = new DeletionCandidate(this, fileSize, date.getTime());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to load the chat log manifest: " + mServerConfig.uuid);
+                return false;
+            }
+
+            long currentDay = getDayStart(mCurrentLogTime);
+            if (lastDay > currentDay || currentDay - lastDay > MAX_MANIFEST_GAP_MS)
+                return false;
+            for (Map.Entry<String, Long> e : mOtherFiles.entrySet())
+                e.setValue(getFileSize(new File(mLogsDir, e.getKey())));
+            // The day which was the current one when the manifest was written kept on growing
+            // since then, and a few more days might have been created while we weren't running.
+            mDays.remove(lastDay);
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(lastDay);
+            while (getDayStart(calendar) < currentDay) {
+                File file = new File(mLogsDir, sFileNameFormat.format(calendar.getTime()));
+                if (file.exists())
+                    mDays.put(getDayStart(calendar), new DayEntry(file.length(),
+                            getDayFileSize(file), false));
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            mDays.remove(currentDay);
+            findExpandedDays();
+            mCurrentLogFile = new File(mLogsDir, sFileNameFormat.format(mCurrentLogTime.getTime()));
+            mCurrentLogSize = mCurrentLogFile.exists() ? getDayFileSize(mCurrentLogFile) : 0L;
+            recalculateTotalSize();
+            mManifestDirty = true;
+            return true;
+        }
+
+        private void saveManifest() {
+            if (!mManifestDirty || !mLogsDir.exists())
+                return;
+            File tmpFile = new File(mLogsDir, MANIFEST_FILE_NAME + ".tmp");
+            try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)))) {
+                stream.writeInt(MANIFEST_VERSION);
+                stream.writeLong(getBlockSize());
+                stream.writeLong(getDayStart(mCurrentLogTime));
+                stream.writeInt(mOtherFiles.size());
+                for (Map.Entry<String, Long> e : mOtherFiles.entrySet()) {
+                    stream.writeUTF(e.getKey());
+                    stream.writeLong(e.getValue());
+                }
+                stream.writeInt(mDays.size());
+                for (Map.Entry<Long, DayEntry> e : mDays.entrySet()) {
+                    stream.writeLong(e.getKey());
+                    stream.writeLong(e.getValue().size);
+                    stream.writeLong(e.getValue().blockSize);
+                    stream.writeBoolean(e.getValue().archived);
+                }
+                synchronized (mRetentionStates) {
+                    Map<String, ChannelRetentionState> states =
+                            mRetentionStates.get(mServerConfig.uuid);
+                    stream.writeInt(states != null ? states.size() : 0);
+                    if (states != null) {
+                        for (Map.Entry<String, ChannelRetentionState> e : states.entrySet()) {
+                            stream.writeUTF(e.getKey());
+                            e.getValue().write(stream);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save the chat log manifest: " + mServerConfig.uuid);
+                tmpFile.delete();
+                return;
+            }
+            if (tmpFile.renameTo(mManifestFile))
+                mManifestDirty = false;
+        }
+
+        private void reloadCandidates() {
+            removeCandidates();
+            for (Map.Entry<Long, DayEntry> e : mDays.entrySet()) {
+                DeletionCandidate candidate = new DeletionCandidate(this, e.getValue().blockSize,
+                        e.getKey());
                 addDeletionCandidate(candidate);
                 addGlobalDeletionCandidate(candidate);
             }
-            mGlobalTotalSize += mTotalSize;
         }
 
-        public void remove() {
-            mGlobalTotalSize -= mTotalSize;
+        private void removeCandidates() {
             mDeletionCandidates.clear();
             for (Iterator<DeletionCandidate> iterator = mGlobalDeletionCandidates.iterator(); iterator.hasNext(); ) {
                 DeletionCandidate candidate = iterator.next();
                 if (candidate.server == this)
                     iterator.remove();
             }
-            mTotalSize = 0L;
+        }
+
+        public void remove() {
+            clearRetentionStates();
+            removeCandidates();
+            setTotalSize(0L);
+            mDays.clear();
+            mOtherFiles.clear();
+            mExpandedDays.clear();
             mCurrentLogFile = null;
             mCurrentLogSize = 0L;
         }
 
+        public void reload() {
+            remove();
+            rescan();
+            reloadCandidates();
+        }
+
+        /**
+         * Deletes the log file of the specified day. Returns the amount of space that was freed,
+         * or -1 if the file no longer existed, which means the manifest is out of date.
+         */
+        private long deleteDay(long dateMs) {
+            DayEntry entry = mDays.remove(dateMs);
+            mManifestDirty = true;
+            File file = getDayFile(dateMs);
+            if (entry == null || !(entry.archived ? getArchiveFile(dateMs) : file).exists()) {
+                recalculateTotalSize();
+                return -1L;
+            }
+            if (entry.archived) {
+                getArchiveFile(dateMs).delete();
+                mExpandedDays.remove(dateMs);
+            }
+            SettingsHelper.deleteSQLiteDatabase(file);
+            Calendar dayEnd = Calendar.getInstance();
+            dayEnd.setTimeInMillis(dateMs);
+            dayEnd.add(Calendar.DAY_OF_MONTH, 1);
+            clearRetentionStatesBefore(dayEnd.getTimeInMillis());
+            mSearchIndex.requestDeleteRange(mServerConfig.uuid, dateMs, dayEnd.getTimeInMillis());
+            setTotalSize(mTotalSize - entry.blockSize);
+            return entry.blockSize;
+        }
+
         public void update(int currentYear, int currentMonth, int currentDay) {
-            mTotalSize -= mCurrentLogSize;
-            mGlobalTotalSize -= mCurrentLogSize;
-            mCurrentLogSize = mCurrentLogFile == null ? 0L : getFileSize(mCurrentLogFile);
-            mTotalSize += mCurrentLogSize;
-            mGlobalTotalSize += mCurrentLogSize;
+            long newSize = mTotalSize - mCurrentLogSize;
+            mCurrentLogSize = mCurrentLogFile == null ? 0L : getDayFileSize(mCurrentLogFile);
+            newSize += mCurrentLogSize;
+            setTotalSize(newSize);
 
-            long blockSize = getBlockSize();
             while (currentYear > mCurrentLogTime.get(Calendar.YEAR) || (currentYear == mCurrentLogTime.get(Calendar.YEAR) &&
                     (currentMonth > mCurrentLogTime.get(Calendar.MONTH) || (currentMonth == mCurrentLogTime.get(Calendar.MONTH) &&
                             currentDay > mCurrentLogTime.get(Calendar.DAY_OF_MONTH))))) {
                 if (mCurrentLogFile != null && mCurrentLogFile.exists()) {
+                    long dateMs = getDayStart(mCurrentLogTime);
+                    mDays.put(dateMs, new DayEntry(mCurrentLogFile.length(), mCurrentLogSize,
+                            false));
                     DeletionCandidate candidate = new DeletionCandidate(this, mCurrentLogSize,
-                            mCurrentLogTime.getTimeInMillis());
+                            dateMs);
                     addDeletionCandidate(candidate);
                     addGlobalDeletionCandidate(candidate);
+                } else {
+                    setTotalSize(mTotalSize - mCurrentLogSize);
                 }
 
                 mCurrentLogTime.add(Calendar.DAY_OF_MONTH, 1);
                 mCurrentLogFile = new File(mLogsDir, sFileNameFormat.format(mCurrentLogTime.getTime()));
-                mCurrentLogSize = (mCurrentLogFile.length() + blockSize - 1) / blockSize * blockSize;
-                mTotalSize += mCurrentLogSize;
-                mGlobalTotalSize += mCurrentLogSize;
+                mCurrentLogSize = mCurrentLogFile.exists() ? getDayFileSize(mCurrentLogFile) : 0L;
+                setTotalSize(mTotalSize + mCurrentLogSize);
+                mManifestDirty = true;
             }
 
+            enforceRetentionRules();
+            // The channel totals change with every received message
+            if (hasRetentionStates())
+                mManifestDirty = true;
+
+            if (mArchiveAge != -1)
+                archiveOldDays();
+
             long limit = mServerConfig.storageLimit != 0L ? mServerConfig.storageLimit : mDefaultServerLimit;
-            if (limit != -1L && mTotalSize >= limit)
+            if (limit != -1L && mTotalSize >= limit) {
+                long startTime = System.nanoTime();
                 performDeletion(mTotalSize - limit);
+                recordLimitEnforcement(System.nanoTime() - startTime);
+            }
+            saveManifest();
+        }
+
+        private void clearRetentionStates() {
+            synchronized (mRetentionStates) {
+                mRetentionStates.remove(mServerConfig.uuid);
+            }
+        }
+
+        /**
+         * Drops the totals of the channels which might have had messages before the specified
+         * time, which are the ones whose oldest kept message is older than it. Used when the
+         * messages of a day are deleted without going through the retention rules.
+         */
+        private void clearRetentionStatesBefore(long timeMs) {
+            synchronized (mRetentionStates) {
+                Map<String, ChannelRetentionState> states =
+                        mRetentionStates.get(mServerConfig.uuid);
+                if (states == null)
+                    return;
+                for (Iterator<ChannelRetentionState> it = states.values().iterator();
+                     it.hasNext(); ) {
+                    if (it.next().getOldestDate() < timeMs)
+                        it.remove();
+                }
+            }
+        }
+
+        private boolean hasRetentionStates() {
+            synchronized (mRetentionStates) {
+                Map<String, ChannelRetentionState> states =
+                        mRetentionStates.get(mServerConfig.uuid);
+                return states != null && !states.isEmpty();
+            }
+        }
+
+        private ChannelRetentionState getRetentionState(String channel) {
+            synchronized (mRetentionStates) {
+                Map<String, ChannelRetentionState> states =
+                        mRetentionStates.get(mServerConfig.uuid);
+                return states != null ? states.get(channel.toLowerCase(Locale.ROOT)) : null;
+            }
+        }
+
+        private void setRetentionState(String channel, ChannelRetentionState state) {
+            synchronized (mRetentionStates) {
+                Map<String, ChannelRetentionState> states =
+                        mRetentionStates.get(mServerConfig.uuid);
+                if (states == null) {
+                    states = new HashMap<>();
+                    mRetentionStates.put(mServerConfig.uuid, states);
+                }
+                states.put(channel.toLowerCase(Locale.ROOT), state);
+            }
+        }
+
+        private void enforceRetentionRules() {
+            List<ServerConfigData.ChannelRetentionRule> rules = mServerConfig.channelRetentionRules;
+            if (rules == null || rules.isEmpty())
+                return;
+            long now = SystemClock.elapsedRealtime();
+            if (!mRetentionRulesChanged && mLastRetentionTime != -1L &&
+                    now - mLastRetentionTime < RETENTION_INTERVAL_MS)
+                return;
+            // The day databases are accessed through the storage of the live connection, or
+            // through one opened just for this when the server is not connected
+            ServerConnectionInfo connection = mConnectionManager.getConnection(
+                    mServerConfig.uuid);
+            MessageStorageApi storage = connection != null && connection.getApiInstance() != null
+                    ? connection.getApiInstance().getMessageStorageApi() : null;
+            if (storage == null) {
+                if (!mLogsDir.exists())
+                    return;
+                mOwnStorage = new SQLiteMessageStorageApi(mLogsDir);
+                storage = mOwnStorage;
+            } else if (!(storage instanceof BufferedMessageStorageApi)) {
+                return;
+            }
+            mRetentionRulesChanged = false;
+            mLastRetentionTime = now;
+
+            Set<Long> changedDays = new HashSet<>();
+            Set<Long> expandedDays = new HashSet<>();
+            try {
+                for (ServerConfigData.ChannelRetentionRule rule : rules) {
+                    if (!rule.hasLimits())
+                        continue;
+                    long minDate = rule.maxAgeDays > 0
+                            ? System.currentTimeMillis() - rule.maxAgeDays * DAY_MS
+                            : Long.MIN_VALUE;
+                    try {
+                        ChannelRetentionState state = getRetentionState(rule.channel);
+                        int deleted = 0;
+                        if (state != null && state.hasOldestMessage()) {
+                            if (!state.isOverLimit(rule, minDate))
+                                continue;
+                            expandArchivedDaysFrom(state.getOldestDate(), expandedDays);
+                            deleted = deleteOldestMessages(storage, rule, minDate, state,
+                                    changedDays);
+                        }
+                        if (state == null || deleted == -1 || (!state.hasOldestMessage() &&
+                                state.isOverLimit(rule, minDate))) {
+                            expandArchivedDaysFrom(Long.MIN_VALUE, expandedDays);
+                            deleted = scanRetentionRule(storage, rule, minDate, changedDays);
+                        }
+                        if (deleted > 0) {
+                            Log.d(TAG, "Deleted " + deleted + " messages from " + rule.channel);
+                            mManifestDirty = true;
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        Log.w(TAG, "Failed to apply the retention rule for " + rule.channel);
+                        e.printStackTrace();
+                        setRetentionState(rule.channel, null);
+                    }
+                }
+                if (!changedDays.isEmpty())
+                    enableIncrementalVacuum(changedDays);
+                if (!changedDays.isEmpty() || !expandedDays.isEmpty()) {
+                    runWithStorageClosed(() -> {
+                        vacuumDays(changedDays);
+                        for (long dateMs : expandedDays)
+                            archiveDay(dateMs);
+                    });
+                }
+            } finally {
+                if (mOwnStorage != null) {
+                    mOwnStorage.close();
+                    mOwnStorage = null;
+                }
+            }
+        }
+
+        /**
+         * Expands the archived days starting with the day of the specified time, so that the
+         * storage sees the messages in them. The archived days are the oldest ones, so these are
+         * all the days with messages older than the time. The expanded days are added to the set,
+         * to be archived again once the retention rules are applied.
+         */
+        private void expandArchivedDaysFrom(long timeMs, Set<Long> expandedDays) {
+            if (mDays.isEmpty())
+                return;
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(timeMs);
+            Long fromDay = timeMs == Long.MIN_VALUE ? mDays.firstKey() : getDayStart(calendar);
+            List<Long> days = new ArrayList<>();
+            for (Map.Entry<Long, DayEntry> e : mDays.tailMap(fromDay).entrySet()) {
+                if (e.getValue().archived && !mExpandedDays.containsKey(e.getKey()))
+                    days.add(e.getKey());
+            }
+            if (days.isEmpty())
+                return;
+            runWithStorageClosed(() -> {
+                for (long dateMs : days) {
+                    if (expandDay(dateMs))
+                        expandedDays.add(dateMs);
+                }
+            });
+        }
+
+        /**
+         * Goes through all the messages of the rule's channel from the newest one, deletes the
+         * ones which are past any of its limits and records the totals of the kept ones. This is
+         * only done when the channel has no totals yet, afterwards the totals are updated as the
+         * messages are received and deleteOldestMessages is used. Returns the number of deleted
+         * messages.
+         */
+        private int scanRetentionRule(MessageStorageApi storage,
+                                      ServerConfigData.ChannelRetentionRule rule, long minDate,
+                                      Set<Long> changedDays)
+                throws InterruptedException, ExecutionException {
+            ChannelRetentionState state = new ChannelRetentionState();
+            long scannedSize = 0L;
+            List<MessageId> deleteIds = new ArrayList<>();
+            Calendar calendar = Calendar.getInstance();
+            MessageListAfterIdentifier after = null;
+            do {
+                MessageList list = storage.getMessages(rule.channel, RETENTION_PAGE_SIZE, null,
+                        after, null, null).get();
+                List<MessageInfo> messages = list.getMessages();
+                for (int i = messages.size() - 1; i >= 0; --i) {
+                    MessageInfo message = messages.get(i);
+                    long size = getMessageSize(message);
+                    scannedSize += size;
+                    if (message.getDate().getTime() >= minDate &&
+                            (rule.maxMessages <= 0 || state.mCount < rule.maxMessages) &&
+                            (rule.maxSize <= 0L || scannedSize <= rule.maxSize)) {
+                        state.mCount++;
+                        state.mSize += size;
+                        state.mOldestId = list.getMessageIds().get(i);
+                        state.mOldestDate = message.getDate().getTime();
+                        continue;
+                    }
+                    deleteIds.add(list.getMessageIds().get(i));
+                    calendar.setTime(message.getDate());
+                    changedDays.add(getDayStart(calendar));
+                }
+                after = list.getOlder();
+                if (messages.size() == 0)
+                    break;
+            } while (after != null);
+
+            // The list identifiers might not stay valid after deleting, so delete at the end
+            deleteMessages(storage, rule.channel, deleteIds);
+            setRetentionState(rule.channel, state);
+            return deleteIds.size();
+        }
+
+        /**
+         * Deletes the messages of the rule's channel which are past any of its limits, going from
+         * its oldest message to the newer ones and stopping at the first kept one, so that only
+         * the deleted messages are read. Returns the number of deleted messages or -1 if the
+         * oldest message couldn't be found, in which case the channel needs to be scanned again.
+         */
+        private int deleteOldestMessages(MessageStorageApi storage,
+                                         ServerConfigData.ChannelRetentionRule rule,
+                                         long minDate, ChannelRetentionState state,
+                                         Set<Long> changedDays)
+                throws InterruptedException, ExecutionException {
+            MessageId oldestId;
+            int count;
+            long size;
+            synchronized (state) {
+                oldestId = state.mOldestId;
+                count = state.mCount;
+                size = state.mSize;
+            }
+            MessageList list = storage.getMessagesNear(rule.channel, oldestId, null, null, null)
+                    .get();
+            int index = list.getMessageIds().indexOf(oldestId);
+            if (index == -1)
+                return -1;
+            List<MessageId> deleteIds = new ArrayList<>();
+            long deletedSize = 0L;
+            MessageId newOldestId = null;
+            long newOldestDate = Long.MAX_VALUE;
+            Calendar calendar = Calendar.getInstance();
+            while (newOldestId == null) {
+                List<MessageInfo> messages = list.getMessages();
+                for ( ; index < messages.size(); index++) {
+                    MessageInfo message = messages.get(index);
+                    if (message.getDate().getTime() >= minDate &&
+                            (rule.maxMessages <= 0 || count <= rule.maxMessages) &&
+                            (rule.maxSize <= 0L || size <= rule.maxSize)) {
+                        newOldestId = list.getMessageIds().get(index);
+                        newOldestDate = message.getDate().getTime();
+                        break;
+                    }
+                    long messageSize = getMessageSize(message);
+                    count--;
+                    size -= messageSize;
+                    deletedSize += messageSize;
+                    deleteIds.add(list.getMessageIds().get(index));
+                    calendar.setTime(message.getDate());
+                    changedDays.add(getDayStart(calendar));
+                }
+                if (newOldestId != null || list.getNewer() == null)
+                    break;
+                list = storage.getMessages(rule.channel, RETENTION_PAGE_SIZE, null,
+                        list.getNewer(), null, null).get();
+                index = 0;
+                if (list.getMessages().size() == 0)
+                    break;
+            }
+
+            deleteMessages(storage, rule.channel, deleteIds);
+            state.onMessagesDeleted(deleteIds.size(), deletedSize, newOldestId, newOldestDate);
+            return deleteIds.size();
+        }
+
+        private void deleteMessages(MessageStorageApi storage, String channel,
+                                    List<MessageId> ids)
+                throws InterruptedException, ExecutionException {
+            for (int i = 0; i < ids.size(); i += RETENTION_DELETE_BATCH_SIZE) {
+                List<MessageId> batch = ids.subList(i,
+                        Math.min(i + RETENTION_DELETE_BATCH_SIZE, ids.size()));
+                storage.deleteMessages(channel, new ArrayList<>(batch), null, null).get();
+                mSearchIndex.requestDeleteMessages(mServerConfig.uuid, batch);
+            }
+        }
+
+        /**
+         * Switches the day databases which had messages deleted to incremental auto_vacuum, so
+         * that vacuumDays can return their free pages a bit at a time. This takes a full vacuum,
+         * but only once per day file, and it's done with the storage open as SQLite locks the
+         * file for it. The current day is skipped as it's still being written to.
+         */
+        private void enableIncrementalVacuum(Set<Long> days) {
+            long currentDay = getDayStart(mCurrentLogTime);
+            for (long dateMs : days) {
+                DayEntry entry = mDays.get(dateMs);
+                if (entry == null || entry.archived || dateMs >= currentDay)
+                    continue;
+                File file = getDayFile(dateMs);
+                try {
+                    SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                            SQLiteDatabase.OPEN_READWRITE);
+                    try {
+                        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) !=
+                                AUTO_VACUUM_INCREMENTAL) {
+                            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                            db.execSQL("VACUUM");
+                        }
+                    } finally {
+                        db.close();
+                    }
+                } catch (SQLException e) {
+                    Log.w(TAG, "Failed to enable incremental vacuum: " + file.getName());
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Returns up to RETENTION_VACUUM_PAGES free pages of each of the day databases to the
+         * file system, so that the space freed by the deleted messages is counted towards the
+         * storage limits. The pages left over are returned the next time messages are deleted
+         * from the day. Must be called from runWithStorageClosed.
+         */
+        private void vacuumDays(Set<Long> days) {
+            long currentDay = getDayStart(mCurrentLogTime);
+            for (long dateMs : days) {
+                DayEntry entry = mDays.get(dateMs);
+                // The current day is still being written to and reuses the free pages anyway
+                if (entry == null || entry.archived || dateMs >= currentDay)
+                    continue;
+                File file = getDayFile(dateMs);
+                try {
+                    SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                            SQLiteDatabase.OPEN_READWRITE);
+                    try {
+                        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) !=
+                                AUTO_VACUUM_INCREMENTAL)
+                            continue;
+                        try (Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" +
+                                RETENTION_VACUUM_PAGES + ")", null)) {
+                            cursor.moveToFirst();
+                        }
+                    } finally {
+                        db.close();
+                    }
+                } catch (SQLException e) {
+                    Log.w(TAG, "Failed to vacuum the chat log: " + file.getName());
+                    e.printStackTrace();
+                    continue;
+                }
+                long oldBlockSize = entry.blockSize;
+                entry.size = file.length();
+                entry.blockSize = getDayFileSize(file);
+                setTotalSize(mTotalSize - oldBlockSize + entry.blockSize);
+                mManifestDirty = true;
+            }
+        }
+
+        /**
+         * Finds the archived days which also have their day file, which are the days that were
+         * expanded before the manifest was last saved.
+         */
+        private void findExpandedDays() {
+            for (Map.Entry<Long, DayEntry> e : mDays.entrySet()) {
+                if (!e.getValue().archived)
+                    continue;
+                File file = getDayFile(e.getKey());
+                if (file.exists())
+                    mExpandedDays.put(e.getKey(), getArchiveFile(e.getKey()).lastModified());
+            }
+        }
+
+        private void archiveOldDays() {
+            long maxDate = getDayStart(mCurrentLogTime) - mArchiveAge * DAY_MS;
+            List<Long> days = new ArrayList<>();
+            for (Map.Entry<Long, DayEntry> e : mDays.headMap(maxDate).entrySet()) {
+                if (!e.getValue().archived)
+                    days.add(e.getKey());
+            }
+            if (days.isEmpty())
+                return;
+            runWithStorageClosed(() -> {
+                for (long dateMs : days)
+                    archiveDay(dateMs);
+            });
+        }
+
+        /**
+         * Runs the task with the message storage of the live connection closed, so that none of
+         * the day files are open while the task replaces or deletes them.
+         */
+        private void runWithStorageClosed(Runnable task) {
+            if (mOwnStorage != null) {
+                SQLiteMessageStorageApi ownStorage = mOwnStorage;
+                Runnable innerTask = task;
+                task = () -> {
+                    ownStorage.close();
+                    try {
+                        innerTask.run();
+                    } finally {
+                        ownStorage.open();
+                    }
+                };
+            }
+            ServerConnectionInfo connection = mConnectionManager.getConnection(
+                    mServerConfig.uuid);
+            MessageStorageApi storage = connection != null && connection.getApiInstance() != null
+                    ? connection.getApiInstance().getMessageStorageApi() : null;
+            if (storage instanceof BufferedMessageStorageApi)
+                ((BufferedMessageStorageApi) storage).runWithStorageClosed(task);
+            else
+                task.run();
+        }
+
+        /**
+         * Compresses the day file into the archive file, replacing the previous archive if there
+         * is one. The day file is deleted afterwards. Must be called from runWithStorageClosed.
+         */
+        private boolean archiveDay(long dateMs) {
+            DayEntry entry = mDays.get(dateMs);
+            File file = getDayFile(dateMs);
+            File archiveFile = getArchiveFile(dateMs);
+            File tmpFile = new File(archiveFile.getPath() + TMP_SUFFIX);
+            // No vacuum first, Android's SQLite zeroes the free pages so they compress to nothing
+            try (InputStream in = new FileInputStream(file);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile))) {
+                copyStream(in, out);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to archive the chat log: " + file.getName());
+                e.printStackTrace();
+                tmpFile.delete();
+                return false;
+            }
+            if (!tmpFile.renameTo(archiveFile)) {
+                tmpFile.delete();
+                return false;
+            }
+            SettingsHelper.deleteSQLiteDatabase(file);
+            mExpandedDays.remove(dateMs);
+            long oldBlockSize = entry.blockSize;
+            entry.archived = true;
+            entry.size = archiveFile.length();
+            entry.blockSize = getFileSize(archiveFile);
+            setTotalSize(mTotalSize - oldBlockSize + entry.blockSize);
+            mManifestDirty = true;
+            Log.d(TAG, "Archived " + file.getName() + ": " + entry.size + " bytes");
+            return true;
+        }
+
+        /**
+         * Decompresses the archived day back into its day file. Must be called from
+         * runWithStorageClosed, so that the storage sees the day once it's opened again.
+         */
+        private boolean expandDay(long dateMs) {
+            File file = getDayFile(dateMs);
+            File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+            try (InputStream in = new GZIPInputStream(new FileInputStream(
+                    getArchiveFile(dateMs)));
+                 OutputStream out = new FileOutputStream(tmpFile)) {
+                copyStream(in, out);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to expand the chat log: " + file.getName());
+                e.printStackTrace();
+                tmpFile.delete();
+                return false;
+            }
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                return false;
+            }
+            mExpandedDays.put(dateMs, file.lastModified());
+            return true;
+        }
+
+        /**
+         * Expands up to EXPAND_AHEAD_DAYS archived days before the specified time and drops the
+         * least recently used expanded days over the MAX_EXPANDED_DAYS limit. Returns whether any
+         * day was expanded.
+         */
+        private boolean expandDaysBefore(long beforeMs) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(beforeMs);
+            List<Long> days = new ArrayList<>();
+            Map.Entry<Long, DayEntry> e = mDays.lowerEntry(getDayStart(calendar));
+            for (int i = 0; i < EXPAND_AHEAD_DAYS && e != null; i++) {
+                if (e.getValue().archived && mExpandedDays.get(e.getKey()) == null)
+                    days.add(e.getKey());
+                e = mDays.lowerEntry(e.getKey());
+            }
+            if (days.isEmpty())
+                return false;
+            boolean[] expandedAny = new boolean[1];
+            runWithStorageClosed(() -> {
+                for (long dateMs : days) {
+                    if (expandDay(dateMs))
+                        expandedAny[0] = true;
+                }
+                while (mExpandedDays.size() > MAX_EXPANDED_DAYS) {
+                    Map.Entry<Long, Long> oldest = mExpandedDays.entrySet().iterator().next();
+                    mExpandedDays.remove(oldest.getKey());
+                    File file = getDayFile(oldest.getKey());
+                    // Messages might have been added to the day while it was expanded
+                    if (file.lastModified() > oldest.getValue())
+                        archiveDay(oldest.getKey());
+                    else
+                        SettingsHelper.deleteSQLiteDatabase(file);
+                }
+            });
+            saveManifest();
+            return expandedAny[0];
         }
 
         private void performDeletion(long size) {
+            boolean rescanned = false;
             while (true) {
                 boolean deletedAnyFile = false;
                 for (Iterator<DeletionCandidate> iterator = mDeletionCandidates.iterator(); iterator.hasNext(); ) {
                     DeletionCandidate candidate = iterator.next();
-                    mGlobalTotalSize -= candidate.size;
-                    File file = new File(candidate.server.mLogsDir, sFileNameFormat.format(candidate.dateMs));
-                    size -= getFileSize(file);
-                    SettingsHelper.deleteSQLiteDatabase(file);
-                    deletedAnyFile = true;
                     iterator.remove();
+                    mGlobalDeletionCandidates.remove(candidate);
+                    long freed = deleteDay(candidate.dateMs);
+                    if (freed == -1L) {
+                        if (rescanned)
+                            continue;
+                        // The manifest doesn't match the directory contents
+                        reload();
+                        rescanned = true;
+                        deletedAnyFile = true;
+                        break;
+                    }
+                    size -= freed;
+                    deletedAnyFile = true;
                     if (size <= 0L) {
-                        if (mGlobalDeletionCandidates.size() == 0)
-                            reload();
+                        if (mDeletionCandidates.size() == 0)
+                            reloadCandidates();
                         return;
                     }
                 }
                 if (!deletedAnyFile)
                     return;
-                reload();
+                reloadCandidates();
+                if (mDeletionCandidates.size() == 0)
+                    return;
             }
         }
 
@@ -330,6 +1266,103 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
 
     }
 
+    /**
+     * The number and size of the kept messages of a channel with a retention rule and its oldest
+     * kept message. Updated from the connection's thread as the messages are received, and
+     * saved in the manifest so that the channel isn't scanned again after a restart.
+     */
+    private static class ChannelRetentionState {
+
+        private int mCount;
+        private long mSize;
+        private MessageId mOldestId;
+        private long mOldestDate = Long.MAX_VALUE;
+
+        synchronized void onMessageAdded(MessageInfo message) {
+            mCount++;
+            mSize += getMessageSize(message);
+        }
+
+        synchronized void onMessagesDeleted(int count, long size, MessageId newOldestId,
+                                            long newOldestDate) {
+            mCount -= count;
+            mSize -= size;
+            mOldestId = newOldestId;
+            mOldestDate = newOldestDate;
+        }
+
+        synchronized boolean hasOldestMessage() {
+            return mOldestId != null;
+        }
+
+        synchronized long getOldestDate() {
+            return mOldestDate;
+        }
+
+        synchronized void write(DataOutputStream stream) throws IOException {
+            stream.writeInt(mCount);
+            stream.writeLong(mSize);
+            stream.writeUTF(mOldestId != null ? mOldestId.toString() : "");
+            stream.writeLong(mOldestDate);
+        }
+
+        static ChannelRetentionState read(DataInputStream stream) throws IOException {
+            ChannelRetentionState ret = new ChannelRetentionState();
+            ret.mCount = stream.readInt();
+            ret.mSize = stream.readLong();
+            String oldestId = stream.readUTF();
+            ret.mOldestDate = stream.readLong();
+            if (oldestId.length() > 0) {
+                try {
+                    ret.mOldestId = SQLiteMessageStorageApi.getMessageIdParserInstance()
+                            .parse(oldestId);
+                } catch (RuntimeException e) {
+                    // The channel gets scanned again
+                    ret.mOldestId = null;
+                }
+            }
+            return ret;
+        }
+
+        synchronized boolean isOverLimit(ServerConfigData.ChannelRetentionRule rule,
+                                         long minDate) {
+            return mOldestDate < minDate ||
+                    (rule.maxMessages > 0 && mCount > rule.maxMessages) ||
+                    (rule.maxSize > 0L && mSize > rule.maxSize);
+        }
+
+    }
+
+    private static long getMessageSize(MessageInfo message) {
+        long size = MESSAGE_SIZE_OVERHEAD;
+        if (message.getMessage() != null)
+            size += message.getMessage().length();
+        if (message.getSender() != null && message.getSender().getNick() != null)
+            size += message.getSender().getNick().length();
+        return size;
+    }
+
+    private static void copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[16 * 1024];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+    }
+
+    private static class DayEntry {
+
+        private long size;
+        private long blockSize;
+        private boolean archived;
+
+        public DayEntry(long size, long blockSize, boolean archived) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.archived = archived;
+        }
+
+    }
+
 
     private static class DeletionCandidate implements Comparable<DeletionCandidate> {
 
@@ -349,6 +1382,8 @@ public class ChatLogStorageManager implements ServerConfigManager.ConnectionsLis
                 return Long.compare(o.dateMs, dateMs);
             if (size != o.size)
                 return Long.compare(size, o.size);
+            if (server != o.server)
+                return server.mServerConfig.uuid.compareTo(o.server.mServerConfig.uuid);
             return 0;
         }
 
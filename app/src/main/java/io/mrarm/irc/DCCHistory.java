@@ -3,7 +3,10 @@ package io.mrarm.irc;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -14,13 +17,23 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 
 import io.mrarm.chatlib.irc.dcc.DCCServer;
 import io.mrarm.chatlib.irc.dcc.DCCServerManager;
+import io.mrarm.irc.util.SettableFuture;
 
+/**
+ * The list of the finished DCC transfers. The entries are written in order on a background thread,
+ * and read in pages ordered by date, with each page starting after the last entry of the previous
+ * one, so that reading a page uses the date index no matter how far in the list it is.
+ */
 public class DCCHistory {
 
+    private static final int DB_VERSION = 1;
+
     private static final String TABLE_DCC_HISTORY = "dcc_history";
+    private static final String INDEX_DATE = "dcc_history_date";
     private static final String COLUMN_ID = "id";
     private static final String COLUMN_ENTRY_TYPE = "entry_type";
     private static final String COLUMN_DATE = "entry_date";
@@ -41,14 +54,21 @@ public class DCCHistory {
 
     private final File mPath;
     private SQLiteDatabase mDatabase;
+    private int mEntryCount;
     private List<HistoryListener> mListeners = new ArrayList<>();
+    private final Handler mWriteHandler;
 
     public DCCHistory(Context context) {
         mPath = getFile(context);
+        HandlerThread writeThread = new HandlerThread("DCCHistory Thread");
+        writeThread.start();
+        mWriteHandler = new Handler(writeThread.getLooper());
         open();
     }
 
-    private void open() {
+    public synchronized void open() {
+        if (mDatabase != null)
+            return;
         mDatabase = SQLiteDatabase.openOrCreateDatabase(mPath, null);
         mDatabase.execSQL("CREATE TABLE IF NOT EXISTS '" + TABLE_DCC_HISTORY + "' (" +
                 COLUMN_ID + " INTEGER PRIMARY KEY," +
@@ -62,6 +82,32 @@ public class DCCHistory {
                 COLUMN_FILE_SIZE + " INTEGER," +
                 COLUMN_FILE_URI + " TEXT" +
                 ")");
+        if (mDatabase.getVersion() < 1) {
+            // Version 1 adds the index used for reading the entries by date
+            mDatabase.execSQL("CREATE INDEX IF NOT EXISTS '" + INDEX_DATE + "' ON '" +
+                    TABLE_DCC_HISTORY + "' (" + COLUMN_DATE + ", " + COLUMN_ID + ")");
+        }
+        mDatabase.setVersion(DB_VERSION);
+        mEntryCount = (int) DatabaseUtils.queryNumEntries(mDatabase, TABLE_DCC_HISTORY);
+    }
+
+    public synchronized void close() {
+        if (mDatabase != null)
+            mDatabase.close();
+        mDatabase = null;
+    }
+
+    /**
+     * Waits until all the previously added or removed entries have been written.
+     */
+    public void flush() {
+        SettableFuture<Void> s = new SettableFuture<>();
+        mWriteHandler.post(() -> s.set(null));
+        try {
+            s.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public synchronized void addListener(HistoryListener listener) {
@@ -72,7 +118,11 @@ public class DCCHistory {
         mListeners.remove(listener);
     }
 
-    public synchronized void addEntry(Entry entry) {
+    /**
+     * Queues the entry to be written to the database. The listeners are called from the writer
+     * thread once the entry has been written and has its id assigned.
+     */
+    public void addEntry(Entry entry) {
         ContentValues values = new ContentValues();
         values.put(COLUMN_ENTRY_TYPE, entry.entryType);
         values.put(COLUMN_DATE, entry.date.getTime());
@@ -85,86 +135,129 @@ public class DCCHistory {
         values.put(COLUMN_FILE_SIZE, entry.fileSize);
         if (entry.fileUri != null)
             values.put(COLUMN_FILE_URI, entry.fileUri);
-        entry.entryId = mDatabase.insert(TABLE_DCC_HISTORY, null, values);
-        for (HistoryListener listener : mListeners)
-            listener.onHistoryEntryCreated(entry);
+        mWriteHandler.post(() -> {
+            synchronized (this) {
+                entry.entryId = mDatabase.insert(TABLE_DCC_HISTORY, null, values);
+                if (entry.entryId == -1)
+                    return;
+                mEntryCount++;
+                for (HistoryListener listener : mListeners)
+                    listener.onHistoryEntryCreated(entry);
+            }
+        });
     }
 
-    public synchronized void removeEntry(long id) {
-        mDatabase.delete(TABLE_DCC_HISTORY, COLUMN_ID + "=?",
-                new String[] { String.valueOf(id) });
-        for (HistoryListener listener : mListeners)
-            listener.onHistoryEntryRemoved(id);
+    /**
+     * Queues the entry to be removed from the database. The listeners are called from the writer
+     * thread once the entry has been removed.
+     */
+    public void removeEntry(long id) {
+        mWriteHandler.post(() -> {
+            synchronized (this) {
+                int count = mDatabase.delete(TABLE_DCC_HISTORY, COLUMN_ID + "=?",
+                        new String[] { String.valueOf(id) });
+                if (count == 0)
+                    return;
+                mEntryCount -= count;
+                for (HistoryListener listener : mListeners)
+                    listener.onHistoryEntryRemoved(id);
+            }
+        });
     }
 
     public synchronized int getEntryCount() {
-        Cursor cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM " + TABLE_DCC_HISTORY,
-                null);
-        cursor.moveToFirst();
-        return cursor.getInt(0);
+        return mEntryCount;
     }
 
-    public synchronized List<Entry> getEntries(int offset, int limit) {
+    /**
+     * Returns the entries that come after the specified one when sorted from the newest.
+     * @param after the last entry of the previous page, or null to get the first page
+     * @param limit the maximal number of entries to return, or -1 to return all of them
+     */
+    public synchronized List<Entry> getEntries(Entry after, int limit) {
+        String query = "SELECT * FROM " + TABLE_DCC_HISTORY;
+        String[] args = null;
+        if (after != null) {
+            query += " WHERE " + COLUMN_DATE + "<?1 OR (" + COLUMN_DATE + "=?1 AND " +
+                    COLUMN_ID + "<?2)";
+            args = new String[] { String.valueOf(after.date.getTime()),
+                    String.valueOf(after.entryId) };
+        }
+        query += " ORDER BY " + COLUMN_DATE + " DESC, " + COLUMN_ID + " DESC" +
+                (limit != -1 ? " LIMIT " + limit : "");
         List<Entry> entries = new ArrayList<>();
-        Cursor cursor = mDatabase.rawQuery("SELECT * FROM " + TABLE_DCC_HISTORY +
-                " ORDER BY " + COLUMN_DATE + " DESC" +
-                (limit != -1 ? " LIMIT " + limit : "") +
-                (offset != -1 ? " OFFSET " + offset : ""), null);
-        int columnId = cursor.getColumnIndex(COLUMN_ID);
-        int columnType = cursor.getColumnIndex(COLUMN_ENTRY_TYPE);
-        int columnDate = cursor.getColumnIndex(COLUMN_DATE);
-        int columnServerName = cursor.getColumnIndex(COLUMN_SERVER_NAME);
-        int columnServerUUID = cursor.getColumnIndex(COLUMN_SERVER_UUID);
-        int columnUserNick = cursor.getColumnIndex(COLUMN_USER_NICK);
-        int columnRemoteAddress = cursor.getColumnIndex(COLUMN_REMOTE_ADDRESS);
-        int columnFileName = cursor.getColumnIndex(COLUMN_FILE_NAME);
-        int columnFileSize = cursor.getColumnIndex(COLUMN_FILE_SIZE);
-        int columnFileUri = cursor.getColumnIndex(COLUMN_FILE_URI);
-        while (cursor.moveToNext()) {
-            Entry entry = new Entry();
-            entry.entryId = cursor.getLong(columnId);
-            entry.entryType = cursor.getInt(columnType);
-            entry.date = new Date(cursor.getLong(columnDate));
-            entry.serverName = cursor.getString(columnServerName);
-            entry.setServerUUID(cursor.getBlob(columnServerUUID));
-            entry.userNick = cursor.getString(columnUserNick);
-            entry.remoteAddress = cursor.getString(columnRemoteAddress);
-            entry.fileName = cursor.getString(columnFileName);
-            entry.fileSize = cursor.getLong(columnFileSize);
-            entry.fileUri = cursor.getString(columnFileUri);
-            entries.add(entry);
+        try (Cursor cursor = mDatabase.rawQuery(query, args)) {
+            ColumnIndices columns = new ColumnIndices(cursor);
+            while (cursor.moveToNext())
+                entries.add(columns.read(cursor));
         }
         return entries;
     }
 
+    /**
+     * Reads a page of entries on the writer thread, after all the previously queued writes.
+     * @see #getEntries(Entry, int)
+     */
+    public void getEntriesAsync(Entry after, int limit, EntriesCallback callback) {
+        mWriteHandler.post(() -> callback.onEntriesLoaded(getEntries(after, limit)));
+    }
+
     public synchronized Entry getEntry(long id) {
-        Cursor cursor = mDatabase.rawQuery("SELECT * FROM " + TABLE_DCC_HISTORY +
-                " WHERE " + COLUMN_ID + "=?", new String[] { String.valueOf(id) });
-        int columnId = cursor.getColumnIndex(COLUMN_ID);
-        int columnType = cursor.getColumnIndex(COLUMN_ENTRY_TYPE);
-        int columnDate = cursor.getColumnIndex(COLUMN_DATE);
-        int columnServerName = cursor.getColumnIndex(COLUMN_SERVER_NAME);
-        int columnServerUUID = cursor.getColumnIndex(COLUMN_SERVER_UUID);
-        int columnUserNick = cursor.getColumnIndex(COLUMN_USER_NICK);
-        int columnRemoteAddress = cursor.getColumnIndex(COLUMN_REMOTE_ADDRESS);
-        int columnFileName = cursor.getColumnIndex(COLUMN_FILE_NAME);
-        int columnFileSize = cursor.getColumnIndex(COLUMN_FILE_SIZE);
-        int columnFileUri = cursor.getColumnIndex(COLUMN_FILE_URI);
-
-        if (!cursor.moveToNext())
-            return null;
-        Entry entry = new Entry();
-        entry.entryId = cursor.getLong(columnId);
-        entry.entryType = cursor.getInt(columnType);
-        entry.date = new Date(cursor.getLong(columnDate));
-        entry.serverName = cursor.getString(columnServerName);
-        entry.setServerUUID(cursor.getBlob(columnServerUUID));
-        entry.userNick = cursor.getString(columnUserNick);
-        entry.remoteAddress = cursor.getString(columnRemoteAddress);
-        entry.fileName = cursor.getString(columnFileName);
-        entry.fileSize = cursor.getLong(columnFileSize);
-        entry.fileUri = cursor.getString(columnFileUri);
-        return entry;
+        try (Cursor cursor = mDatabase.rawQuery("SELECT * FROM " + TABLE_DCC_HISTORY +
+                " WHERE " + COLUMN_ID + "=?", new String[] { String.valueOf(id) })) {
+            if (!cursor.moveToNext())
+                return null;
+            return new ColumnIndices(cursor).read(cursor);
+        }
+    }
+
+    private static class ColumnIndices {
+
+        private final int mId;
+        private final int mType;
+        private final int mDate;
+        private final int mServerName;
+        private final int mServerUUID;
+        private final int mUserNick;
+        private final int mRemoteAddress;
+        private final int mFileName;
+        private final int mFileSize;
+        private final int mFileUri;
+
+        ColumnIndices(Cursor cursor) {
+            mId = cursor.getColumnIndex(COLUMN_ID);
+            mType = cursor.getColumnIndex(COLUMN_ENTRY_TYPE);
+            mDate = cursor.getColumnIndex(COLUMN_DATE);
+            mServerName = cursor.getColumnIndex(COLUMN_SERVER_NAME);
+            mServerUUID = cursor.getColumnIndex(COLUMN_SERVER_UUID);
+            mUserNick = cursor.getColumnIndex(COLUMN_USER_NICK);
+            mRemoteAddress = cursor.getColumnIndex(COLUMN_REMOTE_ADDRESS);
+            mFileName = cursor.getColumnIndex(COLUMN_FILE_NAME);
+            mFileSize = cursor.getColumnIndex(COLUMN_FILE_SIZE);
+            mFileUri = cursor.getColumnIndex(COLUMN_FILE_URI);
+        }
+
+        Entry read(Cursor cursor) {
+            Entry entry = new Entry();
+            entry.entryId = cursor.getLong(mId);
+            entry.entryType = cursor.getInt(mType);
+            entry.date = new Date(cursor.getLong(mDate));
+            entry.serverName = cursor.getString(mServerName);
+            entry.setServerUUID(cursor.getBlob(mServerUUID));
+            entry.userNick = cursor.getString(mUserNick);
+            entry.remoteAddress = cursor.getString(mRemoteAddress);
+            entry.fileName = cursor.getString(mFileName);
+            entry.fileSize = cursor.getLong(mFileSize);
+            entry.fileUri = cursor.getString(mFileUri);
+            return entry;
+        }
+
+    }
+
+    public interface EntriesCallback {
+
+        void onEntriesLoaded(List<Entry> entries);
+
     }
 
     public interface HistoryListener {
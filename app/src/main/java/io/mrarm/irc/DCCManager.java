@@ -69,7 +69,7 @@ public class DCCManager implements DCCServerManager.UploadListener, DCCClient.Cl
     private static final String PREF_DCC_DIRECTORY_OVERRIDE_URI = "dcc_download_directory_uri";
     private static final String PREF_DCC_DIRECTORY_OVERRIDE_URI_SYSTEM = "dcc_download_directory_uri_system";
 
-    public static DCCManager getInstance(Context context) {
+    public static synchronized DCCManager getInstance(Context context) {
         if (sInstance == null)
             sInstance = new DCCManager(context.getApplicationContext());
         return sInstance;
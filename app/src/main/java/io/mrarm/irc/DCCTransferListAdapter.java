@@ -36,6 +36,10 @@ public class DCCTransferListAdapter extends RecyclerView.Adapter implements
     private static final int TYPE_TRANSFER_PENDING = 1;
     private static final int TYPE_HISTORY_ENTRY = 2;
 
+    private static final int HISTORY_PAGE_SIZE = 20;
+    // The next page is loaded in the background once an entry this close to the end is shown
+    private static final int HISTORY_PREFETCH_DISTANCE = 10;
+
     private final Activity mActivity;
     private DCCManager mDCCManager;
     private List<DCCServer.UploadSession> mUploadSessions;
@@ -43,6 +47,7 @@ public class DCCTransferListAdapter extends RecyclerView.Adapter implements
     private List<DCCServerManager.UploadEntry> mPendingUploads;
     private int mHistoryCount;
     private final List<DCCHistory.Entry> mHistoryUploads = new ArrayList<>();
+    private boolean mHistoryPageLoading = false;
 
     public DCCTransferListAdapter(Activity activity) {
         mActivity = activity;
@@ -126,15 +131,39 @@ public class DCCTransferListAdapter extends RecyclerView.Adapter implements
 
     private DCCHistory.Entry getHistoryEntry(int index) {
         if (index >= mHistoryUploads.size()) {
-            int limit = ((index + 1 - mHistoryUploads.size() + 10 - 1) / 10) * 10;
+            // The page was not loaded in time, load the missing entries right away
+            int limit = ((index + 1 - mHistoryUploads.size() + HISTORY_PAGE_SIZE - 1) /
+                    HISTORY_PAGE_SIZE) * HISTORY_PAGE_SIZE;
             mHistoryUploads.addAll(mDCCManager.getHistory()
-                    .getEntries(mHistoryUploads.size(), limit));
+                    .getEntries(getLastHistoryEntry(), limit));
         }
+        if (index + HISTORY_PREFETCH_DISTANCE >= mHistoryUploads.size())
+            loadNextHistoryPage();
         if (index >= mHistoryUploads.size())
             return null;
         return mHistoryUploads.get(index);
     }
 
+    private DCCHistory.Entry getLastHistoryEntry() {
+        if (mHistoryUploads.isEmpty())
+            return null;
+        return mHistoryUploads.get(mHistoryUploads.size() - 1);
+    }
+
+    private void loadNextHistoryPage() {
+        if (mHistoryPageLoading || mHistoryUploads.size() >= mHistoryCount)
+            return;
+        mHistoryPageLoading = true;
+        DCCHistory.Entry after = getLastHistoryEntry();
+        mDCCManager.getHistory().getEntriesAsync(after, HISTORY_PAGE_SIZE,
+                (List<DCCHistory.Entry> entries) -> mActivity.runOnUiThread(() -> {
+                    mHistoryPageLoading = false;
+                    // The entries could have been loaded or removed in the meantime
+                    if (getLastHistoryEntry() == after)
+                        mHistoryUploads.addAll(entries);
+                }));
+    }
+
     @Override
     public int getItemViewType(int position) {
         if (position >= getPendingUploadsStart() &&
@@ -245,8 +274,10 @@ public class DCCTransferListAdapter extends RecyclerView.Adapter implements
     public void onHistoryEntryCreated(DCCHistory.Entry entry) {
         mActivity.runOnUiThread(() -> {
             mHistoryCount++;
-            mHistoryUploads.add(0, entry);
-            notifyItemInserted(getDownloadsStart());
+            // The entry could have already been read as a part of a page
+            if (mHistoryUploads.isEmpty() || mHistoryUploads.get(0).entryId != entry.entryId)
+                mHistoryUploads.add(0, entry);
+            notifyItemInserted(getHistoryStart());
         });
     }
 
@@ -257,7 +288,7 @@ public class DCCTransferListAdapter extends RecyclerView.Adapter implements
                 if (mHistoryUploads.get(i).entryId == entryId) {
                     mHistoryUploads.remove(i);
                     mHistoryCount--;
-                    notifyItemRemoved(getDownloadsStart() + i);
+                    notifyItemRemoved(getHistoryStart() + i);
                     return;
                 }
             }
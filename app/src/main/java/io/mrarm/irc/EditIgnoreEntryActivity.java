@@ -81,7 +81,6 @@ public class EditIgnoreEntryActivity extends ThemedActivity {
         mEntry.matchChannelNotices = mChannelNotices.isChecked();
         mEntry.matchDirectMessages = mDirectMessages.isChecked();
         mEntry.matchDirectNotices = mDirectNotices.isChecked();
-        mEntry.updateRegexes();
         try {
             ServerConfigManager.getInstance(this).saveServer(mServer);
         } catch (IOException e) {
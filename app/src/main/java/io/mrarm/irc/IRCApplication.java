@@ -7,10 +7,22 @@ import android.os.Bundle;
 import java.util.ArrayList;
 import java.util.List;
 
+import io.mrarm.irc.config.ServerConfigManager;
 import io.mrarm.irc.config.SettingsHelper;
+import io.mrarm.irc.util.theme.ThemeManager;
 
 public class IRCApplication extends Application implements Application.ActivityLifecycleCallbacks {
 
+    public static final String STAGE_SETTINGS = "settings";
+    public static final String STAGE_NOTIFICATION_CHANNELS = "notification_channels";
+    public static final String STAGE_SERVER_CONFIG = "server_config";
+    public static final String STAGE_THEMES = "themes";
+    public static final String STAGE_CONNECTIONS = "connections";
+    public static final String STAGE_DCC = "dcc";
+    public static final String STAGE_STORAGE = "storage";
+
+    private StartupPipeline mStartupPipeline;
+    private boolean mFirstFrameScheduled = false;
     private List<Activity> mActivities = new ArrayList<>();
     private List<PreExitCallback> mPreExitCallbacks = new ArrayList<>();
     private List<ExitCallback> mExitCallbacks = new ArrayList<>();
@@ -18,9 +30,32 @@ public class IRCApplication extends Application implements Application.ActivityL
     @Override
     public void onCreate() {
         super.onCreate();
-        SettingsHelper.getInstance(this);
-        NotificationManager.createDefaultChannels(this);
         registerActivityLifecycleCallbacks(this);
+
+        StartupPipeline p = new StartupPipeline();
+        // Everything else reads the settings, so they have to be available right away
+        p.addStage(STAGE_SETTINGS, StartupPipeline.FLAG_MAIN_THREAD,
+                () -> SettingsHelper.getInstance(this));
+        p.addStage(STAGE_NOTIFICATION_CHANNELS, 0,
+                () -> NotificationManager.createDefaultChannels(this), STAGE_SETTINGS);
+        p.addStage(STAGE_SERVER_CONFIG, 0,
+                () -> ServerConfigManager.getInstance(this), STAGE_SETTINGS);
+        // Applying the theme changes the night mode, which has to be done on the main thread
+        p.addStage(STAGE_THEMES, StartupPipeline.FLAG_MAIN_THREAD,
+                () -> ThemeManager.getInstance(this), STAGE_SETTINGS);
+        p.addStage(STAGE_CONNECTIONS, 0,
+                () -> ServerConnectionManager.getInstance(this),
+                STAGE_SERVER_CONFIG, STAGE_NOTIFICATION_CHANNELS);
+        p.addStage(STAGE_DCC, StartupPipeline.FLAG_DEFERRED,
+                () -> DCCManager.getInstance(this), STAGE_SETTINGS);
+        p.addStage(STAGE_STORAGE, StartupPipeline.FLAG_DEFERRED,
+                () -> ChatLogStorageManager.getInstance(this), STAGE_CONNECTIONS);
+        mStartupPipeline = p;
+        p.start();
+    }
+
+    public StartupPipeline getStartupPipeline() {
+        return mStartupPipeline;
     }
 
     public void addPreExitCallback(PreExitCallback c) {
@@ -70,6 +105,14 @@ public class IRCApplication extends Application implements Application.ActivityL
 
     @Override
     public void onActivityResumed(Activity activity) {
+        if (mFirstFrameScheduled)
+            return;
+        mFirstFrameScheduled = true;
+        // Runs after the first layout and draw of the activity
+        activity.getWindow().getDecorView().post(() -> {
+            mStartupPipeline.markFirstFrame();
+            mStartupPipeline.startDeferred();
+        });
     }
 
     @Override
@@ -154,7 +154,8 @@ public class IRCService extends Service implements ServerConnectionManager.Conne
     private void onMessage(ServerConnectionInfo connection, String channel, MessageInfo info,
                            MessageId messageId) {
         NotificationManager.getInstance().processMessage(this, connection, channel, info, messageId);
-        ChatLogStorageManager.getInstance(this).onMessage(connection);
+        ChatLogStorageManager.getInstance(this).onMessage(connection, channel, info);
+        ChatLogSearchIndex.getInstance(this).onMessage(connection, channel, info, messageId);
     }
 
     @Override
@@ -164,6 +165,7 @@ public class IRCService extends Service implements ServerConnectionManager.Conne
         };
         messageListeners.put(connection, listener);
         connection.getApiInstance().getMessageStorageApi().subscribeChannelMessages(null, listener, null, null);
+        ChatLogSearchIndex.getInstance(this).requestBackfill(connection);
     }
 
     @Override
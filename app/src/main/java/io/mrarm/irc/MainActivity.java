@@ -37,18 +37,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
 import java.util.UUID;
 
 import io.mrarm.chatlib.ChatApi;
-import io.mrarm.chatlib.dto.NickWithPrefix;
 import io.mrarm.chatlib.irc.ServerConnectionApi;
 import io.mrarm.chatlib.irc.dcc.DCCServer;
 import io.mrarm.chatlib.irc.dcc.DCCUtils;
 import io.mrarm.irc.chat.ChannelInfoAdapter;
+import io.mrarm.irc.chat.ChannelMemberList;
 import io.mrarm.irc.chat.ChatFragment;
 import io.mrarm.irc.config.AppSettings;
 import io.mrarm.irc.config.ChatSettings;
+import io.mrarm.irc.config.ServerConfigData;
+import io.mrarm.irc.config.ServerConfigManager;
+import io.mrarm.irc.dialog.ChannelRetentionDialog;
+import io.mrarm.irc.dialog.MessageSearchDialog;
 import io.mrarm.irc.dialog.UserSearchDialog;
 import io.mrarm.irc.drawer.DrawerHelper;
 import io.mrarm.irc.util.NightModeRecreateHelper;
@@ -290,6 +293,7 @@ public class MainActivity extends ThemedActivity implements IRCApplication.ExitC
                                    boolean fromServerList) {
         dismissFragmentDialog();
         setChannelInfoDrawerVisible(false);
+        server.markUsed();
         ChatFragment fragment;
         if (getCurrentFragment() instanceof ChatFragment &&
                 ((ChatFragment) getCurrentFragment()).getConnectionInfo() == server) {
@@ -358,7 +362,7 @@ public class MainActivity extends ThemedActivity implements IRCApplication.ExitC
     }
 
     public void setCurrentChannelInfo(ServerConnectionInfo server, String topic, String topicSetBy,
-                                      Date topicSetOn, List<NickWithPrefix> members) {
+                                      Date topicSetOn, ChannelMemberList members) {
         if (mChannelInfoAdapter == null)
             return;
         mChannelInfoAdapter.setData(server, topic, topicSetBy, topicSetOn, members);
@@ -442,6 +446,11 @@ public class MainActivity extends ThemedActivity implements IRCApplication.ExitC
                 partItem.setVisible(true);
                 partItem.setTitle(R.string.action_part_channel);
             }
+            boolean retentionVisible = fragment.getCurrentChannel() != null;
+            if (retentionVisible != menu.findItem(R.id.action_channel_retention).isVisible()) {
+                menu.findItem(R.id.action_channel_retention).setVisible(retentionVisible);
+                hasChanges = true;
+            }
             boolean wasDccSendVisible = menu.findItem(R.id.action_dcc_send).isVisible();
             boolean dccSendVisible = ChatSettings.isDccSendVisible() && connected && inDirectChat;
             if (dccSendVisible != wasDccSendVisible) {
@@ -487,6 +496,12 @@ public class MainActivity extends ThemedActivity implements IRCApplication.ExitC
                     getCurrentFragment()).getConnectionInfo());
             dialog.show();
             setFragmentDialog(dialog);
+        } else if (id == R.id.action_search_messages) {
+            ChatFragment chat = (ChatFragment) getCurrentFragment();
+            MessageSearchDialog dialog = new MessageSearchDialog(this, chat.getConnectionInfo(),
+                    chat.getCurrentChannel());
+            dialog.show();
+            setFragmentDialog(dialog);
         } else if (id == R.id.action_part_channel) {
             ChatApi api = ((ChatFragment) getCurrentFragment()).getConnectionInfo().getApiInstance();
             String channel = ((ChatFragment) getCurrentFragment()).getCurrentChannel();
@@ -499,6 +514,16 @@ public class MainActivity extends ThemedActivity implements IRCApplication.ExitC
             startActivityForResult(intent, REQUEST_CODE_PICK_FILE_DCC);
         } else if (id == R.id.action_members) {
             mDrawerLayout.openDrawer(GravityCompat.END);
+        } else if (id == R.id.action_channel_retention) {
+            ChatFragment chat = (ChatFragment) getCurrentFragment();
+            ServerConfigData server = ServerConfigManager.getInstance(this).findServer(
+                    chat.getConnectionInfo().getUUID());
+            if (server != null && chat.getCurrentChannel() != null) {
+                ChannelRetentionDialog dialog = new ChannelRetentionDialog(this, server,
+                        chat.getCurrentChannel());
+                dialog.show();
+                setFragmentDialog(dialog);
+            }
         } else if (id == R.id.action_ignore_list) {
             ServerConnectionInfo info = ((ChatFragment) getCurrentFragment()).getConnectionInfo();
             Intent intent = new Intent(this, IgnoreListActivity.class);
@@ -512,7 +537,8 @@ public class MainActivity extends ThemedActivity implements IRCApplication.ExitC
             ServerConnectionManager.getInstance(this).removeConnection(info);
             openManageServers();
         } else if (id == R.id.action_reconnect) {
-            ((ChatFragment) getCurrentFragment()).getConnectionInfo().connect();
+            ServerConnectionManager.getInstance(this).getConnectScheduler().schedule(
+                    ((ChatFragment) getCurrentFragment()).getConnectionInfo(), 0, true, false);
         } else if (id == R.id.action_format) {
             ((ChatFragment) getCurrentFragment()).getSendMessageHelper().setFormatBarVisible(true);
         } else if (id == R.id.action_dcc_transfers) {
@@ -4,11 +4,16 @@ import android.app.NotificationChannelGroup;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -18,6 +23,7 @@ import io.mrarm.chatlib.ChatApi;
 import io.mrarm.chatlib.dto.MessageId;
 import io.mrarm.chatlib.dto.MessageInfo;
 import io.mrarm.chatlib.irc.ServerConnectionApi;
+import io.mrarm.irc.config.AppSettings;
 import io.mrarm.irc.config.NotificationRule;
 import io.mrarm.irc.config.NotificationRuleManager;
 import io.mrarm.irc.util.WarningHelper;
@@ -41,6 +47,26 @@ public class NotificationManager {
 
     private String mLastSummaryChannel = null;
 
+    // Notifications are rendered at most once per the configured interval, a burst of messages
+    // only marks the channels as dirty and they are all rendered together
+    private final Handler mRenderHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRenderRunnable = this::renderNotifications;
+    private final Object mRenderLock = new Object();
+    private Context mRenderContext;
+    private Map<ChannelNotificationManager, NotificationRule> mDirtyChannels = new LinkedHashMap<>();
+    private final LinkedHashSet<ChannelNotificationManager> mActiveChannels = new LinkedHashSet<>();
+    private boolean mSummaryDirty = false;
+    private String mPendingSummaryChannel = null;
+    private boolean mRenderQueued = false;
+    private long mFirstDirtyTime;
+    private long mLastRenderTime;
+
+    private long mRenderRequestCount;
+    private long mRenderCount;
+    private long mChannelRenderCount;
+    private long mTotalRenderLatency;
+    private long mMaxRenderLatency;
+
     public void processMessage(Context context, ServerConnectionInfo connection, String channel,
                                MessageInfo info, MessageId messageId) {
         ChannelNotificationManager channelManager = connection.getNotificationManager().getChannelManager(channel, true);
@@ -60,8 +86,7 @@ public class NotificationManager {
             if (channelManager.addNotificationMessage(info, messageId)) {
                 if (rule.settings.notificationChannelId == null)
                     ChannelNotificationManager.createChannel(context, rule);
-                updateSummaryNotification(context, rule.settings.notificationChannelId);
-                channelManager.showNotification(context, rule);
+                requestRender(context, channelManager, rule);
             }
         }
     }
@@ -93,20 +118,8 @@ public class NotificationManager {
                         .getSupportedChannelTypes().contains(channel.charAt(0)))
             channel = null;
 
-        ConnectionManager connData = connection.getNotificationManager();
-        for (NotificationRule rule : NotificationRuleManager.getDefaultTopRules()) {
-            if (rule.appliesTo(connData, channel, message) && rule.settings.enabled)
-                return rule;
-        }
-        for (NotificationRule rule : NotificationRuleManager.getUserRules(connection.getConnectionManager().getContext())) {
-            if (rule.appliesTo(connData, channel, message) && rule.settings.enabled)
-                return rule;
-        }
-        for (NotificationRule rule : NotificationRuleManager.getDefaultBottomRules()) {
-            if (rule.appliesTo(connData, channel, message) && rule.settings.enabled)
-                return rule;
-        }
-        return null;
+        return NotificationRuleManager.getRuleMatcher(connection.getConnectionManager().getContext())
+                .findRule(connection.getNotificationManager(), channel, message);
     }
 
     public void onNotificationDismissed(Context context, ServerConnectionInfo connection,
@@ -118,29 +131,152 @@ public class NotificationManager {
     }
 
 
+    private void requestRender(Context context, ChannelNotificationManager channelManager,
+                               NotificationRule rule) {
+        synchronized (mRenderLock) {
+            if (!mRenderQueued)
+                mFirstDirtyTime = SystemClock.uptimeMillis();
+            mRenderRequestCount++;
+            mDirtyChannels.put(channelManager, rule);
+            mSummaryDirty = true;
+            mPendingSummaryChannel = rule.settings.notificationChannelId;
+            postRender(context);
+        }
+    }
+
     public void updateSummaryNotification(Context context, String channel) {
+        synchronized (mRenderLock) {
+            if (!mRenderQueued)
+                mFirstDirtyTime = SystemClock.uptimeMillis();
+            mSummaryDirty = true;
+            if (channel != null)
+                mPendingSummaryChannel = channel;
+            postRender(context);
+        }
+    }
+
+    private void postRender(Context context) {
+        mRenderContext = context.getApplicationContext();
+        if (mRenderQueued)
+            return;
+        mRenderQueued = true;
+        // The first update after a quiet period is rendered right away
+        long delay = mLastRenderTime + AppSettings.getNotificationRenderInterval() -
+                SystemClock.uptimeMillis();
+        mRenderHandler.postDelayed(mRenderRunnable, Math.max(delay, 0L));
+    }
+
+    private void renderNotifications() {
+        Context context;
+        Map<ChannelNotificationManager, NotificationRule> channels;
+        boolean summary;
+        String summaryChannel;
+        long dirtyTime;
+        synchronized (mRenderLock) {
+            mRenderQueued = false;
+            context = mRenderContext;
+            channels = mDirtyChannels;
+            mDirtyChannels = new LinkedHashMap<>();
+            summary = mSummaryDirty;
+            mSummaryDirty = false;
+            summaryChannel = mPendingSummaryChannel;
+            mPendingSummaryChannel = null;
+            dirtyTime = mFirstDirtyTime;
+        }
+        if (summary)
+            renderSummaryNotification(context, summaryChannel);
+        for (Map.Entry<ChannelNotificationManager, NotificationRule> e : channels.entrySet())
+            e.getKey().showNotification(context, e.getValue());
+        long time = SystemClock.uptimeMillis();
+        synchronized (mRenderLock) {
+            mLastRenderTime = time;
+            mRenderCount++;
+            mChannelRenderCount += channels.size();
+            mTotalRenderLatency += time - dirtyTime;
+            mMaxRenderLatency = Math.max(mMaxRenderLatency, time - dirtyTime);
+        }
+    }
+
+    void onChannelNotificationsAdded(ChannelNotificationManager channelManager) {
+        synchronized (mRenderLock) {
+            mActiveChannels.add(channelManager);
+        }
+    }
+
+    void onChannelNotificationsCleared(ChannelNotificationManager channelManager) {
+        synchronized (mRenderLock) {
+            mActiveChannels.remove(channelManager);
+            mDirtyChannels.remove(channelManager);
+        }
+    }
+
+    /**
+     * Returns the number of notification updates requested for new messages.
+     */
+    public long getRenderRequestCount() {
+        synchronized (mRenderLock) {
+            return mRenderRequestCount;
+        }
+    }
+
+    /**
+     * Returns the number of render passes, each of them might update any number of channel
+     * notifications and the summary notification.
+     */
+    public long getRenderCount() {
+        synchronized (mRenderLock) {
+            return mRenderCount;
+        }
+    }
+
+    public long getChannelRenderCount() {
+        synchronized (mRenderLock) {
+            return mChannelRenderCount;
+        }
+    }
+
+    /**
+     * Returns the average time in milliseconds between a notification update being requested and
+     * it being rendered.
+     */
+    public long getAverageRenderLatency() {
+        synchronized (mRenderLock) {
+            return mRenderCount > 0 ? mTotalRenderLatency / mRenderCount : 0L;
+        }
+    }
+
+    public long getMaxRenderLatency() {
+        synchronized (mRenderLock) {
+            return mMaxRenderLatency;
+        }
+    }
+
+    private void renderSummaryNotification(Context context, String channel) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
             return;
+        List<ChannelNotificationManager> activeChannels;
+        synchronized (mRenderLock) {
+            activeChannels = new ArrayList<>(mActiveChannels);
+        }
         ChannelNotificationManager first = null;
+        ChannelNotificationManager.NotificationMessage firstMessage = null;
         boolean isLong = false;
         int notificationCount = 0;
         StringBuilder longBuilder = new StringBuilder();
-        for (ServerConnectionInfo info : ServerConnectionManager.getInstance(context).getConnections()) {
-            ConnectionManager cm = info.getNotificationManager();
-            synchronized (cm.mChannels) {
-                for (ChannelNotificationManager channelManager : cm.mChannels.values()) {
-                    if (channelManager.getNotificationMessageCount() == 0)
-                        continue;
-                    if (first == null) {
-                        first = channelManager;
-                    } else {
-                        longBuilder.append(context.getString(R.string.text_comma));
-                        isLong = true;
-                    }
-                    longBuilder.append(channelManager.getChannel());
-                    notificationCount++;
-                }
+        for (ChannelNotificationManager channelManager : activeChannels) {
+            ChannelNotificationManager.NotificationMessage lastMessage =
+                    channelManager.getLastNotificationMessage();
+            if (lastMessage == null)
+                continue;
+            if (first == null) {
+                first = channelManager;
+                firstMessage = lastMessage;
+            } else {
+                longBuilder.append(context.getString(R.string.text_comma));
+                isLong = true;
             }
+            longBuilder.append(channelManager.getChannel());
+            notificationCount++;
         }
         // Remove the notification if no notification entries were found
         if (first == null) {
@@ -176,7 +312,7 @@ public class NotificationManager {
                     PendingIntent.FLAG_CANCEL_CURRENT);
             notification
                     .setContentTitle(first.getChannel())
-                    .setContentText(first.getNotificationMessage(first.getNotificationMessageCount() - 1).getNotificationText(context))
+                    .setContentText(firstMessage.getNotificationText(context))
                     .setContentIntent(intent);
         }
         NotificationManagerCompat.from(context).notify(CHAT_SUMMARY_NOTIFICATION_ID, notification.build());
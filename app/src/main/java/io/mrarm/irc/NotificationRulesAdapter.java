@@ -323,6 +323,7 @@ public class NotificationRulesAdapter extends RecyclerView.Adapter<RecyclerView.
                     Collections.swap(mRules, i, i - 1);
             }
             notifyItemMoved(fromPosition + userRulesI, toPosition + userRulesI);
+            NotificationRuleManager.onRulesChanged();
             mHasChanges = true;
             return true;
         }
@@ -400,6 +401,7 @@ public class NotificationRulesAdapter extends RecyclerView.Adapter<RecyclerView.
             int position = viewHolder.getAdapterPosition();
             int index = position - getUserRulesStartIndex();
             NotificationRule rule = mRules.remove(index);
+            NotificationRuleManager.onRulesChanged();
             notifyItemRemoved(position);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 NotificationManager mgr = (NotificationManager) viewHolder.itemView.getContext()
@@ -412,6 +414,7 @@ public class NotificationRulesAdapter extends RecyclerView.Adapter<RecyclerView.
                     .setAction(R.string.action_undo, (View v) -> {
                         int newIndex = Math.min(index, mRules.size());
                         mRules.add(newIndex, rule);
+                        NotificationRuleManager.onRulesChanged();
                         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
                             ChannelNotificationManager.createChannel(
                                     viewHolder.itemView.getContext(), rule);
@@ -0,0 +1,248 @@
+package io.mrarm.irc;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import io.mrarm.irc.config.AppSettings;
+
+/**
+ * Starts the connection attempts of all the servers, so that only a limited number of them is
+ * doing the handshake (DNS lookup, TLS and SASL) at the same time. Requests that are due are
+ * started in the order of their priority: first the ones explicitly requested by the user, then
+ * the servers by the time they were last used.
+ */
+public class ServerConnectScheduler {
+
+    private static final String TAG = "ServerConnectScheduler";
+
+    // The reconnect delays are randomly moved by up to this fraction in either direction, so that
+    // servers that were disconnected at the same time don't try to reconnect at the same time
+    private static final double JITTER_FRACTION = 0.2;
+
+    private final ServerConnectionManager mManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final List<Request> mPending = new ArrayList<>();
+    private final Set<ServerConnectionInfo> mActive = new HashSet<>();
+
+    private long mBurstStartTime = -1L;
+    private long mLastTimeToAllConnected = -1L;
+    private int mStartedCount = 0;
+
+    ServerConnectScheduler(ServerConnectionManager manager) {
+        mManager = manager;
+    }
+
+    /**
+     * Queues a connection attempt, replacing any other one queued for the same server.
+     * @param delay the time in milliseconds after which the attempt can be started
+     * @param userRequested whether the user asked for the connection, which makes it go first
+     * @param isReconnect whether the attempt should be dropped if reconnecting has been disabled
+     *                    in the meantime
+     */
+    public void schedule(ServerConnectionInfo connection, long delay, boolean userRequested,
+                         boolean isReconnect) {
+        synchronized (this) {
+            removePending(connection);
+            mPending.add(new Request(connection, SystemClock.elapsedRealtime() + delay,
+                    userRequested, isReconnect));
+            if (mBurstStartTime == -1L)
+                mBurstStartTime = SystemClock.elapsedRealtime();
+        }
+        dispatch();
+    }
+
+    /**
+     * Queues a reconnect attempt, with the delay taken from the reconnect interval rules.
+     * @return false if no more reconnect attempts should be made
+     */
+    public boolean scheduleReconnect(ServerConnectionInfo connection, int attemptNumber) {
+        int delay = mManager.getReconnectDelay(attemptNumber);
+        if (delay == -1)
+            return false;
+        long jitteredDelay = Math.round(delay *
+                (1.0 + JITTER_FRACTION * (mRandom.nextDouble() * 2.0 - 1.0)));
+        Log.i(TAG, "Queuing reconnect in " + jitteredDelay + " ms");
+        schedule(connection, jitteredDelay, false, true);
+        return true;
+    }
+
+    public void cancel(ServerConnectionInfo connection) {
+        synchronized (this) {
+            removePending(connection);
+        }
+        dispatch();
+    }
+
+    public synchronized boolean isScheduled(ServerConnectionInfo connection) {
+        for (Request request : mPending) {
+            if (request.mConnection == connection)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time in milliseconds left until the queued attempt for this server is due, or
+     * -1 if there is none.
+     */
+    public synchronized long getTimeUntilScheduled(ServerConnectionInfo connection) {
+        for (Request request : mPending) {
+            if (request.mConnection == connection)
+                return Math.max(request.mTime - SystemClock.elapsedRealtime(), 0L);
+        }
+        return -1L;
+    }
+
+    private void removePending(ServerConnectionInfo connection) {
+        for (int i = mPending.size() - 1; i >= 0; --i) {
+            if (mPending.get(i).mConnection == connection)
+                mPending.remove(i);
+        }
+    }
+
+    /**
+     * Must be called when the server has started connecting, so that it is counted towards the
+     * concurrent handshake limit even if the attempt was not started by this class.
+     */
+    void onConnectStarted(ServerConnectionInfo connection) {
+        synchronized (this) {
+            removePending(connection);
+            mActive.add(connection);
+        }
+    }
+
+    /**
+     * Must be called when the connection attempt of the server has either succeeded or failed.
+     */
+    void onConnectFinished(ServerConnectionInfo connection) {
+        synchronized (this) {
+            if (!mActive.remove(connection))
+                return;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        List<Request> start = new ArrayList<>();
+        boolean idle;
+        synchronized (this) {
+            mHandler.removeCallbacks(mDispatchRunnable);
+            long now = SystemClock.elapsedRealtime();
+            int limit = Math.max(AppSettings.getMaxConcurrentConnects(), 1);
+            while (mActive.size() < limit) {
+                Request best = null;
+                for (Request request : mPending) {
+                    if (request.mTime <= now && (best == null || request.compareTo(best) < 0))
+                        best = request;
+                }
+                if (best == null)
+                    break;
+                mPending.remove(best);
+                mActive.add(best.mConnection);
+                start.add(best);
+            }
+            long nextTime = Long.MAX_VALUE;
+            for (Request request : mPending)
+                nextTime = Math.min(nextTime, request.mTime);
+            if (nextTime != Long.MAX_VALUE && mActive.size() < limit)
+                mHandler.postDelayed(mDispatchRunnable, Math.max(nextTime - now, 0L));
+            idle = mPending.isEmpty() && mActive.isEmpty() && mBurstStartTime != -1L;
+        }
+        for (Request request : start)
+            mHandler.post(() -> startRequest(request));
+        if (idle)
+            updateTimeToAllConnected();
+    }
+
+    private void updateTimeToAllConnected() {
+        // Called without holding the lock, as the manager calls into this class with its own lock
+        for (ServerConnectionInfo connection : mManager.getConnections()) {
+            if (!connection.isConnected() && !connection.hasUserDisconnectRequest())
+                return;
+        }
+        synchronized (this) {
+            if (mBurstStartTime == -1L || !mPending.isEmpty() || !mActive.isEmpty())
+                return;
+            mLastTimeToAllConnected = SystemClock.elapsedRealtime() - mBurstStartTime;
+            mBurstStartTime = -1L;
+        }
+        Log.i(TAG, "All servers connected in " + mLastTimeToAllConnected + " ms");
+    }
+
+    private void startRequest(Request request) {
+        ServerConnectionInfo connection = request.mConnection;
+        boolean canConnect = !request.mIsReconnect || (AppSettings.isReconnectEnabled() &&
+                (!AppSettings.isReconnectWiFiOnly() || ServerConnectionManager.isWifiConnected(
+                        mManager.getContext())));
+        if (canConnect && !connection.isDisconnecting()) {
+            synchronized (this) {
+                mStartedCount++;
+            }
+            connection.connect();
+        }
+        // The attempt was not started, because the server was already connected or connecting
+        if (!connection.isConnecting())
+            onConnectFinished(connection);
+    }
+
+    private final Runnable mDispatchRunnable = this::dispatch;
+
+    /**
+     * Returns how long it took until all the servers were connected, measured from the first
+     * connection attempt that was queued while no other ones were queued or in progress. Returns
+     * -1 if this has not happened yet.
+     */
+    public synchronized long getLastTimeToAllConnected() {
+        return mLastTimeToAllConnected;
+    }
+
+    public synchronized int getStartedConnectCount() {
+        return mStartedCount;
+    }
+
+    public synchronized int getActiveConnectCount() {
+        return mActive.size();
+    }
+
+    public synchronized int getPendingConnectCount() {
+        return mPending.size();
+    }
+
+    private static class Request implements Comparable<Request> {
+
+        private final ServerConnectionInfo mConnection;
+        private final long mTime;
+        private final boolean mUserRequested;
+        private final boolean mIsReconnect;
+
+        Request(ServerConnectionInfo connection, long time, boolean userRequested,
+                boolean isReconnect) {
+            mConnection = connection;
+            mTime = time;
+            mUserRequested = userRequested;
+            mIsReconnect = isReconnect;
+        }
+
+        @Override
+        public int compareTo(Request o) {
+            if (mUserRequested != o.mUserRequested)
+                return mUserRequested ? -1 : 1;
+            int ret = Long.compare(o.mConnection.getLastUsedTime(),
+                    mConnection.getLastUsedTime());
+            if (ret != 0)
+                return ret;
+            return Long.compare(mTime, o.mTime);
+        }
+
+    }
+
+}
@@ -1,7 +1,5 @@
 package io.mrarm.irc;
 
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -28,14 +26,13 @@ import io.mrarm.irc.chat.ChatUIData;
 import io.mrarm.irc.config.AppSettings;
 import io.mrarm.irc.config.ServerConfigData;
 import io.mrarm.irc.config.ServerConfigManager;
+import io.mrarm.irc.util.BufferedMessageStorageApi;
 import io.mrarm.irc.util.IgnoreListMessageFilter;
 import io.mrarm.irc.util.StubMessageStorageApi;
 import io.mrarm.irc.util.UserAutoRunCommandHelper;
 
 public class ServerConnectionInfo {
 
-    private static Handler mReconnectHandler = new Handler(Looper.getMainLooper());
-
     private ServerConnectionManager mManager;
     private ServerConfigData mServerConfig;
     private List<String> mChannels;
@@ -49,6 +46,7 @@ public class ServerConnectionInfo {
     private boolean mDisconnecting = false;
     private boolean mUserDisconnectRequest = false;
     private long mReconnectQueueTime = -1L;
+    private long mLastUsedTime = 0L;
     private NotificationManager.ConnectionManager mNotificationData;
     private UserAutoRunCommandHelper mAutoRunHelper;
     private final List<InfoChangeListener> mInfoListeners = new ArrayList<>();
@@ -108,6 +106,7 @@ public class ServerConnectionInfo {
             mUserDisconnectRequest = false;
             mReconnectQueueTime = -1L;
         }
+        mManager.getConnectScheduler().onConnectStarted(this);
         Log.i("ServerConnectionInfo", "Connecting...");
 
         IRCConnection connection = null;
@@ -115,7 +114,7 @@ public class ServerConnectionInfo {
         if (mApi == null || !(mApi instanceof IRCConnection)) {
             connection = new IRCConnection();
             ServerConfigManager configManager = ServerConfigManager.getInstance(mManager.getContext());
-            connection.getServerConnectionData().setMessageStorageApi(new SQLiteMessageStorageApi(configManager.getServerChatLogDir(getUUID())));
+            connection.getServerConnectionData().setMessageStorageApi(new BufferedMessageStorageApi(new SQLiteMessageStorageApi(configManager.getServerChatLogDir(getUUID()))));
             mSQLiteMiscStorage = new SQLiteMiscStorage(configManager.getServerMiscDataFile(getUUID()));
             connection.getServerConnectionData().setChannelDataStorage(new SQLiteChannelDataStorage(mSQLiteMiscStorage));
             connection.getServerConnectionData().getMessageFilterList().addMessageFilter(new IgnoreListMessageFilter(mServerConfig));
@@ -155,6 +154,7 @@ public class ServerConnectionInfo {
                     mAutoRunHelper.executeUserCommands(mServerConfig.execCommandsConnected);
                 }
             }
+            mManager.getConnectScheduler().onConnectFinished(this);
 
             List<String> joinChannels = new ArrayList<>();
             if (mServerConfig.autojoinChannels != null)
@@ -182,9 +182,9 @@ public class ServerConnectionInfo {
     }
 
     private void disconnect(boolean userExecutedQuit) {
+        mManager.getConnectScheduler().cancel(this);
         synchronized (this) {
             mUserDisconnectRequest = true;
-            mReconnectHandler.removeCallbacks(mReconnectRunnable);
             if (!isConnected() && isConnecting()) {
                 mConnecting = false;
                 mDisconnecting = true;
@@ -218,6 +218,7 @@ public class ServerConnectionInfo {
     }
 
     private void notifyDisconnected() {
+        mManager.getConnectScheduler().onConnectFinished(this);
         synchronized (this) {
             if (mAutoRunHelper != null)
                 mAutoRunHelper.cancelUserCommandExecution();
@@ -236,12 +237,9 @@ public class ServerConnectionInfo {
             if (mUserDisconnectRequest)
                 return;
         }
-        int reconnectDelay = mManager.getReconnectDelay(mCurrentReconnectAttempt++);
-        if (reconnectDelay == -1)
-            return;
-        Log.i("ServerConnectionInfo", "Queuing reconnect in " + reconnectDelay + " ms");
         mReconnectQueueTime = System.nanoTime();
-        mReconnectHandler.postDelayed(mReconnectRunnable, reconnectDelay);
+        if (!mManager.getConnectScheduler().scheduleReconnect(this, mCurrentReconnectAttempt++))
+            mReconnectQueueTime = -1L;
     }
 
     private void notifyFullyDisconnected() {
@@ -257,8 +255,8 @@ public class ServerConnectionInfo {
         Log.i("ServerConnectionInfo", "Closing");
         if (getApiInstance() != null) {
             MessageStorageApi m = getApiInstance().getMessageStorageApi();
-            if (m != null && m instanceof SQLiteMessageStorageApi)
-                ((SQLiteMessageStorageApi) m).close();
+            if (m != null && m instanceof BufferedMessageStorageApi)
+                ((BufferedMessageStorageApi) m).close();
             ServerConnectionData connectionData = ((ServerConnectionApi) getApiInstance())
                     .getServerConnectionData();
             connectionData.setMessageStorageApi(new StubMessageStorageApi());
@@ -269,22 +267,22 @@ public class ServerConnectionInfo {
     }
 
     public void notifyConnectivityChanged(boolean hasAnyConnectivity, boolean hasWifi) {
-        mReconnectHandler.removeCallbacks(mReconnectRunnable);
+        ServerConnectScheduler scheduler = mManager.getConnectScheduler();
+        scheduler.cancel(this);
 
         if (!hasAnyConnectivity || !AppSettings.isReconnectEnabled() ||
                 (AppSettings.isReconnectWiFiOnly() && !hasWifi))
             return;
         if (AppSettings.isReconnectOnConnectivityChangeEnabled()) {
-            connect(); // this will be ignored if we are already connected
+            // The scheduler limits how many of the servers are connecting at once
+            if (!isConnected() && !isConnecting())
+                scheduler.schedule(this, 0, false, false);
         } else if (mReconnectQueueTime != -1L) {
             long reconnectDelay = mManager.getReconnectDelay(mCurrentReconnectAttempt++);
             if (reconnectDelay == -1)
                 return;
             reconnectDelay = reconnectDelay - (System.nanoTime() - mReconnectQueueTime) / 1000000L;
-            if (reconnectDelay <= 0L)
-                connect();
-            else
-                mReconnectHandler.postDelayed(mReconnectRunnable, reconnectDelay);
+            scheduler.schedule(this, Math.max(reconnectDelay, 0L), false, true);
         }
     }
 
@@ -296,6 +294,22 @@ public class ServerConnectionInfo {
         return mServerConfig.name;
     }
 
+    /**
+     * Returns the last time the user has opened this server, used to decide which servers should
+     * be connected first.
+     */
+    public synchronized long getLastUsedTime() {
+        return mLastUsedTime;
+    }
+
+    synchronized void setLastUsedTime(long time) {
+        mLastUsedTime = time;
+    }
+
+    public void markUsed() {
+        setLastUsedTime(System.currentTimeMillis());
+    }
+
     public synchronized ChatApi getApiInstance() {
         return mApi;
     }
@@ -427,14 +441,6 @@ public class ServerConnectionInfo {
         }
     }
 
-    private Runnable mReconnectRunnable = () -> {
-        mReconnectQueueTime = -1L;
-        if (!AppSettings.isReconnectEnabled() || (AppSettings.isReconnectWiFiOnly() &&
-                !ServerConnectionManager.isWifiConnected(mManager.getContext())))
-            return;
-        this.connect();
-    };
-
     public interface InfoChangeListener {
         void onConnectionInfoChanged(ServerConnectionInfo connection);
     }
@@ -17,9 +17,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 
 import io.mrarm.chatlib.irc.IRCConnectionRequest;
 import io.mrarm.chatlib.irc.cap.SASLOptions;
@@ -43,6 +40,7 @@ public class ServerConnectionManager {
     private final List<ConnectionsListener> mListeners = new ArrayList<>();
     private final List<ServerConnectionInfo.ChannelListChangeListener> mChannelsListeners = new ArrayList<>();
     private final List<ServerConnectionInfo.InfoChangeListener> mInfoListeners = new ArrayList<>();
+    private final ServerConnectScheduler mConnectScheduler = new ServerConnectScheduler(this);
     private boolean mDestroying = false;
 
     public static boolean hasInstance() {
@@ -84,7 +82,9 @@ public class ServerConnectionManager {
                 ServerConfigData configData = configManager.findServer(server.uuid);
                 if (configData != null) {
                     try {
-                        createConnection(configData, server.channels, false);
+                        // The connections are started through the scheduler, so that they don't
+                        // all do the handshake at the same time
+                        createConnection(configData, server.channels, server.lastUsed, false);
                     } catch (NickNotSetException ignored) {
                     }
                 }
@@ -99,6 +99,7 @@ public class ServerConnectionManager {
             ConnectedServerInfo server = new ConnectedServerInfo();
             server.uuid = connectionInfo.getUUID();
             server.channels = connectionInfo.getChannels();
+            server.lastUsed = connectionInfo.getLastUsedTime();
             list.servers.add(server);
         }
         try {
@@ -124,6 +125,10 @@ public class ServerConnectionManager {
         return mContext;
     }
 
+    public ServerConnectScheduler getConnectScheduler() {
+        return mConnectScheduler;
+    }
+
     public List<ServerConnectionInfo> getConnections() {
         synchronized (this) {
             return new ArrayList<>(mConnections);
@@ -150,7 +155,7 @@ public class ServerConnectionManager {
         addConnection(connection, true);
     }
 
-    private ServerConnectionInfo createConnection(ServerConfigData data, List<String> joinChannels, boolean saveAutoconnect) {
+    private ServerConnectionInfo createConnection(ServerConfigData data, List<String> joinChannels, long lastUsed, boolean saveAutoconnect) {
         killDisconnectingConnection(data.uuid);
 
         IRCConnectionRequest request = new IRCConnectionRequest();
@@ -184,38 +189,38 @@ public class ServerConnectionManager {
             request.setServerPass(data.pass);
 
         SASLOptions saslOptions = null;
-        UserKeyManager userKeyManager = null;
         if (data.authMode != null) {
             if (data.authMode.equals(ServerConfigData.AUTH_SASL) && data.authUser != null &&
                     data.authPass != null)
                 saslOptions = SASLOptions.createPlainAuth(data.authUser, data.authPass);
-            if (data.authMode.equals(ServerConfigData.AUTH_SASL_EXTERNAL)) {
+            if (data.authMode.equals(ServerConfigData.AUTH_SASL_EXTERNAL))
                 saslOptions = SASLOptions.createExternal();
-                userKeyManager = new UserKeyManager(data.getAuthCert(), data.getAuthPrivateKey());
-            }
         }
 
         if (data.ssl) {
-            UserOverrideTrustManager sslHelper = new UserOverrideTrustManager(mContext, data.uuid);
             try {
-                SSLContext sslContext = SSLContext.getInstance("TLS");
-                KeyManager[] keyManagers = new KeyManager[0];
-                if (userKeyManager != null)
-                    keyManagers = new KeyManager[] { userKeyManager };
-                sslContext.init(keyManagers, new TrustManager[] { sslHelper }, null);
-                request.enableSSL(sslContext.getSocketFactory(), sslHelper);
+                // Shared with the previous connections to this server, to allow session resumption
+                ServerSSLContextCache.Entry sslEntry = ServerSSLContextCache.get(mContext, data);
+                request.enableSSL(sslEntry.getSocketFactory(), sslEntry.getTrustManager());
             } catch (GeneralSecurityException e) {
                 throw new RuntimeException(e);
             }
         }
         ServerConnectionInfo connectionInfo = new ServerConnectionInfo(this, data, request, saslOptions, joinChannels);
-        connectionInfo.connect();
+        if (lastUsed == -1L) {
+            // Requested by the user, goes before all the other queued connection attempts
+            connectionInfo.markUsed();
+            mConnectScheduler.schedule(connectionInfo, 0, true, false);
+        } else {
+            connectionInfo.setLastUsedTime(lastUsed);
+            mConnectScheduler.schedule(connectionInfo, 0, false, false);
+        }
         addConnection(connectionInfo, saveAutoconnect);
         return connectionInfo;
     }
 
     public ServerConnectionInfo createConnection(ServerConfigData data) {
-        return createConnection(data, null, true);
+        return createConnection(data, null, -1L, true);
     }
 
     public void tryCreateConnection(ServerConfigData data, Context activity) {
@@ -408,6 +413,7 @@ public class ServerConnectionManager {
 
         public UUID uuid;
         public List<String> channels;
+        public long lastUsed;
 
     }
 
@@ -0,0 +1,252 @@
+package io.mrarm.irc;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import io.mrarm.irc.config.ServerCertificateManager;
+import io.mrarm.irc.config.ServerConfigData;
+
+/**
+ * Keeps a single SSLContext per server, so that the TLS client session cache is shared between
+ * all the connections to it and the later connections can resume the previous session instead
+ * of doing a full handshake. A cached context is dropped when the user's certificate exceptions
+ * for the server or its client certificate change, as a resumed session skips the certificate
+ * checks.
+ *
+ * The certificates the user has trusted only for this time are kept by the trust manager of the
+ * connection which asked for them. The cached context is dropped as soon as such a certificate is
+ * added, so that connection keeps using it for its reconnects, but any connection created later
+ * gets a new context and asks again.
+ */
+public class ServerSSLContextCache {
+
+    private static final String TAG = "ServerSSLContextCache";
+
+    private static final Map<UUID, Entry> sEntries = new HashMap<>();
+
+    public static Entry get(Context context, ServerConfigData data)
+            throws GeneralSecurityException {
+        ServerCertificateManager certificateManager = ServerCertificateManager.get(context,
+                data.uuid);
+        int certificateVersion = certificateManager.getVersion();
+        boolean useClientCert = ServerConfigData.AUTH_SASL_EXTERNAL.equals(data.authMode);
+        byte[] clientCert = useClientCert ? data.authCertData : null;
+        byte[] clientKey = useClientCert ? data.authCertPrivKey : null;
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(data.uuid);
+            if (entry != null && entry.mCertificateManager == certificateManager &&
+                    entry.mCertificateVersion == certificateVersion &&
+                    Arrays.equals(entry.mClientCert, clientCert) &&
+                    Arrays.equals(entry.mClientKey, clientKey))
+                return entry;
+            if (entry != null)
+                Log.i(TAG, "Dropping the cached SSL context for " + data.uuid);
+
+            UserOverrideTrustManager trustManager = new UserOverrideTrustManager(context,
+                    data.uuid);
+            KeyManager[] keyManagers = new KeyManager[0];
+            if (useClientCert)
+                keyManagers = new KeyManager[] { new UserKeyManager(data.getAuthCert(),
+                        data.getAuthPrivateKey()) };
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers, new TrustManager[] { trustManager }, null);
+            entry = new Entry(certificateManager, certificateVersion, clientCert, clientKey,
+                    trustManager, new InstrumentedSocketFactory(sslContext.getSocketFactory()));
+            sEntries.put(data.uuid, entry);
+            return entry;
+        }
+    }
+
+    public static void invalidate(UUID uuid) {
+        synchronized (sEntries) {
+            sEntries.remove(uuid);
+        }
+    }
+
+    /**
+     * Drops the cached context of the server if it uses the specified trust manager, must be
+     * called when a temporarily trusted certificate is added to it.
+     */
+    static void onTemporaryTrustAdded(UUID uuid, UserOverrideTrustManager trustManager) {
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(uuid);
+            if (entry != null && entry.mTrustManager == trustManager) {
+                Log.i(TAG, "Dropping the cached SSL context for " + uuid);
+                sEntries.remove(uuid);
+            }
+        }
+    }
+
+    public static class Entry {
+
+        private final ServerCertificateManager mCertificateManager;
+        private final int mCertificateVersion;
+        private final byte[] mClientCert;
+        private final byte[] mClientKey;
+        private final UserOverrideTrustManager mTrustManager;
+        private final InstrumentedSocketFactory mSocketFactory;
+
+        private Entry(ServerCertificateManager certificateManager, int certificateVersion,
+                      byte[] clientCert, byte[] clientKey, UserOverrideTrustManager trustManager,
+                      InstrumentedSocketFactory socketFactory) {
+            // The manager is referenced here to keep it from being garbage collected, as its
+            // version would then be reset
+            mCertificateManager = certificateManager;
+            mCertificateVersion = certificateVersion;
+            mClientCert = clientCert;
+            mClientKey = clientKey;
+            mTrustManager = trustManager;
+            mSocketFactory = socketFactory;
+        }
+
+        public UserOverrideTrustManager getTrustManager() {
+            return mTrustManager;
+        }
+
+        public SSLSocketFactory getSocketFactory() {
+            return mSocketFactory;
+        }
+
+        public int getHandshakeCount() {
+            return mSocketFactory.getHandshakeCount();
+        }
+
+        public int getResumedHandshakeCount() {
+            return mSocketFactory.getResumedHandshakeCount();
+        }
+
+        public long getAverageFullHandshakeTime() {
+            return mSocketFactory.getAverageFullHandshakeTime();
+        }
+
+        public long getAverageResumedHandshakeTime() {
+            return mSocketFactory.getAverageResumedHandshakeTime();
+        }
+
+    }
+
+    /**
+     * Delegates to the SSLContext's socket factory and measures the time it took for the
+     * handshake to complete, from the creation of each socket.
+     */
+    private static class InstrumentedSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory mFactory;
+
+        private int mFullHandshakeCount;
+        private long mFullHandshakeTotalTime;
+        private int mResumedHandshakeCount;
+        private long mResumedHandshakeTotalTime;
+
+        InstrumentedSocketFactory(SSLSocketFactory factory) {
+            mFactory = factory;
+        }
+
+        private Socket instrument(Socket socket) {
+            if (!(socket instanceof SSLSocket))
+                return socket;
+            long startTime = SystemClock.elapsedRealtime();
+            long startWallTime = System.currentTimeMillis();
+            SSLSocket sslSocket = (SSLSocket) socket;
+            sslSocket.addHandshakeCompletedListener((HandshakeCompletedEvent event) -> {
+                long time = SystemClock.elapsedRealtime() - startTime;
+                // A resumed session was created before this socket was
+                boolean resumed = event.getSession().getCreationTime() < startWallTime;
+                synchronized (this) {
+                    if (resumed) {
+                        mResumedHandshakeCount++;
+                        mResumedHandshakeTotalTime += time;
+                    } else {
+                        mFullHandshakeCount++;
+                        mFullHandshakeTotalTime += time;
+                    }
+                }
+                Log.d(TAG, (resumed ? "Resumed" : "Full") + " TLS handshake took " + time +
+                        " ms");
+            });
+            return socket;
+        }
+
+        synchronized int getHandshakeCount() {
+            return mFullHandshakeCount + mResumedHandshakeCount;
+        }
+
+        synchronized int getResumedHandshakeCount() {
+            return mResumedHandshakeCount;
+        }
+
+        synchronized long getAverageFullHandshakeTime() {
+            if (mFullHandshakeCount == 0)
+                return -1;
+            return mFullHandshakeTotalTime / mFullHandshakeCount;
+        }
+
+        synchronized long getAverageResumedHandshakeTime() {
+            if (mResumedHandshakeCount == 0)
+                return -1;
+            return mResumedHandshakeTotalTime / mResumedHandshakeCount;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mFactory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mFactory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return instrument(mFactory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return instrument(mFactory.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return instrument(mFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return instrument(mFactory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return instrument(mFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return instrument(mFactory.createSocket(address, port, localAddress, localPort));
+        }
+
+    }
+
+}
@@ -0,0 +1,207 @@
+package io.mrarm.irc;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the initialization of the app as a graph of stages. A stage is started as soon as all the
+ * stages it depends on have finished, so the independent ones run in parallel on the background
+ * threads. Deferred stages are not needed to show the first screen and only start once
+ * startDeferred is called.
+ *
+ * The stages are expected to initialize singletons with synchronized getInstance methods, so that
+ * anything needing one of them before its stage has finished simply waits for it or creates it
+ * itself.
+ */
+public class StartupPipeline {
+
+    private static final String TAG = "StartupPipeline";
+
+    public static final int FLAG_MAIN_THREAD = 1;
+    public static final int FLAG_DEFERRED = 2;
+
+    public static final String TRACE_FIRST_FRAME = "first_frame";
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_FINISHED = 2;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final Map<String, Stage> mStages = new LinkedHashMap<>();
+    private final List<TraceEntry> mTrace = new ArrayList<>();
+    private boolean mStarted = false;
+    private boolean mDeferredStarted = false;
+
+    /**
+     * Adds a stage to the pipeline. The dependencies must have already been added, which also
+     * guarantees that there are no cycles.
+     */
+    public synchronized void addStage(String name, int flags, Runnable task,
+                                      String... dependencies) {
+        if (mStages.containsKey(name))
+            throw new IllegalArgumentException("Duplicate stage: " + name);
+        for (String dependency : dependencies) {
+            if (!mStages.containsKey(dependency))
+                throw new IllegalArgumentException("Unknown dependency: " + dependency);
+        }
+        mStages.put(name, new Stage(name, flags, task, dependencies));
+    }
+
+    public void start() {
+        synchronized (this) {
+            mStarted = true;
+        }
+        startReadyStages();
+    }
+
+    public void startDeferred() {
+        synchronized (this) {
+            if (mDeferredStarted)
+                return;
+            mDeferredStarted = true;
+        }
+        startReadyStages();
+    }
+
+    public synchronized boolean isFinished(String name) {
+        Stage stage = mStages.get(name);
+        return stage != null && stage.mState == STATE_FINISHED;
+    }
+
+    /**
+     * Records the time the first frame was drawn at in the trace.
+     */
+    public void markFirstFrame() {
+        long time = SystemClock.elapsedRealtime() - mStartTime;
+        synchronized (this) {
+            mTrace.add(new TraceEntry(TRACE_FIRST_FRAME, time, time, true));
+        }
+        Log.i(TAG, "First frame drawn at " + time + " ms");
+    }
+
+    /**
+     * Returns the stages that have finished so far, in the order they have finished.
+     */
+    public synchronized List<TraceEntry> getTrace() {
+        return Collections.unmodifiableList(new ArrayList<>(mTrace));
+    }
+
+    private boolean canStart(Stage stage) {
+        if (stage.mState != STATE_WAITING || !mStarted)
+            return false;
+        if ((stage.mFlags & FLAG_DEFERRED) != 0 && !mDeferredStarted)
+            return false;
+        for (String dependency : stage.mDependencies) {
+            if (mStages.get(dependency).mState != STATE_FINISHED)
+                return false;
+        }
+        return true;
+    }
+
+    private void startReadyStages() {
+        List<Stage> ready = new ArrayList<>();
+        synchronized (this) {
+            for (Stage stage : mStages.values()) {
+                if (!canStart(stage))
+                    continue;
+                stage.mState = STATE_STARTED;
+                ready.add(stage);
+            }
+        }
+        boolean isMainThread = Looper.myLooper() == Looper.getMainLooper();
+        for (Stage stage : ready) {
+            if ((stage.mFlags & FLAG_MAIN_THREAD) == 0)
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> runStage(stage));
+            else if (isMainThread)
+                runStage(stage);
+            else
+                mMainHandler.post(() -> runStage(stage));
+        }
+    }
+
+    private void runStage(Stage stage) {
+        long startTime = SystemClock.elapsedRealtime() - mStartTime;
+        try {
+            stage.mTask.run();
+        } finally {
+            long endTime = SystemClock.elapsedRealtime() - mStartTime;
+            boolean isMainThread = Looper.myLooper() == Looper.getMainLooper();
+            synchronized (this) {
+                stage.mState = STATE_FINISHED;
+                mTrace.add(new TraceEntry(stage.mName, startTime, endTime, isMainThread));
+            }
+            Log.i(TAG, "Stage " + stage.mName + " took " + (endTime - startTime) + " ms (" +
+                    startTime + " - " + endTime + " ms" + (isMainThread ? ", main thread" : "") +
+                    ")");
+        }
+        startReadyStages();
+    }
+
+    private static class Stage {
+
+        private final String mName;
+        private final int mFlags;
+        private final Runnable mTask;
+        private final String[] mDependencies;
+        private int mState = STATE_WAITING;
+
+        Stage(String name, int flags, Runnable task, String[] dependencies) {
+            mName = name;
+            mFlags = flags;
+            mTask = task;
+            mDependencies = dependencies;
+        }
+
+    }
+
+    public static class TraceEntry {
+
+        private final String mName;
+        private final long mStartTime;
+        private final long mEndTime;
+        private final boolean mOnMainThread;
+
+        TraceEntry(String name, long startTime, long endTime, boolean onMainThread) {
+            mName = name;
+            mStartTime = startTime;
+            mEndTime = endTime;
+            mOnMainThread = onMainThread;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the time the stage has started at, in milliseconds since the pipeline was
+         * created.
+         */
+        public long getStartTime() {
+            return mStartTime;
+        }
+
+        public long getEndTime() {
+            return mEndTime;
+        }
+
+        public long getDuration() {
+            return mEndTime - mStartTime;
+        }
+
+        public boolean isOnMainThread() {
+            return mOnMainThread;
+        }
+
+    }
+
+}
@@ -32,6 +32,7 @@ import io.mrarm.irc.config.SettingsHelper;
 import io.mrarm.irc.dialog.MenuBottomSheetDialog;
 import io.mrarm.irc.dialog.ServerStorageLimitDialog;
 import io.mrarm.irc.dialog.StorageLimitsDialog;
+import io.mrarm.irc.util.BufferedMessageStorageApi;
 import io.mrarm.irc.util.ColoredTextBuilder;
 import io.mrarm.irc.util.StubMessageStorageApi;
 import io.mrarm.irc.util.StyledAttributesHelper;
@@ -433,6 +434,7 @@ public class StorageSettingsAdapter extends RecyclerView.Adapter {
                             ServerConnectionManager.CONNECTED_SERVERS_FILE_PATH).delete();
                 ServerConfigManager.getInstance(ctx).deleteAllServers(true);
                 NotificationRuleManager.getUserRules(ctx).clear();
+                NotificationRuleManager.onRulesChanged();
                 CommandAliasManager.getInstance(ctx).getUserAliases().clear();
                 SettingsHelper.getInstance(ctx).clear();
                 NotificationCountStorage.getInstance(ctx).close();
@@ -475,19 +477,22 @@ public class StorageSettingsAdapter extends RecyclerView.Adapter {
             if (connectionManager != null)
                 connectionManager.killDisconnectingConnection(uuid);
             ServerConnectionInfo connection = connectionManager != null ? connectionManager.getConnection(uuid) : null;
-            SQLiteMessageStorageApi storageApi = null;
+            BufferedMessageStorageApi storageApi = null;
             if (connection != null && connection.getApiInstance() != null &&
                     connection.getApiInstance() instanceof ServerConnectionApi &&
                     connection.getApiInstance().getMessageStorageApi() != null &&
-                    connection.getApiInstance().getMessageStorageApi() instanceof SQLiteMessageStorageApi) {
-                storageApi = (SQLiteMessageStorageApi) connection.getApiInstance().getMessageStorageApi();
+                    connection.getApiInstance().getMessageStorageApi() instanceof BufferedMessageStorageApi) {
+                storageApi = (BufferedMessageStorageApi) connection.getApiInstance().getMessageStorageApi();
                 storageApi.close();
                 ((ServerConnectionApi) connection.getApiInstance()).getServerConnectionData().setMessageStorageApi(new StubMessageStorageApi());
             }
+            ChatLogSearchIndex.getInstance(mContext).closeServer(uuid);
             File file = ServerConfigManager.getInstance(mContext).getServerChatLogDir(uuid);
             deleteRecursive(file);
+            ChatLogSearchIndex.getInstance(mContext).reopenServer(uuid);
+            ChatLogStorageManager.getInstance(mContext).requestReload(uuid);
             if (storageApi != null) {
-                storageApi.open();
+                ((SQLiteMessageStorageApi) storageApi.getStorage()).open();
                 ((ServerConnectionApi) connection.getApiInstance()).getServerConnectionData().setMessageStorageApi(storageApi);
             }
         }
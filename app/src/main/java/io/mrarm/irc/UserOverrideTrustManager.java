@@ -71,6 +71,7 @@ public class UserOverrideTrustManager implements X509TrustManager, HostnameVerif
                     mTempTrustedCertificates = new ArrayList<>();
                 mTempTrustedCertificates.add(certificate);
             }
+            ServerSSLContextCache.onTemporaryTrustAdded(mServerUUID, this);
         } else {
             mManager.addCertificateException(certificate);
         }
@@ -14,7 +14,6 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import java.util.Date;
-import java.util.List;
 
 import io.mrarm.chatlib.dto.NickWithPrefix;
 import io.mrarm.irc.MainActivity;
@@ -26,7 +25,8 @@ import io.mrarm.irc.util.LinkHelper;
 import io.mrarm.irc.util.SpannableStringHelper;
 import io.mrarm.irc.util.StyledAttributesHelper;
 
-public class ChannelInfoAdapter extends RecyclerView.Adapter {
+public class ChannelInfoAdapter extends RecyclerView.Adapter
+        implements ChannelMemberList.Listener {
 
     public static final int TYPE_HEADER = 0;
     public static final int TYPE_TOPIC = 1;
@@ -36,25 +36,67 @@ public class ChannelInfoAdapter extends RecyclerView.Adapter {
     private String mTopic;
     private String mTopicSetBy;
     private Date mTopicSetOn;
-    private List<NickWithPrefix> mMembers;
+    private ChannelMemberList mMembers;
 
     public ChannelInfoAdapter() {
     }
 
     public void setData(ServerConnectionInfo connection, String topic, String topicSetBy,
-                        Date topicSetOn, List<NickWithPrefix> members) {
+                        Date topicSetOn, ChannelMemberList members) {
+        if (connection == mConnection && members == mMembers) {
+            // The member list notifies this adapter of its changes on its own
+            if (!equals(topic, mTopic) || !equals(topicSetBy, mTopicSetBy) ||
+                    !equals(topicSetOn, mTopicSetOn)) {
+                mTopic = topic;
+                mTopicSetBy = topicSetBy;
+                mTopicSetOn = topicSetOn;
+                notifyItemChanged(1);
+            }
+            return;
+        }
+        if (mMembers != null)
+            mMembers.removeListener(this);
         mConnection = connection;
         mTopic = topic;
         mTopicSetBy = topicSetBy;
         mTopicSetOn = topicSetOn;
         mMembers = members;
+        if (mMembers != null)
+            mMembers.addListener(this);
         notifyDataSetChanged();
     }
 
-    public List<NickWithPrefix> getMembers() {
+    private static boolean equals(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    public ChannelMemberList getMembers() {
         return mMembers;
     }
 
+    @Override
+    public void onMemberAdded(int position, NickWithPrefix member) {
+        notifyItemInserted(3 + position);
+    }
+
+    @Override
+    public void onMemberRemoved(int position, NickWithPrefix member) {
+        notifyItemRemoved(3 + position);
+    }
+
+    @Override
+    public void onMemberChanged(int oldPosition, int newPosition, NickWithPrefix oldMember,
+                                NickWithPrefix member) {
+        if (oldPosition != newPosition)
+            notifyItemMoved(3 + oldPosition, 3 + newPosition);
+        notifyItemChanged(3 + newPosition);
+    }
+
+    @Override
+    public void onMembersReordered() {
+        notifyItemRangeChanged(3, mMembers.size());
+    }
+
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup viewGroup, int viewType) {
         if (viewType == TYPE_HEADER) {
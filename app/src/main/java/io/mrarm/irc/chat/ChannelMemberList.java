@@ -0,0 +1,169 @@
+package io.mrarm.irc.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mrarm.chatlib.dto.NickWithPrefix;
+
+/**
+ * The members of a channel ordered by the rank of their highest prefix and then by nick. The list
+ * is updated in place with the difference against the new member list, and every insertion,
+ * removal or re-rank is reported to the listeners with the position it happened at.
+ *
+ * This class is not thread safe and should only be used from the UI thread.
+ */
+public class ChannelMemberList {
+
+    private final List<Member> mMembers = new ArrayList<>();
+    private final Map<String, Member> mMembersByNick = new HashMap<>();
+    private final List<Listener> mListeners = new ArrayList<>();
+    private String mPrefixOrder = "";
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public int size() {
+        return mMembers.size();
+    }
+
+    public NickWithPrefix get(int index) {
+        return mMembers.get(index).mInfo;
+    }
+
+    /**
+     * Returns a copy of the current member list.
+     */
+    public List<NickWithPrefix> getMembers() {
+        List<NickWithPrefix> ret = new ArrayList<>(mMembers.size());
+        for (Member member : mMembers)
+            ret.add(member.mInfo);
+        return ret;
+    }
+
+    /**
+     * Updates the list to contain the specified members.
+     * @param members the new member list, in any order
+     * @param prefixOrder the nick prefixes supported by the server, from the highest rank
+     */
+    public void setMembers(List<NickWithPrefix> members, String prefixOrder) {
+        if (!prefixOrder.equals(mPrefixOrder)) {
+            // The ranks of all the members could have changed, sort the whole list again
+            mPrefixOrder = prefixOrder;
+            for (Member member : mMembers)
+                member.mRank = getRank(member.mInfo);
+            Collections.sort(mMembers);
+            for (int i = mListeners.size() - 1; i >= 0; --i)
+                mListeners.get(i).onMembersReordered();
+        }
+
+        Map<String, NickWithPrefix> newMembers = new HashMap<>(members.size());
+        for (NickWithPrefix member : members)
+            newMembers.put(member.getNick(), member);
+
+        for (int i = mMembers.size() - 1; i >= 0; --i) {
+            Member member = mMembers.get(i);
+            if (newMembers.containsKey(member.mNick))
+                continue;
+            mMembers.remove(i);
+            mMembersByNick.remove(member.mNick);
+            for (int j = mListeners.size() - 1; j >= 0; --j)
+                mListeners.get(j).onMemberRemoved(i, member.mInfo);
+        }
+
+        for (NickWithPrefix info : members) {
+            Member member = mMembersByNick.get(info.getNick());
+            if (member == null) {
+                member = new Member(info, getRank(info));
+                int pos = insert(member);
+                mMembersByNick.put(member.mNick, member);
+                for (int j = mListeners.size() - 1; j >= 0; --j)
+                    mListeners.get(j).onMemberAdded(pos, info);
+            } else if (member.mInfo != info && !hasSamePrefixes(member.mInfo, info)) {
+                int oldPos = Collections.binarySearch(mMembers, member);
+                mMembers.remove(oldPos);
+                NickWithPrefix oldInfo = member.mInfo;
+                member.mInfo = info;
+                member.mRank = getRank(info);
+                int newPos = insert(member);
+                for (int j = mListeners.size() - 1; j >= 0; --j)
+                    mListeners.get(j).onMemberChanged(oldPos, newPos, oldInfo, info);
+            } else {
+                member.mInfo = info;
+            }
+        }
+    }
+
+    private int insert(Member member) {
+        int pos = Collections.binarySearch(mMembers, member);
+        if (pos < 0)
+            pos = -pos - 1;
+        mMembers.add(pos, member);
+        return pos;
+    }
+
+    private int getRank(NickWithPrefix info) {
+        if (info.getNickPrefixes() == null || info.getNickPrefixes().length() == 0)
+            return mPrefixOrder.length() + 1;
+        int rank = mPrefixOrder.indexOf(info.getNickPrefixes().get(0));
+        return rank != -1 ? rank : mPrefixOrder.length();
+    }
+
+    private static boolean hasSamePrefixes(NickWithPrefix a, NickWithPrefix b) {
+        if (a.getNickPrefixes() == null || b.getNickPrefixes() == null)
+            return a.getNickPrefixes() == b.getNickPrefixes();
+        return a.getNickPrefixes().equals(b.getNickPrefixes());
+    }
+
+    private static class Member implements Comparable<Member> {
+
+        private final String mNick;
+        private NickWithPrefix mInfo;
+        private int mRank;
+
+        Member(NickWithPrefix info, int rank) {
+            mNick = info.getNick();
+            mInfo = info;
+            mRank = rank;
+        }
+
+        @Override
+        public int compareTo(Member o) {
+            if (mRank != o.mRank)
+                return mRank < o.mRank ? -1 : 1;
+            int ret = mNick.compareToIgnoreCase(o.mNick);
+            if (ret != 0)
+                return ret;
+            return mNick.compareTo(o.mNick);
+        }
+
+    }
+
+    public interface Listener {
+
+        void onMemberAdded(int position, NickWithPrefix member);
+
+        void onMemberRemoved(int position, NickWithPrefix member);
+
+        /**
+         * Called when the prefixes of a member have changed, which might have moved the member to
+         * a different position.
+         */
+        void onMemberChanged(int oldPosition, int newPosition, NickWithPrefix oldMember,
+                             NickWithPrefix member);
+
+        /**
+         * Called when the whole list was sorted again.
+         */
+        void onMembersReordered();
+
+    }
+
+}
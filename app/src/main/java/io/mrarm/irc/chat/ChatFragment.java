@@ -19,7 +19,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
-import io.mrarm.chatlib.dto.NickWithPrefix;
 import io.mrarm.irc.ChannelNotificationManager;
 import io.mrarm.irc.MainActivity;
 import io.mrarm.irc.NotificationManager;
@@ -209,7 +208,7 @@ public class ChatFragment extends Fragment implements
             NickAutocompleteSettings.PREF_SHOW_BUTTON,
             NickAutocompleteSettings.PREF_DOUBLE_TAP
     })
-    private void onSettingChange() {
+    void onSettingChange() {
         if (getView() != null)
             updateToolbarCompactLayoutStatus(getView().getBottom() - getView().getTop());
         mSendHelper.setTabButtonVisible(NickAutocompleteSettings.isButtonVisible());
@@ -264,8 +263,15 @@ public class ChatFragment extends Fragment implements
     }
 
     public void setCurrentChannel(String channel, String messageId) {
-        if (messageId != null)
+        if (messageId != null) {
             mMessageJump = new OneTimeMessageJump(channel, messageId);
+            // The fragment only checks for the jump when it's created, so notify it if it exists
+            for (Fragment f : getChildFragmentManager().getFragments()) {
+                if (f instanceof ChatMessagesFragment && channel != null &&
+                        channel.equals(((ChatMessagesFragment) f).getChannelName()))
+                    ((ChatMessagesFragment) f).onMessageJumpRequested();
+            }
+        }
         int i = mSectionsPagerAdapter.findChannel(channel);
         mViewPager.setCurrentItem(i);
         if (i == 0) {
@@ -288,11 +294,12 @@ public class ChatFragment extends Fragment implements
     }
 
     public void setCurrentChannelInfo(String topic, String topicSetBy, Date topicSetOn,
-                                      List<NickWithPrefix> members) {
+                                      ChannelMemberList members,
+                                      MemberSuggestionIndex memberIndex) {
         ((MainActivity) getActivity()).setCurrentChannelInfo(getConnectionInfo(),
                 topic, topicSetBy, topicSetOn, members);
         if (mSendHelper != null)
-            mSendHelper.setCurrentChannelMembers(members);
+            mSendHelper.setCurrentChannelMembers(memberIndex);
     }
 
     public String getCurrentChannel() {
@@ -23,9 +23,6 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
-import java.util.List;
-
-import io.mrarm.chatlib.dto.NickWithPrefix;
 import io.mrarm.chatlib.dto.WhoisInfo;
 import io.mrarm.chatlib.irc.CommandHandlerList;
 import io.mrarm.chatlib.irc.IRCConnection;
@@ -205,7 +202,7 @@ public class ChatFragmentSendMessageHelper implements SendMessageHelper.Callback
         mSendText.setSelection(mSendText.getText().length());
     }
 
-    public void setCurrentChannelMembers(List<NickWithPrefix> members) {
+    public void setCurrentChannelMembers(MemberSuggestionIndex members) {
         mChannelMembersListAdapter.setMembers(members);
     }
 
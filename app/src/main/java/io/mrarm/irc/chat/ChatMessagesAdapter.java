@@ -19,8 +19,10 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -40,9 +42,14 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     private static final int TYPE_DAY_MARKER = 1;
     private static final int TYPE_MESSAGE_WITH_NEW_MESSAGE_MARKER = 2;
 
+    private static final int PREFETCH_ITEM_COUNT = 20;
+
     private ChatMessagesFragment mFragment;
+    private MessageSpanCache mSpanCache;
     private List<Item> mMessages;
     private List<Item> mPrependedMessages;
+    // Maps the message ids to the item ids, which stay the same when items are added on top
+    private final Map<MessageId, Long> mMessageItemIds = new HashMap<>();
     private LongPressSelectTouchListener mMultiSelectListener;
     private ChatSelectTouchListener mSelectListener;
     private Set<Long> mSelectedItems = new TreeSet<>();
@@ -70,6 +77,9 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         mSelectedItemBackground = new ColorDrawable(color);
         ta.recycle();
 
+        mSpanCache = new MessageSpanCache(MessageBuilder.getInstance(fragment.getContext()),
+                this::buildMessageText);
+
         setMessages(messages, messageIds);
         setHasStableIds(true);
     }
@@ -91,6 +101,35 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public void setMessageFont(Typeface typeface, int fontSize) {
         mTypeface = typeface;
         mFontSize = fontSize;
+        mSpanCache.clear();
+    }
+
+    private CharSequence buildMessageText(MessageBuilder builder, MessageInfo message) {
+        if (NotificationManager.getInstance().shouldMessageUseMentionFormatting(
+                mFragment.getConnectionInfo(), mFragment.getChannelName(), message))
+            return builder.buildMessageWithMention(message);
+        return builder.buildMessage(message);
+    }
+
+    public void prefetchMessages(int firstVisible, int lastVisible) {
+        if (firstVisible < 0 || lastVisible < 0)
+            return;
+        List<MessageId> ids = new ArrayList<>();
+        List<MessageInfo> messages = new ArrayList<>();
+        int count = getItemCount();
+        for (int i = Math.max(firstVisible - PREFETCH_ITEM_COUNT, 0); i < firstVisible; i++)
+            addPrefetchItem(i, ids, messages);
+        for (int i = Math.min(lastVisible + PREFETCH_ITEM_COUNT, count - 1); i > lastVisible; i--)
+            addPrefetchItem(i, ids, messages);
+        mSpanCache.prefetch(ids, messages);
+    }
+
+    private void addPrefetchItem(int position, List<MessageId> ids, List<MessageInfo> messages) {
+        Item item = getMessage(position);
+        if (item instanceof MessageItem && !((MessageItem) item).mHidden) {
+            ids.add(((MessageItem) item).mMessageId);
+            messages.add(((MessageItem) item).mMessage);
+        }
     }
 
     public Item getMessage(int index) {
@@ -105,17 +144,77 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public int findMessageWithId(MessageId id) {
         if (id == null)
             return -1;
-        for (int i = mPrependedMessages.size() - 1; i >= 0; --i) {
-            Item it = mPrependedMessages.get(i);
-            if (it instanceof MessageItem && ((MessageItem) it).mMessageId.equals(id))
-                return mPrependedMessages.size() - 1 - i;
+        Long itemId = mMessageItemIds.get(id);
+        if (itemId == null)
+            return -1;
+        return getItemPosition(itemId);
+    }
+
+    /**
+     * Replaces the id of a message, used once a message shown with a pending id is written and
+     * gets the id assigned by the storage. The item keeps its adapter id.
+     */
+    public void replaceMessageId(MessageId oldId, MessageId newId) {
+        Long itemId = mMessageItemIds.remove(oldId);
+        if (itemId == null)
+            return;
+        mMessageItemIds.put(newId, itemId);
+        Item item = getMessage(getItemPosition(itemId));
+        if (item instanceof MessageItem)
+            ((MessageItem) item).mMessageId = newId;
+        if (oldId.equals(mNewMessagesStart))
+            mNewMessagesStart = newId;
+        mSpanCache.replaceId(oldId, newId);
+    }
+
+    private MessageItem getFirstMessageItem() {
+        for (int i = 0; i < getItemCount(); i++) {
+            Item it = getMessage(i);
+            if (it instanceof MessageItem && !((MessageItem) it).mHidden)
+                return (MessageItem) it;
         }
-        for (int i = mMessages.size() - 1; i >= 0; --i) {
-            Item it = mMessages.get(i);
-            if (it instanceof MessageItem && ((MessageItem) it).mMessageId.equals(id))
-                return mPrependedMessages.size() + i;
+        return null;
+    }
+
+    public MessageId getFirstMessageId() {
+        MessageItem item = getFirstMessageItem();
+        return item != null ? item.mMessageId : null;
+    }
+
+    public Date getFirstMessageDate() {
+        MessageItem item = getFirstMessageItem();
+        return item != null ? item.mMessage.getDate() : null;
+    }
+
+    public MessageId getLastMessageId() {
+        for (int i = getItemCount() - 1; i >= 0; --i) {
+            Item it = getMessage(i);
+            if (it instanceof MessageItem && !((MessageItem) it).mHidden)
+                return ((MessageItem) it).mMessageId;
+        }
+        return null;
+    }
+
+    private void appendItem(Item item) {
+        mMessages.add(item);
+        if (item instanceof MessageItem)
+            mMessageItemIds.put(((MessageItem) item).mMessageId,
+                    getItemCount() - 1 - mItemIdOffset);
+    }
+
+    private void prependItem(Item item) {
+        mPrependedMessages.add(item);
+        mItemIdOffset += 1;
+        if (item instanceof MessageItem)
+            mMessageItemIds.put(((MessageItem) item).mMessageId, -mItemIdOffset);
+    }
+
+    private void forgetItems(int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            Item it = getMessage(i);
+            if (it instanceof MessageItem)
+                mMessageItemIds.remove(((MessageItem) it).mMessageId);
         }
-        return -1;
     }
 
     private void deleteMessageInternal(int index) {
@@ -134,11 +233,11 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         if (mFirstMessageDay == -1)
             mFirstMessageDay = day;
         if (day != mLastMessageDay) {
-            mMessages.add(new DayMarkerItem(day));
+            appendItem(new DayMarkerItem(day));
             mLastMessageDay = day;
             ret++;
         }
-        mMessages.add(new MessageItem(m, mi));
+        appendItem(new MessageItem(m, mi));
         ret++;
         return ret;
     }
@@ -149,11 +248,11 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         if (mLastMessageDay == -1)
             mLastMessageDay = day;
         if (day != mFirstMessageDay) {
-            mPrependedMessages.add(new DayMarkerItem(day));
+            prependItem(new DayMarkerItem(day));
             mFirstMessageDay = day;
             ret++;
         }
-        mPrependedMessages.add(new MessageItem(m, mi));
+        prependItem(new MessageItem(m, mi));
         ret++;
         return ret;
     }
@@ -169,6 +268,9 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public void setMessages(List<MessageInfo> messages, List<MessageId> messageIds) {
         mMessages = new ArrayList<>();
         mPrependedMessages = new ArrayList<>();
+        mMessageItemIds.clear();
+        mFirstMessageDay = -1;
+        mLastMessageDay = -1;
         int n = messages.size();
         for (int i = 0; i < n; i++)
             appendMessageInternal(messages.get(i), messageIds.get(i));
@@ -186,9 +288,8 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         int cnt = 0;
         for (int i = messages.size() - 1; i >= 0; --i)
             cnt += prependMessageInternal(messages.get(i), messageIds.get(i));
-        mPrependedMessages.add(new DayMarkerItem(mFirstMessageDay));
+        prependItem(new DayMarkerItem(mFirstMessageDay));
         ++cnt;
-        mItemIdOffset += cnt;
         notifyItemRangeInserted(0, cnt);
     }
 
@@ -203,6 +304,61 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         notifyItemRangeInserted(appendAt, cnt);
     }
 
+    /**
+     * Drops the specified number of items from the top of the list. The dropped messages have to
+     * be loaded again by the fragment.
+     */
+    public void trimTop(int count) {
+        count = Math.min(count, getItemCount());
+        if (count <= 0)
+            return;
+        forgetItems(0, count);
+        int fromPrepended = Math.min(count, mPrependedMessages.size());
+        mPrependedMessages.subList(mPrependedMessages.size() - fromPrepended,
+                mPrependedMessages.size()).clear();
+        mMessages.subList(0, count - fromPrepended).clear();
+        mItemIdOffset -= count;
+        notifyItemRangeRemoved(0, count);
+        // addMessagesToTop expects the list to start with a day marker
+        Item first = getMessage(0);
+        if (first instanceof MessageItem) {
+            mFirstMessageDay = getDayInt(((MessageItem) first).mMessage.getDate());
+            prependItem(new DayMarkerItem(mFirstMessageDay));
+            notifyItemInserted(0);
+        } else if (first instanceof DayMarkerItem) {
+            mFirstMessageDay = ((DayMarkerItem) first).mDate;
+        } else {
+            mFirstMessageDay = -1;
+            mLastMessageDay = -1;
+        }
+    }
+
+    /**
+     * Drops the specified number of items from the bottom of the list. The dropped messages have
+     * to be loaded again by the fragment.
+     */
+    public void trimBottom(int count) {
+        count = Math.min(count, getItemCount());
+        if (count <= 0)
+            return;
+        // Don't leave a day marker without any messages below it
+        if (count < getItemCount() && getMessage(getItemCount() - count - 1) instanceof DayMarkerItem)
+            count++;
+        int start = getItemCount() - count;
+        forgetItems(start, count);
+        int fromMessages = Math.min(count, mMessages.size());
+        mMessages.subList(mMessages.size() - fromMessages, mMessages.size()).clear();
+        mPrependedMessages.subList(0, count - fromMessages).clear();
+        notifyItemRangeRemoved(start, count);
+        Item last = getMessage(getItemCount() - 1);
+        if (last instanceof MessageItem) {
+            mLastMessageDay = getDayInt(((MessageItem) last).mMessage.getDate());
+        } else {
+            mFirstMessageDay = -1;
+            mLastMessageDay = -1;
+        }
+    }
+
     public boolean hasMessages() {
         return mMessages != null && (mMessages.size() > 0 || mPrependedMessages.size() > 0);
     }
@@ -431,10 +587,12 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 setSelected(mSelectedItems.contains(getItemId()) ||
                         mMultiSelectListener.isElementHighlighted(getItemId()), false);
 
-            if (NotificationManager.getInstance().shouldMessageUseMentionFormatting(mFragment.getConnectionInfo(), mFragment.getChannelName(), message))
-                mText.setText(AlignToPointSpan.apply(mText, MessageBuilder.getInstance(mText.getContext()).buildMessageWithMention(message)));
-            else
-                mText.setText(AlignToPointSpan.apply(mText, MessageBuilder.getInstance(mText.getContext()).buildMessage(message)));
+            MessageSpanCache.Entry text = mSpanCache.getOrRender(item.mMessageId, message);
+            if (!text.mAligned) {
+                AlignToPointSpan.apply(mText, text.mText);
+                text.mAligned = true;
+            }
+            mText.setText(text.mText);
 
             if (mSelectListener != null)
                 mSelectListener.applySelectionTo(itemView, getAdapterPosition());
@@ -8,6 +8,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.appcompat.view.ActionMode;
@@ -24,7 +26,6 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -46,6 +47,8 @@ import io.mrarm.chatlib.irc.ServerConnectionApi;
 import io.mrarm.chatlib.message.MessageListener;
 import io.mrarm.chatlib.message.MessageStorageApi;
 import io.mrarm.irc.ChannelNotificationManager;
+import io.mrarm.irc.ChatLogStorageManager;
+import io.mrarm.irc.ChatLogSearchIndex;
 import io.mrarm.irc.IRCChooserTargetService;
 import io.mrarm.irc.MainActivity;
 import io.mrarm.irc.NotificationManager;
@@ -55,6 +58,7 @@ import io.mrarm.irc.ServerConnectionManager;
 import io.mrarm.irc.config.ChatSettings;
 import io.mrarm.irc.config.MessageFormatSettings;
 import io.mrarm.irc.config.UiSettingChangeCallback;
+import io.mrarm.irc.util.BufferedMessageStorageApi;
 import io.mrarm.irc.util.LongPressSelectTouchListener;
 import io.mrarm.irc.util.ScrollPosLinearLayoutManager;
 import io.mrarm.irc.config.SettingsHelper;
@@ -71,9 +75,17 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
 
     private static final int LOAD_MORE_BEFORE_INDEX = 10;
 
+    // The adapter is trimmed down to MAX_LOADED_ITEMS once it grows past it by TRIM_BATCH_SIZE,
+    // keeping at least TRIM_KEEP_MARGIN items around the visible ones
+    private static final int MAX_LOADED_ITEMS = 600;
+    private static final int TRIM_BATCH_SIZE = 100;
+    private static final int TRIM_KEEP_MARGIN = 150;
+
     private static final MessageFilterOptions sFilterJoinParts;
 
-    private List<NickWithPrefix> mMembers = null;
+    private final ChannelMemberList mMembers = new ChannelMemberList();
+    private final MemberSuggestionIndex mMemberIndex = new MemberSuggestionIndex();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     private ServerConnectionInfo mConnection;
     private String mChannelName;
@@ -90,6 +102,9 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
     private boolean mNeedsUnsubscribeStatusMessages = false;
     private MessageListAfterIdentifier mLoadOlderIdentifier;
     private MessageListAfterIdentifier mLoadNewerIdentifier;
+    // Set when messages were dropped from the adapter, these are reloaded around the edge message
+    private boolean mOlderTrimmed;
+    private boolean mNewerTrimmed;
     private boolean mIsLoadingMore;
     private MessageFilterOptions mMessageFilterOptions;
     private View mUnreadCtr;
@@ -108,6 +123,7 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
     }
 
     public ChatMessagesFragment() {
+        mMembers.addListener(mMemberIndex);
     }
 
     @Override
@@ -259,11 +275,18 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                     return;
                 checkForUnreadMessages();
                 int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+                mAdapter.prefetchMessages(firstVisible,
+                        mLayoutManager.findLastVisibleItemPosition());
                 if (firstVisible >= 0 && firstVisible < LOAD_MORE_BEFORE_INDEX) {
-                    if (mIsLoadingMore || mLoadOlderIdentifier == null || !mAdapter.hasMessages())
+                    if (mIsLoadingMore || (mLoadOlderIdentifier == null && !mOlderTrimmed) ||
+                            !mAdapter.hasMessages())
                         return;
                     Log.i(TAG, "Load more (older): " + mChannelName);
                     mIsLoadingMore = true;
+                    if (mLoadOlderIdentifier == null) {
+                        loadTrimmedMessages(true);
+                        return;
+                    }
                     mConnection.getApiInstance().getMessageStorageApi().getMessages(mChannelName,
                             100, getFilterOptions(), mLoadOlderIdentifier,
                             (MessageList messages) -> {
@@ -272,16 +295,24 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                                             messages.getMessageIds());
                                     mLoadOlderIdentifier = messages.getOlder();
                                     mIsLoadingMore = false;
+                                    if (mLoadOlderIdentifier == null)
+                                        expandArchivedDays();
+                                    trimMessageWindow();
                                 });
                             }, null);
                 }
                 int lastVisible = mLayoutManager.findLastVisibleItemPosition();
                 if (lastVisible <= mAdapter.getItemCount() &&
                         lastVisible > mAdapter.getItemCount() - LOAD_MORE_BEFORE_INDEX) {
-                    if (mIsLoadingMore || mLoadNewerIdentifier == null || !mAdapter.hasMessages())
+                    if (mIsLoadingMore || (mLoadNewerIdentifier == null && !mNewerTrimmed) ||
+                            !mAdapter.hasMessages())
                         return;
                     Log.i(TAG, "Load more (newer): " + mChannelName);
                     mIsLoadingMore = true;
+                    if (mLoadNewerIdentifier == null) {
+                        loadTrimmedMessages(false);
+                        return;
+                    }
                     mConnection.getApiInstance().getMessageStorageApi().getMessages(mChannelName,
                             100, getFilterOptions(), mLoadNewerIdentifier,
                             (MessageList messages) -> {
@@ -290,6 +321,7 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                                             messages.getMessageIds());
                                     mLoadNewerIdentifier = messages.getNewer();
                                     mIsLoadingMore = false;
+                                    trimMessageWindow();
                                 });
                             }, null);
                 }
@@ -360,7 +392,121 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
             IRCChooserTargetService.unsetChannel(mConnection.getUUID(), mChannelName);
     }
 
+    public void onMessageJumpRequested() {
+        if (mAdapter == null)
+            return;
+        String msgIdStr = ((ChatFragment) getParentFragment()).getAndClearMessageJump(mChannelName);
+        if (msgIdStr == null)
+            return;
+        MessageId msgId = mConnection.getApiInstance().getMessageStorageApi().getMessageIdParser().parse(msgIdStr);
+        int index = mAdapter.findMessageWithId(msgId);
+        if (index != -1 && mRecyclerView != null)
+            ((LinearLayoutManager) mRecyclerView.getLayoutManager()).scrollToPositionWithOffset(index, 0);
+        else
+            reloadMessages(msgId);
+    }
+
+    /**
+     * Called when there are no more older messages to load. The older chat log days might have
+     * been archived, so they are expanded and then loaded the same way as trimmed messages.
+     */
+    private void expandArchivedDays() {
+        Date firstDate = mAdapter.getFirstMessageDate();
+        if (firstDate == null || getContext() == null)
+            return;
+        ChatLogStorageManager.getInstance(getContext()).requestExpandArchivedDays(
+                mConnection.getUUID(), firstDate.getTime(), () -> {
+                    updateMessageList(() -> {
+                        if (mLoadOlderIdentifier == null)
+                            mOlderTrimmed = true;
+                    });
+                });
+    }
+
+    /**
+     * Loads the messages which were dropped by trimMessageWindow. There is no list identifier
+     * pointing at the edge of the trimmed list, so the messages near the edge message are
+     * requested instead and the ones past it are added.
+     */
+    private void loadTrimmedMessages(boolean older) {
+        MessageId edge = older ? mAdapter.getFirstMessageId() : mAdapter.getLastMessageId();
+        if (edge == null) {
+            reloadMessages(null);
+            mIsLoadingMore = false;
+            return;
+        }
+        mConnection.getApiInstance().getMessageStorageApi().getMessagesNear(mChannelName, edge,
+                getFilterOptions(), (MessageList messages) -> {
+                    // The loaded messages have the ids assigned by the storage
+                    MessageId storedEdge = BufferedMessageStorageApi.getStoredId(edge);
+                    updateMessageList(() -> {
+                        List<MessageInfo> list = messages.getMessages();
+                        List<MessageId> ids = messages.getMessageIds();
+                        int edgeIndex = ids.indexOf(storedEdge);
+                        if (older) {
+                            if (edgeIndex != -1)
+                                mAdapter.addMessagesToTop(list.subList(0, edgeIndex),
+                                        ids.subList(0, edgeIndex));
+                            mLoadOlderIdentifier = messages.getOlder();
+                            mOlderTrimmed = false;
+                            if (mLoadOlderIdentifier == null)
+                                expandArchivedDays();
+                        } else {
+                            if (edgeIndex != -1)
+                                mAdapter.addMessagesToBottom(
+                                        list.subList(edgeIndex + 1, list.size()),
+                                        ids.subList(edgeIndex + 1, ids.size()));
+                            mLoadNewerIdentifier = messages.getNewer();
+                            mNewerTrimmed = false;
+                        }
+                        mIsLoadingMore = false;
+                        trimMessageWindow();
+                    });
+                }, null);
+    }
+
+    /**
+     * Drops the items furthest away from the visible ones, so that the memory used by a channel
+     * stays the same no matter how long it has been open or how far it was scrolled.
+     */
+    private void trimMessageWindow() {
+        if (mAdapter == null || mRecyclerView == null ||
+                mAdapter.getItemCount() <= MAX_LOADED_ITEMS + TRIM_BATCH_SIZE ||
+                mAdapter.getSelectedItems().size() > 0)
+            return;
+        int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+        int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+        if (firstVisible < 0 || lastVisible < 0)
+            return;
+        int excess = mAdapter.getItemCount() - MAX_LOADED_ITEMS;
+        int above = Math.max(firstVisible - TRIM_KEEP_MARGIN, 0);
+        int below = Math.max(mAdapter.getItemCount() - 1 - lastVisible - TRIM_KEEP_MARGIN, 0);
+        int trimTop, trimBottom;
+        if (above >= below) {
+            trimTop = Math.min(excess, above);
+            trimBottom = Math.min(excess - trimTop, below);
+        } else {
+            trimBottom = Math.min(excess, below);
+            trimTop = Math.min(excess - trimBottom, above);
+        }
+        if (trimTop > 0) {
+            Log.i(TAG, "Dropping " + trimTop + " older items: " + mChannelName);
+            mAdapter.trimTop(trimTop);
+            mLoadOlderIdentifier = null;
+            mOlderTrimmed = true;
+        }
+        if (trimBottom > 0) {
+            Log.i(TAG, "Dropping " + trimBottom + " newer items: " + mChannelName);
+            mAdapter.trimBottom(trimBottom);
+            mLoadNewerIdentifier = null;
+            mNewerTrimmed = true;
+        }
+    }
+
     private void reloadMessages(MessageId nearMessage) {
+        mOlderTrimmed = false;
+        mNewerTrimmed = false;
+        mLoadNewerIdentifier = null;
         if (ChatSettings.shouldHideJoinPartMessages())
             mMessageFilterOptions = sFilterJoinParts;
         else
@@ -377,6 +523,8 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                 if (mRecyclerView != null)
                     mRecyclerView.scrollToPosition(mAdapter.getItemCount() - 1);
                 mLoadOlderIdentifier = messages.getOlder();
+                if (mLoadOlderIdentifier == null)
+                    expandArchivedDays();
             });
 
             if (!mNeedsUnsubscribeMessages) {
@@ -521,7 +669,7 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
             // it's enough to only register to the last format preference, as all preferences are always rewritten
             MessageFormatSettings.PREF_MESSAGE_FORMAT_EVENT_HOSTNAME
     })
-    private void onSettingChanged() {
+    void onSettingChanged() {
         if (mAdapter != null) {
             mAdapter.setMessageFont(ChatSettings.getFont(), ChatSettings.getFontSize());
             mAdapter.notifyDataSetChanged();
@@ -543,7 +691,7 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
         activity.runOnUiThread(() -> ((ChatFragment) getParentFragment())
                 .setCurrentChannelInfo(mChannelTopic,
                         mChannelTopicSetBy != null ? mChannelTopicSetBy.getNick() : null,
-                        mChannelTopicSetOn, mMembers));
+                        mChannelTopicSetOn, mMembers, mMemberIndex));
     }
 
     private void updateMessageList(Runnable r) {
@@ -577,8 +725,12 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
 
     @Override
     public void onMessage(String channel, MessageInfo messageInfo, MessageId messageId) {
+        if (messageInfo.getSender() != null &&
+                (messageInfo.getType() == MessageInfo.MessageType.NORMAL ||
+                        messageInfo.getType() == MessageInfo.MessageType.ME))
+            mMemberIndex.onMessage(messageInfo.getSender().getNick());
         updateMessageList(() -> {
-            if (mLoadNewerIdentifier != null)
+            if (mLoadNewerIdentifier != null || mNewerTrimmed)
                 return;
             MessageFilterOptions opt = getFilterOptions();
             if (opt != null) {
@@ -595,6 +747,12 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
             mAdapter.appendMessage(messageInfo, messageId);
             if (mRecyclerView != null)
                 scrollToBottom();
+            trimMessageWindow();
+        });
+        // Switch to the id assigned by a buffered storage, which the loaded messages use
+        BufferedMessageStorageApi.runWhenStored(messageId, (MessageId storedId) -> {
+            if (storedId != messageId)
+                updateMessageList(() -> mAdapter.replaceMessageId(messageId, storedId));
         });
     }
 
@@ -610,24 +768,16 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
 
     @Override
     public void onMemberListChanged(List<NickWithPrefix> list) {
-        this.mMembers = list;
-        Collections.sort(list, (NickWithPrefix left, NickWithPrefix right) -> {
-            if (left.getNickPrefixes() != null && right.getNickPrefixes() != null) {
-                char leftPrefix = left.getNickPrefixes().get(0);
-                char rightPrefix = right.getNickPrefixes().get(0);
-                for (char c : ((ServerConnectionApi) mConnection.getApiInstance())
-                        .getServerConnectionData().getSupportList().getSupportedNickPrefixes()) {
-                    if (leftPrefix == c && rightPrefix != c)
-                        return -1;
-                    if (rightPrefix == c && leftPrefix != c)
-                        return 1;
-                }
-            } else if (left.getNickPrefixes() != null || right.getNickPrefixes() != null)
-                return left.getNickPrefixes() != null ? -1 : 1;
-            return left.getNick().compareToIgnoreCase(right.getNick());
+        StringBuilder prefixOrder = new StringBuilder();
+        for (char c : ((ServerConnectionApi) mConnection.getApiInstance())
+                .getServerConnectionData().getSupportList().getSupportedNickPrefixes())
+            prefixOrder.append(c);
+        mHandler.post(() -> {
+            // Only the differences are applied, the listeners get notified of every change
+            mMembers.setMembers(list, prefixOrder.toString());
+            if (getUserVisibleHint())
+                updateParentCurrentChannel();
         });
-        if (getUserVisibleHint())
-            updateParentCurrentChannel();
     }
 
     @Override
@@ -678,6 +828,8 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
         mAdapter.notifyDataSetChanged();
         mConnection.getApiInstance().getMessageStorageApi().deleteMessages(mChannelName, msgIds,
                 null, null);
+        ChatLogSearchIndex.getInstance(getContext()).requestDeleteMessages(mConnection.getUUID(),
+                msgIds);
     }
 
 
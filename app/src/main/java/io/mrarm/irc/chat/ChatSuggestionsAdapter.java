@@ -1,6 +1,8 @@
 package io.mrarm.irc.chat;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -9,7 +11,11 @@ import android.widget.Filterable;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
 
 import io.mrarm.chatlib.dto.ModeList;
 import io.mrarm.chatlib.dto.NickWithPrefix;
@@ -21,15 +27,25 @@ import io.mrarm.irc.util.SelectableRecyclerViewAdapter;
 public class ChatSuggestionsAdapter extends SelectableRecyclerViewAdapter<ChatSuggestionsAdapter.ItemHolder> implements Filterable {
 
     private ServerConnectionInfo mConnection;
-    private List<NickWithPrefix> mMembers;
+    private MemberSuggestionIndex mMembers;
+    private List<String> mIndexedChannels;
+    private final TreeMap<String, String> mChannelIndex = new TreeMap<>();
     private List<Object> mFilteredItems;
+    private int mFilteredGeneration;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Incremented with every filter request, the user lookup results are only used if they are
+    // for the latest request
+    private int mFilterGeneration;
+    private Future<List<String>> mUserQuery;
+    private List<String> mPendingUsers;
+    private int mPendingUsersGeneration;
     private boolean mMembersEnabled = false;
     private boolean mChannelsEnabled = false;
     private boolean mUsersEnabled = false;
     private MyFilter mFilter;
     private OnItemClickListener mClickListener;
 
-    public ChatSuggestionsAdapter(Context context, ServerConnectionInfo connection, List<NickWithPrefix> members) {
+    public ChatSuggestionsAdapter(Context context, ServerConnectionInfo connection, MemberSuggestionIndex members) {
         super(context);
         mConnection = connection;
         mMembers = members;
@@ -40,8 +56,75 @@ public class ChatSuggestionsAdapter extends SelectableRecyclerViewAdapter<ChatSu
         mClickListener = listener;
     }
 
-    public void setMembers(List<NickWithPrefix> members) {
-        mMembers = members;
+    public void setMembers(MemberSuggestionIndex members) {
+        synchronized (this) {
+            mMembers = members;
+        }
+    }
+
+    private List<String> findChannels(String prefix) {
+        List<String> channels = mConnection.getChannels();
+        synchronized (mChannelIndex) {
+            // The channel list is replaced and never modified, so it only has to be indexed
+            // again when it is a different instance
+            if (channels != mIndexedChannels) {
+                mChannelIndex.clear();
+                if (channels != null) {
+                    for (String channel : channels)
+                        mChannelIndex.put(channel.toLowerCase(), channel);
+                }
+                mIndexedChannels = channels;
+            }
+            return new ArrayList<>(mChannelIndex.subMap(prefix, true,
+                    prefix + Character.MAX_VALUE, true).values());
+        }
+    }
+
+    private void findUsers(String query, int generation) {
+        synchronized (this) {
+            if (generation != mFilterGeneration)
+                return;
+            mUserQuery = mConnection.getApiInstance().getUserInfoApi().findUsers(query,
+                    (List<String> users) -> mHandler.post(() -> onUsersFound(generation, users)),
+                    null);
+        }
+    }
+
+    private void cancelUserQuery() {
+        synchronized (this) {
+            if (mUserQuery != null)
+                mUserQuery.cancel(false);
+            mUserQuery = null;
+        }
+    }
+
+    private void onUsersFound(int generation, List<String> users) {
+        synchronized (this) {
+            if (generation != mFilterGeneration)
+                return;
+        }
+        if (mFilteredItems == null || mFilteredGeneration != generation) {
+            // The member and channel results have not been published yet
+            mPendingUsers = users;
+            mPendingUsersGeneration = generation;
+            return;
+        }
+        appendUsers(users);
+    }
+
+    private void addMissingUsers(List<String> users) {
+        Set<Object> existing = new HashSet<>(mFilteredItems);
+        for (String user : users) {
+            if (!existing.contains(user))
+                mFilteredItems.add(user);
+        }
+    }
+
+    private void appendUsers(List<String> users) {
+        int start = mFilteredItems.size();
+        addMissingUsers(users);
+        if (mFilteredItems.size() != start)
+            notifyItemRangeInserted(start, mFilteredItems.size() - start);
     }
 
     public void setEnabledSuggestions(boolean members, boolean channels, boolean users) {
@@ -123,6 +206,18 @@ public class ChatSuggestionsAdapter extends SelectableRecyclerViewAdapter<ChatSu
 
     }
 
+    private static class Results {
+
+        final List<Object> mItems;
+        final int mGeneration;
+
+        Results(List<Object> items, int generation) {
+            mItems = items;
+            mGeneration = generation;
+        }
+
+    }
+
     private class MyFilter extends Filter {
 
         @Override
@@ -132,38 +227,40 @@ public class ChatSuggestionsAdapter extends SelectableRecyclerViewAdapter<ChatSu
             String mstr = str;
             if (str.length() > 0 && str.charAt(0) == '@')
                 mstr = str.substring(1);
-            List<Object> list = new ArrayList<>();
-            if (areMembersEnabled() && mMembers != null) {
-                for (NickWithPrefix member : mMembers) {
-                    if (member.getNick().regionMatches(true, 0, mstr, 0, mstr.length()))
-                        list.add(member);
-                }
+            int generation;
+            MemberSuggestionIndex members;
+            synchronized (ChatSuggestionsAdapter.this) {
+                generation = ++mFilterGeneration;
+                members = mMembers;
             }
+            cancelUserQuery();
+            List<Object> list = new ArrayList<>();
+            if (areMembersEnabled() && members != null)
+                list.addAll(members.find(mstr));
             if (areChannelsEnabled()) {
                 ModeList channelTypes = ((ServerConnectionApi) mConnection.getApiInstance())
                         .getServerConnectionData().getSupportList().getSupportedChannelTypes();
-                for (String channel : mConnection.getChannels()) {
+                for (String channel : findChannels(str)) {
                     if (channel.length() == 0 || !channelTypes.contains(channel.charAt(0)))
                         continue;
-                    if (channel.regionMatches(true, 0, str, 0, str.length()))
-                        list.add(channel);
-                }
-            }
-            if (areUsersEnabled()) {
-                try {
-                    list.addAll(mConnection.getApiInstance().getUserInfoApi().findUsers(str, null, null).get());
-                } catch (Exception ignored) {
+                    list.add(channel);
                 }
             }
-            ret.values = list;
+            if (areUsersEnabled())
+                findUsers(str, generation);
+            ret.values = new Results(list, generation);
             ret.count = list.size();
             return ret;
         }
 
         @Override
-        @SuppressWarnings("unchecked")
         protected void publishResults(CharSequence constraint, FilterResults results) {
-            mFilteredItems = (List<Object>) results.values;
+            Results r = (Results) results.values;
+            mFilteredItems = r.mItems;
+            mFilteredGeneration = r.mGeneration;
+            if (mPendingUsers != null && mPendingUsersGeneration == r.mGeneration)
+                addMissingUsers(mPendingUsers);
+            mPendingUsers = null;
             notifyDataSetChanged();
         }
 
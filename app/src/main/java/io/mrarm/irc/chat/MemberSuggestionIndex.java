@@ -0,0 +1,96 @@
+package io.mrarm.irc.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.mrarm.chatlib.dto.NickWithPrefix;
+
+/**
+ * The members of a channel sorted by their case folded nick, so that the members with a nick
+ * starting with a given prefix can be found without going through the whole member list. The
+ * matches are ordered by how recently the members have spoken in the channel.
+ *
+ * The index is kept up to date by listening to the changes of the channel's ChannelMemberList.
+ */
+public class MemberSuggestionIndex implements ChannelMemberList.Listener {
+
+    private static final int MAX_RECENT_SPEAKERS = 50;
+
+    private final TreeMap<String, NickWithPrefix> mMembers = new TreeMap<>();
+    // Case folded nick -> speaker sequence number, the most recent speaker is the last one
+    private final LinkedHashMap<String, Long> mRecentSpeakers =
+            new LinkedHashMap<String, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_RECENT_SPEAKERS;
+                }
+            };
+    private long mSpeakerSequence = 0;
+
+    private static String fold(String nick) {
+        return nick.toLowerCase();
+    }
+
+    @Override
+    public synchronized void onMemberAdded(int position, NickWithPrefix member) {
+        mMembers.put(fold(member.getNick()), member);
+    }
+
+    @Override
+    public synchronized void onMemberRemoved(int position, NickWithPrefix member) {
+        mMembers.remove(fold(member.getNick()));
+    }
+
+    @Override
+    public synchronized void onMemberChanged(int oldPosition, int newPosition,
+                                             NickWithPrefix oldMember, NickWithPrefix member) {
+        mMembers.put(fold(member.getNick()), member);
+    }
+
+    @Override
+    public void onMembersReordered() {
+    }
+
+    /**
+     * Marks the specified user as the most recent speaker.
+     */
+    public synchronized void onMessage(String nick) {
+        String key = fold(nick);
+        mRecentSpeakers.remove(key);
+        mRecentSpeakers.put(key, ++mSpeakerSequence);
+    }
+
+    /**
+     * Returns the members whose nick starts with the specified prefix, ignoring the case. The
+     * members who have recently spoken come first, the rest is sorted by nick.
+     */
+    public List<NickWithPrefix> find(String prefix) {
+        String key = fold(prefix);
+        List<NickWithPrefix> ret;
+        Map<NickWithPrefix, Long> ranks = new HashMap<>();
+        synchronized (this) {
+            ret = new ArrayList<>(mMembers.subMap(key, true, key + Character.MAX_VALUE, true)
+                    .values());
+            for (NickWithPrefix member : ret) {
+                Long rank = mRecentSpeakers.get(fold(member.getNick()));
+                if (rank != null)
+                    ranks.put(member, rank);
+            }
+        }
+        if (!ranks.isEmpty()) {
+            // The sort is stable, so the members who have not spoken stay sorted by nick
+            Collections.sort(ret, (NickWithPrefix l, NickWithPrefix r) -> {
+                Long lRank = ranks.get(l);
+                Long rRank = ranks.get(r);
+                return Long.compare(rRank != null ? rRank : 0, lRank != null ? lRank : 0);
+            });
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,180 @@
+package io.mrarm.irc.chat;
+
+import android.text.Spanned;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.irc.config.NotificationRuleManager;
+import io.mrarm.irc.util.MessageBuilder;
+import io.mrarm.irc.util.PoolSerialExecutor;
+
+/**
+ * A bounded LRU cache of the rendered message text, evicting entries by their estimated memory
+ * usage. The entries are dropped whenever the message format, the theme colors or the
+ * notification rules change.
+ *
+ * The prefetched messages are rendered on a background thread using a copy of the message builder,
+ * as the builder's date format can't be used by two threads at once.
+ */
+public class MessageSpanCache {
+
+    private static final int DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+    private static final int ENTRY_SIZE = 64;
+    private static final int SPAN_SIZE = 48;
+
+    private final MessageBuilder mMessageBuilder;
+    private MessageBuilder mPrefetchBuilder;
+    private final Renderer mRenderer;
+    private final int mMaxSize;
+    private final LinkedHashMap<MessageId, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<MessageId> mPendingPrefetch = new HashSet<>();
+    private final PoolSerialExecutor mPrefetchExecutor = new PoolSerialExecutor();
+    private int mSize = 0;
+    private int mGeneration = 0;
+    private volatile int mFormatVersion;
+    private int mRulesVersion;
+
+    public MessageSpanCache(MessageBuilder builder, Renderer renderer, int maxSize) {
+        mMessageBuilder = builder;
+        mRenderer = renderer;
+        mMaxSize = maxSize;
+        mFormatVersion = builder.getFormatVersion();
+        mRulesVersion = NotificationRuleManager.getRulesVersion();
+    }
+
+    public MessageSpanCache(MessageBuilder builder, Renderer renderer) {
+        this(builder, renderer, DEFAULT_MAX_SIZE);
+    }
+
+    private void validate() {
+        int formatVersion = mMessageBuilder.getFormatVersion();
+        int rulesVersion = NotificationRuleManager.getRulesVersion();
+        if (formatVersion != mFormatVersion || rulesVersion != mRulesVersion) {
+            clear();
+            mFormatVersion = formatVersion;
+            mRulesVersion = rulesVersion;
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mPendingPrefetch.clear();
+        mSize = 0;
+        mGeneration++;
+    }
+
+    public synchronized Entry get(MessageId id) {
+        validate();
+        return mEntries.get(id);
+    }
+
+    public Entry getOrRender(MessageId id, MessageInfo message) {
+        Entry entry = get(id);
+        if (entry != null)
+            return entry;
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        return put(id, mRenderer.render(mMessageBuilder, message), generation);
+    }
+
+    private synchronized Entry put(MessageId id, CharSequence text, int generation) {
+        Entry entry = new Entry(text);
+        if (generation != mGeneration)
+            return entry;
+        Entry old = mEntries.put(id, entry);
+        if (old != null)
+            mSize -= old.mSize;
+        mSize += entry.mSize;
+        Iterator<Map.Entry<MessageId, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<MessageId, Entry> eldest = it.next();
+            if (eldest.getValue() == entry)
+                break;
+            mSize -= eldest.getValue().mSize;
+            it.remove();
+        }
+        return entry;
+    }
+
+    /**
+     * Moves the entry of a message whose id changed, so that it doesn't have to be rendered again.
+     */
+    public synchronized void replaceId(MessageId oldId, MessageId newId) {
+        Entry entry = mEntries.remove(oldId);
+        if (entry != null)
+            mEntries.put(newId, entry);
+    }
+
+    public void prefetch(List<MessageId> ids, List<MessageInfo> messages) {
+        List<MessageId> fetchIds = new ArrayList<>();
+        List<MessageInfo> fetchMessages = new ArrayList<>();
+        int generation;
+        synchronized (this) {
+            validate();
+            generation = mGeneration;
+            for (int i = 0; i < ids.size(); i++) {
+                MessageId id = ids.get(i);
+                if (mEntries.containsKey(id) || !mPendingPrefetch.add(id))
+                    continue;
+                fetchIds.add(id);
+                fetchMessages.add(messages.get(i));
+            }
+        }
+        if (fetchIds.size() == 0)
+            return;
+        // The copy is made on the calling thread, which is the one the builder is modified on
+        if (mPrefetchBuilder == null ||
+                mPrefetchBuilder.getFormatVersion() != mMessageBuilder.getFormatVersion())
+            mPrefetchBuilder = new MessageBuilder(mMessageBuilder);
+        MessageBuilder builder = mPrefetchBuilder;
+        mPrefetchExecutor.execute(() -> {
+            for (int i = 0; i < fetchIds.size(); i++) {
+                MessageId id = fetchIds.get(i);
+                synchronized (this) {
+                    if (generation != mGeneration)
+                        return;
+                    if (!mPendingPrefetch.remove(id) || mEntries.containsKey(id))
+                        continue;
+                }
+                put(id, mRenderer.render(builder, fetchMessages.get(i)), generation);
+            }
+        });
+    }
+
+    public static class Entry {
+
+        final CharSequence mText;
+        final int mSize;
+        boolean mAligned;
+
+        Entry(CharSequence text) {
+            mText = text;
+            int size = ENTRY_SIZE + text.length() * 2;
+            if (text instanceof Spanned)
+                size += ((Spanned) text).getSpans(0, text.length(), Object.class).length * SPAN_SIZE;
+            mSize = size;
+        }
+
+        public CharSequence getText() {
+            return mText;
+        }
+
+    }
+
+    public interface Renderer {
+
+        CharSequence render(MessageBuilder builder, MessageInfo message);
+
+    }
+
+}
@@ -3,6 +3,9 @@ package io.mrarm.irc.config;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -12,26 +15,41 @@ import com.google.gson.JsonPrimitive;
 
 import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.ZipOutputStream;
 import net.lingala.zip4j.model.FileHeader;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.util.Zip4jConstants;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import io.mrarm.irc.ChatLogSearchIndex;
+import io.mrarm.irc.ChatLogStorageManager;
+import io.mrarm.irc.DCCHistory;
+import io.mrarm.irc.DCCManager;
 import io.mrarm.irc.ServerConnectionManager;
 import io.mrarm.irc.setting.ListWithCustomSetting;
 import io.mrarm.irc.util.theme.ThemeInfo;
@@ -50,71 +68,268 @@ public class BackupManager {
     private static final String NOTIFICATION_COUNT_DB_PATH = "notification-count.db";
     private static final String BACKUP_THEME_PREFIX = "themes/theme-";
     private static final String BACKUP_THEME_SUFFIX = ".json";
+    private static final String BACKUP_CHAT_LOGS_PREFIX = "chat_logs/";
+    private static final String BACKUP_DCC_HISTORY_PATH = "dcc-history.db";
+    private static final String BACKUP_MANIFEST_PATH = "backup_manifest.json";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public static void createBackup(Context context, File file, String password,
+                                    boolean includeChatLogs, boolean incremental,
+                                    ProgressListener listener) throws IOException {
+        Log.d("BackupManager", "createBackup: " + file.getAbsolutePath());
+
+        BackupManifest base = incremental ? BackupManifest.loadLocal(context) : null;
+        BackupManifest manifest = base != null ? BackupManifest.createDelta(base)
+                : BackupManifest.createFull();
+
+        ZipParameters params = new ZipParameters();
+        params.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
+        params.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
+        if (password != null) {
+            params.setEncryptFiles(true);
+            params.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
+            params.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
+            params.setPassword(password);
+        }
+        params.setSourceExternalStream(true);
 
-    public static void createBackup(Context context, File file, String password) throws IOException {
-        try {
-            Log.d("BackupManager", "createBackup: " + file.getAbsolutePath());
-
-            ZipFile zipFile = new ZipFile(file);
-            ZipParameters params = new ZipParameters();
-            params.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-            params.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
-            if (password != null) {
-                params.setEncryptFiles(true);
-                params.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
-                params.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
-                params.setPassword(password);
-            }
-            params.setSourceExternalStream(true);
-
-            params.setFileNameInZip(BACKUP_PREFERENCES_PATH);
-            zipFile.addStream(exportPreferencesToJson(context), params);
+        // Everything is written through a single stream, as adding the files one by one to a
+        // ZipFile rewrites its central directory each time
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), COPY_BUFFER_SIZE))) {
+            BackupWriter out = new BackupWriter(zip, params, base, manifest);
 
-            for (File f : SettingsHelper.getInstance(context).getCustomFiles()) {
-                params.setFileNameInZip(BACKUP_PREF_VALUES_PREFIX + f.getName());
-                zipFile.addFile(f, params);
-            }
+            // The settings themselves are small, so they are always stored in full, even in an
+            // incremental backup
+            Writer writer = beginTextEntry(out, BACKUP_PREFERENCES_PATH);
+            exportPreferencesToJson(context, writer);
+            endTextEntry(out, writer);
 
-            StringWriter writer;
+            for (File f : SettingsHelper.getInstance(context).getCustomFiles())
+                writeFileEntry(out, BACKUP_PREF_VALUES_PREFIX + f.getName(), f, null);
 
             ServerConfigManager configManager = ServerConfigManager.getInstance(context);
             for (ServerConfigData data : configManager.getServers()) {
-                writer = new StringWriter();
+                writer = beginTextEntry(out, BACKUP_SERVER_PREFIX + data.uuid + BACKUP_SERVER_SUFFIX);
                 SettingsHelper.getGson().toJson(data, writer);
-                params.setFileNameInZip(BACKUP_SERVER_PREFIX + data.uuid + BACKUP_SERVER_SUFFIX);
-                zipFile.addStream(new ByteArrayInputStream(writer.toString().getBytes()), params);
+                endTextEntry(out, writer);
                 File sslCertsFile = configManager.getServerSSLCertsFile(data.uuid);
                 if (sslCertsFile.exists()) {
                     synchronized (ServerCertificateManager.get(sslCertsFile)) { // lock the helper to prevent any writes to the file
-                        params.setFileNameInZip(BACKUP_SERVER_CERTS_PREFIX + data.uuid + BACKUP_SERVER_CERTS_SUFFIX);
-                        zipFile.addFile(sslCertsFile, params);
+                        writeFileEntry(out, BACKUP_SERVER_CERTS_PREFIX + data.uuid + BACKUP_SERVER_CERTS_SUFFIX, sslCertsFile, null);
                     }
                 }
             }
 
-            writer = new StringWriter();
+            writer = beginTextEntry(out, BACKUP_NOTIFICATION_RULES_PATH);
             NotificationRuleManager.saveUserRuleSettings(context, writer);
-            params.setFileNameInZip(BACKUP_NOTIFICATION_RULES_PATH);
-            zipFile.addStream(new ByteArrayInputStream(writer.toString().getBytes()), params);
+            endTextEntry(out, writer);
 
-            writer = new StringWriter();
+            writer = beginTextEntry(out, BACKUP_COMMAND_ALIASES_PATH);
             CommandAliasManager.getInstance(context).saveUserSettings(writer);
-            params.setFileNameInZip(BACKUP_COMMAND_ALIASES_PATH);
-            zipFile.addStream(new ByteArrayInputStream(writer.toString().getBytes()), params);
+            endTextEntry(out, writer);
 
             NotificationCountStorage.getInstance(context).close();
-            params.setFileNameInZip(NOTIFICATION_COUNT_DB_PATH);
-            zipFile.addFile(NotificationCountStorage.getFile(context), params);
-            NotificationCountStorage.getInstance(context).open();
+            try {
+                writeFileEntry(out, NOTIFICATION_COUNT_DB_PATH, NotificationCountStorage.getFile(context), null);
+            } finally {
+                NotificationCountStorage.getInstance(context).open();
+            }
+
+            File dccHistoryFile = DCCHistory.getFile(context);
+            if (dccHistoryFile.exists()) {
+                DCCHistory dccHistory = DCCManager.getInstance(context).getHistory();
+                dccHistory.flush();
+                synchronized (dccHistory) { // all of the writes are synchronized on the history
+                    writeFileEntry(out, BACKUP_DCC_HISTORY_PATH, dccHistoryFile, null);
+                }
+            }
 
             ThemeManager themeManager = ThemeManager.getInstance(context);
             for (ThemeInfo themeInfo : themeManager.getCustomThemes()) {
-                params.setFileNameInZip(BACKUP_THEME_PREFIX + themeInfo.uuid + BACKUP_THEME_SUFFIX);
-                zipFile.addFile(themeManager.getThemePath(themeInfo.uuid), params);
+                writeFileEntry(out, BACKUP_THEME_PREFIX + themeInfo.uuid + BACKUP_THEME_SUFFIX,
+                        themeManager.getThemePath(themeInfo.uuid), null);
             }
+
+            if (includeChatLogs)
+                writeChatLogs(configManager, out, listener);
+
+            // The manifest is written last, as it needs the hashes of all of the files
+            writer = beginTextEntry(out, BACKUP_MANIFEST_PATH);
+            manifest.write(writer);
+            endTextEntry(out, writer);
+
+            zip.finish();
         } catch (ZipException e) {
             throw new IOException(e);
         }
+        BackupManifest.savePending(context, manifest);
+    }
+
+    private static Writer beginTextEntry(BackupWriter out, String name) throws ZipException {
+        out.params.setFileNameInZip(name);
+        out.zip.putNextEntry(null, out.params);
+        return new BufferedWriter(new OutputStreamWriter(out.zip));
+    }
+
+    private static void endTextEntry(BackupWriter out, Writer writer)
+            throws IOException, ZipException {
+        // The writer must not be closed as that would close the whole archive
+        writer.flush();
+        out.zip.closeEntry();
+    }
+
+    /**
+     * Stores a file in the backup and records it in the manifest. If the file did not change
+     * since the base backup, only the manifest entry is written and it keeps pointing to the
+     * archive which holds the contents.
+     */
+    private static void writeFileEntry(BackupWriter out, String name, File file,
+                                       Progress progress) throws IOException, ZipException {
+        BackupManifest.Entry entry = new BackupManifest.Entry(file.length(), file.lastModified());
+        BackupManifest.Entry baseEntry = out.base != null ? out.base.files.get(name) : null;
+        if (baseEntry != null && baseEntry.hash != null && baseEntry.size == entry.size) {
+            // Only read the file if it was touched since the base backup
+            if (baseEntry.mtime == entry.mtime)
+                entry.hash = baseEntry.hash;
+            else
+                entry.hash = hashFile(file, out.buf);
+            if (entry.hash.equals(baseEntry.hash)) {
+                entry.archiveId = baseEntry.archiveId;
+                out.manifest.files.put(name, entry);
+                if (progress != null)
+                    progress.add(entry.size);
+                return;
+            }
+        }
+
+        MessageDigest digest = createDigest();
+        out.params.setFileNameInZip(name);
+        out.zip.putNextEntry(null, out.params);
+        try (InputStream stream = new DigestInputStream(new FileInputStream(file), digest)) {
+            copyStream(stream, out.zip, out.buf, progress);
+        }
+        out.zip.closeEntry();
+        entry.hash = toHexString(digest.digest());
+        entry.archiveId = out.manifest.id;
+        out.manifest.files.put(name, entry);
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hashFile(File file, byte[] buf) throws IOException {
+        MessageDigest digest = createDigest();
+        try (InputStream stream = new FileInputStream(file)) {
+            int c;
+            while ((c = stream.read(buf, 0, buf.length)) > 0)
+                digest.update(buf, 0, c);
+        }
+        return toHexString(digest.digest());
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes)
+            builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    private static void copyStream(InputStream in, OutputStream out, byte[] buf,
+                                   Progress progress) throws IOException {
+        int c;
+        while ((c = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, c);
+            if (progress != null)
+                progress.add(c);
+        }
+    }
+
+    private static boolean shouldBackupChatLogFile(String name) {
+        // The WAL files are stored together with their database, the rest can be recreated
+        return !name.endsWith("-journal") && !name.endsWith("-shm") && !name.endsWith("-wal") &&
+                !name.endsWith(".tmp") &&
+                !name.startsWith(ChatLogSearchIndex.INDEX_FILE_NAME) &&
+                !name.equals(ChatLogStorageManager.MANIFEST_FILE_NAME);
+    }
+
+    private static void writeChatLogs(ServerConfigManager configManager, BackupWriter out,
+                                      ProgressListener listener) throws IOException, ZipException {
+        // The logs are most of the archive size, prefer throughput over the compression ratio
+        out.params.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_FASTEST);
+        List<UUID> servers = new ArrayList<>();
+        List<File[]> serverFiles = new ArrayList<>();
+        long totalSize = 0L;
+        for (ServerConfigData data : configManager.getServers()) {
+            File[] files = configManager.getServerChatLogDir(data.uuid).listFiles();
+            if (files == null)
+                continue;
+            servers.add(data.uuid);
+            serverFiles.add(files);
+            for (File f : files) {
+                if (!shouldBackupChatLogFile(f.getName()))
+                    continue;
+                totalSize += f.length();
+                File wal = new File(f.getPath() + "-wal");
+                if (wal.exists())
+                    totalSize += wal.length();
+            }
+        }
+        Progress progress = new Progress(totalSize, listener);
+        for (int i = 0; i < servers.size(); i++) {
+            String prefix = BACKUP_CHAT_LOGS_PREFIX + servers.get(i) + "/";
+            for (File f : serverFiles.get(i)) {
+                if (!f.isFile() || !shouldBackupChatLogFile(f.getName()))
+                    continue;
+                if (f.getName().endsWith(".db"))
+                    writeDatabaseSnapshot(out, prefix + f.getName(), f, progress);
+                else
+                    writeFileEntry(out, prefix + f.getName(), f, progress);
+            }
+        }
+        out.params.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
+    }
+
+    /**
+     * Copies a database which might be in use by the chat log storage. A write transaction is
+     * held for the duration of the copy, which blocks any other writer, so the database file and
+     * its WAL can't change while they are being read.
+     */
+    private static void writeDatabaseSnapshot(BackupWriter out, String name, File file,
+                                              Progress progress)
+            throws IOException, ZipException {
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        } catch (SQLiteException e) {
+            Log.w("BackupManager", "Failed to open " + file.getName() + ", copying it as-is");
+            writeFileEntry(out, name, file, progress);
+            return;
+        }
+        try {
+            // Move the WAL contents into the main file first, so that the WAL is usually empty
+            try (Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null)) {
+                cursor.moveToFirst();
+            } catch (SQLiteException ignored) {
+            }
+            db.beginTransactionNonExclusive();
+            try {
+                writeFileEntry(out, name, file, progress);
+                File wal = new File(file.getPath() + "-wal");
+                if (wal.exists() && wal.length() > 0)
+                    writeFileEntry(out, name + "-wal", wal, progress);
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
     }
 
     public static boolean verifyBackupFile(File file) {
@@ -141,12 +356,62 @@ public class BackupManager {
         }
     }
 
-    public static void restoreBackup(Context context, File file, String password) throws IOException {
+    public static void restoreBackup(Context context, File file, String password,
+                                     ProgressListener listener) throws IOException {
+        restoreBackup(context, Collections.singletonList(file), password, listener);
+    }
+
+    /**
+     * Restores the state saved in a backup chain. The files must contain the full backup the
+     * chain is based on as well as the incremental backups created after it, in any order. The
+     * state of the latest backup is restored.
+     */
+    public static void restoreBackup(Context context, List<File> files, String password,
+                                     ProgressListener listener) throws IOException {
         try {
-            ZipFile zipFile = new ZipFile(file);
+            ZipFile zipFile = null;
+            BackupManifest manifest = null;
+            Map<String, ZipFile> archives = new HashMap<>();
+            for (File file : files) {
+                ZipFile archive = new ZipFile(file);
+                if (password != null)
+                    archive.setPassword(password);
+                BackupManifest archiveManifest = readManifest(archive);
+                if (archiveManifest == null) {
+                    // Created before incremental backups were supported, so it's a full backup
+                    if (files.size() > 1)
+                        throw new IOException("Legacy backups can not be combined with others");
+                    zipFile = archive;
+                    continue;
+                }
+                archives.put(archiveManifest.id, archive);
+                if (manifest == null || archiveManifest.sequence > manifest.sequence) {
+                    manifest = archiveManifest;
+                    zipFile = archive;
+                }
+            }
+            if (zipFile == null)
+                throw new IOException("No backup files were specified");
 
-            if (password != null)
-                zipFile.setPassword(password);
+            // Resolve all of the files before touching anything, so that a missing part of the
+            // chain doesn't leave the application half restored
+            List<RestoreEntry> entries = new ArrayList<>();
+            for (Object header : zipFile.getFileHeaders()) {
+                if (header instanceof FileHeader)
+                    entries.add(new RestoreEntry(zipFile, (FileHeader) header));
+            }
+            if (manifest != null) {
+                for (Map.Entry<String, BackupManifest.Entry> e : manifest.files.entrySet()) {
+                    if (e.getValue().archiveId.equals(manifest.id))
+                        continue;
+                    ZipFile archive = archives.get(e.getValue().archiveId);
+                    FileHeader header = archive != null ? archive.getFileHeader(e.getKey()) : null;
+                    if (header == null)
+                        throw new IOException("The backup " + e.getValue().archiveId +
+                                " holding " + e.getKey() + " is missing");
+                    entries.add(new RestoreEntry(archive, header));
+                }
+            }
 
             Reader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(
                     zipFile.getFileHeader(BACKUP_PREFERENCES_PATH))));
@@ -168,13 +433,20 @@ public class BackupManager {
             }
             themeDir.mkdir();
 
-            for (Object header : zipFile.getFileHeaders()) {
-                if (!(header instanceof FileHeader))
-                    continue;
-                FileHeader fileHeader = (FileHeader) header;
+            long chatLogsSize = 0L;
+            for (RestoreEntry entry : entries) {
+                if (entry.header.getFileName().startsWith(BACKUP_CHAT_LOGS_PREFIX))
+                    chatLogsSize += entry.header.getUncompressedSize();
+            }
+            Progress progress = new Progress(chatLogsSize, listener);
+            List<UUID> restoredLogServers = new ArrayList<>();
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+
+            for (RestoreEntry entry : entries) {
+                FileHeader fileHeader = entry.header;
                 if (fileHeader.getFileName().startsWith(BACKUP_SERVER_PREFIX) &&
                         fileHeader.getFileName().endsWith(BACKUP_SERVER_SUFFIX)) {
-                    reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(
+                    reader = new BufferedReader(new InputStreamReader(entry.archive.getInputStream(
                             fileHeader)));
                     ServerConfigData data = SettingsHelper.getGson().fromJson(reader,
                             ServerConfigData.class);
@@ -191,7 +463,7 @@ public class BackupManager {
                     ServerCertificateManager helper = ServerCertificateManager.get(context,
                             UUID.fromString(uuid));
                     try {
-                        helper.loadKeyStore(zipFile.getInputStream(fileHeader));
+                        helper.loadKeyStore(entry.archive.getInputStream(fileHeader));
                         helper.saveKeyStore();
                     } catch (GeneralSecurityException exception) {
                         throw new IOException(exception);
@@ -202,7 +474,7 @@ public class BackupManager {
                     int iof = name.lastIndexOf('/');
                     if (iof != -1)
                         name = name.substring(iof + 1);
-                    zipFile.extractFile(fileHeader,
+                    entry.archive.extractFile(fileHeader,
                             ListWithCustomSetting.getCustomFilesDir(context).getAbsolutePath(),
                             null, name);
                 }
@@ -213,19 +485,26 @@ public class BackupManager {
                             BACKUP_THEME_SUFFIX.length());
                     try {
                         File extractTo = themeManager.getThemePath(UUID.fromString(uuid));
-                        zipFile.extractFile(fileHeader, extractTo.getParentFile().getAbsolutePath(),
+                        entry.archive.extractFile(fileHeader, extractTo.getParentFile().getAbsolutePath(),
                                 null, extractTo.getName());
                     } catch (IllegalArgumentException e) {
                         Log.w("BackupManager", "Failed to restore theme " + uuid);
                     }
                 }
+                if (fileHeader.getFileName().startsWith(BACKUP_CHAT_LOGS_PREFIX))
+                    restoreChatLogFile(context, entry.archive, fileHeader, restoredLogServers, buf,
+                            progress);
             }
+            for (UUID uuid : restoredLogServers)
+                ChatLogStorageManager.getInstance(context).requestReload(uuid);
+            for (ServerConfigData server : ServerConfigManager.getInstance(context).getServers())
+                ChatLogSearchIndex.getInstance(context).reopenServer(server.uuid);
 
             for (UUID uuid : removeLogServers) {
                 File f = ServerConfigManager.getInstance(context).getServerChatLogDir(uuid);
-                File[] files = f.listFiles();
-                if (files != null) {
-                    for (File ff : files)
+                File[] logFiles = f.listFiles();
+                if (logFiles != null) {
+                    for (File ff : logFiles)
                         ff.delete();
                     f.delete();
                 }
@@ -246,24 +525,101 @@ public class BackupManager {
 
             NotificationCountStorage.getInstance(context).close();
             SettingsHelper.deleteSQLiteDatabase(NotificationCountStorage.getFile(context));
-            try {
-                zipFile.extractFile(NOTIFICATION_COUNT_DB_PATH,
-                        ListWithCustomSetting.getCustomFilesDir(context).getAbsolutePath(),
-                        null, NotificationCountStorage.getFile(context).getAbsolutePath());
-            } catch (ZipException ignored) {
+            RestoreEntry notificationCount = findRestoreEntry(entries, NOTIFICATION_COUNT_DB_PATH);
+            if (notificationCount != null) {
+                try {
+                    notificationCount.archive.extractFile(notificationCount.header,
+                            ListWithCustomSetting.getCustomFilesDir(context).getAbsolutePath(),
+                            null, NotificationCountStorage.getFile(context).getAbsolutePath());
+                } catch (ZipException ignored) {
+                }
             }
             NotificationCountStorage.getInstance(context).open();
 
+            RestoreEntry dccHistoryEntry = findRestoreEntry(entries, BACKUP_DCC_HISTORY_PATH);
+            if (dccHistoryEntry != null) {
+                DCCHistory dccHistory = DCCManager.getInstance(context).getHistory();
+                synchronized (dccHistory) {
+                    dccHistory.close();
+                    File dccHistoryFile = DCCHistory.getFile(context);
+                    SettingsHelper.deleteSQLiteDatabase(dccHistoryFile);
+                    try (InputStream in = dccHistoryEntry.archive.getInputStream(
+                            dccHistoryEntry.header);
+                         OutputStream out = new FileOutputStream(dccHistoryFile)) {
+                        copyStream(in, out, buf, null);
+                    } finally {
+                        dccHistory.open();
+                    }
+                }
+            }
+
             themeManager.reloadThemes();
+
+            // The restored files no longer match the last backup this device has created
+            BackupManifest.resetLocal(context);
         } catch (ZipException e) {
             throw new IOException(e);
         }
     }
 
-    private static InputStream exportPreferencesToJson(Context context) {
+    private static BackupManifest readManifest(ZipFile zipFile) throws IOException, ZipException {
+        FileHeader header = zipFile.getFileHeader(BACKUP_MANIFEST_PATH);
+        if (header == null)
+            return null;
+        try (Reader reader = new BufferedReader(new InputStreamReader(
+                zipFile.getInputStream(header)))) {
+            return BackupManifest.read(reader);
+        }
+    }
+
+    private static RestoreEntry findRestoreEntry(List<RestoreEntry> entries, String name) {
+        for (RestoreEntry entry : entries) {
+            if (entry.header.getFileName().equals(name))
+                return entry;
+        }
+        return null;
+    }
+
+    private static void restoreChatLogFile(Context context, ZipFile zipFile, FileHeader header,
+                                           List<UUID> restoredServers, byte[] buf,
+                                           Progress progress) throws IOException, ZipException {
+        String path = header.getFileName().substring(BACKUP_CHAT_LOGS_PREFIX.length());
+        int iof = path.indexOf('/');
+        if (iof == -1)
+            return;
+        String name = path.substring(iof + 1);
+        if (name.length() == 0 || name.contains("/") || name.equals("..")) {
+            Log.w("BackupManager", "Skipping invalid chat log path " + header.getFileName());
+            return;
+        }
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(path.substring(0, iof));
+        } catch (IllegalArgumentException e) {
+            Log.w("BackupManager", "Skipping invalid chat log path " + header.getFileName());
+            return;
+        }
+        File dir = ServerConfigManager.getInstance(context).getServerChatLogDir(uuid);
+        if (!restoredServers.contains(uuid)) {
+            // Replace the current logs of the server, the search index is rebuilt from them
+            ChatLogSearchIndex.getInstance(context).closeServer(uuid);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files)
+                    f.delete();
+            }
+            dir.mkdirs();
+            restoredServers.add(uuid);
+        }
+        try (InputStream in = zipFile.getInputStream(header);
+             OutputStream out = new FileOutputStream(new File(dir, name))) {
+            copyStream(in, out, buf, progress);
+        }
+    }
+
+    private static void exportPreferencesToJson(Context context, Writer writer) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String str = SettingsHelper.getGson().toJson(prefs.getAll());
-        return new ByteArrayInputStream(str.getBytes());
+        SettingsHelper.getGson().toJson(prefs.getAll(), writer);
     }
 
     @SuppressLint("ApplySharedPref")
@@ -298,4 +654,63 @@ public class BackupManager {
         prefs.commit(); // This will be called asynchronously
     }
 
+    public interface ProgressListener {
+
+        void onProgress(long current, long total);
+
+    }
+
+    private static class BackupWriter {
+
+        final ZipOutputStream zip;
+        final ZipParameters params;
+        final byte[] buf = new byte[COPY_BUFFER_SIZE];
+        final BackupManifest base;
+        final BackupManifest manifest;
+
+        BackupWriter(ZipOutputStream zip, ZipParameters params, BackupManifest base,
+                     BackupManifest manifest) {
+            this.zip = zip;
+            this.params = params;
+            this.base = base;
+            this.manifest = manifest;
+        }
+
+    }
+
+    private static class RestoreEntry {
+
+        final ZipFile archive;
+        final FileHeader header;
+
+        RestoreEntry(ZipFile archive, FileHeader header) {
+            this.archive = archive;
+            this.header = header;
+        }
+
+    }
+
+    private static class Progress {
+
+        private final long mTotal;
+        private final ProgressListener mListener;
+        private long mCurrent = 0L;
+        private long mLastReported = 0L;
+
+        Progress(long total, ProgressListener listener) {
+            mTotal = total;
+            mListener = listener;
+        }
+
+        void add(long count) {
+            mCurrent += count;
+            // Don't report every single buffer, 0.1% steps are enough for a progress bar
+            if (mListener != null && mTotal > 0 && (mCurrent - mLastReported) * 1000 >= mTotal) {
+                mLastReported = mCurrent;
+                mListener.onProgress(Math.min(mCurrent, mTotal), mTotal);
+            }
+        }
+
+    }
+
 }
@@ -0,0 +1,134 @@
+package io.mrarm.irc.config;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Describes the state of every file stored in a backup chain. Each backup archive contains the
+ * manifest of the state it represents, and each file entry points to the archive which actually
+ * holds its contents, so that an incremental backup only has to store the changed files.
+ */
+public class BackupManifest {
+
+    private static final String LOCAL_FILE_NAME = "backup-manifest.json";
+    private static final String LOCAL_PENDING_FILE_NAME = "backup-manifest.json.pending";
+
+    /** The id of the archive this manifest was written to. */
+    public String id;
+    /** The id of the archive this one is based on, or null if it is a full backup. */
+    public String baseId;
+    /** The number of archives preceding this one in the chain. */
+    public int sequence;
+    public Map<String, Entry> files = new HashMap<>();
+
+    public static BackupManifest createFull() {
+        BackupManifest ret = new BackupManifest();
+        ret.id = UUID.randomUUID().toString();
+        return ret;
+    }
+
+    public static BackupManifest createDelta(BackupManifest base) {
+        BackupManifest ret = createFull();
+        ret.baseId = base.id;
+        ret.sequence = base.sequence + 1;
+        return ret;
+    }
+
+    public boolean isFull() {
+        return baseId == null;
+    }
+
+    public static BackupManifest read(Reader reader) {
+        return SettingsHelper.getGson().fromJson(reader, BackupManifest.class);
+    }
+
+    public void write(Writer writer) {
+        SettingsHelper.getGson().toJson(this, writer);
+    }
+
+    private static File getLocalFile(Context context) {
+        return new File(context.getFilesDir(), LOCAL_FILE_NAME);
+    }
+
+    private static File getLocalPendingFile(Context context) {
+        return new File(context.getFilesDir(), LOCAL_PENDING_FILE_NAME);
+    }
+
+    /**
+     * Loads the manifest of the last backup that was successfully saved by the user. This is the
+     * base incremental backups are created against.
+     */
+    public static BackupManifest loadLocal(Context context) {
+        File file = getLocalFile(context);
+        if (!file.exists())
+            return null;
+        try (Reader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file)))) {
+            return read(reader);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    static void savePending(Context context, BackupManifest manifest) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(getLocalPendingFile(context))))) {
+            manifest.write(writer);
+        }
+    }
+
+    /**
+     * Makes the manifest of the last created backup the base for the next incremental backup.
+     * This should only be called once the backup file has been saved.
+     */
+    public static void commitPending(Context context) {
+        File pending = getLocalPendingFile(context);
+        if (pending.exists())
+            pending.renameTo(getLocalFile(context));
+    }
+
+    public static void discardPending(Context context) {
+        getLocalPendingFile(context).delete();
+    }
+
+    /**
+     * Forgets the last backup, so that the next backup will be a full one. Used after a restore,
+     * as the restored state no longer matches the last backup chain.
+     */
+    public static void resetLocal(Context context) {
+        getLocalFile(context).delete();
+        getLocalPendingFile(context).delete();
+    }
+
+    public static class Entry {
+
+        public long size;
+        public long mtime;
+        public String hash;
+        public String archiveId;
+
+        public Entry() {
+        }
+
+        public Entry(long size, long mtime) {
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+    }
+
+}
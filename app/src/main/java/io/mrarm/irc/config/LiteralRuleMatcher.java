@@ -0,0 +1,99 @@
+package io.mrarm.irc.config;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import io.mrarm.irc.util.MultiPatternMatcher;
+
+/**
+ * Matches the regexes created by NotificationRule.setMatchText, which are a quoted literal that is
+ * optionally surrounded by the word boundary groups, using a single automaton. The results are the
+ * same as the ones of a regex search with each of them.
+ */
+class LiteralRuleMatcher {
+
+    private static final String LITERAL_START = "\\Q";
+    private static final String LITERAL_END = "\\E";
+    private static final String WORD_PREFIX = "(^|[ ,:;@])";
+    private static final String WORD_SUFFIX = "($|[ ,:;'?])";
+    private static final String WORD_START_CHARS = " ,:;@";
+    private static final String WORD_END_CHARS = " ,:;'?";
+
+    private final List<String> mText = new ArrayList<>();
+    private final List<Boolean> mCaseInsensitive = new ArrayList<>();
+    private final List<Boolean> mMatchWord = new ArrayList<>();
+    private MultiPatternMatcher mMatcher;
+    private boolean mBuilt = false;
+
+    static String createRegex(String text, boolean matchWord) {
+        if (matchWord)
+            return WORD_PREFIX + Pattern.quote(text) + WORD_SUFFIX;
+        return Pattern.quote(text);
+    }
+
+    /**
+     * Adds the regex if it is a literal one. Returns its index in the results of findMatches, or
+     * -1 if it has not been added and has to be matched as a regex.
+     */
+    int add(String regex, boolean caseInsensitive) {
+        if (mBuilt)
+            throw new IllegalStateException("The matcher has already been built");
+        if (regex == null)
+            return -1;
+        boolean matchWord = false;
+        if (regex.startsWith(WORD_PREFIX + LITERAL_START) &&
+                regex.endsWith(LITERAL_END + WORD_SUFFIX)) {
+            regex = regex.substring(WORD_PREFIX.length(), regex.length() - WORD_SUFFIX.length());
+            matchWord = true;
+        }
+        if (!regex.startsWith(LITERAL_START) || !regex.endsWith(LITERAL_END))
+            return -1;
+        String text = regex.substring(LITERAL_START.length(),
+                regex.length() - LITERAL_END.length());
+        if (text.length() == 0 || text.contains(LITERAL_END))
+            return -1;
+        mText.add(text);
+        mCaseInsensitive.add(caseInsensitive);
+        mMatchWord.add(matchWord);
+        return mText.size() - 1;
+    }
+
+    int size() {
+        return mText.size();
+    }
+
+    /**
+     * Builds the automaton. No more literals can be added afterwards.
+     */
+    void build() {
+        if (!mText.isEmpty())
+            mMatcher = new MultiPatternMatcher(mText, true);
+        mBuilt = true;
+    }
+
+    /**
+     * Returns the set of the indexes of the literals that occur in the message.
+     */
+    BitSet findMatches(String message) {
+        BitSet ret = new BitSet(mText.size());
+        if (mMatcher == null)
+            return ret;
+        mMatcher.findAll(message, (int pattern, int start, int end) -> {
+            if (ret.get(pattern))
+                return false;
+            if (!mCaseInsensitive.get(pattern) &&
+                    !message.regionMatches(start, mText.get(pattern), 0, end - start))
+                return false;
+            if (mMatchWord.get(pattern) &&
+                    ((start > 0 && WORD_START_CHARS.indexOf(message.charAt(start - 1)) == -1) ||
+                    (end < message.length() && WORD_END_CHARS.indexOf(message.charAt(end)) == -1)))
+                return false;
+            ret.set(pattern);
+            return false;
+        });
+        return ret;
+    }
+
+}
@@ -1,15 +1,19 @@
 package io.mrarm.irc.config;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -22,7 +26,9 @@ public class NotificationCountStorage {
 
     private static final int FLUSH_DELAY = 10 * 1000;
 
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 3;
+
+    private static final int MAX_CACHED_CHANNELS = 1000;
 
     public static NotificationCountStorage getInstance(Context ctx) {
         if (sInstance == null)
@@ -37,15 +43,19 @@ public class NotificationCountStorage {
     private final String mPath;
     private final Object mDatabaseLock = new Object();
     private SQLiteDatabase mDatabase;
-    private SQLiteStatement mGetNotificationCountStatement;
-    private SQLiteStatement mIncrementNotificationCountStatement;
-    private SQLiteStatement mCreateNotificationCountStatement;
-    private SQLiteStatement mGetFirstMessageIdStatement;
-    private SQLiteStatement mSetFirstMessageIdStatement;
-    private SQLiteStatement mResetFirstMessageIdStatement;
+    private SQLiteStatement mWriteChannelStatement;
+    private SQLiteStatement mDeleteChannelStatement;
     private Handler mHandler;
     private HandlerThread mHandlerThread;
-    private Map<UUID, Map<String, Integer>> mChangeQueue;
+    // Only accessed from the handler thread, the least recently used channels are evicted
+    private final Map<ChannelKey, ChannelData> mCache =
+            new LinkedHashMap<ChannelKey, ChannelData>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ChannelKey, ChannelData> eldest) {
+                    return size() > MAX_CACHED_CHANNELS;
+                }
+            };
+    private Map<UUID, Map<String, PendingChange>> mChangeQueue;
 
     public NotificationCountStorage(String path) {
         mPath = path;
@@ -61,34 +71,44 @@ public class NotificationCountStorage {
             if (mDatabase != null)
                 return;
             mDatabase = SQLiteDatabase.openOrCreateDatabase(mPath, null);
-            if (mDatabase.getVersion() < DB_VERSION) {
+            mDatabase.enableWriteAheadLogging();
+            int version = mDatabase.getVersion();
+            if (version < 2) {
                 mDatabase.execSQL("DROP TABLE IF EXISTS 'notification_count'");
+            } else if (version < 3) {
+                // Version 3 adds the primary key, which lets a whole row be written at once
+                mDatabase.beginTransaction();
+                try {
+                    mDatabase.execSQL("CREATE TABLE 'notification_count_new' (server TEXT, channel TEXT, count INTEGER, firstMessageId TEXT, PRIMARY KEY (server, channel))");
+                    mDatabase.execSQL("INSERT OR IGNORE INTO 'notification_count_new' SELECT server, channel, count, firstMessageId FROM 'notification_count'");
+                    mDatabase.execSQL("DROP TABLE 'notification_count'");
+                    mDatabase.execSQL("ALTER TABLE 'notification_count_new' RENAME TO 'notification_count'");
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
             }
-            mDatabase.execSQL("CREATE TABLE IF NOT EXISTS 'notification_count' (server TEXT, channel TEXT, count INTEGER, firstMessageId TEXT)");
-            mGetNotificationCountStatement = mDatabase.compileStatement("SELECT count FROM 'notification_count' WHERE server=?1 AND channel=?2");
-            mIncrementNotificationCountStatement = mDatabase.compileStatement("UPDATE 'notification_count' SET count=count+?3 WHERE server=?1 AND channel=?2");
-            mCreateNotificationCountStatement = mDatabase.compileStatement("INSERT INTO 'notification_count' (server, channel, count, firstMessageId) VALUES (?1, ?2, ?3, ?4)");
-            mGetFirstMessageIdStatement = mDatabase.compileStatement("SELECT firstMessageId FROM 'notification_count' WHERE server=?1 AND channel=?2");
-            mSetFirstMessageIdStatement = mDatabase.compileStatement("UPDATE 'notification_count' SET firstMessageId=?3 WHERE server=?1 AND channel=?2 AND firstMessageId IS NULL");
-            mResetFirstMessageIdStatement = mDatabase.compileStatement("UPDATE 'notification_count' SET firstMessageId=NULL WHERE server=?1 AND channel=?2");
+            mDatabase.execSQL("CREATE TABLE IF NOT EXISTS 'notification_count' (server TEXT, channel TEXT, count INTEGER, firstMessageId TEXT, PRIMARY KEY (server, channel))");
+            mWriteChannelStatement = mDatabase.compileStatement("INSERT OR REPLACE INTO 'notification_count' (server, channel, count, firstMessageId) VALUES (?1, ?2, ?3, ?4)");
+            mDeleteChannelStatement = mDatabase.compileStatement("DELETE FROM 'notification_count' WHERE server=?1 AND channel=?2");
             mDatabase.setVersion(DB_VERSION);
+            mDatabaseLock.notifyAll();
         }
     }
 
     public void close() {
         SettableFuture<Void> s = new SettableFuture<>();
         mHandler.post(() -> {
+            mHandler.removeCallbacks(mFlushQueuedChangesRunnable);
+            flushQueuedChanges();
             synchronized (mDatabaseLock) {
                 if (mDatabase != null)
                     mDatabase.close();
                 mDatabase = null;
-                mGetNotificationCountStatement = null;
-                mIncrementNotificationCountStatement = null;
-                mCreateNotificationCountStatement = null;
-                mGetFirstMessageIdStatement = null;
-                mSetFirstMessageIdStatement = null;
-                mResetFirstMessageIdStatement = null;
+                mWriteChannelStatement = null;
+                mDeleteChannelStatement = null;
             }
+            mCache.clear();
             s.set(null);
         });
         try {
@@ -116,50 +136,32 @@ public class NotificationCountStorage {
         }
     }
 
-    private int getChannelCounter(UUID server, String channel) {
-        synchronized (mDatabaseLock) {
-            waitForDatabase();
-            mGetNotificationCountStatement.bindString(1, server.toString());
-            mGetNotificationCountStatement.bindString(2, channel);
-            long ret;
-            try {
-                ret = mGetNotificationCountStatement.simpleQueryForLong();
-            } catch (SQLiteDoneException e) {
-                ret = 0;
-            }
-            mGetNotificationCountStatement.clearBindings();
-            return (int) ret;
-        }
-    }
-
-    private void incrementChannelCounter(UUID server, String channel, int i) {
+    private ChannelData getChannelData(UUID server, String channel) {
+        ChannelKey key = new ChannelKey(server, channel);
+        ChannelData ret = mCache.get(key);
+        if (ret != null)
+            return ret;
+        ret = new ChannelData();
         synchronized (mDatabaseLock) {
             waitForDatabase();
-            mIncrementNotificationCountStatement.bindString(1, server.toString());
-            mIncrementNotificationCountStatement.bindString(2, channel);
-            mIncrementNotificationCountStatement.bindLong(3, i);
-            int ii = mIncrementNotificationCountStatement.executeUpdateDelete();
-            mIncrementNotificationCountStatement.clearBindings();
-            if (ii == 0) {
-                mCreateNotificationCountStatement.bindString(1, server.toString());
-                mCreateNotificationCountStatement.bindString(2, channel);
-                mCreateNotificationCountStatement.bindLong(3, i);
-                mCreateNotificationCountStatement.bindNull(4);
-                mCreateNotificationCountStatement.execute();
-                mCreateNotificationCountStatement.clearBindings();
+            try (Cursor cursor = mDatabase.rawQuery("SELECT count, firstMessageId FROM 'notification_count' WHERE server=?1 AND channel=?2",
+                    new String[]{server.toString(), channel})) {
+                if (cursor.moveToFirst()) {
+                    ret.count = cursor.getInt(0);
+                    ret.firstMessageId = cursor.isNull(1) ? null : cursor.getString(1);
+                }
             }
         }
-    }
-
-    private void resetChannelCounter(UUID server, String channel) {
-        synchronized (mDatabaseLock) {
-            waitForDatabase();
-            mDatabase.execSQL("DELETE FROM 'notification_count' WHERE server=?1 AND channel=?2",
-                    new Object[]{server.toString(), channel});
-        }
+        mCache.put(key, ret);
+        return ret;
     }
 
     private void removeServerCounters(UUID server) {
+        Iterator<ChannelKey> it = mCache.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().server.equals(server))
+                it.remove();
+        }
         synchronized (mDatabaseLock) {
             waitForDatabase();
             mDatabase.execSQL("DELETE FROM 'notification_count' WHERE server=?1",
@@ -167,124 +169,195 @@ public class NotificationCountStorage {
         }
     }
 
-    private String getFirstMessageId(UUID server, String channel) {
-        synchronized (mDatabaseLock) {
-            waitForDatabase();
-            mGetFirstMessageIdStatement.bindString(1, server.toString());
-            mGetFirstMessageIdStatement.bindString(2, channel);
-            String ret;
-            try {
-                ret = mGetFirstMessageIdStatement.simpleQueryForString();
-            } catch (SQLiteDoneException ignored) {
-                ret = null;
+    private void flushQueuedChanges() {
+        Map<UUID, Map<String, PendingChange>> map;
+        synchronized (this) {
+            map = mChangeQueue;
+            mChangeQueue = null;
+        }
+        if (map == null)
+            return;
+        List<UUID> servers = new ArrayList<>();
+        List<String> channels = new ArrayList<>();
+        List<ChannelData> newData = new ArrayList<>();
+        for (Map.Entry<UUID, Map<String, PendingChange>> vals : map.entrySet()) {
+            for (Map.Entry<String, PendingChange> v : vals.getValue().entrySet()) {
+                servers.add(vals.getKey());
+                channels.add(v.getKey());
+                newData.add(v.getValue().applyTo(getChannelData(vals.getKey(), v.getKey())));
             }
-            mGetFirstMessageIdStatement.clearBindings();
-            return ret;
         }
-    }
-
-    private void setFirstMessageId(UUID server, String channel, String messageId) {
         synchronized (mDatabaseLock) {
             waitForDatabase();
-            mSetFirstMessageIdStatement.bindString(1, server.toString());
-            mSetFirstMessageIdStatement.bindString(2, channel);
-            mSetFirstMessageIdStatement.bindString(3, messageId);
-            int ii = mSetFirstMessageIdStatement.executeUpdateDelete();
-            mSetFirstMessageIdStatement.clearBindings();
-            if (ii == 0) {
-                mCreateNotificationCountStatement.bindString(1, server.toString());
-                mCreateNotificationCountStatement.bindString(2, channel);
-                mCreateNotificationCountStatement.bindLong(3, 0);
-                mCreateNotificationCountStatement.bindString(4, messageId);
-                mCreateNotificationCountStatement.execute();
-                mCreateNotificationCountStatement.clearBindings();
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < servers.size(); i++) {
+                    ChannelData data = newData.get(i);
+                    if (data.count == 0 && data.firstMessageId == null) {
+                        mDeleteChannelStatement.bindString(1, servers.get(i).toString());
+                        mDeleteChannelStatement.bindString(2, channels.get(i));
+                        mDeleteChannelStatement.executeUpdateDelete();
+                        mDeleteChannelStatement.clearBindings();
+                        continue;
+                    }
+                    mWriteChannelStatement.bindString(1, servers.get(i).toString());
+                    mWriteChannelStatement.bindString(2, channels.get(i));
+                    mWriteChannelStatement.bindLong(3, data.count);
+                    if (data.firstMessageId != null)
+                        mWriteChannelStatement.bindString(4, data.firstMessageId);
+                    else
+                        mWriteChannelStatement.bindNull(4);
+                    mWriteChannelStatement.executeInsert();
+                    mWriteChannelStatement.clearBindings();
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
             }
         }
+        for (int i = 0; i < servers.size(); i++)
+            mCache.put(new ChannelKey(servers.get(i), channels.get(i)), newData.get(i));
     }
 
-    private void resetFirstMessageId(UUID server, String channel) {
-        synchronized (mDatabaseLock) {
-            waitForDatabase();
-            mResetFirstMessageIdStatement.bindString(1, server.toString());
-            mResetFirstMessageIdStatement.bindString(2, channel);
-            mResetFirstMessageIdStatement.executeUpdateDelete();
-            mResetFirstMessageIdStatement.clearBindings();
+    private PendingChange getPendingChange(UUID server, String channel) {
+        if (mChangeQueue == null) {
+            mChangeQueue = new HashMap<>();
+            mHandler.postDelayed(mFlushQueuedChangesRunnable, FLUSH_DELAY);
         }
-    }
-
-    private void flushQueuedChanges() {
-        Map<UUID, Map<String, Integer>> map;
-        synchronized (this) {
-            map = mChangeQueue;
-            mChangeQueue = null;
+        Map<String, PendingChange> m = mChangeQueue.get(server);
+        if (m == null) {
+            m = new HashMap<>();
+            mChangeQueue.put(server, m);
         }
-        if (map == null)
-            return;
-        for (Map.Entry<UUID, Map<String, Integer>> vals : map.entrySet()) {
-            for (Map.Entry<String, Integer> v : vals.getValue().entrySet()) {
-                incrementChannelCounter(vals.getKey(), v.getKey(), v.getValue());
-            }
+        PendingChange ret = m.get(channel);
+        if (ret == null) {
+            ret = new PendingChange();
+            m.put(channel, ret);
         }
+        return ret;
     }
 
     public void requestGetChannelCounter(UUID server, String channel, WeakReference<OnChannelCounterResult> result) {
         mHandler.post(() -> {
-            mHandler.removeCallbacks(mFlushQueuedChangesRunnable);
-            flushQueuedChanges();
-
-            int res = getChannelCounter(server, channel);
-            String msgId = getFirstMessageId(server, channel);
+            ChannelData data = getChannelData(server, channel);
+            synchronized (this) {
+                if (mChangeQueue != null && mChangeQueue.containsKey(server)) {
+                    PendingChange change = mChangeQueue.get(server).get(channel);
+                    if (change != null)
+                        data = change.applyTo(data);
+                }
+            }
             OnChannelCounterResult cb = result.get();
             if (cb != null)
-                cb.onChannelCounterResult(server, channel, res, msgId);
+                cb.onChannelCounterResult(server, channel, data.count, data.firstMessageId);
         });
     }
 
     public void requestIncrementChannelCounter(UUID server, String channel) {
         synchronized (this) {
-            boolean requestQueue = false;
-            if (mChangeQueue == null) {
-                mChangeQueue = new HashMap<>();
-                requestQueue = true;
-            }
-            if (!mChangeQueue.containsKey(server))
-                mChangeQueue.put(server, new HashMap<>());
-            Map<String, Integer> m = mChangeQueue.get(server);
-            Integer i = m.get(channel);
-            m.put(channel, (i == null ? 0 : i) + 1);
-            if (requestQueue)
-                mHandler.postDelayed(mFlushQueuedChangesRunnable, FLUSH_DELAY);
+            getPendingChange(server, channel).countDelta++;
         }
     }
 
     public void requestResetChannelCounter(UUID server, String channel) {
         synchronized (this) {
-            if (mChangeQueue != null && mChangeQueue.containsKey(server))
-                mChangeQueue.get(server).remove(channel);
+            PendingChange change = getPendingChange(server, channel);
+            change.clearRow = true;
+            change.countDelta = 0;
+            change.resetFirstMessageId = false;
+            change.setFirstMessageId = null;
         }
-        mHandler.post(() -> {
-            mHandler.removeCallbacks(mFlushQueuedChangesRunnable);
-            flushQueuedChanges();
-
-            resetChannelCounter(server, channel);
-        });
+        requestFlush();
     }
 
     public void requestRemoveServerCounters(UUID server) {
-        mHandler.post(() -> {
-            mHandler.removeCallbacks(mFlushQueuedChangesRunnable);
-            flushQueuedChanges();
-
-            removeServerCounters(server);
-        });
+        synchronized (this) {
+            if (mChangeQueue != null)
+                mChangeQueue.remove(server);
+        }
+        mHandler.post(() -> removeServerCounters(server));
     }
 
     public void requestSetFirstMessageId(UUID server, String channel, String messageId) {
-        mHandler.post(() -> setFirstMessageId(server, channel, messageId));
+        synchronized (this) {
+            PendingChange change = getPendingChange(server, channel);
+            if (change.setFirstMessageId == null)
+                change.setFirstMessageId = messageId;
+        }
     }
 
     public void requestResetFirstMessageId(UUID server, String channel) {
-        mHandler.post(() -> resetFirstMessageId(server, channel));
+        synchronized (this) {
+            PendingChange change = getPendingChange(server, channel);
+            change.resetFirstMessageId = true;
+            change.setFirstMessageId = null;
+        }
+        requestFlush();
+    }
+
+    private void requestFlush() {
+        mHandler.removeCallbacks(mFlushQueuedChangesRunnable);
+        mHandler.post(mFlushQueuedChangesRunnable);
+    }
+
+    private static class ChannelKey {
+
+        final UUID server;
+        final String channel;
+
+        ChannelKey(UUID server, String channel) {
+            this.server = server;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChannelKey))
+                return false;
+            ChannelKey key = (ChannelKey) o;
+            return server.equals(key.server) && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return server.hashCode() * 31 + channel.hashCode();
+        }
+
+    }
+
+    private static class ChannelData {
+
+        int count;
+        String firstMessageId;
+
+    }
+
+    /**
+     * All the changes to a single channel row queued since the last flush. The changes are applied
+     * in the following order: clearing the row, resetting the first message id, setting the first
+     * message id (only if it's not set) and finally incrementing the counter.
+     */
+    private static class PendingChange {
+
+        boolean clearRow;
+        boolean resetFirstMessageId;
+        String setFirstMessageId;
+        int countDelta;
+
+        ChannelData applyTo(ChannelData data) {
+            ChannelData ret = new ChannelData();
+            if (!clearRow) {
+                ret.count = data.count;
+                ret.firstMessageId = data.firstMessageId;
+            }
+            if (resetFirstMessageId)
+                ret.firstMessageId = null;
+            if (setFirstMessageId != null && ret.firstMessageId == null)
+                ret.firstMessageId = setFirstMessageId;
+            ret.count += countDelta;
+            return ret;
+        }
+
     }
 
     public interface OnChannelCounterResult {
@@ -68,13 +68,11 @@ public class NotificationRule {
         this.regex = regex;
         this.regexCaseInsensitive = caseInsensitive;
         updateRegex();
+        NotificationRuleManager.onRulesChanged();
     }
 
     public void setMatchText(String text, boolean matchWord, boolean caseInsensitive) {
-        if (matchWord)
-            setRegex("(^|[ ,:;@])" + Pattern.quote(text) + "($|[ ,:;'?])", caseInsensitive);
-        else
-            setRegex(Pattern.quote(text), caseInsensitive);
+        setRegex(LiteralRuleMatcher.createRegex(text, matchWord), caseInsensitive);
     }
 
     public List<AppliesToEntry> getAppliesTo() {
@@ -83,6 +81,7 @@ public class NotificationRule {
 
     public void setAppliesTo(List<AppliesToEntry> appliesTo) {
         this.appliesTo = appliesTo;
+        NotificationRuleManager.onRulesChanged();
     }
 
     public void updateRegex() {
@@ -122,7 +121,7 @@ public class NotificationRule {
             return false;
         boolean isNotice = message.getType() == MessageInfo.MessageType.NOTICE;
         for (AppliesToEntry entry : appliesTo) {
-            if (entry.server != null && entry.server != conn.getServerUUID())
+            if (entry.server != null && !entry.server.equals(conn.getServerUUID()))
                 continue;
             if (channel == null) {
                 if ((isNotice && !entry.matchDirectNotices) ||
@@ -28,6 +28,9 @@ public class NotificationRuleManager {
     static List<NotificationRule> sDefaultBottomRules;
     static List<NotificationRule> sUserRules;
     private static boolean sUserRulesLoaded;
+    private static int sRulesVersion;
+    private static NotificationRuleMatcher sRuleMatcher;
+    private static int sRuleMatcherVersion;
 
     private static class UserRuleSettings {
 
@@ -80,6 +83,7 @@ public class NotificationRuleManager {
             sDirectNoticeRule.settings.mentionFormatting = false;
         }
         sUserRules = settings.userRules;
+        onRulesChanged();
     }
 
     public static boolean loadUserRuleSettings(Context context) {
@@ -110,6 +114,7 @@ public class NotificationRuleManager {
     }
 
     public static boolean saveUserRuleSettings(Context context) {
+        onRulesChanged();
         try {
             BufferedWriter writer = new BufferedWriter(new FileWriter(
                     new File(context.getFilesDir(), RULES_PATH)));
@@ -124,12 +129,34 @@ public class NotificationRuleManager {
     public static List<NotificationRule> getUserRules(Context context) {
         if (sUserRules == null) {
             loadUserRuleSettings(context);
-            if (sUserRules == null)
+            if (sUserRules == null) {
                 sUserRules = new ArrayList<>();
+                onRulesChanged();
+            }
         }
         return sUserRules;
     }
 
+    public static synchronized void onRulesChanged() {
+        sRulesVersion++;
+    }
+
+    public static synchronized int getRulesVersion() {
+        return sRulesVersion;
+    }
+
+    public static NotificationRuleMatcher getRuleMatcher(Context context) {
+        List<NotificationRule> userRules = getUserRules(context);
+        synchronized (NotificationRuleManager.class) {
+            if (sRuleMatcher == null || sRuleMatcherVersion != sRulesVersion) {
+                sRuleMatcher = new NotificationRuleMatcher(sDefaultTopRules, userRules,
+                        sDefaultBottomRules);
+                sRuleMatcherVersion = sRulesVersion;
+            }
+            return sRuleMatcher;
+        }
+    }
+
     public static List<NotificationRule> getDefaultTopRules() {
         return sDefaultTopRules;
     }
@@ -0,0 +1,181 @@
+package io.mrarm.irc.config;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.irc.NotificationManager;
+
+/**
+ * A compiled form of the notification rule lists. The AppliesToEntry predicates are turned into
+ * hashed indexes and the plain text rules created using setMatchText are merged into a single
+ * automaton, so that a message only needs a single pass over its text instead of a regex search
+ * for every rule.
+ */
+public class NotificationRuleMatcher {
+
+    private static final int KIND_DIRECT_MESSAGE = 0;
+    private static final int KIND_DIRECT_NOTICE = 1;
+    private static final int KIND_CHANNEL_MESSAGE = 2;
+    private static final int KIND_CHANNEL_NOTICE = 3;
+
+    private final NotificationRule[] mRules;
+    private final int[] mRuleLiteral;
+    private final int[] mEntryRule;
+
+    private final BitSet[] mKindEntries = new BitSet[4];
+    private final IndexedSet<UUID> mServerEntries;
+    private final IndexedSet<String> mChannelEntries;
+    private final IndexedSet<String> mNickEntries;
+    private final IndexedSet<String> mBatchEntries;
+    private final BitSet mNoBatchEntries;
+
+    private final LiteralRuleMatcher mLiteralMatcher = new LiteralRuleMatcher();
+
+    @SafeVarargs
+    public NotificationRuleMatcher(List<NotificationRule>... ruleLists) {
+        List<NotificationRule> rules = new ArrayList<>();
+        for (List<NotificationRule> list : ruleLists)
+            rules.addAll(list);
+        mRules = rules.toArray(new NotificationRule[0]);
+        mRuleLiteral = new int[mRules.length];
+
+        List<NotificationRule.AppliesToEntry> entries = new ArrayList<>();
+        List<Integer> entryRules = new ArrayList<>();
+        for (int i = 0; i < mRules.length; i++) {
+            NotificationRule rule = mRules[i];
+            for (NotificationRule.AppliesToEntry entry : rule.getAppliesTo()) {
+                entries.add(entry);
+                entryRules.add(i);
+            }
+            mRuleLiteral[i] = mLiteralMatcher.add(rule.getRegex(),
+                    rule.isRegexCaseInsensitive());
+        }
+        mLiteralMatcher.build();
+
+        mEntryRule = new int[entries.size()];
+        for (int i = 0; i < mEntryRule.length; i++)
+            mEntryRule[i] = entryRules.get(i);
+
+        for (int i = 0; i < mKindEntries.length; i++)
+            mKindEntries[i] = new BitSet();
+        mServerEntries = new IndexedSet<>();
+        mChannelEntries = new IndexedSet<>();
+        mNickEntries = new IndexedSet<>();
+        mBatchEntries = new IndexedSet<>();
+        mNoBatchEntries = new BitSet();
+        for (int i = 0; i < entries.size(); i++) {
+            NotificationRule.AppliesToEntry entry = entries.get(i);
+            if (entry.matchDirectMessages)
+                mKindEntries[KIND_DIRECT_MESSAGE].set(i);
+            if (entry.matchDirectNotices)
+                mKindEntries[KIND_DIRECT_NOTICE].set(i);
+            if (entry.matchChannelMessages)
+                mKindEntries[KIND_CHANNEL_MESSAGE].set(i);
+            if (entry.matchChannelNotices)
+                mKindEntries[KIND_CHANNEL_NOTICE].set(i);
+            mServerEntries.add(i, entry.server == null ? null : singletonList(entry.server));
+            mChannelEntries.add(i, entry.channels);
+            mNickEntries.add(i, entry.nicks);
+            mBatchEntries.add(i, entry.messageBatches);
+            if (entry.messageBatches == null)
+                mNoBatchEntries.set(i);
+        }
+        mServerEntries.finish();
+        mChannelEntries.finish();
+        mNickEntries.finish();
+        mBatchEntries.finish();
+    }
+
+    private static <T> List<T> singletonList(T value) {
+        List<T> ret = new ArrayList<>(1);
+        ret.add(value);
+        return ret;
+    }
+
+    public NotificationRule findRule(NotificationManager.ConnectionManager conn, String channel,
+                                     MessageInfo message) {
+        boolean isNotice = message.getType() == MessageInfo.MessageType.NOTICE;
+        int kind;
+        if (channel == null)
+            kind = isNotice ? KIND_DIRECT_NOTICE : KIND_DIRECT_MESSAGE;
+        else
+            kind = isNotice ? KIND_CHANNEL_NOTICE : KIND_CHANNEL_MESSAGE;
+        BitSet candidates = (BitSet) mKindEntries[kind].clone();
+        candidates.and(mServerEntries.get(conn.getServerUUID()));
+        if (channel != null)
+            candidates.and(mChannelEntries.get(channel));
+        candidates.and(mNickEntries.get(message.getSender().getNick()));
+        if (message.getBatch() != null)
+            candidates.and(mBatchEntries.get(message.getBatch().getType()));
+        else
+            candidates.and(mNoBatchEntries);
+
+        BitSet literalMatches = null;
+        int lastRule = -1;
+        for (int e = candidates.nextSetBit(0); e >= 0; e = candidates.nextSetBit(e + 1)) {
+            int ruleIndex = mEntryRule[e];
+            if (ruleIndex == lastRule)
+                continue;
+            lastRule = ruleIndex;
+            NotificationRule rule = mRules[ruleIndex];
+            if (!rule.settings.enabled)
+                continue;
+            int literal = mRuleLiteral[ruleIndex];
+            if (literal != -1) {
+                if (literalMatches == null)
+                    literalMatches = mLiteralMatcher.findMatches(message.getMessage());
+                if (!literalMatches.get(literal))
+                    continue;
+            } else if (rule.getRegex() != null) {
+                Pattern pattern = rule.getCompiledPattern(conn);
+                if (!pattern.matcher(message.getMessage()).find())
+                    continue;
+            }
+            return rule;
+        }
+        return null;
+    }
+
+    /**
+     * Maps a key to the set of entries which either list the key or do not restrict the value
+     * at all.
+     */
+    private static class IndexedSet<K> {
+
+        private final BitSet mAny = new BitSet();
+        private final Map<K, BitSet> mKeyed = new HashMap<>();
+
+        void add(int entry, List<K> keys) {
+            if (keys == null) {
+                mAny.set(entry);
+                return;
+            }
+            for (K key : keys) {
+                BitSet set = mKeyed.get(key);
+                if (set == null) {
+                    set = new BitSet();
+                    mKeyed.put(key, set);
+                }
+                set.set(entry);
+            }
+        }
+
+        void finish() {
+            for (BitSet set : mKeyed.values())
+                set.or(mAny);
+        }
+
+        BitSet get(K key) {
+            BitSet ret = mKeyed.get(key);
+            return ret != null ? ret : mAny;
+        }
+
+    }
+
+}
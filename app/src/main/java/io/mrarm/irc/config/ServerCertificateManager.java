@@ -64,6 +64,7 @@ public class ServerCertificateManager {
     private File mKeyStoreFile;
     private KeyStore mKeyStore;
     private X509TrustManager mKeyStoreTrustManager;
+    private int mVersion = 0;
 
     private ServerCertificateManager(File keyStoreFile) {
         mKeyStoreFile = keyStoreFile;
@@ -94,6 +95,7 @@ public class ServerCertificateManager {
         synchronized (this) {
             mKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
             mKeyStore.load(stream, null);
+            onKeyStoreChanged();
         }
     }
 
@@ -125,6 +127,7 @@ public class ServerCertificateManager {
             try {
                 createKeyStoreIfNull();
                 mKeyStore.setCertificateEntry("cert-" + UUID.randomUUID(), certificate);
+                onKeyStoreChanged();
                 if (mKeyStoreFile != null)
                     saveKeyStore();
             } catch (Exception e) {
@@ -140,6 +143,7 @@ public class ServerCertificateManager {
                 return;
             try {
                 mKeyStore.deleteEntry(alias);
+                onKeyStoreChanged();
                 if (mKeyStoreFile != null)
                     saveKeyStore();
             } catch (Exception e) {
@@ -149,6 +153,20 @@ public class ServerCertificateManager {
         }
     }
 
+    private void onKeyStoreChanged() {
+        mKeyStoreTrustManager = null;
+        mVersion++;
+    }
+
+    /**
+     * Returns a number which changes every time the trusted certificates are modified.
+     */
+    public int getVersion() {
+        synchronized (this) {
+            return mVersion;
+        }
+    }
+
     public List<String> getCertificateAliases() {
         synchronized (this) {
             if (mKeyStore == null)
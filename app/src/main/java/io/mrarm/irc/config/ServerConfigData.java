@@ -13,10 +13,9 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.List;
 import java.util.UUID;
-import java.util.regex.Pattern;
 
 import io.mrarm.irc.R;
-import io.mrarm.irc.util.SimpleWildcardPattern;
+import io.mrarm.irc.util.IgnoreListIndex;
 
 public class ServerConfigData {
 
@@ -48,8 +47,10 @@ public class ServerConfigData {
     public List<String> execCommandsConnected;
 
     public List<IgnoreEntry> ignoreList;
+    private transient volatile IgnoreListIndex ignoreListIndex;
 
     public long storageLimit;
+    public List<ChannelRetentionRule> channelRetentionRules;
 
     public void migrateLegacyProperties() {
         if (authMode != null && authMode.equals(AUTH_LEGACY_PASSWORD)) {
@@ -59,6 +60,31 @@ public class ServerConfigData {
         }
     }
 
+    public IgnoreListIndex getIgnoreListIndex() {
+        IgnoreListIndex index = ignoreListIndex;
+        if (index == null)
+            index = ignoreListIndex = new IgnoreListIndex(ignoreList);
+        return index;
+    }
+
+    /**
+     * Replaces the ignore list index with one built from the current ignore list. The old index
+     * stays in use until the new one is fully built.
+     */
+    public void rebuildIgnoreListIndex() {
+        ignoreListIndex = new IgnoreListIndex(ignoreList);
+    }
+
+    public ChannelRetentionRule getChannelRetentionRule(String channel) {
+        if (channelRetentionRules == null)
+            return null;
+        for (ChannelRetentionRule rule : channelRetentionRules) {
+            if (rule.channel.equalsIgnoreCase(channel))
+                return rule;
+        }
+        return null;
+    }
+
     public X509Certificate getAuthCert() {
         if (authCertData == null)
             return null;
@@ -93,19 +119,25 @@ public class ServerConfigData {
         public String user;
         public String host;
         public String comment;
-        public transient Pattern nickRegex;
-        public transient Pattern userRegex;
-        public transient Pattern hostRegex;
 
         public boolean matchDirectMessages = true;
         public boolean matchDirectNotices = true;
         public boolean matchChannelMessages = true;
         public boolean matchChannelNotices = true;
 
-        public void updateRegexes() {
-            nickRegex = SimpleWildcardPattern.compile(nick);
-            userRegex = SimpleWildcardPattern.compile(user);
-            hostRegex = SimpleWildcardPattern.compile(host);
+    }
+
+    public static class ChannelRetentionRule {
+
+        public String channel;
+
+        // Zero means no limit
+        public int maxAgeDays;
+        public int maxMessages;
+        public long maxSize;
+
+        public boolean hasLimits() {
+            return maxAgeDays > 0 || maxMessages > 0 || maxSize > 0L;
         }
 
     }
@@ -17,7 +17,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import io.mrarm.irc.ChatLogSearchIndex;
 import io.mrarm.irc.ServerConnectionManager;
+import io.mrarm.irc.ServerSSLContextCache;
 
 public class ServerConfigManager {
 
@@ -33,7 +35,7 @@ public class ServerConfigManager {
     private static final String SERVER_LOGS_PATH = "chat-logs";
     private static final String SERVER_MISC_DATA_FILENAME = "misc-data.db";
 
-    public static ServerConfigManager getInstance(Context context) {
+    public static synchronized ServerConfigManager getInstance(Context context) {
         if (mInstance == null)
             mInstance = new ServerConfigManager(context.getApplicationContext());
         return mInstance;
@@ -132,6 +134,7 @@ public class ServerConfigManager {
 
     public void saveServer(ServerConfigData data) throws IOException {
         boolean existed = false;
+        data.rebuildIgnoreListIndex();
         synchronized (this) {
             if (mServersMap.containsKey(data.uuid)) {
                 existed = true;
@@ -159,6 +162,8 @@ public class ServerConfigManager {
 
     public void deleteServer(ServerConfigData data, boolean deleteLogs) {
         ServerConnectionManager.getInstance(mContext).killDisconnectingConnection(data.uuid);
+        ServerSSLContextCache.invalidate(data.uuid);
+        ChatLogSearchIndex.getInstance(mContext).closeServer(data.uuid);
         synchronized (this) {
             mServers.remove(data);
             mServersMap.remove(data.uuid);
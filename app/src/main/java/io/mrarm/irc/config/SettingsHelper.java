@@ -11,8 +11,6 @@ import com.google.gson.Gson;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -85,10 +83,25 @@ public class SettingsHelper implements SharedPreferences.OnSharedPreferenceChang
         for (File file : getCustomFiles())
             file.delete();
         mPreferences.edit().clear().commit();
+        invalidateValues();
+    }
+
+    private static void invalidateValues() {
+        AppSettings.invalidate();
+        ChatSettings.invalidate();
+        NickAutocompleteSettings.invalidate();
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key == null) {
+            // All of the preferences were cleared
+            invalidateValues();
+            return;
+        }
+        AppSettings.onPreferenceChanged(key);
+        ChatSettings.onPreferenceChanged(key);
+        NickAutocompleteSettings.onPreferenceChanged(key);
         if (sListeners.containsKey(key)) {
             for (SettingChangeCallback l : sListeners.get(key))
                 l.onSettingChanged(key);
@@ -158,10 +171,10 @@ public class SettingsHelper implements SharedPreferences.OnSharedPreferenceChang
                 }
                 globalList.add(cb);
             }
-            List<SettingChangeCallback> localList = sListeners.get(property);
+            List<SettingChangeCallback> localList = mCallbacks.get(property);
             if (localList == null) {
                 localList = new ArrayList<>();
-                sListeners.put(property, localList);
+                mCallbacks.put(property, localList);
             }
             localList.add(cb);
             return this;
@@ -186,39 +199,21 @@ public class SettingsHelper implements SharedPreferences.OnSharedPreferenceChang
     }
 
 
-    private static final HashMap<Class<?>, ClassCallbackInfo> sCallbacks = new HashMap<>();
     private static final WeakHashMap<Object, WeakReference<ListenerHandle>> sRegisteredListeners = new WeakHashMap<>();
     private static final Handler sUiHandler = new Handler(Looper.getMainLooper());
 
-    private static synchronized ClassCallbackInfo resolveCallbacks(Class<?> c) {
-        ClassCallbackInfo i = sCallbacks.get(c);
-        if (i != null)
-            return i;
-        i = new ClassCallbackInfo();
-        sCallbacks.put(c, i);
-        for (Method m : c.getDeclaredMethods()) {
-            m.setAccessible(true);
-            io.mrarm.irc.config.SettingChangeCallback a =
-                    m.getAnnotation(io.mrarm.irc.config.SettingChangeCallback.class);
-            if (a != null)
-                i.methods.add(new ClassCallbackInfo.MethodInfo(m, a.keys(), false));
-
-            io.mrarm.irc.config.UiSettingChangeCallback a2 =
-                    m.getAnnotation(io.mrarm.irc.config.UiSettingChangeCallback.class);
-            if (a2 != null)
-                i.methods.add(new ClassCallbackInfo.MethodInfo(m, a2.keys(), true));
-        }
-        return i;
-    }
-
+    @SuppressWarnings("unchecked")
     public static synchronized void registerCallbacks(Object o) {
         if (sRegisteredListeners.containsKey(o))
             return;
-        ClassCallbackInfo c = resolveCallbacks(o.getClass());
+        CallbackTable<Object> table = (CallbackTable<Object>) SettingCallbackTables.get(
+                o.getClass());
+        if (table == null)
+            return;
         ListenerHandle handle = changeEvent();
-        for (ClassCallbackInfo.MethodInfo m : c.methods) {
-            SettingChangeCallback cb = m.createCallback(o);
-            for (String k : m.keys)
+        for (int i = 0; i < table.getMethodCount(); i++) {
+            SettingChangeCallback cb = table.createCallback(o, i);
+            for (String k : table.getKeys(i))
                 handle.listen(k, cb);
         }
         sRegisteredListeners.put(o, new WeakReference<>(handle));
@@ -233,55 +228,42 @@ public class SettingsHelper implements SharedPreferences.OnSharedPreferenceChang
         }
     }
 
-    private static class ClassCallbackInfo {
+    /**
+     * The methods of a class annotated with SettingChangeCallback or UiSettingChangeCallback. The
+     * implementations are generated at build time and call the methods directly.
+     */
+    public abstract static class CallbackTable<T> {
 
-        private static class MethodInfo {
-            private Method method;
-            private String[] keys;
-            private boolean onUi;
+        private final String[][] mKeys;
+        private final boolean[] mOnUi;
 
-            private MethodInfo(Method method, String[] keys, boolean onUi) {
-                this.method = method;
-                this.keys = keys;
-                this.onUi = onUi;
-            }
+        protected CallbackTable(String[][] keys, boolean[] onUi) {
+            mKeys = keys;
+            mOnUi = onUi;
+        }
 
-            private SettingChangeCallback createBaseCallback(Object o) {
-                if (this.method.getParameterTypes().length > 0) {
-                    return (n) -> {
-                        try {
-                            this.method.invoke(o, n);
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                } else {
-                    return (n) -> {
-                        try {
-                            this.method.invoke(o);
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                }
-            }
+        int getMethodCount() {
+            return mKeys.length;
+        }
 
-            private SettingChangeCallback createCallback(Object o) {
-                if (onUi) {
-                    SettingChangeCallback base = createBaseCallback(o);
-                    return (n) -> {
-                        if (Looper.getMainLooper().getThread() == Thread.currentThread())
-                            base.onSettingChanged(n);
-                        else
-                            sUiHandler.post(() -> base.onSettingChanged(n));
-                    };
-                } else {
-                    return createBaseCallback(o);
-                }
-            }
+        String[] getKeys(int method) {
+            return mKeys[method];
         }
 
-        private List<MethodInfo> methods = new ArrayList<>();
+        public abstract void invoke(T target, int method, String key);
+
+        private SettingChangeCallback createCallback(T target, int method) {
+            if (mOnUi[method]) {
+                return (n) -> {
+                    if (Looper.getMainLooper().getThread() == Thread.currentThread())
+                        invoke(target, method, n);
+                    else
+                        sUiHandler.post(() -> invoke(target, method, n));
+                };
+            } else {
+                return (n) -> invoke(target, method, n);
+            }
+        }
 
     }
 
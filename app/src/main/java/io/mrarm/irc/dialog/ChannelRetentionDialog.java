@@ -0,0 +1,90 @@
+package io.mrarm.irc.dialog;
+
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
+import android.view.LayoutInflater;
+import android.widget.EditText;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.mrarm.irc.R;
+import io.mrarm.irc.config.ServerConfigData;
+import io.mrarm.irc.config.ServerConfigManager;
+
+public class ChannelRetentionDialog extends AlertDialog {
+
+    private ServerConfigData mServer;
+    private String mChannel;
+    private EditText mMaxAge;
+    private EditText mMaxMessages;
+    private EditText mMaxSize;
+
+    public ChannelRetentionDialog(@NonNull Context context, ServerConfigData server,
+                                  String channel) {
+        super(context);
+
+        setTitle(channel);
+        setButton(AlertDialog.BUTTON_POSITIVE, getContext().getString(R.string.action_ok), (DialogInterface di, int i) -> {
+            save();
+        });
+        setButton(AlertDialog.BUTTON_NEGATIVE, getContext().getString(R.string.action_cancel), (DialogInterface di, int i) -> {
+        });
+
+        mServer = server;
+        mChannel = channel;
+        setView(LayoutInflater.from(context).inflate(R.layout.dialog_channel_retention, null));
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mMaxAge = findViewById(R.id.max_age);
+        mMaxMessages = findViewById(R.id.max_messages);
+        mMaxSize = findViewById(R.id.max_size);
+        ServerConfigData.ChannelRetentionRule rule = mServer.getChannelRetentionRule(mChannel);
+        if (rule != null) {
+            if (rule.maxAgeDays > 0)
+                mMaxAge.setText(String.valueOf(rule.maxAgeDays));
+            if (rule.maxMessages > 0)
+                mMaxMessages.setText(String.valueOf(rule.maxMessages));
+            if (rule.maxSize > 0L)
+                mMaxSize.setText(String.valueOf(Math.max(rule.maxSize / 1024L / 1024L, 1L)));
+        }
+    }
+
+    private static int getValue(EditText editText) {
+        try {
+            return Math.max(Integer.parseInt(editText.getText().toString()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void save() {
+        ServerConfigData.ChannelRetentionRule rule = new ServerConfigData.ChannelRetentionRule();
+        rule.channel = mChannel;
+        rule.maxAgeDays = getValue(mMaxAge);
+        rule.maxMessages = getValue(mMaxMessages);
+        rule.maxSize = getValue(mMaxSize) * 1024L * 1024L;
+        // The rules are read by ChatLogStorageManager on its own thread, so the list is replaced
+        // instead of being modified
+        List<ServerConfigData.ChannelRetentionRule> rules = new ArrayList<>();
+        if (mServer.channelRetentionRules != null)
+            rules.addAll(mServer.channelRetentionRules);
+        rules.remove(mServer.getChannelRetentionRule(mChannel));
+        if (rule.hasLimits())
+            rules.add(rule);
+        mServer.channelRetentionRules = rules;
+        try {
+            ServerConfigManager.getInstance(getContext()).saveServer(mServer);
+        } catch (IOException ignored) {
+        }
+    }
+
+}
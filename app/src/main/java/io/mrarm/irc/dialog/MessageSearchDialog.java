@@ -0,0 +1,164 @@
+package io.mrarm.irc.dialog;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.view.View;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+import io.mrarm.irc.ChatLogSearchIndex;
+import io.mrarm.irc.MainActivity;
+import io.mrarm.irc.R;
+import io.mrarm.irc.ServerConnectionInfo;
+import io.mrarm.irc.util.ClickableRecyclerViewAdapter;
+import io.mrarm.irc.util.StyledAttributesHelper;
+
+public class MessageSearchDialog extends SearchDialog {
+
+    private static final int SEARCH_DELAY = 250;
+    private static final int MAX_RESULTS = 50;
+
+    private final ServerConnectionInfo mConnection;
+    private final String mChannel;
+    private final ChatLogSearchIndex mSearchIndex;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ResultsAdapter mAdapter;
+    private String mQuery;
+    private int mSearchGeneration = 0;
+
+    public MessageSearchDialog(@NonNull Context context, ServerConnectionInfo connection,
+                               String channel) {
+        super(context);
+        mConnection = connection;
+        mChannel = channel;
+        mSearchIndex = ChatLogSearchIndex.getInstance(context);
+        mSearchIndex.requestBackfill(connection);
+
+        getSearchView().setBackgroundColor(StyledAttributesHelper.getColor(context, R.attr.colorBackgroundFloating, 0));
+        setQueryHint(context.getString(R.string.action_search_messages));
+
+        mAdapter = new ResultsAdapter(context);
+        mAdapter.setItemClickListener((int index, ChatLogSearchIndex.Result value) -> {
+            ((MainActivity) getOwnerActivity()).openServer(mConnection, value.getChannel(),
+                    value.getMessageId(), false);
+            dismiss();
+        });
+        setSuggestionsAdapter(mAdapter);
+    }
+
+    private final Runnable mSearchRunnable = () -> {
+        int generation = mSearchGeneration;
+        mSearchIndex.requestSearch(mConnection.getUUID(), mChannel, mQuery, MAX_RESULTS,
+                (String query, List<ChatLogSearchIndex.Result> results) -> {
+                    mHandler.post(() -> {
+                        // Drop the results of the queries which were typed over already
+                        if (generation != mSearchGeneration)
+                            return;
+                        mAdapter.setResults(results);
+                    });
+                });
+    };
+
+    @Override
+    public void onQueryTextChange(String newText) {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mSearchGeneration++;
+        mQuery = newText;
+        if (newText.trim().length() == 0) {
+            mAdapter.setResults(null);
+            return;
+        }
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
+    }
+
+    @Override
+    public void onQueryTextSubmit(String query) {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mSearchGeneration++;
+        mQuery = query;
+        if (query.trim().length() > 0)
+            mSearchRunnable.run();
+    }
+
+    @Override
+    public void dismiss() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mSearchGeneration++;
+        super.dismiss();
+    }
+
+    public static class ResultsAdapter extends ClickableRecyclerViewAdapter<ResultsAdapter.ResultHolder, ChatLogSearchIndex.Result> {
+
+        private final int mSecondaryTextColor;
+        private final int mHighlightTextColor;
+        private final DateFormat mDateFormat;
+
+        public ResultsAdapter(Context context) {
+            setViewHolderFactory(ResultHolder::new, R.layout.dialog_search_message_item);
+            mSecondaryTextColor = StyledAttributesHelper.getColor(context,
+                    android.R.attr.textColorSecondary, 0);
+            mHighlightTextColor = context.getResources().getColor(R.color.searchColorHighlight);
+            mDateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        }
+
+        public void setResults(List<ChatLogSearchIndex.Result> results) {
+            setItems(results);
+        }
+
+        private CharSequence buildSnippet(String snippet) {
+            SpannableStringBuilder b = new SpannableStringBuilder();
+            int matchStart = -1;
+            for (int i = 0; i < snippet.length(); i++) {
+                char c = snippet.charAt(i);
+                if (c == ChatLogSearchIndex.SNIPPET_MATCH_START) {
+                    matchStart = b.length();
+                } else if (c == ChatLogSearchIndex.SNIPPET_MATCH_END) {
+                    if (matchStart != -1)
+                        b.setSpan(new ForegroundColorSpan(mHighlightTextColor), matchStart,
+                                b.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    matchStart = -1;
+                } else {
+                    b.append(c);
+                }
+            }
+            return b;
+        }
+
+        public class ResultHolder extends ClickableRecyclerViewAdapter.ViewHolder<ChatLogSearchIndex.Result> {
+            private TextView mTitle;
+            private TextView mText;
+
+            public ResultHolder(View itemView) {
+                super(itemView);
+                mTitle = itemView.findViewById(R.id.title);
+                mText = itemView.findViewById(R.id.text);
+            }
+
+            @Override
+            public void bind(ChatLogSearchIndex.Result item) {
+                String channel = item.getChannel();
+                SpannableStringBuilder title = new SpannableStringBuilder();
+                title.append(channel);
+                title.append("  ");
+                title.append(item.getSender());
+                title.append("  ");
+                int dateStart = title.length();
+                title.append(mDateFormat.format(new Date(item.getDate())));
+                title.setSpan(new ForegroundColorSpan(mSecondaryTextColor), dateStart,
+                        title.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                mTitle.setText(title);
+                mText.setText(buildSnippet(item.getSnippet()));
+            }
+        }
+
+    }
+
+}
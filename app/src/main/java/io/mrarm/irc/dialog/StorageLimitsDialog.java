@@ -23,11 +23,14 @@ public class StorageLimitsDialog extends Dialog {
 
     public static final long DEFAULT_LIMIT_GLOBAL = 24L * 1024L * 1024L;
     public static final long DEFAULT_LIMIT_SERVER = 24L * 1024L * 1024L;
+    public static final int DEFAULT_ARCHIVE_AGE = -1; // disabled
 
     static final int[] SIZES = new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 12, 24, 36, 48, 64, 96, 128, 256, 512, 1024, 2048, 3072, 4096 };
+    static final int[] ARCHIVE_AGES = new int[] { 1, 2, 3, 7, 14, 30, 60, 90, 180, 365 };
 
     private SeekBar mGlobalLimitSeekBar;
     private SeekBar mServerLimitSeekBar;
+    private SeekBar mArchiveAgeSeekBar;
 
     public StorageLimitsDialog(@NonNull Context context) {
         super(context, R.style.Theme_AppCompat_Light);
@@ -35,9 +38,11 @@ public class StorageLimitsDialog extends Dialog {
 
         mGlobalLimitSeekBar = findViewById(R.id.global_limit_seekbar);
         mServerLimitSeekBar = findViewById(R.id.server_limit_seekbar);
+        mArchiveAgeSeekBar = findViewById(R.id.archive_age_seekbar);
 
         TextView globalLimitValue = findViewById(R.id.global_limit_value);
         TextView serverLimitValue = findViewById(R.id.server_limit_value);
+        TextView archiveAgeValue = findViewById(R.id.archive_age_value);
 
         mGlobalLimitSeekBar.setMax(SIZES.length);
         mGlobalLimitSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
@@ -72,6 +77,22 @@ public class StorageLimitsDialog extends Dialog {
             }
         });
 
+        mArchiveAgeSeekBar.setMax(ARCHIVE_AGES.length);
+        mArchiveAgeSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int i, boolean b) {
+                updateArchiveAgeLabel(mArchiveAgeSeekBar, archiveAgeValue);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
         ((Toolbar) findViewById(R.id.toolbar)).setNavigationOnClickListener((View v) -> {
             dismiss();
         });
@@ -87,8 +108,14 @@ public class StorageLimitsDialog extends Dialog {
             mServerLimitSeekBar.setProgress(SIZES.length);
         else
             mServerLimitSeekBar.setProgress(findNearestSizeIndex(v));
+        int age = AppSettings.getStorageArchiveAge();
+        if (age == -1)
+            mArchiveAgeSeekBar.setProgress(ARCHIVE_AGES.length);
+        else
+            mArchiveAgeSeekBar.setProgress(findNearestArchiveAgeIndex(age));
         updateLabel(mGlobalLimitSeekBar, globalLimitValue);
         updateLabel(mServerLimitSeekBar, serverLimitValue);
+        updateArchiveAgeLabel(mArchiveAgeSeekBar, archiveAgeValue);
     }
 
     @Override
@@ -120,6 +147,10 @@ public class StorageLimitsDialog extends Dialog {
             editor.putLong(AppSettings.PREF_STORAGE_LIMIT_SERVER, -1L);
         else
             editor.putLong(AppSettings.PREF_STORAGE_LIMIT_SERVER, SIZES[mServerLimitSeekBar.getProgress()] * 1024L * 1024L);
+        if (mArchiveAgeSeekBar.getProgress() == ARCHIVE_AGES.length)
+            editor.putInt(AppSettings.PREF_STORAGE_ARCHIVE_AGE, -1);
+        else
+            editor.putInt(AppSettings.PREF_STORAGE_ARCHIVE_AGE, ARCHIVE_AGES[mArchiveAgeSeekBar.getProgress()]);
         editor.commit();
 
         super.dismiss();
@@ -133,6 +164,24 @@ public class StorageLimitsDialog extends Dialog {
         label.setText(SIZES[seekBar.getProgress()] + " MB");
     }
 
+    private static void updateArchiveAgeLabel(SeekBar seekBar, TextView label) {
+        if (seekBar.getProgress() >= ARCHIVE_AGES.length) {
+            label.setText(R.string.pref_storage_archive_never);
+            return;
+        }
+        int days = ARCHIVE_AGES[seekBar.getProgress()];
+        label.setText(label.getResources().getQuantityString(R.plurals.time_days, days, days));
+    }
+
+    private static int findNearestArchiveAgeIndex(int days) {
+        int nearestI = 0;
+        for (int i = 1; i < ARCHIVE_AGES.length; i++) {
+            if (Math.abs(ARCHIVE_AGES[i] - days) < Math.abs(ARCHIVE_AGES[nearestI] - days))
+                nearestI = i;
+        }
+        return nearestI;
+    }
+
     public static int findNearestSizeIndex(long val) {
         long nearestVal = -1L;
         int nearestI = -1;
@@ -129,7 +129,7 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
     }
 
     @UiSettingChangeCallback(keys = {AppSettings.PREF_DRAWER_ALWAYS_SHOW_SERVER})
-    private void onSettingChanged() {
+    void onSettingChanged() {
         mAdapter.setAlwaysShowServer(AppSettings.shouldDrawerAlwaysShowServer());
     }
 
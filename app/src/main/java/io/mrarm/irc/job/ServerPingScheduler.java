@@ -48,7 +48,7 @@ public class ServerPingScheduler {
 
     @UiSettingChangeCallback(keys = {AppSettings.PREF_PING_ENABLED,
             AppSettings.PREF_PING_WI_FI_ONLY, AppSettings.PREF_PING_INTERVAL})
-    private void onSettingChanged() {
+    void onSettingChanged() {
         enabled = AppSettings.isPingEnabled();
         onlyOnWifi = AppSettings.isPingWiFiOnly();
         interval = AppSettings.getPingInterval();
@@ -4,10 +4,12 @@ import android.content.Intent;
 import android.os.Bundle;
 import com.google.android.material.textfield.TextInputLayout;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.TextView;
 
 import io.mrarm.irc.R;
+import io.mrarm.irc.config.BackupManifest;
 
 public class BackupPasswordActivity extends SetupBigHeaderActivity {
 
@@ -24,6 +26,8 @@ public class BackupPasswordActivity extends SetupBigHeaderActivity {
         setSetupContentView(R.layout.activity_backup_password_content);
 
         TextInputLayout layout = findViewById(R.id.pass_ctr);
+        CheckBox includeChatLogs = findViewById(R.id.include_chat_logs);
+        CheckBox incremental = findViewById(R.id.incremental);
 
         boolean restoreMode = getIntent().getBooleanExtra(ARG_RESTORE_MODE, false);
         if (restoreMode) {
@@ -31,6 +35,11 @@ public class BackupPasswordActivity extends SetupBigHeaderActivity {
             ((TextView) findViewById(R.id.text)).setText(R.string.backup_restore_password_text);
             if (getIntent().getBooleanExtra(ARG_WAS_INVALID, false))
                 layout.setError(getString(R.string.backup_restore_invalid_password));
+            includeChatLogs.setVisibility(View.GONE);
+            incremental.setVisibility(View.GONE);
+        } else if (BackupManifest.loadLocal(this) == null) {
+            // There is no previous backup to base an incremental one on
+            incremental.setVisibility(View.GONE);
         }
 
         EditText userPassword = findViewById(R.id.pass);
@@ -51,6 +60,8 @@ public class BackupPasswordActivity extends SetupBigHeaderActivity {
             Intent intent = new Intent(BackupPasswordActivity.this, BackupProgressActivity.class);
             if (userPassword.getText().length() > 0)
                 intent.putExtra(BackupProgressActivity.ARG_USER_PASSWORD, userPassword.getText().toString());
+            intent.putExtra(BackupProgressActivity.ARG_INCLUDE_CHAT_LOGS, includeChatLogs.isChecked());
+            intent.putExtra(BackupProgressActivity.ARG_INCREMENTAL, incremental.getVisibility() == View.VISIBLE && incremental.isChecked());
             startNextActivity(intent);
         });
     }
@@ -1,5 +1,6 @@
 package io.mrarm.irc.setup;
 
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
@@ -8,6 +9,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.webkit.MimeTypeMap;
+import android.widget.ProgressBar;
 
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.exception.ZipExceptionConstants;
@@ -18,10 +20,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import io.mrarm.irc.config.BackupManager;
+import io.mrarm.irc.config.BackupManifest;
 import io.mrarm.irc.R;
 
 public class BackupProgressActivity extends SetupProgressActivity {
@@ -31,9 +36,12 @@ public class BackupProgressActivity extends SetupProgressActivity {
 
     public static final String ARG_USER_PASSWORD = "password";
     public static final String ARG_RESTORE_MODE = "restore_mode";
+    public static final String ARG_INCLUDE_CHAT_LOGS = "include_chat_logs";
+    public static final String ARG_INCREMENTAL = "incremental";
 
     private boolean mRestoreMode = false;
     private File mBackupFile;
+    private List<File> mRestoreFiles;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,11 +54,20 @@ public class BackupProgressActivity extends SetupProgressActivity {
         } else {
             BackupRequest request = new BackupRequest();
             request.password = getIntent().getStringExtra(ARG_USER_PASSWORD);
+            request.includeChatLogs = getIntent().getBooleanExtra(ARG_INCLUDE_CHAT_LOGS, false);
+            request.incremental = getIntent().getBooleanExtra(ARG_INCREMENTAL, false);
             acquireExitLock();
             new BackupTask(this).execute(request);
         }
     }
 
+    public void setBackupProgress(long current, long total) {
+        ProgressBar progressBar = getProgressBar();
+        progressBar.setIndeterminate(false);
+        progressBar.setMax(1000);
+        progressBar.setProgress((int) (current * 1000 / total));
+    }
+
     public void setDone(int resId) {
         releaseExitLock();
         Intent intent = new Intent(BackupProgressActivity.this, BackupCompleteActivity.class);
@@ -64,6 +81,8 @@ public class BackupProgressActivity extends SetupProgressActivity {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType(MimeTypeMap.getSingleton().getMimeTypeFromExtension("zip"));
+        // An incremental backup has to be restored together with the backups it is based on
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         startActivityForResult(intent, BACKUP_FILE_REQUEST_CODE);
         setSlideAnimation(false);
     }
@@ -103,10 +122,13 @@ public class BackupProgressActivity extends SetupProgressActivity {
     public void onBackupCopyDone(boolean success) {
         if (success) {
             if (mRestoreMode) {
-                if (!BackupManager.verifyBackupFile(mBackupFile)) {
-                    mBackupFile.delete();
+                boolean valid = true;
+                for (File file : mRestoreFiles)
+                    valid &= BackupManager.verifyBackupFile(file);
+                if (!valid) {
+                    deleteRestoreFiles();
                     setDone(R.string.backup_restore_invalid);
-                } else if (BackupManager.isBackupPasswordProtected(mBackupFile)) {
+                } else if (BackupManager.isBackupPasswordProtected(mRestoreFiles.get(0))) {
                     Intent intent = new Intent(BackupProgressActivity.this, BackupPasswordActivity.class);
                     intent.putExtra(BackupPasswordActivity.ARG_RESTORE_MODE, true);
                     startActivityForResult(intent, BACKUP_PASSWORD_REQUEST_CODE);
@@ -114,17 +136,29 @@ public class BackupProgressActivity extends SetupProgressActivity {
                     startRestoreTask(null);
                 }
             } else {
+                BackupManifest.commitPending(this);
                 setDone(R.string.backup_created);
             }
         } else {
+            if (mRestoreMode)
+                deleteRestoreFiles();
+            else
+                BackupManifest.discardPending(this);
             setDone(R.string.error_generic);
         }
     }
 
+    private void deleteRestoreFiles() {
+        if (mRestoreFiles == null)
+            return;
+        for (File file : mRestoreFiles)
+            file.delete();
+    }
+
     public void startRestoreTask(String password) {
         acquireExitLock();
         RestoreRequest request = new RestoreRequest();
-        request.file = mBackupFile;
+        request.files = mRestoreFiles;
         request.password = password;
         new RestoreTask(this).execute(request);
     }
@@ -132,6 +166,9 @@ public class BackupProgressActivity extends SetupProgressActivity {
     public void cancel() {
         if (mBackupFile != null)
             mBackupFile.delete();
+        deleteRestoreFiles();
+        if (!mRestoreMode)
+            BackupManifest.discardPending(this);
         setDone(mRestoreMode ? R.string.backup_restore_cancelled : R.string.backup_cancelled);
         setSlideAnimation(true);
     }
@@ -140,16 +177,31 @@ public class BackupProgressActivity extends SetupProgressActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == BACKUP_FILE_REQUEST_CODE) {
-            if (data != null && data.getData() != null) {
+            if (data != null && (data.getData() != null || (Build.VERSION.SDK_INT >= 18 &&
+                    data.getClipData() != null))) {
                 try {
                     Uri uri = data.getData();
                     if (mRestoreMode) {
-                        ParcelFileDescriptor desc = getContentResolver().openFileDescriptor(uri, "r");
-                        mBackupFile = new File(getCacheDir(), "temp-backup.zip");
-                        mBackupFile.deleteOnExit();
-                        FileInputStream fis = new FileInputStream(desc.getFileDescriptor());
-                        FileOutputStream fos = new FileOutputStream(mBackupFile);
-                        new CopyFileTask(this).execute(new CopyRequest(fis, fos, desc));
+                        List<Uri> uris = new ArrayList<>();
+                        ClipData clipData = Build.VERSION.SDK_INT >= 18 ? data.getClipData() : null;
+                        if (clipData != null) {
+                            for (int i = 0; i < clipData.getItemCount(); i++)
+                                uris.add(clipData.getItemAt(i).getUri());
+                        } else {
+                            uris.add(uri);
+                        }
+                        mRestoreFiles = new ArrayList<>();
+                        CopyRequest[] requests = new CopyRequest[uris.size()];
+                        for (int i = 0; i < uris.size(); i++) {
+                            ParcelFileDescriptor desc = getContentResolver().openFileDescriptor(uris.get(i), "r");
+                            File file = new File(getCacheDir(), "temp-backup-" + i + ".zip");
+                            file.deleteOnExit();
+                            mRestoreFiles.add(file);
+                            FileInputStream fis = new FileInputStream(desc.getFileDescriptor());
+                            FileOutputStream fos = new FileOutputStream(file);
+                            requests[i] = new CopyRequest(fis, fos, desc);
+                        }
+                        new CopyFileTask(this).execute(requests);
                     } else {
                         ParcelFileDescriptor desc = getContentResolver().openFileDescriptor(uri, "w");
                         FileOutputStream fos = new FileOutputStream(desc.getFileDescriptor());
@@ -174,9 +226,11 @@ public class BackupProgressActivity extends SetupProgressActivity {
 
     private static class BackupRequest {
         public String password;
+        public boolean includeChatLogs;
+        public boolean incremental;
     }
 
-    private static class BackupTask extends AsyncTask<BackupRequest, Void, File> {
+    private static class BackupTask extends AsyncTask<BackupRequest, Long, File> {
         private WeakReference<BackupProgressActivity> mActivity;
         private Context mContext;
 
@@ -193,7 +247,9 @@ public class BackupProgressActivity extends SetupProgressActivity {
                 backupFile.delete();
             backupFile.deleteOnExit(); // in case something fails
             try {
-                BackupManager.createBackup(mContext, backupFile, request.password);
+                BackupManager.createBackup(mContext, backupFile, request.password,
+                        request.includeChatLogs, request.incremental, (long current, long total) ->
+                                publishProgress(current, total));
             } catch (IOException e) {
                 e.printStackTrace();
                 backupFile.delete();
@@ -202,6 +258,13 @@ public class BackupProgressActivity extends SetupProgressActivity {
             return backupFile;
         }
 
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            BackupProgressActivity activity = mActivity.get();
+            if (activity != null)
+                activity.setBackupProgress(values[0], values[1]);
+        }
+
         @Override
         protected void onPostExecute(File file) {
             BackupProgressActivity activity = mActivity.get();
@@ -212,12 +275,12 @@ public class BackupProgressActivity extends SetupProgressActivity {
 
 
     private static class RestoreRequest {
-        public File file;
+        public List<File> files;
         public boolean deleteFile = true;
         public String password;
     }
 
-    private static class RestoreTask extends AsyncTask<RestoreRequest, Void, Integer> {
+    private static class RestoreTask extends AsyncTask<RestoreRequest, Long, Integer> {
         public static final int RESULT_OK = 0;
         public static final int RESULT_ERROR = 1;
         public static final int RESULT_INVALID_PASSWORD = 2;
@@ -234,9 +297,10 @@ public class BackupProgressActivity extends SetupProgressActivity {
         protected Integer doInBackground(RestoreRequest... restoreRequests) {
             RestoreRequest request = restoreRequests[0];
             try {
-                BackupManager.restoreBackup(mContext, request.file, request.password);
+                BackupManager.restoreBackup(mContext, request.files, request.password,
+                        (long current, long total) -> publishProgress(current, total));
                 if (request.deleteFile)
-                    request.file.delete();
+                    deleteFiles(request.files);
                 return RESULT_OK;
             } catch (IOException e) {
                 e.printStackTrace();
@@ -244,11 +308,23 @@ public class BackupProgressActivity extends SetupProgressActivity {
                         ((ZipException) e.getCause()).getCode() == ZipExceptionConstants.WRONG_PASSWORD)
                     return RESULT_INVALID_PASSWORD;
                 if (request.deleteFile)
-                    request.file.delete();
+                    deleteFiles(request.files);
                 return RESULT_ERROR;
             }
         }
 
+        private static void deleteFiles(List<File> files) {
+            for (File file : files)
+                file.delete();
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            BackupProgressActivity activity = mActivity.get();
+            if (activity != null)
+                activity.setBackupProgress(values[0], values[1]);
+        }
+
         @Override
         protected void onPostExecute(Integer result) {
             BackupProgressActivity activity = mActivity.get();
@@ -278,27 +354,32 @@ public class BackupProgressActivity extends SetupProgressActivity {
 
         @Override
         protected Boolean doInBackground(CopyRequest... args) {
-            try {
-                FileInputStream fis = args[0].fis;
-                FileOutputStream fos = args[0].fos;
-                byte[] buf = new byte[1024 * 16];
-                int c;
-                while ((c = fis.read(buf, 0, buf.length)) > 0) {
-                    fos.write(buf, 0, c);
-                }
-                fis.close();
-                fos.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            } finally {
+            byte[] buf = new byte[1024 * 64];
+            boolean success = true;
+            for (CopyRequest request : args) {
                 try {
-                    if (args[0].fd != null)
-                        args[0].fd.close();
-                } catch (Exception ignored) {
+                    if (!success)
+                        continue;
+                    FileInputStream fis = request.fis;
+                    FileOutputStream fos = request.fos;
+                    int c;
+                    while ((c = fis.read(buf, 0, buf.length)) > 0) {
+                        fos.write(buf, 0, c);
+                    }
+                    fis.close();
+                    fos.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    success = false;
+                } finally {
+                    try {
+                        if (request.fd != null)
+                            request.fd.close();
+                    } catch (Exception ignored) {
+                    }
                 }
             }
-            return true;
+            return success;
         }
 
         @Override
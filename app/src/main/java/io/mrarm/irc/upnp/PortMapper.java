@@ -1,5 +1,7 @@
 package io.mrarm.irc.upnp;
 
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import org.xml.sax.SAXException;
@@ -8,6 +10,8 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 import javax.xml.transform.TransformerException;
@@ -21,94 +25,197 @@ import io.mrarm.irc.upnp.rpc.GetExternalIPAddressCall;
 import io.mrarm.irc.upnp.rpc.GetExternalIPAddressResponse;
 import io.mrarm.irc.upnp.rpc.UPnPRPCError;
 
+/**
+ * Maps ports on the internet gateway device found using SSDP. The gateway found on a network, along
+ * with its control URL and whether it supports AddAnyPortMapping, is remembered by the local
+ * address used on that network, so that later mappings can skip the discovery and the device
+ * description requests. Mappings created with a limited lease are renewed in the background until
+ * they are removed.
+ */
 public class PortMapper {
 
+    private static final String TAG = "PortMapper";
+
+    private static final int LEASE_DURATION = 3600;
+    // The fraction of the lease after which the mapping is renewed
+    private static final double LEASE_RENEW_FRACTION = 0.8;
+
+    private static final Map<String, Gateway> sGateways = new HashMap<>();
+    private static Handler sRenewHandler;
+
     public static PortMappingResult mapPort(PortMappingRequest request) throws IOException {
+        String networkKey = resolveLocalIP(
+                SSDPDiscovery.BROADCAST_ADDR.getAddress().getHostAddress(),
+                SSDPDiscovery.BROADCAST_ADDR.getPort());
+        Gateway gateway;
+        synchronized (sGateways) {
+            gateway = sGateways.get(networkKey);
+        }
+        if (gateway != null) {
+            try {
+                return mapPort(gateway, request);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to use the cached gateway, searching for a new one");
+                synchronized (sGateways) {
+                    sGateways.remove(networkKey);
+                }
+            }
+        }
+
         SSDPDiscovery discovery = new SSDPDiscovery();
         discovery.bind();
-        discovery.setReceiveTimeout(1);
-        discovery.sendSearch(UPnPTypes.UPNP_INTERNET_GATEWAY_DEVICE_V1, 1);
-        SSDPDiscovery.Response response;
-        while ((response = discovery.receive()) != null) {
-            Log.d("PortMapper", "Found device using SSDP: " +
-                    response.getDescriptionLocation());
-            UPnPDeviceDescription.Service service = getWANService(response);
-            if (service == null) {
-                Log.d("PortMapper", "Skipping device");
-                continue;
+        try {
+            discovery.setReceiveTimeout(1);
+            discovery.sendSearch(UPnPTypes.UPNP_INTERNET_GATEWAY_DEVICE_V1, 1);
+            SSDPDiscovery.Response response;
+            while ((response = discovery.receive()) != null) {
+                Log.d(TAG, "Found device using SSDP: " + response.getDescriptionLocation());
+                gateway = createGateway(response);
+                if (gateway == null) {
+                    Log.d(TAG, "Skipping device");
+                    continue;
+                }
+                try {
+                    PortMappingResult result = mapPort(gateway, request);
+                    synchronized (sGateways) {
+                        sGateways.put(networkKey, gateway);
+                    }
+                    return result;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to map the port using " + gateway.mServiceURL);
+                }
             }
-            Log.d("DCCManager", "Found a valid service: " + service.getControlURL());
+        } finally {
+            discovery.close();
+        }
+        throw new IOException("No supported gateway found");
+    }
+
+    private static Gateway createGateway(SSDPDiscovery.Response response) throws IOException {
+        UPnPDeviceDescription.Service service = getWANService(response);
+        if (service == null)
+            return null;
+        Log.d(TAG, "Found a valid service: " + service.getControlURL());
+
+        URL controlDescURL = new URL(new URL(response.getDescriptionLocation()),
+                service.getSCPDURL());
+        UPnPServiceControlDescription controlDescription =
+                new UPnPServiceControlDescription();
+        try {
+            controlDescription.loadFromUrl(controlDescURL.toString());
+        } catch (IOException | SAXException e) {
+            Log.w(TAG, "Failed to fetch service control description");
+            e.printStackTrace();
+            controlDescription = null;
+        }
 
+        URL serviceURL = new URL(new URL(response.getDescriptionLocation()),
+                service.getControlURL());
+        boolean supportsAddAny = controlDescription != null &&
+                controlDescription.findAction(AddAnyPortMappingCall.ACTION_NAME) != null;
+        return new Gateway(service.getServiceType(), serviceURL, supportsAddAny);
+    }
 
-            URL controlDescURL = new URL(new URL(response.getDescriptionLocation()),
-                    service.getSCPDURL());
-            UPnPServiceControlDescription controlDescription =
-                    new UPnPServiceControlDescription();
+    private static PortMappingResult mapPort(Gateway gateway, PortMappingRequest request)
+            throws IOException {
+        String localIP = resolveLocalIP(gateway.mServiceURL.getHost(),
+                gateway.mServiceURL.getPort());
+        String externalIP;
+        try {
+            GetExternalIPAddressCall call = new GetExternalIPAddressCall(gateway.mServiceType);
+            GetExternalIPAddressResponse resp = call.send(gateway.mServiceURL);
+            externalIP = resp.getNewExternalIPAddress();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to send GetExternalIPAddressCall request");
+            e.printStackTrace();
+            throw new IOException("Failed to get the external IP address", e);
+        }
+
+        // First try to bind using AddAnyPortMapping
+        if (gateway.mSupportsAddAnyPortMapping) {
             try {
-                controlDescription.loadFromUrl(controlDescURL.toString());
-            } catch (IOException | SAXException e) {
-                Log.w("PortMapper", "Failed to fetch service control description");
+                AddAnyPortMappingCall call = new AddAnyPortMappingCall(gateway.mServiceType);
+                fillInCallData(call, request, localIP);
+                AddAnyPortMappingResponse resp = call.send(gateway.mServiceURL);
+                return createResult(request, externalIP, resp.getNewReservedPort(), gateway,
+                        localIP, call.getNewLeaseDuration());
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to send AddAnyPortMapping request");
                 e.printStackTrace();
-                controlDescription = null;
             }
-
-            URL serviceURL = new URL(new URL(response.getDescriptionLocation()),
-                    service.getControlURL());
-            String localIP = resolveLocalIP(serviceURL);
-            String externalIP;
+        }
+        // Then try to bind using AddPortMapping on the desired point, and if that fails try to
+        // use 2 different random ports
+        int attempt = 0;
+        do {
             try {
-                GetExternalIPAddressCall call =
-                        new GetExternalIPAddressCall(service.getServiceType());
-                GetExternalIPAddressResponse resp = call.send(serviceURL);
-                externalIP = resp.getNewExternalIPAddress();
+                AddPortMappingCall call = new AddPortMappingCall(gateway.mServiceType);
+                fillInCallData(call, request, localIP);
+                if (attempt != 0)
+                    call.setNewExternalPort(1024 + new Random().nextInt(65535 - 1024));
+                call.send(gateway.mServiceURL);
+                return createResult(request, externalIP, call.getNewExternalPort(), gateway,
+                        localIP, call.getNewLeaseDuration());
             } catch (Exception e) {
-                Log.w("PortMapper", "Failed to send GetExternalIPAddressCall request");
+                if (e instanceof UPnPRPCError) {
+                    Log.w(TAG, "UPnP Error: " +
+                            ((UPnPRPCError) e).getErrorCode() + " " +
+                            ((UPnPRPCError) e).getErrorDescription());
+                }
+                Log.w(TAG, "Failed to send AddPortMapping request");
                 e.printStackTrace();
-                continue;
             }
+            attempt++;
+        } while (attempt < 3);
+        throw new IOException("Failed to add the port mapping");
+    }
 
-            // First try to bind using AddAnyPortMapping
-            if (controlDescription != null &&
-                    controlDescription.findAction(AddAnyPortMappingCall.ACTION_NAME) != null) {
-                try {
-                    AddAnyPortMappingCall call =
-                            new AddAnyPortMappingCall(service.getServiceType());
-                    fillInCallData(call, request, localIP);
-                    AddAnyPortMappingResponse resp = call.send(serviceURL);
-                    return new PortMappingResult(request, externalIP, resp.getNewReservedPort(),
-                            service.getServiceType(), serviceURL);
-                } catch (Exception e) {
-                    Log.w("PortMapper", "Failed to send AddAnyPortMapping request");
-                    e.printStackTrace();
-                }
+    private static PortMappingResult createResult(PortMappingRequest request, String externalIP,
+                                                  int externalPort, Gateway gateway,
+                                                  String localIP, int leaseDuration) {
+        PortMappingResult result = new PortMappingResult(request, externalIP, externalPort,
+                gateway.mServiceType, gateway.mServiceURL);
+        result.mLocalIP = localIP;
+        result.mLeaseDuration = leaseDuration;
+        scheduleRenewal(result);
+        return result;
+    }
+
+    private static synchronized Handler getRenewHandler() {
+        if (sRenewHandler == null) {
+            HandlerThread thread = new HandlerThread("Port mapping renewal");
+            thread.start();
+            sRenewHandler = new Handler(thread.getLooper());
+        }
+        return sRenewHandler;
+    }
+
+    private static void scheduleRenewal(PortMappingResult result) {
+        if (result.mLeaseDuration <= 0)
+            return;
+        getRenewHandler().postDelayed(result.mRenewRunnable,
+                (long) (result.mLeaseDuration * LEASE_RENEW_FRACTION * 1000));
+    }
+
+    private static void renewPortMapping(PortMappingResult result) {
+        synchronized (result) {
+            if (result.mRemoved)
+                return;
+            try {
+                // Adding the same mapping again extends its lease
+                AddPortMappingCall call = new AddPortMappingCall(result.mServiceType);
+                fillInCallData(call, result.mRequest, result.mLocalIP);
+                call.setNewExternalPort(result.mExternalPort);
+                call.setNewLeaseDuration(result.mLeaseDuration);
+                call.send(result.mServiceURL);
+                Log.d(TAG, "Renewed the port mapping for port " + result.mExternalPort);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to renew the port mapping for port " +
+                        result.mExternalPort);
+                e.printStackTrace();
             }
-            // Then try to bind using AddPortMapping on the desired point, and if that fails try to
-            // use 2 different random ports
-            int attempt = 0;
-            do {
-                try {
-                    AddPortMappingCall call =
-                            new AddPortMappingCall(service.getServiceType());
-                    fillInCallData(call, request, localIP);
-                    if (attempt != 0)
-                        call.setNewExternalPort(1024 + new Random().nextInt(65535 - 1024));
-                    call.send(serviceURL);
-                    return new PortMappingResult(request, externalIP, call.getNewExternalPort(),
-                            service.getServiceType(), serviceURL);
-                } catch (Exception e) {
-                    if (e instanceof UPnPRPCError) {
-                        Log.w("PortMapper", "UPnP Error: " +
-                                ((UPnPRPCError) e).getErrorCode() + " " +
-                                ((UPnPRPCError) e).getErrorDescription());
-                    }
-                    Log.w("PortMapper", "Failed to send AddPortMapping request");
-                    e.printStackTrace();
-                }
-                attempt++;
-            } while (attempt < 3);
+            scheduleRenewal(result);
         }
-        discovery.close();
-        throw new IOException("No supported gateway found");
     }
 
     private static void fillInCallData(BaseAddPortMappingCall call, PortMappingRequest req,
@@ -120,7 +227,7 @@ public class PortMapper {
         call.setNewPortMappingDescription(req.mDescription);
         if (call instanceof AddAnyPortMappingCall ||
                 call.getServiceType().equals(UPnPTypes.UPNP_WAN_IP_CONNECTION_V2))
-            call.setNewLeaseDuration(3600);
+            call.setNewLeaseDuration(LEASE_DURATION);
     }
 
     public static void removePortMapping(String serviceType, URL serviceURL,
@@ -134,6 +241,10 @@ public class PortMapper {
 
     public static void removePortMapping(PortMappingResult result) throws UPnPRPCError,
             SAXException, TransformerException, IOException {
+        getRenewHandler().removeCallbacks(result.mRenewRunnable);
+        synchronized (result) {
+            result.mRemoved = true;
+        }
         removePortMapping(result.mServiceType, result.mServiceURL, result.getExternalPort(),
                 result.getRequest().mProtocol);
     }
@@ -144,14 +255,14 @@ public class PortMapper {
         try {
             description.loadFromUrl(ssdpResponese.getDescriptionLocation());
         } catch (Exception ex) {
-            Log.w("PortMapper", "Failed to fetch description");
+            Log.w(TAG, "Failed to fetch description");
             ex.printStackTrace();
             return null;
         }
         UPnPDeviceDescription wanDevice = description
                 .findDeviceByType(UPnPTypes.UPNP_WAN_CONNECTION_DEVICE_V1);
         if (wanDevice == null) {
-            Log.d("PortMapper", "Root device has no WAN connection device");
+            Log.d(TAG, "Root device has no WAN connection device");
             return null;
         }
         UPnPDeviceDescription.Service serviceIP =
@@ -163,15 +274,15 @@ public class PortMapper {
                 wanDevice.getServiceByType(UPnPTypes.UPNP_WAN_PPP_CONNECTION_V1);
         if (serviceIP != null || servicePPP != null)
             return (servicePPP != null ? servicePPP : serviceIP);
-        Log.d("PortMapper", "Device has no WAN IP or PPP connection service");
+        Log.d(TAG, "Device has no WAN IP or PPP connection service");
         return null;
     }
 
-    private static String resolveLocalIP(URL targetUrl) throws IOException {
+    private static String resolveLocalIP(String host, int port) throws IOException {
         DatagramSocket socket = null;
         try {
             socket = new DatagramSocket();
-            socket.connect(new InetSocketAddress(targetUrl.getHost(), targetUrl.getPort()));
+            socket.connect(new InetSocketAddress(host, port));
             return socket.getLocalAddress().getHostAddress();
         } finally {
             if (socket != null)
@@ -179,6 +290,20 @@ public class PortMapper {
         }
     }
 
+    private static class Gateway {
+
+        private final String mServiceType;
+        private final URL mServiceURL;
+        private final boolean mSupportsAddAnyPortMapping;
+
+        Gateway(String serviceType, URL serviceURL, boolean supportsAddAnyPortMapping) {
+            mServiceType = serviceType;
+            mServiceURL = serviceURL;
+            mSupportsAddAnyPortMapping = supportsAddAnyPortMapping;
+        }
+
+    }
+
     public static class PortMappingRequest {
 
         private int mInternalPort;
@@ -203,6 +328,10 @@ public class PortMapper {
         private String mExternalIP;
         private String mServiceType;
         private URL mServiceURL;
+        private String mLocalIP;
+        private int mLeaseDuration;
+        private boolean mRemoved;
+        private final Runnable mRenewRunnable = () -> renewPortMapping(this);
 
         public PortMappingResult(PortMappingRequest request, String externalIP, int externalPort,
                                  String serviceType, URL serviceURL) {
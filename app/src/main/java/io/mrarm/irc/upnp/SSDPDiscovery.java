@@ -16,9 +16,11 @@ import io.mrarm.irc.BuildConfig;
 
 public class SSDPDiscovery {
 
-    private static final InetSocketAddress BROADCAST_ADDR = new InetSocketAddress(
+    static final InetSocketAddress BROADCAST_ADDR = new InetSocketAddress(
             "239.255.255.250", 1900);
 
+    private static final String RESPONSE_STATUS_LINE = "HTTP/1.1 200 OK\r\n";
+
     public static String buildSearchRequest(String deviceType, int waitSeconds) {
         return "M-SEARCH * HTTP/1.1\r\n" +
                 "HOST: 239.255.255.250:1900\r\n" +
@@ -62,16 +64,18 @@ public class SSDPDiscovery {
             timeout = Math.max((int) (mReceiveTimeout - System.currentTimeMillis()), 1);
         mDiscoverySocket.setSoTimeout(timeout);
         try {
+            // The length is set to the size of the last received packet, so it has to be reset
+            mReceivePacket.setLength(mReceiveBuffer.length);
             mDiscoverySocket.receive(mReceivePacket);
         } catch (SocketTimeoutException ignored) {
             return null;
         }
-        String decoded = new String(mReceiveBuffer, "UTF-8");
-        if (!decoded.startsWith("HTTP/1.1 200 OK\r\n")) {
+        String decoded = new String(mReceiveBuffer, 0, mReceivePacket.getLength(), "UTF-8");
+        if (!decoded.startsWith(RESPONSE_STATUS_LINE)) {
             Log.w("SSDP", "Invalid response");
             return null;
         }
-        int i = 19;
+        int i = RESPONSE_STATUS_LINE.length();
         Map<String, String> headers = new HashMap<>();
         while (true) {
             int j = decoded.indexOf("\r\n", i);
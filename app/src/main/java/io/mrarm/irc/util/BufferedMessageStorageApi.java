@@ -0,0 +1,498 @@
+package io.mrarm.irc.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import io.mrarm.chatlib.ResponseCallback;
+import io.mrarm.chatlib.ResponseErrorCallback;
+import io.mrarm.chatlib.android.storage.SQLiteMessageStorageApi;
+import io.mrarm.chatlib.dto.MessageFilterOptions;
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageList;
+import io.mrarm.chatlib.dto.MessageListAfterIdentifier;
+import io.mrarm.chatlib.message.MessageListener;
+import io.mrarm.chatlib.message.WritableMessageStorageApi;
+
+/**
+ * Queues the received messages and passes them to the underlying storage in batches, from a
+ * background thread, so that the connection's thread never waits for the storage. A batch is
+ * written once it has FLUSH_MAX_MESSAGES messages or FLUSH_DELAY milliseconds after its first
+ * message, whichever comes first, so at most one batch can be lost if the app is killed.
+ *
+ * The listeners are notified as soon as a message is queued, with a PendingMessageId. The id is
+ * resolved to the id assigned by the underlying storage once the message is written, and whoever
+ * keeps or persists it should switch to the stored id using runWhenStored. Reads and deletes run
+ * on the background thread after the queued messages are written, so their results include them.
+ */
+public class BufferedMessageStorageApi implements WritableMessageStorageApi {
+
+    private static final String TAG = "BufferedMessageStorage";
+
+    private static final int FLUSH_MAX_MESSAGES = 100;
+    private static final int FLUSH_DELAY = 500;
+    private static final int STORE_TIMEOUT = 10 * 1000;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private final WritableMessageStorageApi mStorage;
+    private final Executor mExecutor = new PoolSerialExecutor();
+    private final Object mWriteLock = new Object();
+    private final List<PendingMessage> mPending = new ArrayList<>();
+    private final LinkedList<PendingMessage> mWriting = new LinkedList<>();
+    private final Map<String, List<MessageListener>> mListeners = new HashMap<>();
+    private boolean mFlushQueued = false;
+    private int mFlushCount = 0;
+    private int mFlushedMessageCount = 0;
+
+    public BufferedMessageStorageApi(WritableMessageStorageApi storage) {
+        mStorage = storage;
+        mStorage.subscribeChannelMessages(null, this::onMessageStored, null, null);
+    }
+
+    public WritableMessageStorageApi getStorage() {
+        return mStorage;
+    }
+
+    @Override
+    public Future<Void> addMessage(String channel, MessageInfo message,
+                                   ResponseCallback<Void> callback,
+                                   ResponseErrorCallback errorCallback) {
+        PendingMessage pending = new PendingMessage(channel, message, callback, errorCallback);
+        synchronized (mPending) {
+            mPending.add(pending);
+            if (mPending.size() >= FLUSH_MAX_MESSAGES) {
+                sHandler.removeCallbacks(mQueueFlushRunnable);
+                queueFlush();
+            } else if (mPending.size() == 1) {
+                sHandler.postDelayed(mQueueFlushRunnable, FLUSH_DELAY);
+            }
+        }
+        for (MessageListener listener : getListeners(channel))
+            listener.onMessage(channel, message, pending.mId);
+        return pending.mFuture;
+    }
+
+    private List<MessageListener> getListeners(String channel) {
+        List<MessageListener> ret = new ArrayList<>();
+        synchronized (mListeners) {
+            List<MessageListener> list = mListeners.get(null);
+            if (list != null)
+                ret.addAll(list);
+            if (channel != null) {
+                list = mListeners.get(channel);
+                if (list != null)
+                    ret.addAll(list);
+            }
+        }
+        return ret;
+    }
+
+    private void queueFlush() {
+        synchronized (mPending) {
+            if (mFlushQueued)
+                return;
+            mFlushQueued = true;
+        }
+        mExecutor.execute(this::writePending);
+    }
+
+    private final Runnable mQueueFlushRunnable = this::queueFlush;
+
+    /**
+     * Passes all the queued messages to the underlying storage at once and waits for them to be
+     * written. The SQLite storage from chatlib-android-storage doesn't expose its transactions, so
+     * the batch is written by its own thread back to back rather than in a single transaction.
+     */
+    private void writePending() {
+        synchronized (mWriteLock) {
+            List<PendingMessage> batch;
+            synchronized (mPending) {
+                mFlushQueued = false;
+                if (mPending.isEmpty())
+                    return;
+                sHandler.removeCallbacks(mQueueFlushRunnable);
+                batch = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            synchronized (mWriting) {
+                mWriting.addAll(batch);
+            }
+            List<Future<Void>> futures = new ArrayList<>(batch.size());
+            for (PendingMessage message : batch) {
+                try {
+                    futures.add(mStorage.addMessage(message.mChannel, message.mMessage,
+                            message.mCallback, message.mErrorCallback));
+                } catch (RuntimeException e) {
+                    if (message.mErrorCallback != null)
+                        message.mErrorCallback.onError(e);
+                    futures.add(null);
+                    onStoreFailed(message, e);
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (futures.get(i) == null)
+                    continue;
+                try {
+                    futures.get(i).get();
+                    batch.get(i).mFuture.set(null);
+                } catch (InterruptedException e) {
+                    onStoreFailed(batch.get(i), e);
+                } catch (ExecutionException e) {
+                    onStoreFailed(batch.get(i), e.getCause() != null ? e.getCause() : e);
+                }
+            }
+            synchronized (this) {
+                mFlushCount++;
+                mFlushedMessageCount += batch.size();
+            }
+        }
+    }
+
+    private void onStoreFailed(PendingMessage message, Throwable e) {
+        Log.w(TAG, "Failed to store a message", e);
+        synchronized (mWriting) {
+            mWriting.remove(message);
+        }
+        message.mId.setStoredId(null);
+        message.mFuture.setException(e);
+    }
+
+    private void onMessageStored(String channel, MessageInfo message, MessageId messageId) {
+        PendingMessage pending = null;
+        synchronized (mWriting) {
+            for (Iterator<PendingMessage> it = mWriting.iterator(); it.hasNext(); ) {
+                PendingMessage m = it.next();
+                if (m.mMessage == message) {
+                    it.remove();
+                    pending = m;
+                    break;
+                }
+            }
+        }
+        if (pending != null)
+            pending.mId.setStoredId(messageId);
+    }
+
+    /**
+     * Waits until all the queued messages have been written.
+     */
+    public void flush() {
+        writePending();
+    }
+
+    /**
+     * Writes the queued messages and closes the underlying storage.
+     */
+    public void close() {
+        flush();
+        if (mStorage instanceof SQLiteMessageStorageApi)
+            ((SQLiteMessageStorageApi) mStorage).close();
+    }
+
+    /**
+     * Writes the queued messages and runs the task with the underlying storage closed, so that
+     * it has no files open while the task replaces or deletes them. Messages added meanwhile stay
+     * queued and reads wait until the storage is opened again.
+     */
+    public void runWithStorageClosed(Runnable task) {
+        SettableFuture<Void> done = new SettableFuture<>();
+        mExecutor.execute(() -> {
+            try {
+                synchronized (mWriteLock) {
+                    writePending();
+                    if (!(mStorage instanceof SQLiteMessageStorageApi)) {
+                        task.run();
+                        return;
+                    }
+                    SQLiteMessageStorageApi storage = (SQLiteMessageStorageApi) mStorage;
+                    storage.close();
+                    try {
+                        task.run();
+                    } finally {
+                        storage.open();
+                    }
+                }
+            } finally {
+                done.set(null);
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the average number of messages written in a single batch.
+     */
+    public synchronized float getAverageBatchSize() {
+        if (mFlushCount == 0)
+            return 0.f;
+        return (float) mFlushedMessageCount / mFlushCount;
+    }
+
+    /**
+     * Returns the id assigned by the storage to the message with the specified id, which is the
+     * id itself unless it's a PendingMessageId. Waits for the message to be written, so this must
+     * not be called on the main thread or the connection's thread.
+     */
+    public static MessageId getStoredId(MessageId id) {
+        if (id instanceof PendingMessageId)
+            return ((PendingMessageId) id).waitForStoredId();
+        return id;
+    }
+
+    /**
+     * Returns whether the message with the specified id has been written, in which case its
+     * toString() returns the id assigned by the storage.
+     */
+    public static boolean isStored(MessageId id) {
+        return !(id instanceof PendingMessageId) || ((PendingMessageId) id).isStored();
+    }
+
+    /**
+     * Calls the callback with the id assigned by the storage to the message with the specified
+     * id: right away unless it's a PendingMessageId of a queued message, otherwise from the
+     * writing thread once the message is written. Not called if the message couldn't be stored.
+     */
+    public static void runWhenStored(MessageId id, StoredIdCallback callback) {
+        if (id instanceof PendingMessageId)
+            ((PendingMessageId) id).runWhenStored(callback);
+        else
+            callback.onMessageStored(id);
+    }
+
+    /**
+     * Runs the request on the background thread, after the queued messages are written, and
+     * passes its result to the returned future and the callbacks.
+     */
+    private <T> Future<T> runAfterPending(StorageRequest<T> request, ResponseCallback<T> callback,
+                                          ResponseErrorCallback errorCallback) {
+        SettableFuture<T> ret = new SettableFuture<>();
+        mExecutor.execute(() -> {
+            writePending();
+            T value;
+            try {
+                value = request.run().get();
+            } catch (Exception e) {
+                Exception cause = e;
+                if (e instanceof ExecutionException && e.getCause() instanceof Exception)
+                    cause = (Exception) e.getCause();
+                ret.setException(cause);
+                if (errorCallback != null)
+                    errorCallback.onError(cause);
+                return;
+            }
+            ret.set(value);
+            if (callback != null)
+                callback.onResponse(value);
+        });
+        return ret;
+    }
+
+    @Override
+    public MessageId.Parser getMessageIdParser() {
+        return mStorage.getMessageIdParser();
+    }
+
+    @Override
+    public Future<MessageList> getMessages(String channel, int count,
+                                           MessageFilterOptions filterOptions,
+                                           MessageListAfterIdentifier after,
+                                           ResponseCallback<MessageList> callback,
+                                           ResponseErrorCallback errorCallback) {
+        return runAfterPending(() -> mStorage.getMessages(channel, count, filterOptions, after,
+                null, null), callback, errorCallback);
+    }
+
+    @Override
+    public Future<MessageList> getMessagesNear(String channel, MessageId messageId,
+                                               MessageFilterOptions filterOptions,
+                                               ResponseCallback<MessageList> callback,
+                                               ResponseErrorCallback errorCallback) {
+        return runAfterPending(() -> mStorage.getMessagesNear(channel, getStoredId(messageId),
+                filterOptions, null, null), callback, errorCallback);
+    }
+
+    @Override
+    public Future<Void> deleteMessages(String channel, List<MessageId> messages,
+                                       ResponseCallback<Void> callback,
+                                       ResponseErrorCallback errorCallback) {
+        return runAfterPending(() -> {
+            List<MessageId> ids = new ArrayList<>(messages.size());
+            for (MessageId id : messages) {
+                id = getStoredId(id);
+                if (id != null)
+                    ids.add(id);
+            }
+            return mStorage.deleteMessages(channel, ids, null, null);
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public Future<Void> subscribeChannelMessages(String channel, MessageListener listener,
+                                                 ResponseCallback<Void> callback,
+                                                 ResponseErrorCallback errorCallback) {
+        synchronized (mListeners) {
+            List<MessageListener> list = mListeners.get(channel);
+            if (list == null) {
+                list = new ArrayList<>();
+                mListeners.put(channel, list);
+            }
+            list.add(listener);
+        }
+        if (callback != null)
+            callback.onResponse(null);
+        SettableFuture<Void> ret = new SettableFuture<>();
+        ret.set(null);
+        return ret;
+    }
+
+    @Override
+    public Future<Void> unsubscribeChannelMessages(String channel, MessageListener listener,
+                                                   ResponseCallback<Void> callback,
+                                                   ResponseErrorCallback errorCallback) {
+        synchronized (mListeners) {
+            List<MessageListener> list = mListeners.get(channel);
+            if (list != null) {
+                list.remove(listener);
+                if (list.isEmpty())
+                    mListeners.remove(channel);
+            }
+        }
+        if (callback != null)
+            callback.onResponse(null);
+        SettableFuture<Void> ret = new SettableFuture<>();
+        ret.set(null);
+        return ret;
+    }
+
+    private interface StorageRequest<T> {
+        Future<T> run();
+    }
+
+    public interface StoredIdCallback {
+
+        void onMessageStored(MessageId storedId);
+
+    }
+
+    /**
+     * The id of a message which may not have been written yet. Equal only to itself, as the id
+     * the storage will assign is not known yet; the lists and maps keyed by message ids should
+     * replace it with the stored id using runWhenStored.
+     */
+    public class PendingMessageId implements MessageId {
+
+        private MessageId mStoredId;
+        private boolean mResolved = false;
+        private List<StoredIdCallback> mCallbacks;
+
+        private void setStoredId(MessageId id) {
+            List<StoredIdCallback> callbacks;
+            synchronized (this) {
+                if (mResolved)
+                    return;
+                mStoredId = id;
+                mResolved = true;
+                callbacks = mCallbacks;
+                mCallbacks = null;
+                notifyAll();
+            }
+            if (callbacks != null && id != null) {
+                for (StoredIdCallback callback : callbacks)
+                    callback.onMessageStored(id);
+            }
+        }
+
+        public synchronized boolean isStored() {
+            return mResolved && mStoredId != null;
+        }
+
+        private void runWhenStored(StoredIdCallback callback) {
+            MessageId id;
+            synchronized (this) {
+                if (!mResolved) {
+                    if (mCallbacks == null)
+                        mCallbacks = new ArrayList<>();
+                    mCallbacks.add(callback);
+                    return;
+                }
+                id = mStoredId;
+            }
+            if (id != null)
+                callback.onMessageStored(id);
+        }
+
+        /**
+         * Returns the id assigned by the underlying storage, writing the queued messages first if
+         * this message is still queued. Returns null if the message could not be stored.
+         */
+        private MessageId waitForStoredId() {
+            synchronized (this) {
+                if (mResolved)
+                    return mStoredId;
+            }
+            writePending();
+            synchronized (this) {
+                long end = System.currentTimeMillis() + STORE_TIMEOUT;
+                while (!mResolved) {
+                    long timeout = end - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        Log.w(TAG, "The storage didn't report the id of a stored message");
+                        return null;
+                    }
+                    try {
+                        wait(timeout);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                return mStoredId;
+            }
+        }
+
+        /**
+         * Returns the stored id once the message is written. Never waits for it, so check
+         * isStored() before persisting the string.
+         */
+        @Override
+        public synchronized String toString() {
+            return mStoredId != null ? mStoredId.toString() : super.toString();
+        }
+
+    }
+
+    private class PendingMessage {
+
+        private final String mChannel;
+        private final MessageInfo mMessage;
+        private final ResponseCallback<Void> mCallback;
+        private final ResponseErrorCallback mErrorCallback;
+        private final SettableFuture<Void> mFuture = new SettableFuture<>();
+        private final PendingMessageId mId = new PendingMessageId();
+
+        PendingMessage(String channel, MessageInfo message, ResponseCallback<Void> callback,
+                       ResponseErrorCallback errorCallback) {
+            mChannel = channel;
+            mMessage = message;
+            mCallback = callback;
+            mErrorCallback = errorCallback;
+        }
+
+    }
+
+}
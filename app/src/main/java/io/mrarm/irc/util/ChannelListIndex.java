@@ -0,0 +1,230 @@
+package io.mrarm.irc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mrarm.chatlib.dto.ChannelList;
+
+/**
+ * An index of the channel list sent by the server, built incrementally as the entries arrive.
+ * The entries are kept sorted both by name and by member count: every added batch is sorted on
+ * its own and then merged into the existing order. Searches go through a trigram index, so that
+ * only the channels containing the least common trigram of the query have to be checked.
+ */
+public class ChannelListIndex {
+
+    public static final int SORT_UNSORTED = 0;
+    public static final int SORT_NAME = 1;
+    public static final int SORT_MEMBER_COUNT = 2;
+
+    private static final int GRAM_LENGTH = 3;
+
+    private final List<ChannelList.Entry> mEntries = new ArrayList<>();
+    private final List<String> mLowerNames = new ArrayList<>();
+    private int[] mByName = new int[0];
+    private int[] mByMemberCount = new int[0];
+    private final Map<Long, IntArray> mGrams = new HashMap<>();
+
+    private final Comparator<Integer> mNameComparator = (Integer l, Integer r) -> {
+        int ret = mLowerNames.get(l).compareTo(mLowerNames.get(r));
+        return ret != 0 ? ret : Integer.compare(l, r);
+    };
+    private final Comparator<Integer> mMemberCountComparator = (Integer l, Integer r) -> {
+        int ret = Integer.compare(mEntries.get(r).getMemberCount(),
+                mEntries.get(l).getMemberCount());
+        return ret != 0 ? ret : Integer.compare(l, r);
+    };
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mLowerNames.clear();
+        mByName = new int[0];
+        mByMemberCount = new int[0];
+        mGrams.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void addAll(List<ChannelList.Entry> entries) {
+        if (entries.isEmpty())
+            return;
+        int start = mEntries.size();
+        for (ChannelList.Entry entry : entries) {
+            String name = entry.getChannel().toLowerCase();
+            mEntries.add(entry);
+            mLowerNames.add(name);
+            addGrams(name, mEntries.size() - 1);
+        }
+        Integer[] batch = new Integer[mEntries.size() - start];
+        for (int i = 0; i < batch.length; i++)
+            batch[i] = start + i;
+        Arrays.sort(batch, mNameComparator);
+        mByName = merge(mByName, batch, mNameComparator);
+        Arrays.sort(batch, mMemberCountComparator);
+        mByMemberCount = merge(mByMemberCount, batch, mMemberCountComparator);
+    }
+
+    private static int[] merge(int[] sorted, Integer[] batch, Comparator<Integer> comparator) {
+        int[] ret = new int[sorted.length + batch.length];
+        int i = 0, j = 0, k = 0;
+        while (i < sorted.length && j < batch.length) {
+            if (comparator.compare(sorted[i], batch[j]) <= 0)
+                ret[k++] = sorted[i++];
+            else
+                ret[k++] = batch[j++];
+        }
+        while (i < sorted.length)
+            ret[k++] = sorted[i++];
+        while (j < batch.length)
+            ret[k++] = batch[j++];
+        return ret;
+    }
+
+    private static long getGram(String str, int offset) {
+        return ((long) str.charAt(offset) << 32) | ((long) str.charAt(offset + 1) << 16) |
+                str.charAt(offset + 2);
+    }
+
+    private void addGrams(String name, int id) {
+        for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+            long gram = getGram(name, i);
+            IntArray ids = mGrams.get(gram);
+            if (ids == null) {
+                ids = new IntArray();
+                mGrams.put(gram, ids);
+            }
+            // The same trigram can appear more than once in a single name
+            if (ids.size() == 0 || ids.get(ids.size() - 1) != id)
+                ids.add(id);
+        }
+    }
+
+    /**
+     * Returns the entries whose name contains the specified text, ignoring the case, in the
+     * specified order. The returned list is a new copy which is not affected by later changes.
+     */
+    public synchronized List<ChannelList.Entry> query(String query, int sortMode) {
+        int[] order = null;
+        if (sortMode == SORT_NAME)
+            order = mByName;
+        else if (sortMode == SORT_MEMBER_COUNT)
+            order = mByMemberCount;
+
+        if (query == null || query.length() == 0) {
+            if (order == null)
+                return new ArrayList<>(mEntries);
+            List<ChannelList.Entry> ret = new ArrayList<>(order.length);
+            for (int id : order)
+                ret.add(mEntries.get(id));
+            return ret;
+        }
+
+        query = query.toLowerCase();
+        List<ChannelList.Entry> ret = new ArrayList<>();
+        if (query.length() < GRAM_LENGTH) {
+            // Too short to use the index, but the lower case names are at least already there
+            int count = mEntries.size();
+            for (int i = 0; i < count; i++) {
+                int id = order != null ? order[i] : i;
+                if (mLowerNames.get(id).contains(query))
+                    ret.add(mEntries.get(id));
+            }
+            return ret;
+        }
+
+        IntArray candidates = null;
+        for (int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+            IntArray ids = mGrams.get(getGram(query, i));
+            if (ids == null)
+                return ret;
+            if (candidates == null || ids.size() < candidates.size())
+                candidates = ids;
+        }
+        List<Integer> matches = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            int id = candidates.get(i);
+            if (mLowerNames.get(id).contains(query))
+                matches.add(id);
+        }
+        // The candidates are ordered by id, which already is the unsorted order
+        if (sortMode == SORT_NAME)
+            Collections.sort(matches, mNameComparator);
+        else if (sortMode == SORT_MEMBER_COUNT)
+            Collections.sort(matches, mMemberCountComparator);
+        for (int id : matches)
+            ret.add(mEntries.get(id));
+        return ret;
+    }
+
+    /**
+     * Splits a list sorted by name into sections by the first letter after the channel prefix,
+     * for use with the fast scroller.
+     */
+    public static Sections createSections(List<ChannelList.Entry> entries) {
+        IntArray starts = new IntArray();
+        List<String> letters = new ArrayList<>();
+        String lastLetter = null;
+        for (int i = 0; i < entries.size(); i++) {
+            String channel = entries.get(i).getChannel();
+            String letter = channel.length() >= 2 ? channel.substring(1, 2).toUpperCase() : "?";
+            if (!letter.equals(lastLetter)) {
+                starts.add(i);
+                letters.add(letter);
+                lastLetter = letter;
+            }
+        }
+        return new Sections(starts.toArray(), letters.toArray(new String[0]));
+    }
+
+    public static class Sections {
+
+        private final int[] mStarts;
+        private final String[] mLetters;
+
+        private Sections(int[] starts, String[] letters) {
+            mStarts = starts;
+            mLetters = letters;
+        }
+
+        public String getLetterFor(int position) {
+            int i = Arrays.binarySearch(mStarts, position);
+            if (i < 0)
+                i = -i - 2;
+            return i >= 0 ? mLetters[i] : null;
+        }
+
+    }
+
+    private static class IntArray {
+
+        private int[] mData = new int[4];
+        private int mSize = 0;
+
+        void add(int value) {
+            if (mSize == mData.length)
+                mData = Arrays.copyOf(mData, mSize * 2);
+            mData[mSize++] = value;
+        }
+
+        int get(int index) {
+            return mData[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mData, mSize);
+        }
+
+    }
+
+}
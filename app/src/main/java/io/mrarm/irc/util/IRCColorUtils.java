@@ -68,6 +68,21 @@ public class IRCColorUtils {
         ta.recycle();
     }
 
+    public static int[] getColors() {
+        return sColorValues;
+    }
+
+    /**
+     * Sets the colors previously returned by getColors.
+     * @return false if the colors were saved by a version with a different number of colors
+     */
+    public static boolean setColors(int[] colors) {
+        if (colors.length != R.styleable.IRCColors.length)
+            return false;
+        sColorValues = colors;
+        return true;
+    }
+
     private static void loadColors(Context context) {
         loadColors(context.getTheme(), R.style.AppTheme_IRCColors);
     }
@@ -135,112 +150,12 @@ public class IRCColorUtils {
 
     public static void appendFormattedString(Context context, ColoredTextBuilder builder,
                                              String string) {
-        int fg = 99, bg = 99;
-        boolean bold = false, italic = false, underline = false;
+        IRCFormattingDecoder decoder = new IRCFormattingDecoder(string.length());
+        decoder.decode(string);
         SpannableStringBuilder spannable = builder.getSpannable();
-        for (int i = 0; i < string.length(); ) {
-            switch (string.charAt(i)) {
-                case 0x02: { // bold
-                    i++;
-                    bold = !bold;
-                    if (bold)
-                        builder.setSpan(new StyleSpan(Typeface.BOLD));
-                    else
-                        builder.endSpans(StyleSpan.class,
-                                (StyleSpan s) -> s.getStyle() == Typeface.BOLD);
-                    break;
-                }
-                case 0x1D: { // italic
-                    i++;
-                    italic = !italic;
-                    if (italic)
-                        builder.setSpan(new StyleSpan(Typeface.ITALIC));
-                    else
-                        builder.endSpans(StyleSpan.class,
-                                (StyleSpan s) -> s.getStyle() == Typeface.ITALIC);
-                    break;
-                }
-                case 0x1F: { // underline
-                    i++;
-                    underline = !underline;
-                    if (underline)
-                        builder.setSpan(new UnderlineSpan());
-                    else
-                        builder.endSpans(UnderlineSpan.class);
-                    break;
-                }
-                case 0x0F: { // reset
-                    i++;
-                    builder.endSpans(Object.class);
-                    fg = bg = 99;
-                    bold = italic = underline = false;
-                    break;
-                }
-                case '\n': { // newline
-                    i++;
-                    spannable.append('\n');
-                    builder.endSpans(Object.class);
-                    break;
-                }
-                case 0x03: { // color
-                    fg = -1;
-                    i++;
-                    for (int j = 0; j < 2 && i < string.length(); i++, j++) {
-                        if (string.charAt(i) < '0' || string.charAt(i) > '9')
-                            break;
-                        fg = Math.max(fg, 0) * 10 + string.charAt(i) - '0';
-                    }
-                    if (fg == -1) {
-                        fg = bg = 99;
-                        builder.endSpans(ForegroundColorSpan.class);
-                        builder.endSpans(BackgroundColorSpan.class);
-                        continue;
-                    }
-                    if (((fg < 0 || fg >= COLOR_IDS.length) && fg != 99))
-                        throw new RuntimeException("Invalid formatting");
-
-                    builder.endSpans(ForegroundColorSpan.class);
-                    if (fg != 99)
-                        builder.setSpan(new ForegroundColorSpan(getIrcColor(context, fg)));
-
-                    if (string.charAt(i) != ',')
-                        break;
-                    i++;
-                    bg = 0;
-                    for (int j = 0; j < 2 && i < string.length(); i++, j++) {
-                        if (string.charAt(i) < '0' || string.charAt(i) > '9')
-                            break;
-                        bg = bg * 10 + string.charAt(i) - '0';
-                    }
-                    if (((bg < 0 || bg >= COLOR_IDS.length) && bg != 99) ||
-                            ((fg < 0 || fg >= COLOR_IDS.length) && fg != 99))
-                        throw new RuntimeException("Invalid formatting");
-
-                    builder.endSpans(BackgroundColorSpan.class);
-                    if (bg != 99)
-                        builder.setSpan(new BackgroundColorSpan(getIrcColor(context, bg)));
-                    break;
-                }
-                case 0x16: { // swap bg and fg
-                    i++;
-                    int tmp = fg;
-                    fg = bg;
-                    bg = tmp;
-
-                    builder.endSpans(ForegroundColorSpan.class);
-                    builder.endSpans(BackgroundColorSpan.class);
-                    if (fg != 99)
-                        builder.setSpan(new ForegroundColorSpan(getIrcColor(context, fg)));
-                    if (bg != 99)
-                        builder.setSpan(new BackgroundColorSpan(getIrcColor(context, bg)));
-                    break;
-                }
-                default: {
-                    spannable.append(string.charAt(i));
-                    i++;
-                }
-            }
-        }
+        int start = spannable.length();
+        spannable.append(decoder.getText());
+        decoder.applySpans(context, spannable, start);
     }
 
     public static String convertSpannableToIRCString(Context context, Spannable spannable) {
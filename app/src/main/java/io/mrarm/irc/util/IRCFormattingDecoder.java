@@ -0,0 +1,231 @@
+package io.mrarm.irc.util;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+/**
+ * Decodes the mIRC formatting codes in two stages. The first one strips the control codes from
+ * the text and records the formatting as a list of runs, each one being the start offset and
+ * the packed attributes of a range of characters. The second one walks the runs once and
+ * creates a single span for every maximal range of the same color or style.
+ *
+ * Every range gets its own span instance. A span can only be attached to a Spannable once, so
+ * sharing them would break the texts which are later concatenated into one, eg. when copying
+ * several messages.
+ */
+class IRCFormattingDecoder {
+
+    static final int COLOR_DEFAULT = 99;
+
+    private static final int ATTR_COLOR_MASK = 0x7F;
+    private static final int ATTR_BG_SHIFT = 7;
+    private static final int ATTR_BOLD = 1 << 14;
+    private static final int ATTR_ITALIC = 1 << 15;
+    private static final int ATTR_UNDERLINE = 1 << 16;
+    private static final int ATTR_DEFAULT = COLOR_DEFAULT | (COLOR_DEFAULT << ATTR_BG_SHIFT);
+
+    private static final int COLOR_COUNT = 16;
+
+    private static final int[] STYLES = new int[] {
+            Typeface.NORMAL, Typeface.BOLD, Typeface.ITALIC, Typeface.BOLD_ITALIC };
+
+    private final StringBuilder mText;
+    private int[] mRunStarts = new int[8];
+    private int[] mRunAttrs = new int[8];
+    private int mRunCount = 0;
+
+    IRCFormattingDecoder(int capacity) {
+        mText = new StringBuilder(capacity);
+    }
+
+    CharSequence getText() {
+        return mText;
+    }
+
+    int getRunCount() {
+        return mRunCount;
+    }
+
+    int getRunStart(int i) {
+        return mRunStarts[i];
+    }
+
+    int getRunAttributes(int i) {
+        return mRunAttrs[i];
+    }
+
+    private void setAttributes(int attrs) {
+        int pos = mText.length();
+        int prevAttrs = mRunCount > 0 ? mRunAttrs[mRunCount - 1] : ATTR_DEFAULT;
+        if (prevAttrs == attrs)
+            return;
+        if (mRunCount > 0 && mRunStarts[mRunCount - 1] == pos) { // the last run is still empty
+            mRunCount--;
+            if ((mRunCount > 0 ? mRunAttrs[mRunCount - 1] : ATTR_DEFAULT) == attrs)
+                return;
+        }
+        if (mRunCount == mRunStarts.length) {
+            int[] starts = new int[mRunCount * 2];
+            int[] attrsArr = new int[mRunCount * 2];
+            System.arraycopy(mRunStarts, 0, starts, 0, mRunCount);
+            System.arraycopy(mRunAttrs, 0, attrsArr, 0, mRunCount);
+            mRunStarts = starts;
+            mRunAttrs = attrsArr;
+        }
+        mRunStarts[mRunCount] = pos;
+        mRunAttrs[mRunCount] = attrs;
+        mRunCount++;
+    }
+
+    static int packAttributes(int fg, int bg, boolean bold, boolean italic,
+                                      boolean underline) {
+        return fg | (bg << ATTR_BG_SHIFT) | (bold ? ATTR_BOLD : 0) | (italic ? ATTR_ITALIC : 0) |
+                (underline ? ATTR_UNDERLINE : 0);
+    }
+
+    private static boolean isDigit(String string, int i) {
+        return i < string.length() && string.charAt(i) >= '0' && string.charAt(i) <= '9';
+    }
+
+    private static void checkColor(int color) {
+        if ((color < 0 || color >= COLOR_COUNT) && color != COLOR_DEFAULT)
+            throw new RuntimeException("Invalid formatting");
+    }
+
+    /**
+     * The first stage: appends the text without the control codes and records the runs. Each run
+     * starts at the stored offset and ends where the next one starts.
+     */
+    void decode(String string) {
+        int fg = COLOR_DEFAULT, bg = COLOR_DEFAULT;
+        boolean bold = false, italic = false, underline = false;
+        int len = string.length();
+        for (int i = 0; i < len; ) {
+            char c = string.charAt(i);
+            switch (c) {
+                case 0x02: // bold
+                    i++;
+                    bold = !bold;
+                    break;
+                case 0x1D: // italic
+                    i++;
+                    italic = !italic;
+                    break;
+                case 0x1F: // underline
+                    i++;
+                    underline = !underline;
+                    break;
+                case 0x0F: // reset
+                    i++;
+                    fg = bg = COLOR_DEFAULT;
+                    bold = italic = underline = false;
+                    break;
+                case '\n': // a new line starts without any formatting
+                    mText.append('\n');
+                    i++;
+                    fg = bg = COLOR_DEFAULT;
+                    bold = italic = underline = false;
+                    break;
+                case 0x03: { // color
+                    i++;
+                    if (!isDigit(string, i)) {
+                        fg = bg = COLOR_DEFAULT;
+                        break;
+                    }
+                    fg = string.charAt(i++) - '0';
+                    if (isDigit(string, i))
+                        fg = fg * 10 + string.charAt(i++) - '0';
+                    checkColor(fg);
+                    if (i + 1 < len && string.charAt(i) == ',' && isDigit(string, i + 1)) {
+                        i++;
+                        bg = string.charAt(i++) - '0';
+                        if (isDigit(string, i))
+                            bg = bg * 10 + string.charAt(i++) - '0';
+                        checkColor(bg);
+                    }
+                    break;
+                }
+                case 0x16: { // swap bg and fg
+                    i++;
+                    int tmp = fg;
+                    fg = bg;
+                    bg = tmp;
+                    break;
+                }
+                default: {
+                    // Copy the whole stretch of plain text at once
+                    int end = i + 1;
+                    while (end < len && !isControlChar(string.charAt(end)))
+                        end++;
+                    setAttributes(packAttributes(fg, bg, bold, italic, underline));
+                    mText.append(string, i, end);
+                    i = end;
+                    continue;
+                }
+            }
+        }
+    }
+
+    private static boolean isControlChar(char c) {
+        return c == 0x02 || c == 0x03 || c == 0x0F || c == 0x16 || c == 0x1D || c == 0x1F ||
+                c == '\n';
+    }
+
+    /**
+     * The second stage: creates the spans for the decoded text, which must have been appended to
+     * the builder at the specified offset.
+     */
+    void applySpans(Context context, SpannableStringBuilder builder, int offset) {
+        int end = mText.length();
+        int fg = COLOR_DEFAULT, bg = COLOR_DEFAULT, style = 0;
+        boolean underline = false;
+        int fgStart = 0, bgStart = 0, styleStart = 0, underlineStart = 0;
+        for (int i = 0; i <= mRunCount; i++) {
+            int pos = i < mRunCount ? mRunStarts[i] : end;
+            int attrs = i < mRunCount ? mRunAttrs[i] : ATTR_DEFAULT;
+            int nFg = attrs & ATTR_COLOR_MASK;
+            int nBg = (attrs >> ATTR_BG_SHIFT) & ATTR_COLOR_MASK;
+            int nStyle = ((attrs & ATTR_BOLD) != 0 ? 1 : 0) | ((attrs & ATTR_ITALIC) != 0 ? 2 : 0);
+            boolean nUnderline = (attrs & ATTR_UNDERLINE) != 0;
+            if (nFg != fg) {
+                if (fg != COLOR_DEFAULT && pos > fgStart)
+                    setSpan(builder, new ForegroundColorSpan(
+                            IRCColorUtils.getIrcColor(context, fg)), offset + fgStart, offset + pos);
+                fg = nFg;
+                fgStart = pos;
+            }
+            if (nBg != bg) {
+                if (bg != COLOR_DEFAULT && pos > bgStart)
+                    setSpan(builder, new BackgroundColorSpan(
+                            IRCColorUtils.getIrcColor(context, bg)), offset + bgStart, offset + pos);
+                bg = nBg;
+                bgStart = pos;
+            }
+            if (nStyle != style) {
+                if (style != 0 && pos > styleStart)
+                    setSpan(builder, new StyleSpan(STYLES[style]), offset + styleStart,
+                            offset + pos);
+                style = nStyle;
+                styleStart = pos;
+            }
+            if (nUnderline != underline) {
+                if (underline && pos > underlineStart)
+                    setSpan(builder, new UnderlineSpan(), offset + underlineStart,
+                            offset + pos);
+                underline = nUnderline;
+                underlineStart = pos;
+            }
+        }
+    }
+
+    private static void setSpan(SpannableStringBuilder builder, Object span, int start, int end) {
+        builder.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+}
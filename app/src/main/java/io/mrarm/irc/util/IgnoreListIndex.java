@@ -0,0 +1,200 @@
+package io.mrarm.irc.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import io.mrarm.irc.config.ServerConfigData;
+
+/**
+ * An immutable index of a server's ignore list. Each entry is filed under only one of its masks:
+ * entries with a mask without any wildcards are found with a hash lookup, and entries with only
+ * wildcard masks are grouped by the longest literal prefix or suffix of one of them. Only the
+ * entries found through those tables are then checked against the sender.
+ */
+public class IgnoreListIndex {
+
+    private final FieldIndex mNickIndex = new FieldIndex();
+    private final FieldIndex mUserIndex = new FieldIndex();
+    private final FieldIndex mHostIndex = new FieldIndex();
+    // Entries which only have masks starting and ending with a wildcard, eg. "*bot*"
+    private final List<Entry> mOtherEntries = new ArrayList<>();
+
+    public IgnoreListIndex(List<ServerConfigData.IgnoreEntry> entries) {
+        if (entries != null) {
+            for (ServerConfigData.IgnoreEntry entry : entries) {
+                if (entry.nick == null && entry.user == null && entry.host == null)
+                    continue;
+                add(new Entry(entry.nick, entry.user, entry.host));
+            }
+        }
+        mNickIndex.finish();
+        mUserIndex.finish();
+        mHostIndex.finish();
+    }
+
+    private void add(Entry entry) {
+        String[] masks = new String[] { entry.mNick, entry.mUser, entry.mHost };
+        FieldIndex[] indexes = new FieldIndex[] { mNickIndex, mUserIndex, mHostIndex };
+        for (int i = 0; i < masks.length; i++) {
+            if (masks[i] != null && SimpleWildcardPattern.isLiteral(masks[i])) {
+                indexes[i].addExact(masks[i], entry);
+                return;
+            }
+        }
+        int bestField = -1;
+        int bestLength = 0;
+        boolean bestIsSuffix = false;
+        for (int i = 0; i < masks.length; i++) {
+            if (masks[i] == null)
+                continue;
+            int prefixLength = SimpleWildcardPattern.getLiteralPrefixLength(masks[i]);
+            int suffixLength = SimpleWildcardPattern.getLiteralSuffixLength(masks[i]);
+            if (prefixLength > bestLength) {
+                bestField = i;
+                bestLength = prefixLength;
+                bestIsSuffix = false;
+            }
+            if (suffixLength > bestLength) {
+                bestField = i;
+                bestLength = suffixLength;
+                bestIsSuffix = true;
+            }
+        }
+        if (bestField == -1) {
+            mOtherEntries.add(entry);
+            return;
+        }
+        String mask = masks[bestField];
+        if (bestIsSuffix)
+            indexes[bestField].addSuffix(mask.substring(mask.length() - bestLength), entry);
+        else
+            indexes[bestField].addPrefix(mask.substring(0, bestLength), entry);
+    }
+
+    public boolean isEmpty() {
+        return mNickIndex.isEmpty() && mUserIndex.isEmpty() && mHostIndex.isEmpty() &&
+                mOtherEntries.isEmpty();
+    }
+
+    public boolean matches(String nick, String user, String host) {
+        if (mNickIndex.matches(nick, nick, user, host) ||
+                mUserIndex.matches(user, nick, user, host) ||
+                mHostIndex.matches(host, nick, user, host))
+            return true;
+        return matchesAny(mOtherEntries, nick, user, host);
+    }
+
+    private static boolean matchesAny(List<Entry> entries, String nick, String user,
+                                      String host) {
+        if (entries == null)
+            return false;
+        for (Entry entry : entries) {
+            if (entry.matches(nick, user, host))
+                return true;
+        }
+        return false;
+    }
+
+    private static class FieldIndex {
+
+        private final Map<String, List<Entry>> mExact = new HashMap<>();
+        private final Map<String, List<Entry>> mPrefixes = new HashMap<>();
+        private final Map<String, List<Entry>> mSuffixes = new HashMap<>();
+        private final TreeSet<Integer> mPrefixLengthSet = new TreeSet<>();
+        private final TreeSet<Integer> mSuffixLengthSet = new TreeSet<>();
+        private int[] mPrefixLengths;
+        private int[] mSuffixLengths;
+
+        private static void put(Map<String, List<Entry>> map, String key, Entry entry) {
+            List<Entry> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                map.put(key, list);
+            }
+            list.add(entry);
+        }
+
+        void addExact(String value, Entry entry) {
+            put(mExact, value, entry);
+        }
+
+        void addPrefix(String prefix, Entry entry) {
+            put(mPrefixes, prefix, entry);
+            mPrefixLengthSet.add(prefix.length());
+        }
+
+        void addSuffix(String suffix, Entry entry) {
+            put(mSuffixes, suffix, entry);
+            mSuffixLengthSet.add(suffix.length());
+        }
+
+        void finish() {
+            mPrefixLengths = toArray(mPrefixLengthSet);
+            mSuffixLengths = toArray(mSuffixLengthSet);
+        }
+
+        private static int[] toArray(TreeSet<Integer> set) {
+            int[] ret = new int[set.size()];
+            int i = 0;
+            for (Integer v : set)
+                ret[i++] = v;
+            return ret;
+        }
+
+        boolean isEmpty() {
+            return mExact.isEmpty() && mPrefixes.isEmpty() && mSuffixes.isEmpty();
+        }
+
+        boolean matches(String value, String nick, String user, String host) {
+            if (value == null)
+                return false;
+            if (matchesAny(mExact.get(value), nick, user, host))
+                return true;
+            // The lengths are sorted, so the lookup can stop at the first one which is too long
+            for (int length : mPrefixLengths) {
+                if (length > value.length())
+                    break;
+                if (matchesAny(mPrefixes.get(value.substring(0, length)), nick, user, host))
+                    return true;
+            }
+            for (int length : mSuffixLengths) {
+                if (length > value.length())
+                    break;
+                if (matchesAny(mSuffixes.get(value.substring(value.length() - length)), nick,
+                        user, host))
+                    return true;
+            }
+            return false;
+        }
+
+    }
+
+    private static class Entry {
+
+        private final String mNick;
+        private final String mUser;
+        private final String mHost;
+
+        Entry(String nick, String user, String host) {
+            mNick = nick;
+            mUser = user;
+            mHost = host;
+        }
+
+        private static boolean matchesMask(String mask, String value) {
+            if (mask == null)
+                return true;
+            return value != null && SimpleWildcardPattern.matches(mask, value);
+        }
+
+        boolean matches(String nick, String user, String host) {
+            return matchesMask(mNick, nick) && matchesMask(mUser, user) &&
+                    matchesMask(mHost, host);
+        }
+
+    }
+
+}
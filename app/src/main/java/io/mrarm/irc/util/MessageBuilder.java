@@ -68,6 +68,7 @@ public class MessageBuilder {
     private CharSequence mNoticeMessageFormat;
     private CharSequence mEventMessageFormat;
     private boolean mEventMessageShowHostname = false;
+    private volatile int mFormatVersion = 0;
 
     public static SpannableString buildDefaultMessageFormat(Context context) {
         return MessageFormatSettingsActivity.buildPresetMessageFormat(context, 0, false, false);
@@ -181,6 +182,25 @@ public class MessageBuilder {
         mEventMessageShowHostname = mgr.getBoolean(MessageFormatSettings.PREF_MESSAGE_FORMAT_EVENT_HOSTNAME, mEventMessageShowHostname);
     }
 
+    /**
+     * Creates a copy of the builder with its own date format, so that it can be used on a
+     * different thread than the original one.
+     */
+    public MessageBuilder(MessageBuilder other) {
+        mContext = other.mContext;
+        if (other.mMessageTimeFormat != null)
+            mMessageTimeFormat = (SimpleDateFormat) other.mMessageTimeFormat.clone();
+        mMessageTimeFixedWidth = other.mMessageTimeFixedWidth;
+        mMessageFormat = other.mMessageFormat;
+        mMentionMessageFormat = other.mMentionMessageFormat;
+        mActionMessageFormat = other.mActionMessageFormat;
+        mActionMentionMessageFormat = other.mActionMentionMessageFormat;
+        mNoticeMessageFormat = other.mNoticeMessageFormat;
+        mEventMessageFormat = other.mEventMessageFormat;
+        mEventMessageShowHostname = other.mEventMessageShowHostname;
+        mFormatVersion = other.mFormatVersion;
+    }
+
     public void saveFormats() {
         SharedPreferences.Editor mgr = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
         mgr.putString(MessageFormatSettings.PREF_MESSAGE_TIME_FORMAT, mMessageTimeFormat.toPattern());
@@ -213,6 +233,7 @@ public class MessageBuilder {
 
     public void setMessageTimeFormat(String format) {
         mMessageTimeFormat = new SimpleDateFormat(format, Locale.getDefault());
+        invalidateFormat();
     }
 
     public boolean isMessageTimeFixedWidth() {
@@ -221,6 +242,7 @@ public class MessageBuilder {
 
     public void setMessageTimeFixedWidth(boolean fixedWidth) {
         mMessageTimeFixedWidth = fixedWidth;
+        invalidateFormat();
     }
 
     public CharSequence getMessageFormat() {
@@ -229,6 +251,7 @@ public class MessageBuilder {
 
     public void setMessageFormat(CharSequence format) {
         mMessageFormat = format;
+        invalidateFormat();
     }
 
     public CharSequence getMentionMessageFormat() {
@@ -237,6 +260,7 @@ public class MessageBuilder {
 
     public void setMentionMessageFormat(CharSequence format) {
         mMentionMessageFormat = format;
+        invalidateFormat();
     }
 
     public CharSequence getActionMessageFormat() {
@@ -245,6 +269,7 @@ public class MessageBuilder {
 
     public void setActionMessageFormat(CharSequence format) {
         mActionMessageFormat = format;
+        invalidateFormat();
     }
 
     public CharSequence getActionMentionMessageFormat() {
@@ -253,6 +278,7 @@ public class MessageBuilder {
 
     public void setActionMentionMessageFormat(CharSequence format) {
         mActionMentionMessageFormat = format;
+        invalidateFormat();
     }
 
     public CharSequence getNoticeMessageFormat() {
@@ -261,6 +287,7 @@ public class MessageBuilder {
 
     public void setNoticeMessageFormat(CharSequence format) {
         mNoticeMessageFormat = format;
+        invalidateFormat();
     }
 
     public CharSequence getEventMessageFormat() {
@@ -269,6 +296,7 @@ public class MessageBuilder {
 
     public void setEventMessageFormat(CharSequence format) {
         mEventMessageFormat = format;
+        invalidateFormat();
     }
 
     public boolean getEventMessageShowHostname() {
@@ -277,6 +305,15 @@ public class MessageBuilder {
 
     public void setEventMessageShowHostname(boolean enabled) {
         mEventMessageShowHostname = enabled;
+        invalidateFormat();
+    }
+
+    public int getFormatVersion() {
+        return mFormatVersion;
+    }
+
+    public void invalidateFormat() {
+        mFormatVersion++;
     }
 
     public CharSequence createTimestamp(Date date, boolean addDefaultColorSpan) {
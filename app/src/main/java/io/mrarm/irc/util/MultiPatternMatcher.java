@@ -0,0 +1,154 @@
+package io.mrarm.irc.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * An Aho-Corasick automaton finding all occurrences of a set of literal strings in a single pass.
+ * When case folding is enabled only ASCII letters are folded, matching the behaviour of
+ * Pattern.CASE_INSENSITIVE.
+ */
+public class MultiPatternMatcher {
+
+    private final boolean mFoldCase;
+    private final int[] mPatternLengths;
+    private final char[][] mChildChars;
+    private final int[][] mChildNodes;
+    private final int[] mFail;
+    private final int[] mDictLink;
+    private final int[][] mOutputs;
+
+    public MultiPatternMatcher(List<String> patterns, boolean foldCase) {
+        mFoldCase = foldCase;
+        mPatternLengths = new int[patterns.size()];
+
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        children.add(new TreeMap<>());
+        outputs.add(null);
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            mPatternLengths[i] = pattern.length();
+            int node = 0;
+            for (int j = 0; j < pattern.length(); j++) {
+                char c = fold(pattern.charAt(j));
+                Integer next = children.get(node).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<>());
+                    outputs.add(null);
+                    children.get(node).put(c, next);
+                }
+                node = next;
+            }
+            if (outputs.get(node) == null)
+                outputs.set(node, new ArrayList<>());
+            outputs.get(node).add(i);
+        }
+
+        int nodeCount = children.size();
+        mChildChars = new char[nodeCount][];
+        mChildNodes = new int[nodeCount][];
+        mOutputs = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            TreeMap<Character, Integer> map = children.get(i);
+            mChildChars[i] = new char[map.size()];
+            mChildNodes[i] = new int[map.size()];
+            int j = 0;
+            for (Map.Entry<Character, Integer> e : map.entrySet()) {
+                mChildChars[i][j] = e.getKey();
+                mChildNodes[i][j] = e.getValue();
+                j++;
+            }
+            List<Integer> out = outputs.get(i);
+            if (out != null) {
+                mOutputs[i] = new int[out.size()];
+                for (j = 0; j < out.size(); j++)
+                    mOutputs[i][j] = out.get(j);
+            }
+        }
+
+        mFail = new int[nodeCount];
+        mDictLink = new int[nodeCount];
+        mDictLink[0] = -1;
+        Queue<Integer> queue = new LinkedList<>();
+        for (int child : mChildNodes[0]) {
+            mFail[child] = 0;
+            mDictLink[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            for (int j = 0; j < mChildChars[node].length; j++) {
+                char c = mChildChars[node][j];
+                int child = mChildNodes[node][j];
+                int f = mFail[node];
+                int target;
+                while ((target = findChild(f, c)) == -1 && f != 0)
+                    f = mFail[f];
+                mFail[child] = (target == -1 ? 0 : target);
+                int fc = mFail[child];
+                mDictLink[child] = (mOutputs[fc] != null ? fc : mDictLink[fc]);
+                queue.add(child);
+            }
+        }
+    }
+
+    private char fold(char c) {
+        if (mFoldCase && c >= 'A' && c <= 'Z')
+            return (char) (c + ('a' - 'A'));
+        return c;
+    }
+
+    private int findChild(int node, char c) {
+        char[] chars = mChildChars[node];
+        int lo = 0, hi = chars.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (chars[mid] < c)
+                lo = mid + 1;
+            else if (chars[mid] > c)
+                hi = mid - 1;
+            else
+                return mChildNodes[node][mid];
+        }
+        return -1;
+    }
+
+    public int getPatternCount() {
+        return mPatternLengths.length;
+    }
+
+    public void findAll(CharSequence text, MatchCallback callback) {
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            int next;
+            while ((next = findChild(node, c)) == -1 && node != 0)
+                node = mFail[node];
+            node = (next == -1 ? 0 : next);
+            for (int out = (mOutputs[node] != null ? node : mDictLink[node]); out != -1;
+                 out = mDictLink[out]) {
+                for (int pattern : mOutputs[out]) {
+                    int len = mPatternLengths[pattern];
+                    if (callback.onMatch(pattern, i + 1 - len, i + 1))
+                        return;
+                }
+            }
+        }
+    }
+
+    public interface MatchCallback {
+
+        /**
+         * Called for every occurrence of a pattern. Return true to stop the search.
+         */
+        boolean onMatch(int pattern, int start, int end);
+
+    }
+
+}
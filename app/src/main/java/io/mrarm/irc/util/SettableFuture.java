@@ -10,6 +10,7 @@ import java.util.concurrent.TimeoutException;
 public class SettableFuture<V> implements Future<V> {
 
     private V mValue;
+    private Throwable mException;
     private boolean mValueSet = false;
 
     @Override
@@ -35,6 +36,8 @@ public class SettableFuture<V> implements Future<V> {
             while (!mValueSet) {
                 wait();
             }
+            if (mException != null)
+                throw new ExecutionException(mException);
             return mValue;
         }
     }
@@ -46,6 +49,8 @@ public class SettableFuture<V> implements Future<V> {
             while (!mValueSet) {
                 wait(unit.toMillis(timeout), (int) (unit.toNanos(timeout) % 1000000L));
             }
+            if (mException != null)
+                throw new ExecutionException(mException);
             return mValue;
         }
     }
@@ -58,4 +63,12 @@ public class SettableFuture<V> implements Future<V> {
         }
     }
 
+    public void setException(Throwable exception) {
+        synchronized (this) {
+            mException = exception;
+            mValueSet = true;
+            notifyAll();
+        }
+    }
+
 }
@@ -28,4 +28,63 @@ public class SimpleWildcardPattern {
         return Pattern.compile(ret.toString());
     }
 
+    public static boolean isLiteral(String str) {
+        return str.indexOf('*') == -1 && str.indexOf('?') == -1;
+    }
+
+    /**
+     * Returns the number of characters at the start of the pattern before the first wildcard.
+     */
+    public static int getLiteralPrefixLength(String str) {
+        int i = 0;
+        while (i < str.length() && str.charAt(i) != '*' && str.charAt(i) != '?')
+            i++;
+        return i;
+    }
+
+    /**
+     * Returns the number of characters at the end of the pattern after the last wildcard.
+     */
+    public static int getLiteralSuffixLength(String str) {
+        int i = str.length();
+        while (i > 0 && str.charAt(i - 1) != '*' && str.charAt(i - 1) != '?')
+            i--;
+        return str.length() - i;
+    }
+
+    /**
+     * Matches the string against the pattern without compiling it into a regex. This behaves the
+     * same as matching against the result of compile(), the matching is done by going back to the
+     * last '*' whenever a mismatch is found.
+     */
+    public static boolean matches(String pattern, String str) {
+        int pi = 0;
+        int si = 0;
+        int starPi = -1;
+        int starSi = 0;
+        while (si < str.length()) {
+            if (pi < pattern.length()) {
+                char c = pattern.charAt(pi);
+                if (c == '*') {
+                    starPi = pi++;
+                    starSi = si;
+                    continue;
+                }
+                if (c == '?' || c == str.charAt(si)) {
+                    pi++;
+                    si++;
+                    continue;
+                }
+            }
+            if (starPi == -1)
+                return false;
+            // Let the last '*' consume one more character and retry from there
+            pi = starPi + 1;
+            si = ++starSi;
+        }
+        while (pi < pattern.length() && pattern.charAt(pi) == '*')
+            pi++;
+        return pi == pattern.length();
+    }
+
 }
@@ -27,6 +27,7 @@ import io.mrarm.irc.R;
 import io.mrarm.irc.config.AppSettings;
 import io.mrarm.irc.config.SettingsHelper;
 import io.mrarm.irc.util.IRCColorUtils;
+import io.mrarm.irc.util.MessageBuilder;
 import io.mrarm.thememonkey.Theme;
 
 public class ThemeManager {
@@ -249,10 +250,18 @@ public class ThemeManager {
         if (currentCustomThemePatcher == null && currentCustomTheme != null) {
             ThemeResourceFileBuilder.CustomTheme theme = ThemeResourceFileBuilder
                     .createTheme(context, currentCustomTheme);
-            currentTheme = theme;
-            File themeFile = ThemeResourceFileBuilder.createThemeZipFile(context,
+            String key = ThemeResourceFileBuilder.getCacheKey(context,
+                    currentCustomTheme.baseThemeInfo, currentCustomTheme);
+            File themeFile = ThemeResourceFileBuilder.getThemeZipFile(context, key,
                     theme.getResTable());
-            currentCustomThemePatcher = new Theme(context, themeFile.getAbsolutePath());
+            if (themeFile != null) {
+                currentTheme = theme;
+                currentCustomThemePatcher = new Theme(context, themeFile.getAbsolutePath());
+            } else {
+                // The styles of the custom theme only exist in the compiled file
+                Log.w("ThemeManager", "Failed to write the custom theme, using the base theme");
+                currentTheme = currentCustomTheme.baseThemeInfo;
+            }
         }
         ThemeResInfo currentBaseTheme = currentTheme;
         if (currentCustomTheme != null)
@@ -262,6 +271,16 @@ public class ThemeManager {
         if (currentCustomThemePatcher == null && isThemeDark) {
             currentCustomThemePatcher = new Theme(activity.getAssets());
         }
+        if (mNeedsApplyIrcColors && currentBaseTheme != null) {
+            // The colors only depend on the same things as the compiled theme
+            String key = ThemeResourceFileBuilder.getCacheKey(context, currentBaseTheme,
+                    currentCustomTheme);
+            int[] colors = ThemeResourceFileBuilder.loadCachedColors(context, key);
+            if (colors != null && IRCColorUtils.setColors(colors)) {
+                MessageBuilder.getInstance(context).invalidateFormat();
+                mNeedsApplyIrcColors = false;
+            }
+        }
         if (mNeedsApplyIrcColors) {
             Configuration c = new Configuration();
             c.setToDefaults();
@@ -275,6 +294,11 @@ public class ThemeManager {
             ThemeResInfo resInfo = currentTheme != null ? currentTheme : fallbackTheme;
             t.applyStyle(resInfo.getThemeResId(), true);
             IRCColorUtils.loadColors(t, resInfo.getIRCColorsResId());
+            if (currentBaseTheme != null)
+                ThemeResourceFileBuilder.saveCachedColors(context,
+                        ThemeResourceFileBuilder.getCacheKey(context, currentBaseTheme,
+                                currentCustomTheme), IRCColorUtils.getColors());
+            MessageBuilder.getInstance(context).invalidateFormat();
             mNeedsApplyIrcColors = false;
         }
         if (currentCustomThemePatcher != null) {
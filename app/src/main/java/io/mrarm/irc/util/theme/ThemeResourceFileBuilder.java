@@ -1,17 +1,27 @@
 package io.mrarm.irc.util.theme;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.os.Build;
+import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -22,8 +32,6 @@ import io.mrarm.arsc.chunks.ResValue;
 
 public class ThemeResourceFileBuilder {
 
-    private static int sessionThemeIndex = 0;
-
     public static CustomTheme createTheme(Context ctx, ThemeInfo theme) {
         ResTable table = new ResTable();
         ResTable.Package pkg = new ResTable.Package(0x7e, "io.mrarm.irc.theme");
@@ -86,7 +94,7 @@ public class ThemeResourceFileBuilder {
                 ResTable.makeReference(pkg, styleTypeSpec, ircColors), table);
     }
 
-    private static void buildThemeZipFile(File zipPath, ResTable resTable) {
+    private static boolean buildThemeZipFile(File zipPath, ResTable resTable) {
         try {
             FileOutputStream fos = new FileOutputStream(zipPath);
             ZipOutputStream outStream = new ZipOutputStream(new BufferedOutputStream(fos));
@@ -112,8 +120,10 @@ public class ThemeResourceFileBuilder {
 
             outStream.close();
             fos.close();
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -121,24 +131,111 @@ public class ThemeResourceFileBuilder {
         return new File(context.getFilesDir(), "themes/cache");
     }
 
-    private static void deleteOldThemeFiles(File dir) {
+    /**
+     * Deletes the cached files of all the other themes, only the current one is kept.
+     */
+    private static void deleteOldThemeFiles(File dir, String key) {
         File[] files = dir.listFiles();
         if (files == null)
             return;
-        for (File file : files)
-            file.delete();
+        for (File file : files) {
+            if (!file.getName().startsWith("theme." + key + "."))
+                file.delete();
+        }
+    }
+
+    /**
+     * Returns a key identifying everything the compiled theme and its IRC colors depend on: the
+     * base theme, the custom theme's colors and properties, the platform version and the app
+     * build, as the resource ids can change with every build.
+     * @param customTheme the custom theme, or null if only the base theme is used
+     */
+    public static String getCacheKey(Context context, ThemeManager.ThemeResInfo baseTheme,
+                                     ThemeInfo customTheme) {
+        StringBuilder b = new StringBuilder();
+        try {
+            b.append(context.getPackageManager().getPackageInfo(context.getPackageName(), 0)
+                    .lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException ignored) {
+        }
+        b.append(';').append(Build.VERSION.SDK_INT);
+        b.append(';').append(baseTheme.getThemeResId())
+                .append(',').append(baseTheme.getThemeNoActionBarResId())
+                .append(',').append(baseTheme.getIRCColorsResId());
+        if (baseTheme instanceof ThemeManager.BaseTheme)
+            b.append(',').append(((ThemeManager.BaseTheme) baseTheme).isDark());
+        if (customTheme != null) {
+            b.append(";colors=").append(new TreeMap<>(customTheme.colors));
+            b.append(";properties=").append(new TreeMap<>(customTheme.properties));
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    b.toString().getBytes("UTF-8"));
+            StringBuilder ret = new StringBuilder();
+            for (byte v : digest)
+                ret.append(String.format("%02x", v & 0xff));
+            return ret.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    public static File createThemeZipFile(Context context, ResTable resTable) {
+    /**
+     * Returns the compiled theme file for the specified cache key, writing it only if it does not
+     * exist yet. Returns null if the file could not be written.
+     */
+    public static File getThemeZipFile(Context context, String key, ResTable resTable) {
         File dir = getThemesDir(context);
+        File file = new File(dir, "theme." + key + ".zip");
+        if (file.exists())
+            return file;
         dir.mkdirs();
-        deleteOldThemeFiles(dir);
-        File file = new File(dir, "theme." + sessionThemeIndex +  ".zip");
-        buildThemeZipFile(file, resTable);
-        ++sessionThemeIndex;
+        deleteOldThemeFiles(dir, key);
+        // Written to a temporary file first, so that a partially written file is never used
+        File tempFile = new File(dir, "theme." + key + ".zip.tmp");
+        if (!buildThemeZipFile(tempFile, resTable) || !tempFile.renameTo(file)) {
+            tempFile.delete();
+            return null;
+        }
         return file;
     }
 
+    public static int[] loadCachedColors(Context context, String key) {
+        File file = new File(getThemesDir(context), "theme." + key + ".colors");
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            int[] ret = new int[in.readInt()];
+            for (int i = 0; i < ret.length; i++)
+                ret[i] = in.readInt();
+            return ret;
+        } catch (IOException e) {
+            Log.w("ThemeResourceFile", "Failed to load the cached IRC colors");
+            file.delete();
+            return null;
+        }
+    }
+
+    public static void saveCachedColors(Context context, String key, int[] colors) {
+        File dir = getThemesDir(context);
+        dir.mkdirs();
+        deleteOldThemeFiles(dir, key);
+        File file = new File(dir, "theme." + key + ".colors");
+        File tempFile = new File(dir, "theme." + key + ".colors.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            out.writeInt(colors.length);
+            for (int color : colors)
+                out.writeInt(color);
+        } catch (IOException e) {
+            Log.w("ThemeResourceFile", "Failed to save the IRC colors");
+            tempFile.delete();
+            return;
+        }
+        tempFile.renameTo(file);
+    }
+
 
     public static class CustomTheme extends ThemeManager.ThemeResInfo {
 
@@ -249,7 +249,7 @@ public class ChatAutoCompleteEditText extends FormattableEditText implements
             NickAutocompleteSettings.PREF_AT_SUGGESTIONS_REMOVE_AT,
             NickAutocompleteSettings.PREF_CHANNEL_SUGGESTIONS
     })
-    private void onSettingChanged() {
+    void onSettingChanged() {
         mDoThresholdSuggestions = NickAutocompleteSettings.areSuggestionsEnabled();
         mDoAtSuggestions =  NickAutocompleteSettings.areAtSuggestionsEnabled();
         mAtSuggestionsRemoveAt = NickAutocompleteSettings.isAtSuggestionsRemoveAtEnabled();
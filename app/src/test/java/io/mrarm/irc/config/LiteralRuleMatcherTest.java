@@ -0,0 +1,83 @@
+package io.mrarm.irc.config;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LiteralRuleMatcherTest {
+
+    private static final String ALPHABET = "abAB ,:;@'?x\u00e9\u00c9";
+
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return builder.toString();
+    }
+
+    private static boolean regexFind(String regex, boolean caseInsensitive, String message) {
+        return Pattern.compile(regex, caseInsensitive ? Pattern.CASE_INSENSITIVE : 0)
+                .matcher(message).find();
+    }
+
+    @Test
+    public void acceptsOnlyLiteralRegexes() {
+        LiteralRuleMatcher matcher = new LiteralRuleMatcher();
+        assertEquals(0, matcher.add(LiteralRuleMatcher.createRegex("nick", true), true));
+        assertEquals(1, matcher.add(LiteralRuleMatcher.createRegex("a.b", false), false));
+        assertEquals(-1, matcher.add("ni(ck|ckname)", false));
+        assertEquals(-1, matcher.add(null, false));
+        assertEquals(-1, matcher.add(LiteralRuleMatcher.createRegex("a\\Eb", false), false));
+        assertEquals(-1, matcher.add(LiteralRuleMatcher.createRegex("", false), false));
+        assertEquals(2, matcher.size());
+    }
+
+    @Test
+    public void checksWordBoundaries() {
+        LiteralRuleMatcher matcher = new LiteralRuleMatcher();
+        matcher.add(LiteralRuleMatcher.createRegex("nick", true), true);
+        matcher.build();
+        assertTrue(matcher.findMatches("nick").get(0));
+        assertTrue(matcher.findMatches("hey @Nick: hi").get(0));
+        assertTrue(matcher.findMatches("nicknick nick?").get(0));
+        assertEquals(false, matcher.findMatches("nicknick").get(0));
+        assertEquals(false, matcher.findMatches("@nick@").get(0));
+    }
+
+    @Test
+    public void matchesRegexSearch() {
+        Random random = new Random(2);
+        for (int round = 0; round < 300; round++) {
+            LiteralRuleMatcher matcher = new LiteralRuleMatcher();
+            List<String> regexes = new ArrayList<>();
+            List<Boolean> caseInsensitive = new ArrayList<>();
+            int count = 1 + random.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                String regex = LiteralRuleMatcher.createRegex(
+                        randomString(random, 1 + random.nextInt(3)), random.nextBoolean());
+                boolean ci = random.nextBoolean();
+                assertEquals(i, matcher.add(regex, ci));
+                regexes.add(regex);
+                caseInsensitive.add(ci);
+            }
+            matcher.build();
+            for (int j = 0; j < 20; j++) {
+                String message = randomString(random, random.nextInt(30));
+                BitSet matches = matcher.findMatches(message);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(regexes.get(i) + " in \"" + message + "\"",
+                            regexFind(regexes.get(i), caseInsensitive.get(i), message),
+                            matches.get(i));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package io.mrarm.irc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IRCFormattingDecoderTest {
+
+    private static final int D = IRCFormattingDecoder.COLOR_DEFAULT;
+
+    private static IRCFormattingDecoder decode(String string) {
+        IRCFormattingDecoder decoder = new IRCFormattingDecoder(string.length());
+        decoder.decode(string);
+        return decoder;
+    }
+
+    private static int attrs(int fg, int bg) {
+        return IRCFormattingDecoder.packAttributes(fg, bg, false, false, false);
+    }
+
+    /**
+     * Checks the runs, given as pairs of the start offset and the packed attributes.
+     */
+    private static void assertRuns(IRCFormattingDecoder decoder, int... runs) {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < runs.length; i += 2)
+            expected.append(runs[i]).append(':').append(Integer.toHexString(runs[i + 1]))
+                    .append(' ');
+        StringBuilder actual = new StringBuilder();
+        for (int i = 0; i < decoder.getRunCount(); i++)
+            actual.append(decoder.getRunStart(i)).append(':')
+                    .append(Integer.toHexString(decoder.getRunAttributes(i))).append(' ');
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void plainText() {
+        IRCFormattingDecoder decoder = decode("hello world");
+        assertEquals("hello world", decoder.getText().toString());
+        assertRuns(decoder);
+    }
+
+    @Test
+    public void styles() {
+        IRCFormattingDecoder decoder = decode("a\u0002b\u001Dc\u0002d\u001Fe\u000Ff");
+        assertEquals("abcdef", decoder.getText().toString());
+        assertRuns(decoder,
+                1, IRCFormattingDecoder.packAttributes(D, D, true, false, false),
+                2, IRCFormattingDecoder.packAttributes(D, D, true, true, false),
+                3, IRCFormattingDecoder.packAttributes(D, D, false, true, false),
+                4, IRCFormattingDecoder.packAttributes(D, D, false, true, true),
+                5, attrs(D, D));
+    }
+
+    @Test
+    public void colors() {
+        IRCFormattingDecoder decoder = decode("\u00034red\u00033,12green\u0003 plain");
+        assertEquals("redgreen plain", decoder.getText().toString());
+        assertRuns(decoder, 0, attrs(4, D), 3, attrs(3, 12), 8, attrs(D, D));
+
+        decoder = decode("\u000304,01x\u0003,y");
+        assertEquals("x,y", decoder.getText().toString());
+        assertRuns(decoder, 0, attrs(4, 1), 1, attrs(D, D));
+
+        // The comma is only a part of the color code when it's followed by a digit
+        decoder = decode("\u00035,text");
+        assertEquals(",text", decoder.getText().toString());
+        assertRuns(decoder, 0, attrs(5, D));
+
+        // Only up to two digits are read
+        decoder = decode("\u0003123");
+        assertEquals("3", decoder.getText().toString());
+        assertRuns(decoder, 0, attrs(12, D));
+    }
+
+    @Test
+    public void swapColors() {
+        IRCFormattingDecoder decoder = decode("\u00032,3a\u0016b");
+        assertEquals("ab", decoder.getText().toString());
+        assertRuns(decoder, 0, attrs(2, 3), 1, attrs(3, 2));
+    }
+
+    @Test
+    public void newLineResetsFormatting() {
+        IRCFormattingDecoder decoder = decode("\u0002\u00034a\nb");
+        assertEquals("a\nb", decoder.getText().toString());
+        assertRuns(decoder,
+                0, IRCFormattingDecoder.packAttributes(4, D, true, false, false),
+                2, attrs(D, D));
+    }
+
+    @Test
+    public void mergesRunsWithoutText() {
+        // Codes which don't change the formatting of any text don't create any runs
+        IRCFormattingDecoder decoder = decode("\u0002\u0002a\u00034\u0003b\u00035\u00036c");
+        assertEquals("abc", decoder.getText().toString());
+        assertRuns(decoder, 2, attrs(6, D));
+
+        decoder = decode("a\u0002\u0003");
+        assertEquals("a", decoder.getText().toString());
+        assertRuns(decoder);
+    }
+
+    @Test
+    public void appendsToPreviousText() {
+        IRCFormattingDecoder decoder = new IRCFormattingDecoder(16);
+        decoder.decode("\u00034a");
+        decoder.decode("b");
+        assertEquals("ab", decoder.getText().toString());
+        assertRuns(decoder, 0, attrs(4, D), 1, attrs(D, D));
+    }
+
+    @Test
+    public void colorCodeAtEnd() {
+        IRCFormattingDecoder decoder = decode("text\u00034");
+        assertEquals("text", decoder.getText().toString());
+        assertRuns(decoder);
+    }
+
+    @Test
+    public void invalidColor() {
+        try {
+            decode("\u000342text");
+            fail();
+        } catch (RuntimeException ignored) {
+        }
+        decode("\u000399text");
+    }
+
+}
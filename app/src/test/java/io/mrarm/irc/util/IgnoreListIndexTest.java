@@ -0,0 +1,113 @@
+package io.mrarm.irc.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import io.mrarm.irc.config.ServerConfigData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IgnoreListIndexTest {
+
+    private static ServerConfigData.IgnoreEntry createEntry(String nick, String user,
+                                                            String host) {
+        ServerConfigData.IgnoreEntry ret = new ServerConfigData.IgnoreEntry();
+        ret.nick = nick;
+        ret.user = user;
+        ret.host = host;
+        return ret;
+    }
+
+    private static boolean matchesMaskRegex(String mask, String value) {
+        Pattern pattern = SimpleWildcardPattern.compile(mask);
+        return pattern == null || (value != null && pattern.matcher(value).matches());
+    }
+
+    /**
+     * Checks the entries one by one using the compiled patterns, the way the ignore list used to
+     * be checked before it was indexed.
+     */
+    private static boolean matchesRegex(List<ServerConfigData.IgnoreEntry> entries, String nick,
+                                        String user, String host) {
+        for (ServerConfigData.IgnoreEntry entry : entries) {
+            if (entry.nick == null && entry.user == null && entry.host == null)
+                continue;
+            if (matchesMaskRegex(entry.nick, nick) && matchesMaskRegex(entry.user, user) &&
+                    matchesMaskRegex(entry.host, host))
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void emptyList() {
+        assertTrue(new IgnoreListIndex(null).isEmpty());
+        IgnoreListIndex index = new IgnoreListIndex(Collections.singletonList(
+                createEntry(null, null, null)));
+        assertTrue(index.isEmpty());
+        assertFalse(index.matches("nick", "user", "host"));
+    }
+
+    @Test
+    public void matchesMixedMasks() {
+        List<ServerConfigData.IgnoreEntry> entries = new ArrayList<>();
+        // An exact nick is only indexed by the nick, the wildcard host still has to match
+        entries.add(createEntry("spammer", null, "*.example.com"));
+        // An exact host with a wildcard nick
+        entries.add(createEntry("guest*", null, "10.0.0.1"));
+        // Only wildcard masks, indexed by the longest literal part
+        entries.add(createEntry("*bot", "~bot*", null));
+        entries.add(createEntry("*troll*", null, null));
+        IgnoreListIndex index = new IgnoreListIndex(entries);
+        assertFalse(index.isEmpty());
+
+        assertTrue(index.matches("spammer", "u", "a.example.com"));
+        assertFalse(index.matches("spammer", "u", "example.org"));
+        assertFalse(index.matches("spammer2", "u", "a.example.com"));
+        assertTrue(index.matches("guest123", "u", "10.0.0.1"));
+        assertFalse(index.matches("guest123", "u", "10.0.0.2"));
+        assertFalse(index.matches("user", "u", "10.0.0.1"));
+        assertTrue(index.matches("somebot", "~bot1", "host"));
+        assertFalse(index.matches("somebot", "bot1", "host"));
+        assertFalse(index.matches("somebot", null, "host"));
+        assertTrue(index.matches("atrollb", null, null));
+        assertFalse(index.matches("nick", "user", "host"));
+    }
+
+    @Test
+    public void matchesRegexCheck() {
+        Random random = new Random(11);
+        String alphabet = "ab.";
+        for (int i = 0; i < 500; i++) {
+            List<ServerConfigData.IgnoreEntry> entries = new ArrayList<>();
+            int count = random.nextInt(8);
+            for (int j = 0; j < count; j++)
+                entries.add(createEntry(randomMask(random), randomMask(random),
+                        randomMask(random)));
+            IgnoreListIndex index = new IgnoreListIndex(entries);
+            for (int j = 0; j < 50; j++) {
+                String nick = SimpleWildcardPatternTest.randomString(random, alphabet, 5);
+                String user = random.nextInt(8) == 0 ? null :
+                        SimpleWildcardPatternTest.randomString(random, alphabet, 5);
+                String host = random.nextInt(8) == 0 ? null :
+                        SimpleWildcardPatternTest.randomString(random, alphabet, 5);
+                assertEquals(matchesRegex(entries, nick, user, host),
+                        index.matches(nick, user, host));
+            }
+        }
+    }
+
+    private static String randomMask(Random random) {
+        if (random.nextInt(3) == 0)
+            return null;
+        return SimpleWildcardPatternTest.randomString(random, "ab.*?", 4);
+    }
+
+}
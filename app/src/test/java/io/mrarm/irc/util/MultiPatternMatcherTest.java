@@ -0,0 +1,115 @@
+package io.mrarm.irc.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiPatternMatcherTest {
+
+    private static List<String> findAll(MultiPatternMatcher matcher, String text) {
+        List<String> ret = new ArrayList<>();
+        matcher.findAll(text, (int pattern, int start, int end) -> {
+            ret.add(pattern + ":" + start + "-" + end);
+            return false;
+        });
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static List<String> findAllNaive(List<String> patterns, String text,
+                                             boolean foldCase) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            for (int j = 0; j + pattern.length() <= text.length(); j++) {
+                if (regionMatchesAscii(text, j, pattern, foldCase))
+                    ret.add(i + ":" + j + "-" + (j + pattern.length()));
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static boolean regionMatchesAscii(String text, int offset, String pattern,
+                                              boolean foldCase) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char a = text.charAt(offset + i);
+            char b = pattern.charAt(i);
+            if (foldCase) {
+                if (a >= 'A' && a <= 'Z')
+                    a = (char) (a + ('a' - 'A'));
+                if (b >= 'A' && b <= 'Z')
+                    b = (char) (b + ('a' - 'A'));
+            }
+            if (a != b)
+                return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void findsOverlappingOccurrences() {
+        List<String> patterns = Arrays.asList("he", "she", "his", "hers");
+        MultiPatternMatcher matcher = new MultiPatternMatcher(patterns, false);
+        assertEquals(Arrays.asList("0:2-4", "1:1-4", "3:2-6"), findAll(matcher, "ushers"));
+    }
+
+    @Test
+    public void reportsDuplicatePatterns() {
+        List<String> patterns = Arrays.asList("ab", "ab", "b");
+        MultiPatternMatcher matcher = new MultiPatternMatcher(patterns, false);
+        assertEquals(findAllNaive(patterns, "abab", false), findAll(matcher, "abab"));
+    }
+
+    @Test
+    public void foldsOnlyAsciiLetters() {
+        List<String> patterns = Arrays.asList("Nick", "\u00c9t\u00e9", "[a]");
+        MultiPatternMatcher matcher = new MultiPatternMatcher(patterns, true);
+        assertEquals(Collections.singletonList("0:0-4"), findAll(matcher, "nICK"));
+        assertEquals(Collections.singletonList("1:0-3"), findAll(matcher, "\u00c9T\u00e9"));
+        assertEquals(Collections.emptyList(), findAll(matcher, "\u00e9t\u00e9"));
+        assertEquals(Collections.singletonList("2:1-4"), findAll(matcher, "x[A]"));
+    }
+
+    @Test
+    public void matchesNaiveSearch() {
+        Random random = new Random(1);
+        String alphabet = "abAB \u00e9";
+        for (int round = 0; round < 500; round++) {
+            List<String> patterns = new ArrayList<>();
+            int patternCount = 1 + random.nextInt(8);
+            for (int i = 0; i < patternCount; i++)
+                patterns.add(randomString(random, alphabet, 1 + random.nextInt(4)));
+            String text = randomString(random, alphabet, random.nextInt(40));
+            boolean foldCase = random.nextBoolean();
+            MultiPatternMatcher matcher = new MultiPatternMatcher(patterns, foldCase);
+            assertEquals(patterns + " in \"" + text + "\"",
+                    findAllNaive(patterns, text, foldCase), findAll(matcher, text));
+        }
+    }
+
+    @Test
+    public void stopsWhenRequested() {
+        MultiPatternMatcher matcher = new MultiPatternMatcher(Arrays.asList("a"), false);
+        int[] count = new int[1];
+        matcher.findAll("aaaa", (int pattern, int start, int end) -> {
+            count[0]++;
+            return true;
+        });
+        assertEquals(1, count[0]);
+    }
+
+    static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return builder.toString();
+    }
+
+}
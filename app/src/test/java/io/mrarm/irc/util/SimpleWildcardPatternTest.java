@@ -0,0 +1,77 @@
+package io.mrarm.irc.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleWildcardPatternTest {
+
+    private static boolean matchesRegex(String pattern, String str) {
+        return SimpleWildcardPattern.compile(pattern).matcher(str).matches();
+    }
+
+    static String randomString(Random random, String alphabet, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder b = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            b.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return b.toString();
+    }
+
+    @Test
+    public void matchesWildcards() {
+        assertTrue(SimpleWildcardPattern.matches("", ""));
+        assertFalse(SimpleWildcardPattern.matches("", "a"));
+        assertTrue(SimpleWildcardPattern.matches("*", ""));
+        assertTrue(SimpleWildcardPattern.matches("*", "anything"));
+        assertTrue(SimpleWildcardPattern.matches("nick", "nick"));
+        assertFalse(SimpleWildcardPattern.matches("nick", "Nick"));
+        assertFalse(SimpleWildcardPattern.matches("nick", "nick2"));
+        assertTrue(SimpleWildcardPattern.matches("nick?", "nick2"));
+        assertFalse(SimpleWildcardPattern.matches("nick?", "nick"));
+        assertTrue(SimpleWildcardPattern.matches("*bot*", "somebot1"));
+        assertTrue(SimpleWildcardPattern.matches("*.example.com", "a.b.example.com"));
+        assertFalse(SimpleWildcardPattern.matches("*.example.com", "example.com"));
+        assertTrue(SimpleWildcardPattern.matches("a*b*c", "aXbYbZc"));
+        assertFalse(SimpleWildcardPattern.matches("a*b*c", "aXbYbZ"));
+        assertTrue(SimpleWildcardPattern.matches("**a**", "a"));
+    }
+
+    @Test
+    public void treatsRegexCharactersLiterally() {
+        assertTrue(SimpleWildcardPattern.matches("a.b", "a.b"));
+        assertFalse(SimpleWildcardPattern.matches("a.b", "axb"));
+        assertTrue(SimpleWildcardPattern.matches("[a]+\\E", "[a]+\\E"));
+        assertEquals(SimpleWildcardPattern.matches("[a]+\\E", "[a]+\\E"),
+                matchesRegex("[a]+\\E", "[a]+\\E"));
+    }
+
+    @Test
+    public void matchesCompiledPattern() {
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            String pattern = randomString(random, "ab.*?", 6);
+            String str = randomString(random, "ab.", 8);
+            assertEquals(pattern + " " + str, matchesRegex(pattern, str),
+                    SimpleWildcardPattern.matches(pattern, str));
+        }
+    }
+
+    @Test
+    public void findsLiteralParts() {
+        assertTrue(SimpleWildcardPattern.isLiteral("nick"));
+        assertFalse(SimpleWildcardPattern.isLiteral("nick*"));
+        assertFalse(SimpleWildcardPattern.isLiteral("?nick"));
+        assertEquals(4, SimpleWildcardPattern.getLiteralPrefixLength("nick*"));
+        assertEquals(0, SimpleWildcardPattern.getLiteralPrefixLength("*nick"));
+        assertEquals(4, SimpleWildcardPattern.getLiteralPrefixLength("nick"));
+        assertEquals(4, SimpleWildcardPattern.getLiteralSuffixLength("*.com"));
+        assertEquals(0, SimpleWildcardPattern.getLiteralSuffixLength("nick?"));
+        assertEquals(1, SimpleWildcardPattern.getLiteralSuffixLength("a*b?c"));
+    }
+
+}